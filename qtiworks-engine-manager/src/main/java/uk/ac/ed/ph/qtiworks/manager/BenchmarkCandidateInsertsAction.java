@@ -0,0 +1,202 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.qtiworks.manager;
+
+import uk.ac.ed.ph.qtiworks.config.beans.QtiWorksDeploymentSettings;
+import uk.ac.ed.ph.qtiworks.domain.entities.CandidateEvent;
+import uk.ac.ed.ph.qtiworks.domain.entities.CandidateEventNotification;
+import uk.ac.ed.ph.qtiworks.domain.entities.CandidateItemEventType;
+import uk.ac.ed.ph.qtiworks.domain.entities.CandidateResponse;
+import uk.ac.ed.ph.qtiworks.domain.entities.CandidateSession;
+import uk.ac.ed.ph.qtiworks.domain.entities.ResponseLegality;
+import uk.ac.ed.ph.qtiworks.services.dao.CandidateEventDao;
+import uk.ac.ed.ph.qtiworks.services.dao.CandidateEventNotificationDao;
+import uk.ac.ed.ph.qtiworks.services.dao.CandidateResponseDao;
+import uk.ac.ed.ph.qtiworks.services.dao.CandidateSessionDao;
+
+import uk.ac.ed.ph.jqtiplus.notification.NotificationLevel;
+import uk.ac.ed.ph.jqtiplus.notification.NotificationType;
+import uk.ac.ed.ph.jqtiplus.types.ResponseData.ResponseDataType;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import javax.persistence.EntityManagerFactory;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.ApplicationContext;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Measures the database work done when recording candidate actions, by persisting a number of
+ * synthetic {@link CandidateEvent}s (each having some {@link CandidateResponse}s and a
+ * {@link CandidateEventNotification}) against an existing {@link CandidateSession}, in the
+ * same way as the candidate services do.
+ * <p>
+ * Everything is rolled back afterwards, so this is safe to run on a live database.
+ * <p>
+ * This only reports figures for the current configuration. Running it with
+ * <code>qtiworks.jdbc.batch.size</code> set to 0 and then to its usual value compares runs with
+ * and without JDBC batching. The sequence allocation sizes are fixed in the entity mappings,
+ * so this does not measure the effect of changing them.
+ *
+ * @author David McKain
+ */
+public final class BenchmarkCandidateInsertsAction extends ManagerAction {
+
+    private static final Logger logger = LoggerFactory.getLogger(BenchmarkCandidateInsertsAction.class);
+
+    private static final int DEFAULT_ACTION_COUNT = 100;
+    private static final int DEFAULT_RESPONSES_PER_ACTION = 4;
+
+    @Override
+    public String[] getActionSummary() {
+        return new String[] {
+                "Measures the statements sent to the database when recording candidate actions,",
+                "by recording synthetic actions against the CandidateSession having the given xid.",
+                "All changes are rolled back afterwards. Only the current configuration is measured."
+        };
+    }
+
+    @Override
+    public String getActionParameterSummary() {
+        return "<xid> [<actions>] [<responsesPerAction>]";
+    }
+
+    @Override
+    public String validateParameters(final List<String> parameters) {
+        if (parameters.isEmpty() || parameters.size() > 3) {
+            return "Required parameters: <xid> [<actions>] [<responsesPerAction>]";
+        }
+        for (final String parameter : parameters) {
+            try {
+                if (Long.parseLong(parameter) < 0L) {
+                    return "Parameters must not be negative";
+                }
+            }
+            catch (final NumberFormatException e) {
+                return "Parameter '" + parameter + "' is not an integer";
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void run(final ApplicationContext applicationContext, final List<String> parameters) throws Exception {
+        final QtiWorksDeploymentSettings qtiWorksDeploymentSettings = applicationContext.getBean(QtiWorksDeploymentSettings.class);
+        final CandidateSessionDao candidateSessionDao = applicationContext.getBean(CandidateSessionDao.class);
+        final CandidateEventDao candidateEventDao = applicationContext.getBean(CandidateEventDao.class);
+        final CandidateResponseDao candidateResponseDao = applicationContext.getBean(CandidateResponseDao.class);
+        final CandidateEventNotificationDao candidateEventNotificationDao = applicationContext.getBean(CandidateEventNotificationDao.class);
+        final Statistics statistics = applicationContext.getBean(EntityManagerFactory.class)
+                .unwrap(SessionFactory.class).getStatistics();
+
+        final Long xid = Long.valueOf(parameters.get(0));
+        final int actionCount = parameters.size() > 1 ? Integer.parseInt(parameters.get(1)) : DEFAULT_ACTION_COUNT;
+        final int responsesPerAction = parameters.size() > 2 ? Integer.parseInt(parameters.get(2)) : DEFAULT_RESPONSES_PER_ACTION;
+
+        final TransactionTemplate transactionTemplate = new TransactionTemplate(applicationContext.getBean(PlatformTransactionManager.class));
+        final long[] elapsedTime = new long[] { -1L };
+        transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+            @Override
+            protected void doInTransactionWithoutResult(final TransactionStatus status) {
+                final CandidateSession candidateSession = candidateSessionDao.findById(xid);
+                if (candidateSession==null) {
+                    logger.warn("Could not find CandidateSession having xid {}", xid);
+                    return;
+                }
+                statistics.setStatisticsEnabled(true);
+                statistics.clear();
+                final long startTime = System.currentTimeMillis();
+                for (int i=0; i<actionCount; i++) {
+                    recordSyntheticAction(candidateSession, responsesPerAction, candidateEventDao,
+                            candidateResponseDao, candidateEventNotificationDao);
+                }
+                candidateEventDao.flush();
+                elapsedTime[0] = System.currentTimeMillis() - startTime;
+                status.setRollbackOnly();
+            }
+        });
+        statistics.setStatisticsEnabled(false);
+        if (elapsedTime[0] < 0L || actionCount==0) {
+            return;
+        }
+
+        final long entityInsertCount = statistics.getEntityInsertCount();
+        final long statementCount = statistics.getPrepareStatementCount();
+        logger.info("Recorded {} candidate action(s) with {} response(s) each using JDBC batch size {}",
+                new Object[] { actionCount, responsesPerAction, qtiWorksDeploymentSettings.getJdbcBatchSize() });
+        logger.info("Entity inserts: {} ({} per action)", entityInsertCount, formatPerAction(entityInsertCount, actionCount));
+        logger.info("JDBC statements prepared: {} ({} per action)", statementCount, formatPerAction(statementCount, actionCount));
+        logger.info("Time taken: {}ms ({}ms per action)", elapsedTime[0], formatPerAction(elapsedTime[0], actionCount));
+    }
+
+    private static void recordSyntheticAction(final CandidateSession candidateSession, final int responsesPerAction,
+            final CandidateEventDao candidateEventDao, final CandidateResponseDao candidateResponseDao,
+            final CandidateEventNotificationDao candidateEventNotificationDao) {
+        final CandidateEvent candidateEvent = new CandidateEvent();
+        candidateEvent.setCandidateSession(candidateSession);
+        candidateEvent.setItemEventType(CandidateItemEventType.ATTEMPT_VALID);
+        candidateEvent.setTimestamp(new Date());
+        candidateEventDao.persist(candidateEvent);
+
+        final CandidateEventNotification notification = new CandidateEventNotification();
+        notification.setCandidateEvent(candidateEvent);
+        notification.setNotificationType(NotificationType.RUNTIME);
+        notification.setNotificationLevel(NotificationLevel.INFO);
+        notification.setMessage("Benchmark notification");
+        candidateEventNotificationDao.persist(notification);
+
+        for (int i=0; i<responsesPerAction; i++) {
+            final CandidateResponse candidateResponse = new CandidateResponse();
+            candidateResponse.setCandidateEvent(candidateEvent);
+            candidateResponse.setResponseIdentifier("RESPONSE_" + i);
+            candidateResponse.setResponseDataType(ResponseDataType.STRING);
+            candidateResponse.setResponseLegality(ResponseLegality.VALID);
+            candidateResponse.setStringResponseData(Arrays.asList("ChoiceA", "ChoiceB"));
+            candidateResponseDao.persist(candidateResponse);
+        }
+    }
+
+    private static String formatPerAction(final long total, final int actionCount) {
+        return String.format("%.2f", Double.valueOf((double) total / actionCount));
+    }
+}
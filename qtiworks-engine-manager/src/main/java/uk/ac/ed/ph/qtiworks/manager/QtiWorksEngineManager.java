@@ -94,6 +94,7 @@ public final class QtiWorksEngineManager {
         actionMap.put("deleteLtiResource", new DeleteLtiResourceAction());
         actionMap.put("deleteLtiContext", new DeleteLtiContextAction());
         actionMap.put("deleteLtiDomain", new DeleteLtiDomainAction());
+        actionMap.put("benchmarkCandidateInserts", new BenchmarkCandidateInsertsAction());
 //        actionMap.put("adhoc", new AdhocAction());
     }
 
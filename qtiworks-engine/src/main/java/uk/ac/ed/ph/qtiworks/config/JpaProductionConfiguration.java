@@ -33,8 +33,12 @@
  */
 package uk.ac.ed.ph.qtiworks.config;
 
+import uk.ac.ed.ph.qtiworks.config.beans.QtiWorksDeploymentSettings;
+
 import java.util.Properties;
 
+import javax.annotation.Resource;
+
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Profile;
@@ -48,6 +52,9 @@ import org.springframework.context.annotation.Profile;
 @Profile({QtiWorksProfiles.WEBAPP, QtiWorksProfiles.MANAGER})
 public class JpaProductionConfiguration {
 
+    @Resource
+    private QtiWorksDeploymentSettings qtiWorksDeploymentSettings;
+
     @Bean(name="extraJpaProperties")
     public Properties extraJpaProperties() {
         final Properties extraJpaProperties = new Properties();
@@ -55,6 +62,19 @@ public class JpaProductionConfiguration {
         /* As recommended, and required for sequence generation 'initialValue' */
         extraJpaProperties.put("hibernate.id.new_generator_mappings", "true");
 
+        /* Send inserts & updates to the DB in batches. Ordering these groups together
+         * statements for the same table, which is what lets a candidate action's event, responses
+         * and notifications go out as a handful of batches. (Entity IDs come from pooled sequences,
+         * so Hibernate doesn't need to go to the DB for each ID either.)
+         */
+        final int jdbcBatchSize = qtiWorksDeploymentSettings.getJdbcBatchSize();
+        if (jdbcBatchSize > 0) {
+            extraJpaProperties.put("hibernate.jdbc.batch_size", Integer.toString(jdbcBatchSize));
+            extraJpaProperties.put("hibernate.jdbc.batch_versioned_data", "true");
+            extraJpaProperties.put("hibernate.order_inserts", "true");
+            extraJpaProperties.put("hibernate.order_updates", "true");
+        }
+
         return extraJpaProperties;
     }
 
@@ -35,15 +35,18 @@ package uk.ac.ed.ph.qtiworks.config;
 
 import uk.ac.ed.ph.qtiworks.config.beans.QtiWorksDeploymentSettings;
 import uk.ac.ed.ph.qtiworks.mathassess.MathAssessExtensionPackage;
+import uk.ac.ed.ph.qtiworks.rendering.AssessmentSourceCache;
 import uk.ac.ed.ph.qtiworks.services.RequestTimestampContext;
+import uk.ac.ed.ph.qtiworks.utils.ByteChunkPool;
 
 import uk.ac.ed.ph.jqtiplus.JqtiExtensionManager;
 import uk.ac.ed.ph.jqtiplus.JqtiExtensionPackage;
 import uk.ac.ed.ph.jqtiplus.reading.QtiXmlReader;
+import uk.ac.ed.ph.jqtiplus.reading.SharedRootNodeCache;
 import uk.ac.ed.ph.jqtiplus.serialization.QtiSerializer;
 import uk.ac.ed.ph.jqtiplus.xmlutils.SchemaCache;
 import uk.ac.ed.ph.jqtiplus.xmlutils.SimpleSchemaCache;
-import uk.ac.ed.ph.jqtiplus.xmlutils.xslt.SimpleXsltStylesheetCache;
+import uk.ac.ed.ph.jqtiplus.xmlutils.xslt.ConcurrentXsltStylesheetCache;
 import uk.ac.ed.ph.jqtiplus.xmlutils.xslt.XsltStylesheetCache;
 
 import java.util.ArrayList;
@@ -81,6 +84,9 @@ public class ServicesConfiguration {
 
     private static final Logger logger = LoggerFactory.getLogger(ServicesConfiguration.class);
 
+    /** Size of each chunk of memory used when buffering rendered pages */
+    private static final int RENDERING_BUFFER_CHUNK_SIZE = 16 * 1024;
+
     @Resource
     private QtiWorksDeploymentSettings qtiWorksDeploymentSettings;
 
@@ -153,7 +159,25 @@ public class ServicesConfiguration {
 
     @Bean
     public XsltStylesheetCache xsltStylesheetCache() {
-        return new SimpleXsltStylesheetCache();
+        return new ConcurrentXsltStylesheetCache();
+    }
+
+    @Bean
+    public SharedRootNodeCache sharedRootNodeCache() {
+        return new SharedRootNodeCache();
+    }
+
+    @Bean
+    public ByteChunkPool renderingBufferPool() {
+        final long poolSize = qtiWorksDeploymentSettings.getRenderingBufferPoolSize() * 1024L * 1024L;
+        final long maxSize = qtiWorksDeploymentSettings.getRenderingBufferMaxSize() * 1024L * 1024L;
+        return new ByteChunkPool(RENDERING_BUFFER_CHUNK_SIZE, (int) (poolSize / RENDERING_BUFFER_CHUNK_SIZE),
+                (int) (maxSize / RENDERING_BUFFER_CHUNK_SIZE));
+    }
+
+    @Bean
+    public AssessmentSourceCache assessmentSourceCache() {
+        return new AssessmentSourceCache(qtiWorksDeploymentSettings.getAssessmentSourceCacheMaxSize());
     }
 
     @Bean(initMethod="init", destroyMethod="destroy")
@@ -171,7 +195,7 @@ public class ServicesConfiguration {
 
     @Bean
     public QtiXmlReader qtiXmlReader() {
-        return new QtiXmlReader(jqtiExtensionManager(), schemaCache());
+        return new QtiXmlReader(jqtiExtensionManager(), schemaCache(), sharedRootNodeCache());
     }
 
     @Bean
@@ -33,6 +33,7 @@
  */
 package uk.ac.ed.ph.qtiworks.config.beans;
 
+import uk.ac.ed.ph.qtiworks.services.domain.SessionStateFormat;
 import uk.ac.ed.ph.qtiworks.web.QtiWorksWebApplicationContextInitializer;
 
 import uk.ac.ed.ph.jqtiplus.internal.util.ObjectUtilities;
@@ -69,6 +70,33 @@ public final class QtiWorksDeploymentSettings implements Serializable {
     private @Value("${qtiworks.features.publicdemos:false}") boolean publicDemosEnabled; /* (Optional - default false) */
     private @Value("${qtiworks.features.rest:false}") boolean restEnabled; /* (Optional - default false) */
     private @Value("${qtiworks.retention.max.candidatesession.age:180}") int maxCandidateSessionAge; /* (Optional - default 180 days) */
+    private @Value("${qtiworks.cache.assessmentobjects.max.size:10}") int assessmentObjectCacheMaxSize; /* (Optional - default 10 packages) */
+    private @Value("${qtiworks.cache.assessmentobjects.max.weight:0}") long assessmentObjectCacheMaxWeight; /* (Optional - default 0, i.e. unused) */
+    private @Value("${qtiworks.cache.assessmentobjects.idle.expiry:0}") int assessmentObjectCacheIdleExpiry; /* (Optional - default 0 mins, i.e. never) */
+    private @Value("${qtiworks.cache.assessmentsources.max.size:1000}") int assessmentSourceCacheMaxSize; /* (Optional - default 1000 documents) */
+    private @Value("${qtiworks.rendering.precompile.threads:2}") int stylesheetPrecompilationThreads; /* (Optional - default 2 threads) */
+    private @Value("${qtiworks.candidate.state.format:BINARY}") SessionStateFormat candidateSessionStateFormat; /* (Optional - default BINARY) */
+    private @Value("${qtiworks.candidate.state.journal.snapshot.interval:20}") int candidateStateJournalSnapshotInterval; /* (Optional - default 20 events) */
+    private @Value("${qtiworks.cache.sessionstates.max.size:1000}") int sessionStateCacheMaxSize; /* (Optional - default 1000 sessions) */
+    private @Value("${qtiworks.cache.sessionstates.idle.expiry:30}") int sessionStateCacheIdleExpiry; /* (Optional - default 30 mins) */
+    private @Value("${qtiworks.lti.outcomes.batch.size:100}") int ltiOutcomeBatchSize; /* (Optional - default 100 outcomes) */
+    private @Value("${qtiworks.lti.outcomes.send.threads:8}") int ltiOutcomeSendThreads; /* (Optional - default 8 threads) */
+    private @Value("${qtiworks.lti.outcomes.send.per.host:2}") int ltiOutcomeMaxSendsPerHost; /* (Optional - default 2 sends) */
+    private @Value("${qtiworks.lti.outcomes.send.timeout:30}") int ltiOutcomeSendTimeout; /* (Optional - default 30 secs) */
+    private @Value("${qtiworks.reporting.zip.threads:4}") int reportZipThreads; /* (Optional - default 4 threads) */
+    private @Value("${qtiworks.reporting.zip.compress:true}") boolean reportZipCompression; /* (Optional - default true) */
+    private @Value("${qtiworks.processing.compiled:false}") boolean compiledProcessing; /* (Optional - default false) */
+    private @Value("${qtiworks.processing.incrementalOutcomes:false}") boolean incrementalOutcomeProcessing; /* (Optional - default false) */
+    private @Value("${qtiworks.loading.threads:4}") int loadingThreads; /* (Optional - default 4 threads) */
+    private @Value("${qtiworks.results.writebehind.threads:0}") int resultWriteBehindThreads; /* (Optional - default 0, i.e. unused) */
+    private @Value("${qtiworks.jdbc.batch.size:50}") int jdbcBatchSize; /* (Optional - default 50 statements) */
+    private @Value("${qtiworks.rendering.buffer.limit:512}") int renderingBufferLimit; /* (Optional - default 512 KB) */
+    private @Value("${qtiworks.rendering.buffer.pool:16}") int renderingBufferPoolSize; /* (Optional - default 16 MB) */
+    private @Value("${qtiworks.rendering.buffer.max:64}") int renderingBufferMaxSize; /* (Optional - default 64 MB) */
+    private @Value("${qtiworks.rendering.streaming:false}") boolean renderingStreaming; /* (Optional - default false) */
+    private @Value("${qtiworks.cache.renderedpages.max.weight:32}") int renderedPageCacheMaxWeight; /* (Optional - default 32 MB) */
+    private @Value("${qtiworks.cache.renderedpages.idle.expiry:30}") int renderedPageCacheIdleExpiry; /* (Optional - default 30 mins) */
+    private @Value("${qtiworks.lti.nonces.persist:false}") boolean ltiNoncePersistence; /* (Optional - default false) */
 
 
     public String getJdbcDriverClassName() {
@@ -131,6 +159,114 @@ public final class QtiWorksDeploymentSettings implements Serializable {
         return maxCandidateSessionAge;
     }
 
+    public int getAssessmentObjectCacheMaxSize() {
+        return assessmentObjectCacheMaxSize;
+    }
+
+    public long getAssessmentObjectCacheMaxWeight() {
+        return assessmentObjectCacheMaxWeight;
+    }
+
+    public int getAssessmentObjectCacheIdleExpiry() {
+        return assessmentObjectCacheIdleExpiry;
+    }
+
+    public int getAssessmentSourceCacheMaxSize() {
+        return assessmentSourceCacheMaxSize;
+    }
+
+    public int getStylesheetPrecompilationThreads() {
+        return stylesheetPrecompilationThreads;
+    }
+
+    public SessionStateFormat getCandidateSessionStateFormat() {
+        return candidateSessionStateFormat;
+    }
+
+    public int getCandidateStateJournalSnapshotInterval() {
+        return candidateStateJournalSnapshotInterval;
+    }
+
+    public int getSessionStateCacheMaxSize() {
+        return sessionStateCacheMaxSize;
+    }
+
+    public int getSessionStateCacheIdleExpiry() {
+        return sessionStateCacheIdleExpiry;
+    }
+
+    public int getLtiOutcomeBatchSize() {
+        return ltiOutcomeBatchSize;
+    }
+
+    public int getLtiOutcomeSendThreads() {
+        return ltiOutcomeSendThreads;
+    }
+
+    public int getLtiOutcomeMaxSendsPerHost() {
+        return ltiOutcomeMaxSendsPerHost;
+    }
+
+    public int getLtiOutcomeSendTimeout() {
+        return ltiOutcomeSendTimeout;
+    }
+
+    public int getReportZipThreads() {
+        return reportZipThreads;
+    }
+
+    public boolean isReportZipCompression() {
+        return reportZipCompression;
+    }
+
+    public boolean isCompiledProcessing() {
+        return compiledProcessing;
+    }
+
+    public boolean isIncrementalOutcomeProcessing() {
+        return incrementalOutcomeProcessing;
+    }
+
+    public int getLoadingThreads() {
+        return loadingThreads;
+    }
+
+    public int getResultWriteBehindThreads() {
+        return resultWriteBehindThreads;
+    }
+
+    public int getJdbcBatchSize() {
+        return jdbcBatchSize;
+    }
+
+    public int getRenderingBufferLimit() {
+        return renderingBufferLimit;
+    }
+
+    public int getRenderingBufferPoolSize() {
+        return renderingBufferPoolSize;
+    }
+
+    public int getRenderingBufferMaxSize() {
+        return renderingBufferMaxSize;
+    }
+
+    public boolean isRenderingStreaming() {
+        return renderingStreaming;
+    }
+
+    public int getRenderedPageCacheMaxWeight() {
+        return renderedPageCacheMaxWeight;
+    }
+
+    public int getRenderedPageCacheIdleExpiry() {
+        return renderedPageCacheIdleExpiry;
+    }
+
+    public boolean isLtiNoncePersistence() {
+        return ltiNoncePersistence;
+    }
+
     @Override
     public String toString() {
         return ObjectUtilities.beanToString(this);
@@ -69,6 +69,10 @@ import org.hibernate.annotations.Type;
  * Developer note: The ID of a {@link CandidateEvent} is generally referred to as an
  * <code>xeid</code> in the code. This is also used as the name of the primary key column
  * in the database mappings.
+ * <p>
+ * The ID sequence is deliberately allocated one value at a time, so that a higher ID always
+ * means a newer event, even when several engine instances share the database. Various
+ * lookups (e.g. the newest event in a session) rely on this.
  *
  * @author David McKain
  */
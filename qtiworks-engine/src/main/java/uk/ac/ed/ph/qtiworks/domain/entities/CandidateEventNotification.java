@@ -68,7 +68,7 @@ import org.hibernate.annotations.Type;
 @Table(name="candidate_event_notifications",
     indexes={@Index(name="candidate_notification_events", columnList="xeid")}
 )
-@SequenceGenerator(name="candidateEventNotificationSequence", sequenceName="candidate_event_notification_sequence", initialValue=1, allocationSize=10)
+@SequenceGenerator(name="candidateEventNotificationSequence", sequenceName="candidate_event_notification_sequence", initialValue=1, allocationSize=50)
 @NamedQueries({
     @NamedQuery(name="CandidateEventNotification.getForEvent",
             query="SELECT xn"
@@ -75,7 +75,7 @@ import org.hibernate.annotations.Type;
 @Table(name="candidate_responses",
     indexes={@Index(name="candidate_response_events", columnList="xeid")}
 )
-@SequenceGenerator(name="candidateResponseSequence", sequenceName="candidate_response_sequence", initialValue=1, allocationSize=5)
+@SequenceGenerator(name="candidateResponseSequence", sequenceName="candidate_response_sequence", initialValue=1, allocationSize=50)
 @NamedQueries({
     @NamedQuery(name="CandidateResponse.deleteForSession",
             query="DELETE FROM CandidateResponse xr"
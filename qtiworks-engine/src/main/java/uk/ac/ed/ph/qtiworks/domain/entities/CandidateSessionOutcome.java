@@ -77,6 +77,33 @@ import org.hibernate.annotations.Type;
                 + "  FROM CandidateSessionOutcome xo"
                 + "  WHERE xo.candidateSession.delivery = :delivery"
                 + "  ORDER BY xo.candidateSession.xid, xo.id"),
+    /* Retrieves the flattened session, candidate and outcome data used when streaming candidate
+     * summary reports. Each row corresponds to one outcome. (Used for scrolling) */
+    @NamedQuery(name="CandidateSessionOutcome.getSummaryRowsForDelivery",
+            query="SELECT x.xid, x.creationTime, u.firstName, u.lastName, u.emailAddress,"
+                + "    x.finishTime, x.terminationTime, x.exploded, x.lisOutcomeReportingStatus, x.lisScore,"
+                + "    xo.outcomeIdentifier, xo.baseType, xo.cardinality, xo.stringValue"
+                + "  FROM CandidateSessionOutcome xo"
+                + "  JOIN xo.candidateSession x"
+                + "  JOIN x.candidate u"
+                + "  WHERE x.delivery = :delivery"
+                + "  ORDER BY x.xid, xo.xoid"),
+    /* Retrieves the distinct outcome variable identifiers, base types and cardinalities recorded
+     * for a delivery, each with the xid of the first session recording it */
+    @NamedQuery(name="CandidateSessionOutcome.getOutcomeSignaturesForDelivery",
+            query="SELECT xo.outcomeIdentifier, xo.baseType, xo.cardinality, MIN(x.xid)"
+                + "  FROM CandidateSessionOutcome xo"
+                + "  JOIN xo.candidateSession x"
+                + "  WHERE x.delivery = :delivery"
+                + "  GROUP BY xo.outcomeIdentifier, xo.baseType, xo.cardinality"),
+    /* Retrieves the outcome variable identifiers, base types and cardinalities recorded for the
+     * given sessions, in the order they were recorded */
+    @NamedQuery(name="CandidateSessionOutcome.getOutcomeSignaturesForSessions",
+            query="SELECT x.xid, xo.outcomeIdentifier, xo.baseType, xo.cardinality"
+                + "  FROM CandidateSessionOutcome xo"
+                + "  JOIN xo.candidateSession x"
+                + "  WHERE x.xid IN (:xids)"
+                + "  ORDER BY x.xid, xo.xoid"),
     @NamedQuery(name="CandidateSessionOutcome.deleteForSession",
             query="DELETE FROM CandidateSessionOutcome xo"
                 + "  WHERE xo.candidateSession = :candidateSession"),
@@ -124,7 +151,7 @@ public class CandidateSessionOutcome implements BaseEntity {
     @Lob
     @Type(type="org.hibernate.type.TextType")
     @Basic(optional=false)
-    @Column(name="string_value", updatable=false)
+    @Column(name="string_value")
     private String stringValue;
 
     //------------------------------------------------------------
@@ -66,13 +66,17 @@ import javax.persistence.UniqueConstraint;
 @Table(name="lti_nonces",
     uniqueConstraints=@UniqueConstraint(name="lti_nonce_uniqueness", columnNames={"consumer_key", "nonce"})
 )
-@SequenceGenerator(name="ltiNonceSequence", sequenceName="lti_nonce_sequence", initialValue=1, allocationSize=1)
+@SequenceGenerator(name="ltiNonceSequence", sequenceName="lti_nonce_sequence", initialValue=1, allocationSize=50)
 @NamedQueries({
     @NamedQuery(name="LtiNonce.findByNonceAndConsumerKey",
             query="SELECT ln"
                 + "  FROM LtiNonce ln"
                 + "  WHERE ln.nonce = :nonce"
                 + "    AND ln.consumerKey = :consumerKey"),
+    @NamedQuery(name="LtiNonce.getForNonces",
+            query="SELECT ln"
+                + "  FROM LtiNonce ln"
+                + "  WHERE ln.nonce IN (:nonces)"),
     @NamedQuery(name="LtiNonce.deleteOldNonces",
             query="DELETE"
                 + "  FROM LtiNonce ln"
@@ -45,6 +45,7 @@ import javax.persistence.Entity;
 import javax.persistence.FetchType;
 import javax.persistence.GeneratedValue;
 import javax.persistence.Id;
+import javax.persistence.Index;
 import javax.persistence.JoinColumn;
 import javax.persistence.ManyToOne;
 import javax.persistence.NamedQueries;
@@ -69,7 +70,10 @@ import javax.persistence.TemporalType;
  * @author David McKain
  */
 @Entity
-@Table(name="queued_lti_outcomes")
+@Table(name="queued_lti_outcomes", indexes={
+    @Index(name="queued_lti_outcomes_retry_time_idx", columnList="retry_time"),
+    @Index(name="queued_lti_outcomes_xid_qoid_idx", columnList="xid, qoid")
+})
 @SequenceGenerator(name="queuedLtiOutcomeSequence", sequenceName="queued_lti_outcome_sequence", initialValue=1, allocationSize=1)
 @NamedQueries({
     /* Retrieves all queued outcomes, in insertion order */
@@ -77,6 +81,37 @@ import javax.persistence.TemporalType;
             query="SELECT q"
                 + "  FROM QueuedLtiOutcome q"
                 + "  ORDER BY q.id"),
+    /* Retrieves the next page of queued outcomes that are due for sending, in insertion order.
+     * Outcomes superseded by a later outcome for the same session are skipped. */
+    @NamedQuery(name="QueuedLtiOutcome.getNextDueOutcomes",
+            query="SELECT q"
+                + "  FROM QueuedLtiOutcome q"
+                + "  WHERE q.qoid > :afterQoid"
+                + "    AND (q.retryTime IS NULL OR q.retryTime <= :timestamp)"
+                + "    AND NOT EXISTS ("
+                + "      SELECT l FROM QueuedLtiOutcome l"
+                + "      WHERE l.candidateSession = q.candidateSession AND l.qoid > q.qoid"
+                + "    )"
+                + "  ORDER BY q.qoid"),
+    /* As above, but ignoring retry times */
+    @NamedQuery(name="QueuedLtiOutcome.getNextOutcomes",
+            query="SELECT q"
+                + "  FROM QueuedLtiOutcome q"
+                + "  WHERE q.qoid > :afterQoid"
+                + "    AND NOT EXISTS ("
+                + "      SELECT l FROM QueuedLtiOutcome l"
+                + "      WHERE l.candidateSession = q.candidateSession AND l.qoid > q.qoid"
+                + "    )"
+                + "  ORDER BY q.qoid"),
+    /* Retrieves queued outcomes that have been superseded by a later outcome for the same session */
+    @NamedQuery(name="QueuedLtiOutcome.getSupersededOutcomes",
+            query="SELECT q"
+                + "  FROM QueuedLtiOutcome q"
+                + "  WHERE EXISTS ("
+                + "    SELECT l FROM QueuedLtiOutcome l"
+                + "    WHERE l.candidateSession = q.candidateSession AND l.qoid > q.qoid"
+                + "  )"
+                + "  ORDER BY q.qoid"),
     @NamedQuery(name="QueuedLtiOutcome.deleteForSession",
             query="DELETE FROM QueuedLtiOutcome q"
                 + "  WHERE q.candidateSession = :candidateSession"),
@@ -178,6 +178,33 @@ public abstract class AbstractRenderingOptions implements Serializable {
 
     //----------------------------------------------------
 
+    /**
+     * Computes a String that identifies the values of all of these options, so that renderings
+     * made using equal fingerprints may be treated as interchangeable.
+     */
+    public final String computeFingerprint() {
+        final StringBuilder result = new StringBuilder(getClass().getSimpleName());
+        appendFingerprintData(result);
+        return result.toString();
+    }
+
+    /**
+     * Subclasses should override this to add the values of their own options, calling up to
+     * this method first.
+     */
+    protected void appendFingerprintData(final StringBuilder result) {
+        appendFingerprintValues(result, serializationMethod, encoding, responseUrl, serveFileUrl,
+                authorViewUrl, sourceUrl, stateUrl, resultUrl, validationUrl, sessionExitReturnUrl);
+    }
+
+    protected static void appendFingerprintValues(final StringBuilder result, final Object... values) {
+        for (final Object value : values) {
+            result.append('\n').append(value);
+        }
+    }
+
+    //----------------------------------------------------
+
     @Override
     public String toString() {
         return ObjectUtilities.beanToString(this);
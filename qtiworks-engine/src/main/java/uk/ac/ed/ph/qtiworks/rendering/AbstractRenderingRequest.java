@@ -61,6 +61,9 @@ public abstract class AbstractRenderingRequest<P extends AbstractRenderingOption
     @NotNull
     private URI assessmentResourceUri;
 
+    /** (Optional) ID of the package containing the assessment, used for caching parsed XML */
+    private Long assessmentPackageId;
+
     private boolean authorMode;
 
     /* Validation information copied from AssessmentPackage */
@@ -99,6 +102,15 @@ public abstract class AbstractRenderingRequest<P extends AbstractRenderingOption
     }
 
 
+    public Long getAssessmentPackageId() {
+        return assessmentPackageId;
+    }
+
+    public void setAssessmentPackageId(final Long assessmentPackageId) {
+        this.assessmentPackageId = assessmentPackageId;
+    }
+
+
     public boolean isValidated() {
         return validated;
     }
@@ -35,8 +35,10 @@ package uk.ac.ed.ph.qtiworks.rendering;
 
 import uk.ac.ed.ph.qtiworks.config.beans.QtiWorksProperties;
 import uk.ac.ed.ph.qtiworks.domain.entities.CandidateEventNotification;
+import uk.ac.ed.ph.qtiworks.utils.SaxEventBuffer;
 import uk.ac.ed.ph.qtiworks.utils.XmlUtilities;
 
+import uk.ac.ed.ph.jqtiplus.QtiConstants;
 import uk.ac.ed.ph.jqtiplus.internal.util.Assert;
 import uk.ac.ed.ph.jqtiplus.node.test.NavigationMode;
 import uk.ac.ed.ph.jqtiplus.node.test.TestPart;
@@ -48,6 +50,7 @@ import uk.ac.ed.ph.jqtiplus.state.TestPlanNode;
 import uk.ac.ed.ph.jqtiplus.state.TestPlanNodeKey;
 import uk.ac.ed.ph.jqtiplus.state.TestSessionState;
 import uk.ac.ed.ph.jqtiplus.state.marshalling.ItemSessionStateXmlMarshaller;
+import uk.ac.ed.ph.jqtiplus.state.marshalling.TestSessionStateProjection;
 import uk.ac.ed.ph.jqtiplus.state.marshalling.TestSessionStateXmlMarshaller;
 import uk.ac.ed.ph.jqtiplus.xmlutils.locators.ClassPathResourceLocator;
 import uk.ac.ed.ph.jqtiplus.xmlutils.locators.ResourceLocator;
@@ -60,27 +63,37 @@ import java.io.OutputStream;
 import java.io.StringReader;
 import java.io.Writer;
 import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Result;
+import javax.xml.transform.Source;
 import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.URIResolver;
 import javax.xml.transform.sax.SAXResult;
+import javax.xml.transform.sax.SAXSource;
 import javax.xml.transform.sax.TransformerHandler;
 import javax.xml.transform.stream.StreamResult;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.validation.BeanPropertyBindingResult;
 import org.springframework.validation.Validator;
-import org.w3c.dom.Document;
 import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
 import org.xml.sax.XMLReader;
 
 /**
@@ -118,6 +131,37 @@ public class AssessmentRenderer {
     private static final URI terminatedXsltUri = URI.create("classpath:/rendering-xslt/terminated.xsl");
     private static final URI explodedXsltUri = URI.create("classpath:/rendering-xslt/exploded.xsl");
 
+    /** All of the XSLT stylesheets used here, which may be precompiled */
+    private static final List<URI> allXsltUris = Collections.unmodifiableList(Arrays.asList(
+            serializeXsltUri, ctopXsltUri, itemStandaloneXsltUri, testItemXsltUri, testEntryXsltUri,
+            testPartNavigationXsltUri, testPartFeedbackXsltUri, testFeedbackXsltUri, itemAuthorViewXsltUri,
+            testAuthorViewXsltUri, terminatedXsltUri, explodedXsltUri
+    ));
+
+    /**
+     * Local names of the MathML elements that ctop.xsl does something other than copy as-is.
+     * (These are all of the MathML elements named in its template match patterns. Keep them
+     * in sync if it is updated! AssessmentRendererTest checks this.)
+     */
+    static final Set<String> ctopConvertedMathmlElementNames = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(
+            "abs", "and", "annotation-xml", "apply", "approx", "arccos", "arccosh", "arccot", "arccoth",
+            "arccsc", "arccsch", "arcsec", "arcsech", "arcsin", "arcsinh", "arctan", "arctanh", "arg", "bind",
+            "bvar", "card", "cartesianproduct", "cbytes", "ceiling", "cerror", "ci", "cn", "codomain",
+            "complexes", "compose", "condition", "conjugate", "cos", "cosh", "cot", "coth", "cs", "csc",
+            "csch", "csymbol", "curl", "declare", "degree", "determinant", "diff", "divergence",
+            "divide", "domain", "domainofapplication", "emptyset", "eq", "equivalent", "eulergamma", "exists",
+            "exp", "exponentiale", "factorial", "factorof", "false", "floor", "fn", "forall", "gcd", "geq",
+            "grad", "gt", "ident", "image", "imaginary", "imaginaryi", "implies", "in", "infinity", "int",
+            "integers", "intersect", "interval", "inverse", "lambda", "laplacian", "lcm", "leq", "limit",
+            "list", "ln", "log", "lowlimit", "lt", "matrix", "matrixrow", "max", "mean", "median", "min",
+            "minus", "mode", "moment", "momentabout", "naturalnumbers", "neq", "not", "notanumber", "notin",
+            "notprsubset", "notsubset", "or", "outerproduct", "partialdiff", "pi", "piecewise", "plus",
+            "power", "primes", "product", "prsubset", "quotient", "rationals", "real", "reals", "reln", "rem",
+            "root", "scalarproduct", "sdev", "sec", "sech", "selector", "semantics", "set", "setdiff",
+            "share", "sin", "sinh", "subset", "sum", "tan", "tanh", "tendsto", "times", "transpose", "true",
+            "union", "uplimit", "variance", "vector", "vectorproduct", "xor"
+    )));
+
     @Resource
     private QtiWorksProperties qtiWorksProperties;
 
@@ -130,6 +174,12 @@ public class AssessmentRenderer {
     @Resource
     private String webappContextPath;
 
+    @Resource
+    private AssessmentSourceCache assessmentSourceCache;
+
+    @Value("${qtiworks.rendering.pipeline.mode:CHAINED}")
+    private RenderingPipelineMode renderingPipelineMode = RenderingPipelineMode.CHAINED;
+
     /** Manager for the XSLT stylesheets, created during init. */
     private XsltStylesheetManager stylesheetManager;
 
@@ -170,6 +220,24 @@ public class AssessmentRenderer {
         this.webappContextPath = webappContextPath;
     }
 
+
+    public AssessmentSourceCache getAssessmentSourceCache() {
+        return assessmentSourceCache;
+    }
+
+    public void setAssessmentSourceCache(final AssessmentSourceCache assessmentSourceCache) {
+        this.assessmentSourceCache = assessmentSourceCache;
+    }
+
+
+    public RenderingPipelineMode getRenderingPipelineMode() {
+        return renderingPipelineMode;
+    }
+
+    public void setRenderingPipelineMode(final RenderingPipelineMode renderingPipelineMode) {
+        this.renderingPipelineMode = renderingPipelineMode;
+    }
+
     //----------------------------------------------------
 
     @PostConstruct
@@ -177,6 +245,25 @@ public class AssessmentRenderer {
         this.stylesheetManager = new XsltStylesheetManager(new ClassPathResourceLocator(), xsltStylesheetCache);
     }
 
+    /**
+     * Returns the URIs of all of the XSLT stylesheets used by this renderer.
+     */
+    public static List<URI> getStylesheetUris() {
+        return allXsltUris;
+    }
+
+    /**
+     * Compiles the given XSLT stylesheet and stores it in the {@link XsltStylesheetCache},
+     * if it hasn't already been compiled. This can be used to save the first renderings after
+     * startup from having to do this themselves.
+     *
+     * @see #getStylesheetUris()
+     */
+    public void precompileStylesheet(final URI xsltUri) {
+        Assert.notNull(xsltUri, "xsltUri");
+        stylesheetManager.getCompiledStylesheet(xsltUri);
+    }
+
     //----------------------------------------------------
 
     /**
@@ -207,9 +294,9 @@ public class AssessmentRenderer {
         final Map<String, Object> xsltParameters = new HashMap<String, Object>();
         setBaseRenderingParameters(xsltParameters, request, notifications);
 
-        /* Pass ItemSessionState (as DOM Document) */
+        /* Pass ItemSessionState (as a Source, which the XSLT processor will build into its own tree model) */
         final ItemSessionState itemSessionState = request.getItemSessionState();
-        xsltParameters.put("itemSessionState", ItemSessionStateXmlMarshaller.marshal(itemSessionState).getDocumentElement());
+        xsltParameters.put("itemSessionStateDocument", ItemSessionStateXmlMarshaller.marshalToSaxSource(itemSessionState));
 
         /* Set control parameters */
         xsltParameters.put("prompt", request.getPrompt());
@@ -261,7 +348,6 @@ public class AssessmentRenderer {
 
         final TestSessionController testSessionController = request.getTestSessionController();
         final TestSessionState testSessionState = testSessionController.getTestSessionState();
-        xsltParameters.put("testSessionState", TestSessionStateXmlMarshaller.marshal(testSessionState).getDocumentElement());
         xsltParameters.put("testSystemId", request.getAssessmentResourceUri().toString());
 
         /* Pass rendering options */
@@ -318,6 +404,7 @@ public class AssessmentRenderer {
 
     private void doRenderTestEntry(final TestRenderingRequest request,
             final Map<String, Object> xsltParameters, final Result result) {
+        setTestSessionStateParameter(request, TestSessionStateProjection.OUTCOMES_ONLY, xsltParameters);
         doTransform(request, testEntryXsltUri, xsltParameters, result);
     }
 
@@ -326,17 +413,20 @@ public class AssessmentRenderer {
         /* Determine whether candidate may exist testPart */
         final TestSessionController testSessionController = request.getTestSessionController();
         xsltParameters.put("endTestPartAllowed", Boolean.valueOf(testSessionController.mayEndCurrentTestPart()));
+        setCurrentTestPartSessionStateParameter(request, xsltParameters);
 
         doTransform(request, testPartNavigationXsltUri, xsltParameters, result);
     }
 
     private void doRenderTestPartFeedback(final TestRenderingRequest request,
             final Map<String, Object> xsltParameters, final Result result) {
+        setCurrentTestPartSessionStateParameter(request, xsltParameters);
         doTransform(request, testPartFeedbackXsltUri, xsltParameters, result);
     }
 
     private void doRenderTestFeedback(final TestRenderingRequest request,
             final Map<String, Object> xsltParameters, final Result result) {
+        setTestSessionStateParameter(request, TestSessionStateProjection.OUTCOMES_ONLY, xsltParameters);
         doTransform(request, testFeedbackXsltUri, xsltParameters, result);
     }
 
@@ -427,10 +517,9 @@ public class AssessmentRenderer {
         final Map<String, Object> xsltParameters = new HashMap<String, Object>();
         setBaseRenderingParameters(xsltParameters, request, notifications);
 
-        /* Pass ItemSessionState (as DOM Document and XML text) */
+        /* Pass ItemSessionState */
         final ItemSessionState itemSessionState = request.getItemSessionState();
-        final Document itemSessionStateDocument = ItemSessionStateXmlMarshaller.marshal(itemSessionState);
-        xsltParameters.put("itemSessionState", itemSessionStateDocument.getDocumentElement());
+        xsltParameters.put("itemSessionStateDocument", ItemSessionStateXmlMarshaller.marshalToSaxSource(itemSessionState));
 
         /* Perform transform */
         doTransform(request, null, itemAuthorViewXsltUri, xsltParameters, result);
@@ -464,7 +553,6 @@ public class AssessmentRenderer {
 
         final TestSessionController testSessionController = request.getTestSessionController();
         final TestSessionState testSessionState = testSessionController.getTestSessionState();
-        xsltParameters.put("testSessionState", TestSessionStateXmlMarshaller.marshal(testSessionState).getDocumentElement());
         xsltParameters.put("testSystemId", request.getAssessmentResourceUri().toString());
 
         doTransform(request, null, testAuthorViewXsltUri, xsltParameters, result);
@@ -508,6 +596,18 @@ public class AssessmentRenderer {
 
     //----------------------------------------------------
 
+    private void setTestSessionStateParameter(final TestRenderingRequest request,
+            final TestSessionStateProjection projection, final Map<String, Object> xsltParameters) {
+        final TestSessionState testSessionState = request.getTestSessionController().getTestSessionState();
+        xsltParameters.put("testSessionStateDocument", TestSessionStateXmlMarshaller.marshalToSaxSource(testSessionState, projection));
+    }
+
+    private void setCurrentTestPartSessionStateParameter(final TestRenderingRequest request,
+            final Map<String, Object> xsltParameters) {
+        final TestSessionState testSessionState = request.getTestSessionController().getTestSessionState();
+        setTestSessionStateParameter(request, TestSessionStateProjection.subtree(testSessionState.getCurrentTestPartKey()), xsltParameters);
+    }
+
     private URI setTestItemParameters(final TestRenderingRequest request, final TestPlanNodeKey itemKey,
             final Map<String, Object> xsltParameters) {
         final TestSessionController testSessionController = request.getTestSessionController();
@@ -521,8 +621,9 @@ public class AssessmentRenderer {
             throw new QtiWorksRenderingException("Failed to locate ItemSessionState for item with key " + itemKey);
         }
 
-        /* Add item-specific parameters */
-        xsltParameters.put("itemSessionState", ItemSessionStateXmlMarshaller.marshal(itemSessionState).getDocumentElement());
+        /* Add item-specific parameters, passing only the path to this item from the TestSessionState */
+        setTestSessionStateParameter(request, TestSessionStateProjection.pathTo(itemKey), xsltParameters);
+        xsltParameters.put("itemSessionStateDocument", ItemSessionStateXmlMarshaller.marshalToSaxSource(itemSessionState));
         xsltParameters.put("itemKey", itemKey.toString());
 
         /* Pass ItemSessionControl parameters */
@@ -599,6 +700,13 @@ public class AssessmentRenderer {
      * the {@link ResourceLocator} specified by the given renderingRequest, using the XSLT at the
      * given URI and specified parameters. The result is sent to the given {@link Result} Object.
      * <p>
+     * If an {@link AssessmentSourceCache} has been set and the renderingRequest specifies an
+     * {@link AbstractRenderingRequest#getAssessmentPackageId()}, then the input XML and any
+     * other assessment XML the rendering XSLT loads via <code>document()</code> will be
+     * replayed from pre-parsed forms held in the cache rather than parsed afresh.
+     * <p>
+     * In {@link RenderingPipelineMode#FUSED} mode, the output of the rendering XSLT is buffered
+     * and only passed through the MathML C-to-P stage if it contains content MathML.
      *
      * @param renderingRequest request to be rendered, must not be null
      * @param inputUri URI of the XML to pass to the XSLT pipeline. If null, a well-formed empty
@@ -617,13 +725,14 @@ public class AssessmentRenderer {
          *
          * Input --> Rendering XSLT --> MathML C-to-P --> Serialization XSLT --> Result
          *
+         * (In FUSED mode, the MathML C-to-P stage is skipped if it would have nothing to convert.)
+         *
          * NB: I'm not bothering to set up LexicalHandlers, so comments and things like that won't
          * be passed through the pipeline. If that becomes important, change the code below to
          * support that.
          */
          /* First obtain the required compiled stylesheets. */
         final TransformerHandler rendererTransformerHandler = stylesheetManager.getCompiledStylesheetHandler(rendererStylesheetUri, renderingRequest.getAssessmentResourceLocator());
-        final TransformerHandler mathmlTransformerHandler = stylesheetManager.getCompiledStylesheetHandler(ctopXsltUri, null);
         final TransformerHandler serializerTransformerHandler = stylesheetManager.getCompiledStylesheetHandler(serializeXsltUri, null);
 
         /* Pass necessary parameters to renderer */
@@ -631,6 +740,13 @@ public class AssessmentRenderer {
         if (inputUri!=null) {
             rendererTransformer.setParameter("systemId", inputUri);
         }
+        final ResourceLocator assessmentResourceLocator = renderingRequest.getAssessmentResourceLocator();
+        final Long assessmentPackageId = renderingRequest.getAssessmentPackageId();
+        final boolean usingSourceCache = assessmentSourceCache!=null && assessmentPackageId!=null;
+        if (usingSourceCache) {
+            rendererTransformer.setURIResolver(new CachingAssessmentUriResolver(rendererTransformer.getURIResolver(),
+                    assessmentSourceCache, assessmentPackageId, assessmentResourceLocator));
+        }
         if (xsltParameters!=null) {
             for (final Entry<String, Object> paramEntry : xsltParameters.entrySet()) {
                 rendererTransformer.setParameter(paramEntry.getKey(), paramEntry.getValue());
@@ -679,10 +795,15 @@ public class AssessmentRenderer {
         /* Set up the XML source */
         final InputSource assessmentSaxSource;
         if (inputUri!=null) {
-            final ResourceLocator assessmentResourceLocator = renderingRequest.getAssessmentResourceLocator();
-            final InputStream assessmentStream = assessmentResourceLocator.findResource(inputUri);
-            assessmentSaxSource = new InputSource(assessmentStream);
-            assessmentSaxSource.setSystemId(inputUri.toString());
+            if (usingSourceCache) {
+                /* (Source will be obtained from the cache below) */
+                assessmentSaxSource = null;
+            }
+            else {
+                final InputStream assessmentStream = assessmentResourceLocator.findResource(inputUri);
+                assessmentSaxSource = new InputSource(assessmentStream);
+                assessmentSaxSource.setSystemId(inputUri.toString());
+            }
         }
         else {
             /* (null inputUri, so we'll pass an empty well-formed XML document) */
@@ -697,20 +818,107 @@ public class AssessmentRenderer {
          * support that.
          */
         serializerTransformerHandler.setResult(result);
-        final SAXResult mathmlResult = new SAXResult(serializerTransformerHandler);
-        mathmlTransformerHandler.setResult(mathmlResult);
-        final SAXResult rendererResult = new SAXResult(mathmlTransformerHandler);
-        rendererTransformerHandler.setResult(rendererResult);
-        final XMLReader xmlReader = XmlUtilities.createNsAwareSaxReader(false);
-        xmlReader.setContentHandler(rendererTransformerHandler);
+        final SaxEventBuffer.Builder rendererOutputBuilder;
+        if (renderingPipelineMode==RenderingPipelineMode.FUSED) {
+            /* Capture renderer output so that we can decide whether to run the C-to-P stage */
+            rendererOutputBuilder = new SaxEventBuffer.Builder();
+            final SAXResult rendererResult = new SAXResult(rendererOutputBuilder);
+            rendererResult.setLexicalHandler(rendererOutputBuilder);
+            rendererTransformerHandler.setResult(rendererResult);
+        }
+        else {
+            rendererOutputBuilder = null;
+            final TransformerHandler mathmlTransformerHandler = stylesheetManager.getCompiledStylesheetHandler(ctopXsltUri, null);
+            final SAXResult mathmlResult = new SAXResult(serializerTransformerHandler);
+            mathmlTransformerHandler.setResult(mathmlResult);
+            final SAXResult rendererResult = new SAXResult(mathmlTransformerHandler);
+            rendererTransformerHandler.setResult(rendererResult);
+        }
 
         /* Finally we run the pipeline */
         try {
-            xmlReader.parse(assessmentSaxSource);
+            if (assessmentSaxSource==null) {
+                /* Replay cached input */
+                final SaxEventBuffer cachedInput = assessmentSourceCache.getSaxEventBuffer(assessmentPackageId, inputUri, assessmentResourceLocator);
+                if (cachedInput==null) {
+                    throw new QtiWorksRenderingException("Could not locate assessment XML at " + inputUri);
+                }
+                rendererTransformerHandler.setSystemId(inputUri.toString());
+                cachedInput.replay(rendererTransformerHandler, null, inputUri.toString());
+            }
+            else {
+                final XMLReader xmlReader = XmlUtilities.createNsAwareSaxReader(false);
+                xmlReader.setContentHandler(rendererTransformerHandler);
+                xmlReader.parse(assessmentSaxSource);
+            }
+            if (rendererOutputBuilder!=null) {
+                completeFusedPipeline(rendererOutputBuilder.build(), serializerTransformerHandler);
+            }
         }
         catch (final Exception e) {
             logger.error("Rendering XSLT pipeline failed for request {}", renderingRequest, e);
             throw new QtiWorksRenderingException("Unexpected Exception running rendering XML pipeline", e);
         }
     }
+
+    /**
+     * Sends the buffered output of the rendering XSLT on to the serialization XSLT, passing it
+     * through the MathML C-to-P XSLT first only if it contains content MathML.
+     * <p>
+     * When bypassing the C-to-P stage, comments and processing instructions are dropped, as
+     * that XSLT would do itself. This ensures we get the same output as the chained pipeline.
+     */
+    private void completeFusedPipeline(final SaxEventBuffer rendererOutput,
+            final TransformerHandler serializerTransformerHandler) throws SAXException {
+        if (rendererOutput.containsElement(QtiConstants.MATHML_NAMESPACE_URI, ctopConvertedMathmlElementNames)) {
+            final TransformerHandler mathmlTransformerHandler = stylesheetManager.getCompiledStylesheetHandler(ctopXsltUri, null);
+            mathmlTransformerHandler.setResult(new SAXResult(serializerTransformerHandler));
+            rendererOutput.replay(mathmlTransformerHandler, mathmlTransformerHandler, null);
+        }
+        else {
+            rendererOutput.replay(serializerTransformerHandler, null, null, false);
+        }
+    }
+
+    //----------------------------------------------------
+
+    /**
+     * {@link URIResolver} used during rendering that resolves assessment XML documents
+     * (e.g. the test loaded via <code>document()</code> when rendering a test item) from the
+     * {@link AssessmentSourceCache}, falling back to the usual resolver for anything else.
+     */
+    private static final class CachingAssessmentUriResolver implements URIResolver {
+
+        private final URIResolver fallbackResolver;
+        private final AssessmentSourceCache assessmentSourceCache;
+        private final Long assessmentPackageId;
+        private final ResourceLocator assessmentResourceLocator;
+
+        public CachingAssessmentUriResolver(final URIResolver fallbackResolver,
+                final AssessmentSourceCache assessmentSourceCache, final Long assessmentPackageId,
+                final ResourceLocator assessmentResourceLocator) {
+            this.fallbackResolver = fallbackResolver;
+            this.assessmentSourceCache = assessmentSourceCache;
+            this.assessmentPackageId = assessmentPackageId;
+            this.assessmentResourceLocator = assessmentResourceLocator;
+        }
+
+        @Override
+        public Source resolve(final String href, final String base) throws TransformerException {
+            if (!href.isEmpty() && base!=null) {
+                try {
+                    final URI resolvedUri = new URI(base).resolve(href);
+                    final SaxEventBuffer saxEventBuffer = assessmentSourceCache.getSaxEventBuffer(assessmentPackageId,
+                            resolvedUri, assessmentResourceLocator);
+                    if (saxEventBuffer!=null) {
+                        return new SAXSource(saxEventBuffer.createXMLReader(), new InputSource(resolvedUri.toString()));
+                    }
+                }
+                catch (final URISyntaxException e) {
+                    /* (Let the fallback resolver deal with this) */
+                }
+            }
+            return fallbackResolver!=null ? fallbackResolver.resolve(href, base) : null;
+        }
+    }
 }
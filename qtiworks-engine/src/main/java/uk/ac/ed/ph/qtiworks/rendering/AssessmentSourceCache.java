@@ -0,0 +1,233 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.qtiworks.rendering;
+
+import uk.ac.ed.ph.qtiworks.utils.SaxEventBuffer;
+import uk.ac.ed.ph.qtiworks.utils.XmlUtilities;
+
+import uk.ac.ed.ph.jqtiplus.internal.util.Assert;
+import uk.ac.ed.ph.jqtiplus.internal.util.ObjectUtilities;
+import uk.ac.ed.ph.jqtiplus.xmlutils.locators.ResourceLocator;
+
+import java.io.InputStream;
+import java.net.URI;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.InputSource;
+import org.xml.sax.XMLReader;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * Caches pre-parsed forms of the assessment XML documents passed through the rendering
+ * pipeline, so that we don't need to parse the same item or test XML on every rendering.
+ * <p>
+ * Documents are cached as immutable {@link SaxEventBuffer}s, keyed on an owner key
+ * (e.g. the ID of the package containing the document) and the document's system ID.
+ * Callers must {@link #purge(Object)} an owner once its documents may have changed or
+ * are no longer required.
+ * <p>
+ * Usage: an instance of this class is safe to use concurrently by multiple threads.
+ *
+ * @see AssessmentRenderer
+ *
+ * @author David McKain
+ */
+public final class AssessmentSourceCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(AssessmentSourceCache.class);
+
+    private final int maxSize;
+    private final Cache<CacheKey, SaxEventBuffer> cache;
+
+    /**
+     * Creates a new cache holding at most the given number of documents.
+     *
+     * @param maxSize maximum number of documents to hold. If 0 or negative, the cache
+     *   will be unbounded.
+     */
+    public AssessmentSourceCache(final int maxSize) {
+        this.maxSize = maxSize;
+        final CacheBuilder<Object, Object> cacheBuilder = CacheBuilder.newBuilder().recordStats();
+        if (maxSize > 0) {
+            cacheBuilder.maximumSize(maxSize);
+        }
+        this.cache = cacheBuilder.build();
+    }
+
+    /**
+     * Returns a (possibly cached) {@link SaxEventBuffer} for the XML document at the given
+     * system ID, loaded using the given {@link ResourceLocator} on a cache miss.
+     * <p>
+     * Returns null if the given {@link ResourceLocator} could not find the document.
+     *
+     * @throws QtiWorksRenderingException if the document could not be parsed
+     */
+    public SaxEventBuffer getSaxEventBuffer(final Object ownerKey, final URI systemId,
+            final ResourceLocator resourceLocator) {
+        Assert.notNull(ownerKey, "ownerKey");
+        Assert.notNull(systemId, "systemId");
+        Assert.notNull(resourceLocator, "resourceLocator");
+        final CacheKey cacheKey = new CacheKey(ownerKey, systemId);
+        final SaxEventBuffer cached = cache.getIfPresent(cacheKey);
+        if (cached!=null) {
+            return cached;
+        }
+        final InputStream inputStream = resourceLocator.findResource(systemId);
+        if (inputStream==null) {
+            return null;
+        }
+        try {
+            return cache.get(cacheKey, new Callable<SaxEventBuffer>() {
+                @Override
+                public SaxEventBuffer call() throws Exception {
+                    logger.debug("Parsing and caching assessment XML at {} for owner {}", systemId, ownerKey);
+                    final InputSource inputSource = new InputSource(inputStream);
+                    inputSource.setSystemId(systemId.toString());
+                    final SaxEventBuffer.Builder builder = new SaxEventBuffer.Builder();
+                    final XMLReader xmlReader = XmlUtilities.createNsAwareSaxReader(false);
+                    xmlReader.setContentHandler(builder);
+                    xmlReader.setProperty(SaxEventBuffer.LEXICAL_HANDLER_PROPERTY, builder);
+                    xmlReader.parse(inputSource);
+                    return builder.build();
+                }
+            });
+        }
+        catch (final ExecutionException e) {
+            throw new QtiWorksRenderingException("Could not parse assessment XML at " + systemId, e.getCause());
+        }
+        catch (final UncheckedExecutionException e) {
+            throw new QtiWorksRenderingException("Could not parse assessment XML at " + systemId, e.getCause());
+        }
+        finally {
+            try {
+                inputStream.close();
+            }
+            catch (final Exception e) {
+                logger.warn("Could not close stream for {}", systemId, e);
+            }
+        }
+    }
+
+    /**
+     * Removes all documents cached for the given owner key.
+     */
+    public void purge(final Object ownerKey) {
+        Assert.notNull(ownerKey, "ownerKey");
+        final Iterator<CacheKey> keyIterator = cache.asMap().keySet().iterator();
+        while (keyIterator.hasNext()) {
+            if (ownerKey.equals(keyIterator.next().getOwnerKey())) {
+                keyIterator.remove();
+            }
+        }
+    }
+
+    public void clear() {
+        cache.invalidateAll();
+    }
+
+    //--------------------------------------------------------------------------
+    // Reporting
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getCacheUsage() {
+        return cache.size();
+    }
+
+    public long getCacheHitCount() {
+        return cache.stats().hitCount();
+    }
+
+    public long getCacheMissCount() {
+        return cache.stats().missCount();
+    }
+
+    public long getEstimatedFootprint() {
+        long result = 0L;
+        for (final SaxEventBuffer saxEventBuffer : cache.asMap().values()) {
+            result += saxEventBuffer.getEstimatedSize();
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return ObjectUtilities.beanToString(this);
+    }
+
+    //--------------------------------------------------------------------------
+
+    private static final class CacheKey {
+
+        private final Object ownerKey;
+        private final URI systemId;
+
+        public CacheKey(final Object ownerKey, final URI systemId) {
+            this.ownerKey = ownerKey;
+            this.systemId = systemId;
+        }
+
+        public Object getOwnerKey() {
+            return ownerKey;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof CacheKey)) {
+                return false;
+            }
+            final CacheKey other = (CacheKey) obj;
+            return ownerKey.equals(other.ownerKey) && systemId.equals(other.systemId);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * ownerKey.hashCode() + systemId.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return ownerKey + ":" + systemId;
+        }
+    }
+}
@@ -109,6 +109,12 @@ public final class ItemRenderingOptions extends AbstractRenderingOptions {
 
     //----------------------------------------------------
 
+    @Override
+    protected void appendFingerprintData(final StringBuilder result) {
+        super.appendFingerprintData(result);
+        appendFingerprintValues(result, endUrl, softResetUrl, hardResetUrl, solutionUrl, exitUrl);
+    }
+
     @Override
     public String toString() {
         return ObjectUtilities.beanToString(this);
@@ -157,6 +157,14 @@ public final class TestRenderingOptions extends AbstractRenderingOptions {
 
     //----------------------------------------------------
 
+    @Override
+    protected void appendFingerprintData(final StringBuilder result) {
+        super.appendFingerprintData(result);
+        appendFingerprintValues(result, testPartNavigationUrl, selectTestItemUrl, advanceTestItemUrl,
+                endTestPartUrl, reviewTestPartUrl, reviewTestItemUrl, showTestItemSolutionUrl,
+                advanceTestPartUrl, exitTestUrl);
+    }
+
     @Override
     public String toString() {
         return ObjectUtilities.beanToString(this);
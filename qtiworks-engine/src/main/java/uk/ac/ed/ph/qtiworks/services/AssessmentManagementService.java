@@ -103,6 +103,15 @@ public class AssessmentManagementService {
     @Resource
     private IdentityService identityService;
 
+    @Resource
+    private CandidateResultWriter candidateResultWriter;
+
+    @Resource
+    private TestSessionStateJournal testSessionStateJournal;
+
+    @Resource
+    private RenderedPageCache renderedPageCache;
+
     @Resource
     private AuditLogger auditLogger;
 
@@ -913,9 +922,15 @@ public class AssessmentManagementService {
         for (final CandidateSession candidateSession : nonTerminatedCandidateSessions) {
             candidateSession.setTerminationTime(currentTimestamp);
             candidateSessionDao.update(candidateSession);
+            renderedPageCache.evict(candidateSession);
             if (deleteOutcomes) {
+                candidateResultWriter.discard(candidateSession);
                 candidateSessionOutcomeDao.deleteForCandidateSession(candidateSession);
             }
+            else {
+                candidateResultWriter.flush(candidateSession);
+            }
+            testSessionStateJournal.compact(candidateSession);
         }
         return nonTerminatedCandidateSessions.size();
     }
@@ -33,34 +33,67 @@
  */
 package uk.ac.ed.ph.qtiworks.services;
 
+import uk.ac.ed.ph.qtiworks.QtiWorksLogicException;
+import uk.ac.ed.ph.qtiworks.config.beans.QtiWorksDeploymentSettings;
 import uk.ac.ed.ph.qtiworks.domain.entities.AssessmentPackage;
-import uk.ac.ed.ph.qtiworks.utils.LruHashMap;
+import uk.ac.ed.ph.qtiworks.rendering.AssessmentSourceCache;
 
 import uk.ac.ed.ph.jqtiplus.internal.util.Assert;
 import uk.ac.ed.ph.jqtiplus.internal.util.ObjectUtilities;
+import uk.ac.ed.ph.jqtiplus.node.QtiNode;
+import uk.ac.ed.ph.jqtiplus.node.RootNode;
 import uk.ac.ed.ph.jqtiplus.resolution.ResolvedAssessmentItem;
 import uk.ac.ed.ph.jqtiplus.resolution.ResolvedAssessmentTest;
+import uk.ac.ed.ph.jqtiplus.resolution.RootNodeLookup;
 import uk.ac.ed.ph.jqtiplus.running.ItemProcessingInitializer;
 import uk.ac.ed.ph.jqtiplus.running.TestProcessingInitializer;
 import uk.ac.ed.ph.jqtiplus.state.ItemProcessingMap;
 import uk.ac.ed.ph.jqtiplus.state.TestProcessingMap;
+import uk.ac.ed.ph.jqtiplus.utils.QueryUtils;
+import uk.ac.ed.ph.jqtiplus.utils.TreeWalkNodeHandler;
 
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Service;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
 /**
  * Middle layer service responsible for instantiating and caching {@link ItemProcessingMap}
  * and {@link TestProcessingMap} Objects.
  * <p>
  * This is NO authorisation at this level.
- *
- * FIXME: For the time being, we'll use an {@link LruHashMap}, though this is probably not the best choice.
+ * <p>
+ * The cache is a concurrent Guava {@link Cache}. Lookups of cached packages never block,
+ * and a cache miss for a given {@link AssessmentPackage} is loaded by a single Thread,
+ * with any other Threads requesting the same package waiting for that load only.
+ * Eviction is by number of packages (default), estimated weight (number of QTI Nodes)
+ * and/or idle time, as configured in {@link QtiWorksDeploymentSettings}.
+ * <p>
+ * Purging a package here also purges the pre-parsed XML held for it in the
+ * {@link AssessmentSourceCache} used during rendering. Each purge bumps a "generation" number
+ * for the package, and each cache entry records the generation in force when its load started.
+ * Entries from an older generation (i.e. loads that were in progress when the package was
+ * purged) are discarded and reloaded when next looked up, so they can never outlive the purge.
  *
  * @author David McKain
  */
@@ -69,18 +102,44 @@ public class AssessmentObjectManagementService {
 
     private static final Logger logger = LoggerFactory.getLogger(AssessmentObjectManagementService.class);
 
-    private int cacheMissCount;
-    private int cacheHitCount;
+    @Resource
+    private QtiWorksDeploymentSettings qtiWorksDeploymentSettings;
 
     @Resource
     private AssessmentPackageFileService assessmentPackageFileService;
 
-    private final LruHashMap<Long, Object> cache;
+    @Resource
+    private AssessmentSourceCache assessmentSourceCache;
+
+    private Cache<Long, CacheEntry> cache;
+
+    /** Purge generation for each package that has been purged. (Others are at generation 0) */
+    private final ConcurrentMap<Long, AtomicLong> purgeGenerations = new ConcurrentHashMap<Long, AtomicLong>();
 
-    public AssessmentObjectManagementService() {
-        this.cache = new LruHashMap<Long, Object>();
-        this.cacheMissCount = 0;
-        this.cacheHitCount = 0;
+    @PostConstruct
+    public void init() {
+        final CacheBuilder<Object, Object> cacheBuilder = CacheBuilder.newBuilder().recordStats();
+        final long maxWeight = qtiWorksDeploymentSettings.getAssessmentObjectCacheMaxWeight();
+        final int maxSize = qtiWorksDeploymentSettings.getAssessmentObjectCacheMaxSize();
+        final int idleExpiry = qtiWorksDeploymentSettings.getAssessmentObjectCacheIdleExpiry();
+        if (maxWeight > 0L) {
+            /* (Guava doesn't allow size and weight bounds together, so weight wins here) */
+            cacheBuilder.maximumWeight(maxWeight).weigher(new Weigher<Long, CacheEntry>() {
+                @Override
+                public int weigh(final Long key, final CacheEntry value) {
+                    return value.getWeight();
+                }
+            });
+        }
+        else if (maxSize > 0) {
+            cacheBuilder.maximumSize(maxSize);
+        }
+        if (idleExpiry > 0) {
+            cacheBuilder.expireAfterAccess(idleExpiry, TimeUnit.MINUTES);
+        }
+        this.cache = cacheBuilder.build();
+        logger.info("Created assessment object cache with max size {}, max weight {} and idle expiry {} mins",
+                new Object[] { Integer.valueOf(maxSize), Long.valueOf(maxWeight), Integer.valueOf(idleExpiry) });
     }
 
     /**
@@ -90,27 +149,24 @@ public class AssessmentObjectManagementService {
     public ItemProcessingMap getItemProcessingMap(final AssessmentPackage assessmentPackage) {
         Assert.notNull(assessmentPackage, "assessmentPackage");
         final Long apid = assessmentPackage.getId();
-        ItemProcessingMap result = null;
-        synchronized (cache) {
-            if (cache.containsKey(apid)) {
-                logger.debug("Cache HIT for package #{}", apid);
-                result = (ItemProcessingMap) cache.get(apid);
-                cacheHitCount++;
-            }
-            else {
+        final CacheEntry cacheEntry = lookupOrLoad(apid, new CacheEntryLoader() {
+            @Override
+            public CacheEntry load(final long generation) {
                 logger.debug("Cache MISS for package #{}. Reading and resolving XML", apid);
-                cacheMissCount++;
+                ItemProcessingMap result = null;
+                int weight = 1;
                 try {
                     final ResolvedAssessmentItem resolvedAssessmentItem = assessmentPackageFileService.loadAndResolveAssessmentObject(assessmentPackage);
                     result = new ItemProcessingInitializer(resolvedAssessmentItem, assessmentPackage.isValid()).initialize();
+                    weight = estimateWeight(resolvedAssessmentItem);
                 }
                 catch (final RuntimeException e) {
                     logger.info("Failed to create ItemProcessingMap for package #{}", apid);
                 }
-                cache.put(apid, result);
+                return new CacheEntry(result, weight, generation);
             }
-        }
-        return result;
+        });
+        return cacheEntry.getProcessingMap(ItemProcessingMap.class, apid);
     }
 
     /**
@@ -120,69 +176,223 @@ public class AssessmentObjectManagementService {
     public TestProcessingMap getTestProcessingMap(final AssessmentPackage assessmentPackage) {
         Assert.notNull(assessmentPackage, "assessmentPackage");
         final Long apid = assessmentPackage.getId();
-        TestProcessingMap result = null;
-        synchronized (cache) {
-            if (cache.containsKey(apid)) {
-                logger.debug("Cache HIT for package #{}", apid);
-                result = (TestProcessingMap) cache.get(apid);
-                cacheHitCount++;
-            }
-            else {
+        final CacheEntry cacheEntry = lookupOrLoad(apid, new CacheEntryLoader() {
+            @Override
+            public CacheEntry load(final long generation) {
                 logger.debug("Cache MISS for package #{}. Reading and resolving XML", apid);
-                cacheMissCount++;
+                TestProcessingMap result = null;
+                int weight = 1;
                 try {
                     final ResolvedAssessmentTest resolvedAssessmentTest = assessmentPackageFileService.loadAndResolveAssessmentObject(assessmentPackage);
                     result = new TestProcessingInitializer(resolvedAssessmentTest, assessmentPackage.isValid()).initialize();
+                    weight = estimateWeight(resolvedAssessmentTest);
                 }
                 catch (final RuntimeException e) {
                     logger.info("Failed to create TestProcessingMap for package #{}", apid);
                 }
-                cache.put(apid, result);
+                return new CacheEntry(result, weight, generation);
+            }
+        });
+        return cacheEntry.getProcessingMap(TestProcessingMap.class, apid);
+    }
+
+    private CacheEntry lookupOrLoad(final Long apid, final CacheEntryLoader loader) {
+        try {
+            while (true) {
+                final long generation = getPurgeGeneration(apid);
+                final CacheEntry cacheEntry = cache.get(apid, new Callable<CacheEntry>() {
+                    @Override
+                    public CacheEntry call() {
+                        return loader.load(generation);
+                    }
+                });
+                if (cacheEntry.getGeneration()==getPurgeGeneration(apid)) {
+                    return cacheEntry;
+                }
+                /* Loaded before the package was last purged, so discard (only) this entry and try again */
+                logger.debug("Discarding stale cache entry for package #{}", apid);
+                cache.asMap().remove(apid, cacheEntry);
             }
         }
-        return result;
+        catch (final ExecutionException e) {
+            throw new QtiWorksLogicException("Unexpected Exception loading package #" + apid, e.getCause());
+        }
+        catch (final UncheckedExecutionException e) {
+            throw new QtiWorksLogicException("Unexpected Exception loading package #" + apid, e.getCause());
+        }
     }
 
     public void purge(final AssessmentPackage assessmentPackage) {
         Assert.notNull(assessmentPackage, "assessmentPackage");
         final Long apid = assessmentPackage.getId();
-        synchronized (cache) {
-            if (cache.containsKey(apid)) {
-                cache.remove(apid);
-                logger.debug("Actively purged package #{}", assessmentPackage);
+
+        /* Bump generation first, so that any load already in progress will be seen as stale */
+        AtomicLong generation = purgeGenerations.get(apid);
+        if (generation==null) {
+            final AtomicLong newGeneration = new AtomicLong();
+            generation = purgeGenerations.putIfAbsent(apid, newGeneration);
+            if (generation==null) {
+                generation = newGeneration;
             }
         }
+        generation.incrementAndGet();
+        cache.invalidate(apid);
+        logger.debug("Actively purged package #{}", assessmentPackage);
+        assessmentSourceCache.purge(apid);
+    }
+
+    private long getPurgeGeneration(final Long apid) {
+        final AtomicLong generation = purgeGenerations.get(apid);
+        return generation!=null ? generation.get() : 0L;
+    }
+
+    //--------------------------------------------------------------------------
+    // Weight estimation
+
+    private static int estimateWeight(final ResolvedAssessmentItem resolvedAssessmentItem) {
+        return countNodes(resolvedAssessmentItem.getItemLookup())
+                + countNodes(resolvedAssessmentItem.getResolvedResponseProcessingTemplateLookup());
+    }
+
+    private static int estimateWeight(final ResolvedAssessmentTest resolvedAssessmentTest) {
+        int result = countNodes(resolvedAssessmentTest.getTestLookup());
+        for (final ResolvedAssessmentItem resolvedAssessmentItem : resolvedAssessmentTest.getResolvedAssessmentItemBySystemIdMap().values()) {
+            result += estimateWeight(resolvedAssessmentItem);
+        }
+        return result;
+    }
+
+    private static int countNodes(final RootNodeLookup<? extends RootNode> rootNodeLookup) {
+        if (rootNodeLookup==null || !rootNodeLookup.wasSuccessful()) {
+            return 1;
+        }
+        final int[] counter = new int[1];
+        QueryUtils.walkTree(new TreeWalkNodeHandler() {
+            @Override
+            public boolean handleNode(final QtiNode node) {
+                counter[0]++;
+                return true;
+            }
+        }, Arrays.asList(rootNodeLookup.extractAssumingSuccessful()));
+        return counter[0];
     }
 
     //--------------------------------------------------------------------------
     // Reporting
 
-    public int getCacheUsage() {
+    public long getCacheUsage() {
         return cache.size();
     }
 
     public int getCacheMaxSize() {
-        return cache.getMaxSize();
+        return qtiWorksDeploymentSettings.getAssessmentObjectCacheMaxSize();
     }
 
-    public int getCacheMissCount() {
-        return cacheMissCount;
+    public long getCacheMaxWeight() {
+        return qtiWorksDeploymentSettings.getAssessmentObjectCacheMaxWeight();
     }
 
-    public int getCacheHitCount() {
-        return cacheHitCount;
+    public long getCacheWeight() {
+        long result = 0L;
+        for (final CacheEntry cacheEntry : cache.asMap().values()) {
+            result += cacheEntry.getWeight();
+        }
+        return result;
+    }
+
+    public CacheStats getCacheStats() {
+        return cache.stats();
+    }
+
+    public long getCacheMissCount() {
+        return cache.stats().missCount();
+    }
+
+    public long getCacheHitCount() {
+        return cache.stats().hitCount();
+    }
+
+    public long getCachePurgeCount() {
+        return cache.stats().evictionCount();
     }
 
-    public int getCachePurgeCount() {
-        return cache.getPurgeCount();
+    /** Returns the total time spent loading packages into the cache, in nanoseconds */
+    public long getCacheTotalLoadTime() {
+        return cache.stats().totalLoadTime();
+    }
+
+    /** Returns the average time spent loading a package into the cache, in nanoseconds */
+    public double getCacheAverageLoadPenalty() {
+        return cache.stats().averageLoadPenalty();
     }
 
     public Map<Long, Object> getCacheView() {
-        return Collections.unmodifiableMap(cache);
+        final Map<Long, Object> result = new LinkedHashMap<Long, Object>();
+        for (final Entry<Long, CacheEntry> entry : cache.asMap().entrySet()) {
+            result.put(entry.getKey(), entry.getValue().getProcessingMap());
+        }
+        return Collections.unmodifiableMap(result);
     }
 
     @Override
     public String toString() {
         return ObjectUtilities.beanToString(this);
     }
+
+    //--------------------------------------------------------------------------
+
+    /**
+     * Callback for loading the {@link CacheEntry} for a package on a cache miss.
+     */
+    private static interface CacheEntryLoader {
+
+        /**
+         * Loads the package, returning a {@link CacheEntry} for the given purge generation.
+         */
+        CacheEntry load(long generation);
+    }
+
+    /**
+     * Wraps up a (possibly null) {@link ItemProcessingMap} or {@link TestProcessingMap},
+     * as Guava caches do not permit null values, together with its estimated weight and the
+     * purge generation of its package when it was loaded.
+     */
+    private static final class CacheEntry {
+
+        private final Object processingMap;
+        private final int weight;
+        private final long generation;
+
+        public CacheEntry(final Object processingMap, final int weight, final long generation) {
+            this.processingMap = processingMap;
+            this.weight = weight;
+            this.generation = generation;
+        }
+
+        public Object getProcessingMap() {
+            return processingMap;
+        }
+
+        public <E> E getProcessingMap(final Class<E> resultClass, final Long apid) {
+            if (processingMap!=null && !resultClass.isInstance(processingMap)) {
+                throw new QtiWorksLogicException("Expected cached data for package #" + apid
+                        + " to be a " + resultClass.getSimpleName()
+                        + " but got " + processingMap.getClass().getSimpleName());
+            }
+            return resultClass.cast(processingMap);
+        }
+
+        public int getWeight() {
+            return weight;
+        }
+
+        public long getGeneration() {
+            return generation;
+        }
+
+        @Override
+        public String toString() {
+            return ObjectUtilities.beanToString(this);
+        }
+    }
 }
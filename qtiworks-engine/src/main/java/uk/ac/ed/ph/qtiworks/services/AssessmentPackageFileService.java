@@ -35,6 +35,7 @@ package uk.ac.ed.ph.qtiworks.services;
 
 import uk.ac.ed.ph.qtiworks.QtiWorksLogicException;
 import uk.ac.ed.ph.qtiworks.QtiWorksRuntimeException;
+import uk.ac.ed.ph.qtiworks.config.beans.QtiWorksDeploymentSettings;
 import uk.ac.ed.ph.qtiworks.domain.DomainConstants;
 import uk.ac.ed.ph.qtiworks.domain.entities.AssessmentPackage;
 import uk.ac.ed.ph.qtiworks.domain.entities.AssessmentPackageImportType;
@@ -42,6 +43,7 @@ import uk.ac.ed.ph.qtiworks.domain.entities.User;
 import uk.ac.ed.ph.qtiworks.samples.QtiSampleAssessment;
 import uk.ac.ed.ph.qtiworks.services.domain.AssessmentPackageDataImportException;
 import uk.ac.ed.ph.qtiworks.services.domain.OutputStreamer;
+import uk.ac.ed.ph.qtiworks.utils.NamedDaemonThreadFactory;
 
 import uk.ac.ed.ph.jqtiplus.internal.util.StringUtilities;
 import uk.ac.ed.ph.jqtiplus.node.AssessmentObject;
@@ -68,8 +70,12 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
 import java.util.Date;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.activation.FileTypeMap;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
 
 import org.slf4j.Logger;
@@ -112,6 +118,12 @@ public class AssessmentPackageFileService {
     @Resource
     private FileTypeMap fileTypeMap;
 
+    @Resource
+    private QtiWorksDeploymentSettings qtiWorksDeploymentSettings;
+
+    /** Used to load, resolve and validate the items in a test in parallel. Null if this is disabled */
+    private ExecutorService loadingExecutorService;
+
     /**
      * {@link ResourceLocator} for reading in sample assessment resources. These are bundled
      * within the ClassPath in a fixed way.
@@ -133,6 +145,21 @@ public class AssessmentPackageFileService {
         );
     }
 
+    @PostConstruct
+    public void init() {
+        final int loadingThreadCount = qtiWorksDeploymentSettings.getLoadingThreads();
+        if (loadingThreadCount > 0) {
+            loadingExecutorService = Executors.newFixedThreadPool(loadingThreadCount, new NamedDaemonThreadFactory("qtiworks-assessment-loader-"));
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (loadingExecutorService!=null) {
+            loadingExecutorService.shutdownNow();
+        }
+    }
+
     //-------------------------------------------------
 
     /**
@@ -329,7 +356,8 @@ public class AssessmentPackageFileService {
     E loadAndResolveAssessmentObject(final AssessmentPackage assessmentPackage) {
         final ResourceLocator inputResourceLocator = createResolvingResourceLocator(assessmentPackage);
         final URI assessmentObjectSystemId = createAssessmentObjectUri(assessmentPackage);
-        final AssessmentObjectXmlLoader assessmentObjectXmlLoader = new AssessmentObjectXmlLoader(qtiXmlReader, inputResourceLocator);
+        final AssessmentObjectXmlLoader assessmentObjectXmlLoader = new AssessmentObjectXmlLoader(qtiXmlReader, inputResourceLocator,
+                loadingExecutorService);
         final AssessmentObjectType assessmentObjectType = assessmentPackage.getAssessmentType();
         E result;
         if (assessmentObjectType==AssessmentObjectType.ASSESSMENT_ITEM) {
@@ -355,7 +383,8 @@ public class AssessmentPackageFileService {
         Assert.notNull(assessmentPackage, "assessmentPackage");
         final ResourceLocator inputResourceLocator = createResolvingResourceLocator(assessmentPackage);
         final URI assessmentObjectSystemId = createAssessmentObjectUri(assessmentPackage);
-        final AssessmentObjectXmlLoader assessmentObjectXmlLoader = new AssessmentObjectXmlLoader(qtiXmlReader, inputResourceLocator);
+        final AssessmentObjectXmlLoader assessmentObjectXmlLoader = new AssessmentObjectXmlLoader(qtiXmlReader, inputResourceLocator,
+                loadingExecutorService);
         final AssessmentObjectType assessmentObjectType = assessmentPackage.getAssessmentType();
         E result;
         if (assessmentObjectType==AssessmentObjectType.ASSESSMENT_ITEM) {
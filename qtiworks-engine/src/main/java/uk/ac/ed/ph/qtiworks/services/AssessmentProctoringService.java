@@ -62,6 +62,15 @@ public class AssessmentProctoringService {
     @Resource
     private IdentityService identityService;
 
+    @Resource
+    private CandidateResultWriter candidateResultWriter;
+
+    @Resource
+    private TestSessionStateJournal testSessionStateJournal;
+
+    @Resource
+    private RenderedPageCache renderedPageCache;
+
     @Resource
     private AuditLogger auditLogger;
 
@@ -109,12 +118,16 @@ public class AssessmentProctoringService {
     }
 
     private void terminateCandidateSession(final CandidateSession candidateSession) {
-        /* NB: We're relying on the fact that result XMLs are stored after each candidate
-         * action, so we don't have to record a final final result here.
+        /* NB: We're relying on the fact that result XMLs are recorded after each candidate
+         * action, so we don't have to record a final final result here. We just need to make
+         * sure the last one has been written out.
          */
         if (!candidateSession.isTerminated()) {
             candidateSession.setTerminationTime(requestTimestampContext.getCurrentRequestTimestamp());
             candidateSessionDao.update(candidateSession);
+            candidateResultWriter.flush(candidateSession);
+            testSessionStateJournal.compact(candidateSession);
+            renderedPageCache.evict(candidateSession);
         }
     }
 
@@ -33,11 +33,14 @@
  */
 package uk.ac.ed.ph.qtiworks.services;
 
+import uk.ac.ed.ph.qtiworks.QtiWorksRuntimeException;
+import uk.ac.ed.ph.qtiworks.config.beans.QtiWorksDeploymentSettings;
 import uk.ac.ed.ph.qtiworks.domain.DomainEntityNotFoundException;
 import uk.ac.ed.ph.qtiworks.domain.entities.CandidateEvent;
 import uk.ac.ed.ph.qtiworks.domain.entities.CandidateSession;
 import uk.ac.ed.ph.qtiworks.domain.entities.CandidateSessionOutcome;
 import uk.ac.ed.ph.qtiworks.domain.entities.Delivery;
+import uk.ac.ed.ph.qtiworks.domain.entities.LisOutcomeReportingStatus;
 import uk.ac.ed.ph.qtiworks.domain.entities.User;
 import uk.ac.ed.ph.qtiworks.services.dao.CandidateEventDao;
 import uk.ac.ed.ph.qtiworks.services.dao.CandidateSessionDao;
@@ -48,6 +51,9 @@ import uk.ac.ed.ph.qtiworks.services.domain.CandidateSessionSummaryMetadata;
 import uk.ac.ed.ph.qtiworks.services.domain.CandidateSessionSummaryReport;
 import uk.ac.ed.ph.qtiworks.services.domain.DeliveryCandidateSummaryReport;
 import uk.ac.ed.ph.qtiworks.services.domain.PrivilegeException;
+import uk.ac.ed.ph.qtiworks.utils.NamedDaemonThreadFactory;
+import uk.ac.ed.ph.qtiworks.utils.PreparedZipWriter.PreparedEntry;
+import uk.ac.ed.ph.qtiworks.utils.PreparedZipWriter;
 
 import uk.ac.ed.ph.jqtiplus.internal.util.Assert;
 import uk.ac.ed.ph.jqtiplus.internal.util.StringUtilities;
@@ -58,19 +64,34 @@ import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
 
+import org.hibernate.ScrollableResults;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
@@ -90,6 +111,15 @@ import com.google.common.io.Files;
 @Transactional(readOnly=false, propagation=Propagation.REQUIRED)
 public class AssessmentReportingService {
 
+    /** Number of rows to fetch from the DB at a time when streaming candidate summary reports */
+    private static final int SUMMARY_REPORT_FETCH_SIZE = 500;
+
+    /** Message put in assessmentResult ZIPs when there are no results */
+    private static final String NO_RESULTS_MESSAGE = "There are no results for this delivery yet";
+
+    @Resource
+    private QtiWorksDeploymentSettings qtiWorksDeploymentSettings;
+
     @Resource
     private AuditLogger auditLogger;
 
@@ -99,6 +129,9 @@ public class AssessmentReportingService {
     @Resource
     private CandidateDataService candidateDataService;
 
+    @Resource
+    private CandidateResultWriter candidateResultWriter;
+
     @Resource
     private CandidateSessionDao candidateSessionDao;
 
@@ -108,6 +141,24 @@ public class AssessmentReportingService {
     @Resource
     private CandidateSessionOutcomeDao candidateSessionOutcomeDao;
 
+    /** Used to prepare assessmentResult ZIP entries in parallel. Null if this is disabled */
+    private ExecutorService zipExecutorService;
+
+    @PostConstruct
+    public void init() {
+        final int zipThreadCount = qtiWorksDeploymentSettings.getReportZipThreads();
+        if (zipThreadCount > 0) {
+            zipExecutorService = Executors.newFixedThreadPool(zipThreadCount, new NamedDaemonThreadFactory("qtiworks-report-zipper-"));
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (zipExecutorService!=null) {
+            zipExecutorService.shutdownNow();
+        }
+    }
+
     //-------------------------------------------------
 
     public CandidateSession lookupCandidateSession(final long xid)
@@ -138,6 +189,7 @@ public class AssessmentReportingService {
         Assert.notNull(candidateSession, "candidateSession");
 
         /* Look up stored outcomes for this session */
+        candidateResultWriter.flush(candidateSession);
         final List<CandidateSessionOutcome> candidateSessionOutcomes = candidateSessionOutcomeDao.getForSession(candidateSession);
 
         /* Convert outcomes into an easy form for manipulating */
@@ -252,6 +304,7 @@ public class AssessmentReportingService {
         Assert.notNull(delivery, "delivery");
 
         /* Look up all outcomes for all sessions associated with this delivery */
+        candidateResultWriter.flush(delivery);
         final List<CandidateSessionOutcome> candidateSessionOutcomes = candidateSessionOutcomeDao.getForDelivery(delivery);
 
         /* Group results by each individual CandidateSession, also building up lists (ordered sets) of unique outcome identifiers */
@@ -352,6 +405,11 @@ public class AssessmentReportingService {
      * Generates a UTF-8 CSV summary of all {@link CandidateSession}s for the given {@link Delivery},
      * streaming the result to the given {@link OutputStream}
      * <p>
+     * Unlike {@link #buildDeliveryCandidateSummaryReport(Delivery)}, this doesn't build the whole
+     * report in memory. The outcome columns are determined up front, and rows are then written
+     * out as they are read from the database, so memory use stays constant however many
+     * candidates there are.
+     * <p>
      * The stream will be flushed at the end of this; the caller is responsible for closing it.
      *
      * @param did ID (did) of the required {@link Delivery}
@@ -360,50 +418,182 @@ public class AssessmentReportingService {
     public void streamDeliveryCandidateSummaryReportCsv(final long did, final OutputStream outputStream)
             throws PrivilegeException, DomainEntityNotFoundException, IOException {
         Assert.notNull(outputStream, "outputStream");
-        final DeliveryCandidateSummaryReport report = buildDeliveryCandidateSummaryReport(did);
+        final Delivery delivery = assessmentManagementService.lookupDelivery(did);
+
+        /* Work out which outcome columns we need. (This is a cheap aggregate query) */
+        final CandidateSessionSummaryMetadata metadata = buildDeliveryCandidateSummaryMetadata(delivery);
+
+        /* Now stream rows directly out of the DB, one session at a time */
         final CsvWriter csvWriter = new CsvWriter(outputStream, ',', Charsets.UTF_8);
+        final ScrollableResults results = candidateSessionOutcomeDao.scrollSummaryRowsForDelivery(delivery, SUMMARY_REPORT_FETCH_SIZE);
         try {
-            /* Write header */
-            final StringBuilder headerBuilder = new StringBuilder("Session ID,Email Address,First Name,Last Name,Launch Time,Session Status");
-            final CandidateSessionSummaryMetadata metadata = report.getCandidateSessionSummaryMetadata();
-            final String lisResultOutcomeIdentifier = metadata.getLisResultOutcomeIdentifier();
-            if (lisResultOutcomeIdentifier!=null) {
-                /* LTI results set up, so add in details about that */
-                headerBuilder.append(',')
-                    .append("LTI Result Variable (")
-                    .append(lisResultOutcomeIdentifier)
-                    .append("),LTI Normalized Score,LTI Result Reporting Status");
-            }
-            /* Add details about outcome variables */
-            for (final String outcomeName : metadata.getNumericOutcomeIdentifiers()) {
-                headerBuilder.append(',').append(outcomeName);
-            }
-            for (final String outcomeName : metadata.getOtherOutcomeIdentifiers()) {
-                headerBuilder.append(',').append(outcomeName);
-            }
-            csvWriter.writeComment(headerBuilder.toString());
-
-            /* Write each row */
-            for (final CandidateSessionSummaryData row : report.getRows()) {
-                csvWriter.write(Long.toString(row.getSessionId()));
-                csvWriter.write(StringUtilities.emptyIfNull(row.getEmailAddress()));
-                csvWriter.write(row.getFirstName());
-                csvWriter.write(row.getLastName());
-                csvWriter.write(row.getLaunchTime().toString());
-                csvWriter.write(row.getSessionStatusMessage());
-                if (lisResultOutcomeIdentifier!=null) {
-                    csvWriter.write(StringUtilities.emptyIfNull(row.getLisResultOutcomeValue()));
-                    csvWriter.write(StringUtilities.safeToStringEmptyIfNull(row.getLisScore()));
-                    csvWriter.write(StringUtilities.safeToStringEmptyIfNull(row.getLisOutcomeReportingStatus()));
+            writeCsvHeader(csvWriter, metadata);
+            Object[] sessionRow = null;
+            final Map<String, String> numericOutcomesForSession = new HashMap<String, String>();
+            final Map<String, String> otherOutcomesForSession = new HashMap<String, String>();
+            while (results.next()) {
+                final Object[] row = results.get();
+                if (sessionRow!=null && !sessionRow[0].equals(row[0])) {
+                    /* Reached next session, so write out the previous one */
+                    writeCsvRow(csvWriter, metadata, createSummaryData(metadata, sessionRow,
+                            numericOutcomesForSession, otherOutcomesForSession));
+                    numericOutcomesForSession.clear();
+                    otherOutcomesForSession.clear();
                 }
-                writeOutcomes(csvWriter, metadata.getNumericOutcomeIdentifiers(), row.getNumericOutcomeValues());
-                writeOutcomes(csvWriter, metadata.getOtherOutcomeIdentifiers(), row.getOtherOutcomeValues());
-                csvWriter.endRecord();
+                sessionRow = row;
+
+                /* Record outcome */
+                final String outcomeIdentifier = (String) row[10];
+                final BaseType baseType = (BaseType) row[11];
+                final Cardinality cardinality = (Cardinality) row[12];
+                final String outcomeValue = (String) row[13];
+                if (baseType!=null && baseType.isNumeric() && cardinality==Cardinality.SINGLE) {
+                    numericOutcomesForSession.put(outcomeIdentifier, outcomeValue);
+                }
+                else {
+                    otherOutcomesForSession.put(outcomeIdentifier, outcomeValue);
+                }
+            }
+            if (sessionRow!=null) {
+                writeCsvRow(csvWriter, metadata, createSummaryData(metadata, sessionRow,
+                        numericOutcomesForSession, otherOutcomesForSession));
             }
         }
         finally {
+            results.close();
             csvWriter.flush();
         }
+        auditLogger.recordEvent("Streamed candidate summary report CSV for Delivery #" + delivery.getId());
+    }
+
+    /**
+     * Builds the {@link CandidateSessionSummaryMetadata} for the given {@link Delivery} without
+     * loading all of its {@link CandidateSessionOutcome}s. Only the outcomes of the sessions
+     * that first recorded each outcome variable are looked at.
+     */
+    private CandidateSessionSummaryMetadata buildDeliveryCandidateSummaryMetadata(final Delivery delivery) {
+        candidateResultWriter.flush(delivery);
+        final List<Object[]> outcomeSignatures = candidateSessionOutcomeDao.getOutcomeSignaturesForDelivery(delivery);
+        final Set<Long> firstXids = new HashSet<Long>();
+        for (final Object[] outcomeSignature : outcomeSignatures) {
+            firstXids.add((Long) outcomeSignature[3]);
+        }
+        final List<Object[]> firstSessionOutcomeSignatures = firstXids.isEmpty()
+                ? Collections.<Object[]>emptyList()
+                : candidateSessionOutcomeDao.getOutcomeSignaturesForSessions(firstXids);
+        return createCandidateSessionSummaryMetadata(delivery.getAssessment().getLtiResultOutcomeIdentifier(),
+                outcomeSignatures, firstSessionOutcomeSignatures);
+    }
+
+    /**
+     * Creates the {@link CandidateSessionSummaryMetadata} from the results of
+     * {@link CandidateSessionOutcomeDao#getOutcomeSignaturesForDelivery(Delivery)} and
+     * {@link CandidateSessionOutcomeDao#getOutcomeSignaturesForSessions(java.util.Collection)}.
+     * <p>
+     * The outcome identifiers are put in order of first appearance when going through all
+     * outcomes by session and then in the order recorded, which is the same order as
+     * {@link #buildDeliveryCandidateSummaryReport(Delivery)} uses. Each outcome variable is
+     * placed according to when the first session recording it recorded it.
+     */
+    static CandidateSessionSummaryMetadata createCandidateSessionSummaryMetadata(final String ltiResultOutcomeIdentifier,
+            final List<Object[]> outcomeSignatures, final List<Object[]> firstSessionOutcomeSignatures) {
+        final Map<List<Object>, Object> firstXidBySignature = new HashMap<List<Object>, Object>();
+        for (final Object[] outcomeSignature : outcomeSignatures) {
+            firstXidBySignature.put(Arrays.asList(outcomeSignature[0], outcomeSignature[1], outcomeSignature[2]), outcomeSignature[3]);
+        }
+        final LinkedHashSet<String> numericOutcomeIdentifiers = new LinkedHashSet<String>(); /* (Ordered avoiding duplicates) */
+        final LinkedHashSet<String> otherOutcomeIdentifiers = new LinkedHashSet<String>(); /* (Ordered avoiding duplicates) */
+        for (final Object[] row : firstSessionOutcomeSignatures) {
+            if (!row[0].equals(firstXidBySignature.get(Arrays.asList(row[1], row[2], row[3])))) {
+                /* (Already recorded by an earlier session) */
+                continue;
+            }
+            final String outcomeIdentifier = (String) row[1];
+            final BaseType baseType = (BaseType) row[2];
+            final Cardinality cardinality = (Cardinality) row[3];
+            if (baseType!=null && baseType.isNumeric() && cardinality==Cardinality.SINGLE) {
+                numericOutcomeIdentifiers.add(outcomeIdentifier);
+            }
+            else {
+                otherOutcomeIdentifiers.add(outcomeIdentifier);
+            }
+        }
+        return new CandidateSessionSummaryMetadata(ltiResultOutcomeIdentifier, numericOutcomeIdentifiers, otherOutcomeIdentifiers);
+    }
+
+    /**
+     * Creates a {@link CandidateSessionSummaryData} from a row returned by
+     * {@link CandidateSessionOutcomeDao#scrollSummaryRowsForDelivery(Delivery, int)} and the
+     * outcomes gathered for the corresponding session.
+     */
+    private CandidateSessionSummaryData createSummaryData(final CandidateSessionSummaryMetadata metadata, final Object[] sessionRow,
+            final Map<String, String> numericOutcomesForSession, final Map<String, String> otherOutcomesForSession) {
+        final List<String> numericOutcomeValues = new ArrayList<String>();
+        for (final String outcomeIdentifier : metadata.getNumericOutcomeIdentifiers()) {
+            numericOutcomeValues.add(safelyExtractOutcomeValue(numericOutcomesForSession, outcomeIdentifier));
+        }
+        final List<String> otherOutcomeValues = new ArrayList<String>();
+        for (final String outcomeIdentifier : metadata.getOtherOutcomeIdentifiers()) {
+            otherOutcomeValues.add(safelyExtractOutcomeValue(otherOutcomesForSession, outcomeIdentifier));
+        }
+        final String ltiResultOutcomeIdentifier = metadata.getLisResultOutcomeIdentifier();
+        String ltiResultOutcomeValue = null;
+        if (ltiResultOutcomeIdentifier!=null) {
+            ltiResultOutcomeValue = safelyExtractOutcomeValue(numericOutcomesForSession, ltiResultOutcomeIdentifier);
+        }
+        return new CandidateSessionSummaryData(((Long) sessionRow[0]).longValue(),
+                (Date) sessionRow[1],
+                (String) sessionRow[2],
+                (String) sessionRow[3],
+                (String) sessionRow[4],
+                sessionRow[5]!=null,
+                sessionRow[6]!=null,
+                ((Boolean) sessionRow[7]).booleanValue(),
+                (LisOutcomeReportingStatus) sessionRow[8],
+                ltiResultOutcomeValue,
+                (Double) sessionRow[9],
+                numericOutcomeValues,
+                otherOutcomeValues);
+    }
+
+    private void writeCsvHeader(final CsvWriter csvWriter, final CandidateSessionSummaryMetadata metadata)
+            throws IOException {
+        final StringBuilder headerBuilder = new StringBuilder("Session ID,Email Address,First Name,Last Name,Launch Time,Session Status");
+        final String lisResultOutcomeIdentifier = metadata.getLisResultOutcomeIdentifier();
+        if (lisResultOutcomeIdentifier!=null) {
+            /* LTI results set up, so add in details about that */
+            headerBuilder.append(',')
+                .append("LTI Result Variable (")
+                .append(lisResultOutcomeIdentifier)
+                .append("),LTI Normalized Score,LTI Result Reporting Status");
+        }
+        /* Add details about outcome variables */
+        for (final String outcomeName : metadata.getNumericOutcomeIdentifiers()) {
+            headerBuilder.append(',').append(outcomeName);
+        }
+        for (final String outcomeName : metadata.getOtherOutcomeIdentifiers()) {
+            headerBuilder.append(',').append(outcomeName);
+        }
+        csvWriter.writeComment(headerBuilder.toString());
+    }
+
+    private void writeCsvRow(final CsvWriter csvWriter, final CandidateSessionSummaryMetadata metadata,
+            final CandidateSessionSummaryData row)
+            throws IOException {
+        csvWriter.write(Long.toString(row.getSessionId()));
+        csvWriter.write(StringUtilities.emptyIfNull(row.getEmailAddress()));
+        csvWriter.write(row.getFirstName());
+        csvWriter.write(row.getLastName());
+        csvWriter.write(row.getLaunchTime().toString());
+        csvWriter.write(row.getSessionStatusMessage());
+        if (metadata.getLisResultOutcomeIdentifier()!=null) {
+            csvWriter.write(StringUtilities.emptyIfNull(row.getLisResultOutcomeValue()));
+            csvWriter.write(StringUtilities.safeToStringEmptyIfNull(row.getLisScore()));
+            csvWriter.write(StringUtilities.safeToStringEmptyIfNull(row.getLisOutcomeReportingStatus()));
+        }
+        writeOutcomes(csvWriter, metadata.getNumericOutcomeIdentifiers(), row.getNumericOutcomeValues());
+        writeOutcomes(csvWriter, metadata.getOtherOutcomeIdentifiers(), row.getOtherOutcomeValues());
+        csvWriter.endRecord();
     }
 
     private void writeOutcomes(final CsvWriter csvWriter, final List<String> outcomeNames, final List<String> outcomeValues)
@@ -429,6 +619,9 @@ public class AssessmentReportingService {
      * Generates a ZIP file containing the <code>assessmentReport</code>s for all closed or terminated
      * candidate sessions for the given {@link Delivery}, streaming the result to the given stream.
      * <p>
+     * Unless disabled in {@link QtiWorksDeploymentSettings}, the entries are read and compressed
+     * in parallel, but are always written out in session order.
+     * <p>
      * The stream will be flushed at the end of this; the caller is responsible for closing it.
      *
      * @param did ID (did) of the required {@link Delivery}
@@ -442,19 +635,99 @@ public class AssessmentReportingService {
         final Delivery delivery = assessmentManagementService.lookupDelivery(did);
         final List<CandidateSession> candidateSessions = candidateSessionDao.getForDelivery(delivery);
 
-        /* Create ZIP builder */
-        final ZipOutputStream zipOutputStream = new ZipOutputStream(outputStream);
-        boolean hasIncludedSomething = false;
+        /* Decide which sessions to include */
+        final List<CandidateSession> reportableSessions = new ArrayList<CandidateSession>();
         for (final CandidateSession candidateSession : candidateSessions) {
             if (!candidateSession.isExploded() && (candidateSession.isFinished() || candidateSession.isTerminated())) {
-                addAssessmentReport(zipOutputStream, candidateSession);
-                hasIncludedSomething = true;
+                reportableSessions.add(candidateSession);
             }
         }
-        safelyFinishZipStream(zipOutputStream, hasIncludedSomething);
+
+        /* Build ZIP */
+        if (zipExecutorService!=null) {
+            streamAssessmentReportsInParallel(reportableSessions, outputStream);
+        }
+        else {
+            streamAssessmentReportsSerially(reportableSessions, outputStream);
+        }
         auditLogger.recordEvent("Generated assessmentResult ZIP file for delviery #" + did);
     }
 
+    private void streamAssessmentReportsSerially(final List<CandidateSession> reportableSessions, final OutputStream outputStream)
+            throws IOException {
+        final ZipOutputStream zipOutputStream = new ZipOutputStream(outputStream);
+        if (!qtiWorksDeploymentSettings.isReportZipCompression()) {
+            zipOutputStream.setLevel(Deflater.NO_COMPRESSION);
+        }
+        for (final CandidateSession candidateSession : reportableSessions) {
+            addAssessmentReport(zipOutputStream, candidateSession);
+        }
+        safelyFinishZipStream(zipOutputStream, !reportableSessions.isEmpty());
+    }
+
+    /**
+     * Builds the ZIP of assessmentResults by reading and compressing entries in parallel,
+     * while writing them out in the same order as {@link #streamAssessmentReportsSerially(List, OutputStream)}.
+     * Only a limited number of entries are prepared ahead of the one currently being written,
+     * so memory use is bounded.
+     */
+    private void streamAssessmentReportsInParallel(final List<CandidateSession> reportableSessions, final OutputStream outputStream)
+            throws IOException {
+        final boolean compress = qtiWorksDeploymentSettings.isReportZipCompression();
+        final int maxPendingEntries = 4 * Math.max(1, qtiWorksDeploymentSettings.getReportZipThreads());
+        final PreparedZipWriter zipWriter = new PreparedZipWriter(outputStream);
+        final ArrayDeque<Future<PreparedEntry>> pendingEntries = new ArrayDeque<Future<PreparedEntry>>();
+        final Iterator<CandidateSession> sessionIterator = reportableSessions.iterator();
+        try {
+            while (sessionIterator.hasNext() || !pendingEntries.isEmpty()) {
+                /* Top up pending entries. (We work out file locations and names on this Thread, as
+                 * this needs the entity model) */
+                while (sessionIterator.hasNext() && pendingEntries.size() < maxPendingEntries) {
+                    final CandidateSession candidateSession = sessionIterator.next();
+                    final File assessmentResultFile = candidateDataService.ensureAssessmentResultFile(candidateSession);
+                    final String zipEntryName = makeReportFileName(candidateSession);
+                    pendingEntries.add(zipExecutorService.submit(new Callable<PreparedEntry>() {
+                        @Override
+                        public PreparedEntry call() throws IOException {
+                            return PreparedZipWriter.prepareEntry(zipEntryName, Files.toByteArray(assessmentResultFile), compress);
+                        }
+                    }));
+                }
+
+                /* Write out next entry, in order */
+                zipWriter.writeEntry(awaitPreparedEntry(pendingEntries.removeFirst()));
+            }
+            if (reportableSessions.isEmpty()) {
+                zipWriter.writeEntry(PreparedZipWriter.prepareEntry("NoResults.txt",
+                        NO_RESULTS_MESSAGE.getBytes(Charsets.UTF_8), compress));
+            }
+            zipWriter.finish();
+        }
+        finally {
+            /* Abandon any outstanding work if something went wrong */
+            for (final Future<PreparedEntry> pendingEntry : pendingEntries) {
+                pendingEntry.cancel(true);
+            }
+        }
+    }
+
+    private PreparedEntry awaitPreparedEntry(final Future<PreparedEntry> future) throws IOException {
+        try {
+            return future.get();
+        }
+        catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new QtiWorksRuntimeException("Interrupted while building assessmentResult ZIP", e);
+        }
+        catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new QtiWorksRuntimeException("Unexpected Exception preparing assessmentResult ZIP entry", cause);
+        }
+    }
+
     private void addAssessmentReport(final ZipOutputStream zipOutputStream, final CandidateSession candidateSession)
             throws IOException {
         final File assessmentResultFile = candidateDataService.ensureAssessmentResultFile(candidateSession);
@@ -494,12 +767,11 @@ public class AssessmentReportingService {
         if (!hasIncludedSomething) {
             zipOutputStream.putNextEntry(new ZipEntry("NoResults.txt"));
             final OutputStreamWriter commentWriter = new OutputStreamWriter(zipOutputStream, "UTF-8");
-            commentWriter.write("There are no results for this delivery yet");
+            commentWriter.write(NO_RESULTS_MESSAGE);
             commentWriter.flush();
             zipOutputStream.closeEntry();
         }
         zipOutputStream.finish();
         zipOutputStream.flush();
     }
-
 }
@@ -52,7 +52,7 @@ import uk.ac.ed.ph.qtiworks.mathassess.GlueValueBinder;
 import uk.ac.ed.ph.qtiworks.mathassess.MathAssessConstants;
 import uk.ac.ed.ph.qtiworks.services.dao.CandidateEventDao;
 import uk.ac.ed.ph.qtiworks.services.dao.CandidateEventNotificationDao;
-import uk.ac.ed.ph.qtiworks.services.dao.CandidateSessionOutcomeDao;
+import uk.ac.ed.ph.qtiworks.services.domain.SessionStateFormat;
 import uk.ac.ed.ph.qtiworks.utils.XmlUtilities;
 
 import uk.ac.ed.ph.jqtiplus.JqtiExtensionManager;
@@ -80,7 +80,9 @@ import uk.ac.ed.ph.jqtiplus.state.TestPlan;
 import uk.ac.ed.ph.jqtiplus.state.TestPlanNodeKey;
 import uk.ac.ed.ph.jqtiplus.state.TestProcessingMap;
 import uk.ac.ed.ph.jqtiplus.state.TestSessionState;
+import uk.ac.ed.ph.jqtiplus.state.marshalling.ItemSessionStateBinaryMarshaller;
 import uk.ac.ed.ph.jqtiplus.state.marshalling.ItemSessionStateXmlMarshaller;
+import uk.ac.ed.ph.jqtiplus.state.marshalling.TestSessionStateBinaryMarshaller;
 import uk.ac.ed.ph.jqtiplus.state.marshalling.TestSessionStateXmlMarshaller;
 import uk.ac.ed.ph.jqtiplus.value.RecordValue;
 import uk.ac.ed.ph.jqtiplus.value.SingleValue;
@@ -89,12 +91,15 @@ import uk.ac.ed.ph.jqtiplus.xmlutils.XmlSourceLocationInformation;
 import uk.ac.ed.ph.jqtiplus.xmlutils.xslt.XsltSerializationOptions;
 import uk.ac.ed.ph.jqtiplus.xmlutils.xslt.XsltStylesheetManager;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.annotation.Resource;
 import javax.xml.parsers.DocumentBuilder;
@@ -137,7 +142,16 @@ public class CandidateDataService {
     private AssessmentObjectManagementService assessmentObjectManagementService;
 
     @Resource
-    private CandidateSessionOutcomeDao candidateSessionOutcomeDao;
+    private TestSessionStateJournal testSessionStateJournal;
+
+    @Resource
+    private CandidateSessionStateCache candidateSessionStateCache;
+
+    @Resource
+    private CandidateResultWriter candidateResultWriter;
+
+    @Resource
+    private RenderedPageCache renderedPageCache;
 
     @Resource
     private CandidateEventDao candidateEventDao;
@@ -226,15 +240,42 @@ public class CandidateDataService {
     // Item methods
 
     public void storeItemSessionState(final CandidateEvent candidateEvent, final ItemSessionState itemSessionState) {
-        final Document stateDocument = ItemSessionStateXmlMarshaller.marshal(itemSessionState);
-        storeStateDocument(candidateEvent, stateDocument);
+        final SessionStateFormat sessionStateFormat = qtiWorksDeploymentSettings.getCandidateSessionStateFormat();
+        if (sessionStateFormat==SessionStateFormat.BINARY) {
+            storeStateData(candidateEvent, ItemSessionStateBinaryMarshaller.marshal(itemSessionState));
+        }
+        else {
+            storeStateDocument(candidateEvent, ItemSessionStateXmlMarshaller.marshal(itemSessionState));
+        }
+        candidateSessionStateCache.checkIn(candidateEvent, itemSessionState, candidateEvent.getTimestamp());
     }
 
     public ItemSessionState loadItemSessionState(final CandidateEvent candidateEvent) {
-        final Document document = loadStateDocument(candidateEvent);
+        final ItemSessionState cachedState = candidateSessionStateCache.checkOutItemSessionState(candidateEvent,
+                requestTimestampContext.getCurrentRequestTimestamp());
+        if (cachedState!=null) {
+            return cachedState;
+        }
+        final File sessionStateFile = ensureSessionStateFile(candidateEvent);
+        if (isBinarySessionStateFile(sessionStateFile)) {
+            return ItemSessionStateBinaryMarshaller.unmarshal(loadStateData(sessionStateFile));
+        }
+        final Document document = loadStateDocument(sessionStateFile);
         return ItemSessionStateXmlMarshaller.unmarshal(document.getDocumentElement());
     }
 
+    /**
+     * Returns an {@link ItemSessionState} obtained via {@link #loadItemSessionState(CandidateEvent)}
+     * to the {@link CandidateSessionStateCache} after it has been used without recording a new
+     * {@link CandidateEvent}, e.g. during rendering. (The state's durations may have been touched
+     * at the current request timestamp but must otherwise be unchanged.)
+     * <p>
+     * The caller must not use the state afterwards.
+     */
+    public void releaseItemSessionState(final CandidateEvent candidateEvent, final ItemSessionState itemSessionState) {
+        candidateSessionStateCache.checkIn(candidateEvent, itemSessionState, requestTimestampContext.getCurrentRequestTimestamp());
+    }
+
     public CandidateEvent recordCandidateItemEvent(final CandidateSession candidateSession,
             final CandidateItemEventType itemEventType, final ItemSessionState itemSessionState) {
         return recordCandidateItemEvent(candidateSession, itemEventType, itemSessionState, null);
@@ -249,8 +290,9 @@ public class CandidateDataService {
         event.setItemEventType(itemEventType);
         event.setTimestamp(requestTimestampContext.getCurrentRequestTimestamp());
 
-        /* Store event */
+        /* Store event, which makes any previous rendering stale */
         candidateEventDao.persist(event);
+        renderedPageCache.evict(candidateSession);
 
         /* Save current ItemSessionState */
         storeItemSessionState(event, itemSessionState);
@@ -290,6 +332,7 @@ public class CandidateDataService {
         final ItemSessionControllerSettings itemSessionControllerSettings = new ItemSessionControllerSettings();
         itemSessionControllerSettings.setTemplateProcessingLimit(computeTemplateProcessingLimit(itemDeliverySettings));
         itemSessionControllerSettings.setMaxAttempts(itemDeliverySettings.getMaxAttempts());
+        itemSessionControllerSettings.setCompiledProcessing(qtiWorksDeploymentSettings.isCompiledProcessing());
 
         /* Create controller and wire up notification recorder */
         final ItemSessionController result = new ItemSessionController(jqtiExtensionManager,
@@ -336,6 +379,7 @@ public class CandidateDataService {
         final ItemSessionControllerSettings itemSessionControllerSettings = new ItemSessionControllerSettings();
         itemSessionControllerSettings.setTemplateProcessingLimit(computeTemplateProcessingLimit(itemDeliverySettings));
         itemSessionControllerSettings.setMaxAttempts(itemDeliverySettings.getMaxAttempts());
+        itemSessionControllerSettings.setCompiledProcessing(qtiWorksDeploymentSettings.isCompiledProcessing());
 
         /* Create controller and wire up notification recorder (if passed) */
         final ItemSessionController result = new ItemSessionController(jqtiExtensionManager,
@@ -374,11 +418,9 @@ public class CandidateDataService {
     }
 
     public void recordItemAssessmentResult(final CandidateSession candidateSession, final AssessmentResult assessmentResult) {
-        /* First record full result XML to filesystem */
-        storeAssessmentResultFile(candidateSession, assessmentResult);
-
-        /* Then record item outcome variables to DB */
-        recordOutcomeVariables(candidateSession, assessmentResult.getItemResults().get(0));
+        /* Record full result XML to filesystem and item outcome variables to DB */
+        candidateResultWriter.recordResult(candidateSession, assessmentResult,
+                extractOutcomeVariables(candidateSession, assessmentResult.getItemResults().get(0)));
     }
 
     public void ensureItemDelivery(final Delivery delivery) {
@@ -392,15 +434,53 @@ public class CandidateDataService {
     // Test methods
 
     public void storeTestSessionState(final CandidateEvent candidateEvent, final TestSessionState testSessionState) {
-        final Document stateDocument = TestSessionStateXmlMarshaller.marshal(testSessionState);
-        storeStateDocument(candidateEvent, stateDocument);
+        final SessionStateFormat sessionStateFormat = qtiWorksDeploymentSettings.getCandidateSessionStateFormat();
+        if (testSessionStateJournal.isEnabled()) {
+            testSessionStateJournal.appendTestSessionState(candidateEvent, testSessionState);
+            final CandidateSession candidateSession = candidateEvent.getCandidateSession();
+            if (candidateSession.isTerminated()) {
+                testSessionStateJournal.compact(candidateSession);
+            }
+        }
+        else if (sessionStateFormat==SessionStateFormat.BINARY) {
+            storeStateData(candidateEvent, TestSessionStateBinaryMarshaller.marshal(testSessionState));
+        }
+        else {
+            storeStateDocument(candidateEvent, TestSessionStateXmlMarshaller.marshal(testSessionState));
+        }
+        candidateSessionStateCache.checkIn(candidateEvent, testSessionState, candidateEvent.getTimestamp());
     }
 
     public TestSessionState loadTestSessionState(final CandidateEvent candidateEvent) {
-        final Document document = loadStateDocument(candidateEvent);
+        final TestSessionState cachedState = candidateSessionStateCache.checkOutTestSessionState(candidateEvent,
+                requestTimestampContext.getCurrentRequestTimestamp());
+        if (cachedState!=null) {
+            return cachedState;
+        }
+        final TestSessionState journaledState = testSessionStateJournal.loadTestSessionState(candidateEvent);
+        if (journaledState!=null) {
+            return journaledState;
+        }
+        final File sessionStateFile = ensureSessionStateFile(candidateEvent);
+        if (isBinarySessionStateFile(sessionStateFile)) {
+            return TestSessionStateBinaryMarshaller.unmarshal(loadStateData(sessionStateFile));
+        }
+        final Document document = loadStateDocument(sessionStateFile);
         return TestSessionStateXmlMarshaller.unmarshal(document.getDocumentElement());
     }
 
+    /**
+     * Returns a {@link TestSessionState} obtained via {@link #loadTestSessionState(CandidateEvent)}
+     * to the {@link CandidateSessionStateCache} after it has been used without recording a new
+     * {@link CandidateEvent}, e.g. during rendering. (The state's durations may have been touched
+     * at the current request timestamp but must otherwise be unchanged.)
+     * <p>
+     * The caller must not use the state afterwards.
+     */
+    public void releaseTestSessionState(final CandidateEvent candidateEvent, final TestSessionState testSessionState) {
+        candidateSessionStateCache.checkIn(candidateEvent, testSessionState, requestTimestampContext.getCurrentRequestTimestamp());
+    }
+
     /**
      * Attempts to create a fresh {@link TestSessionState} wrapped into a {@link TestSessionController}
      * for the given {@link Delivery}.
@@ -432,6 +512,8 @@ public class CandidateDataService {
         final DeliverySettings testDeliverySettings = assessmentDataService.getEffectiveDeliverySettings(candidate, delivery);
         final TestSessionControllerSettings testSessionControllerSettings = new TestSessionControllerSettings();
         testSessionControllerSettings.setTemplateProcessingLimit(computeTemplateProcessingLimit(testDeliverySettings));
+        testSessionControllerSettings.setCompiledProcessing(qtiWorksDeploymentSettings.isCompiledProcessing());
+        testSessionControllerSettings.setIncrementalOutcomeProcessing(qtiWorksDeploymentSettings.isIncrementalOutcomeProcessing());
 
         /* Create controller and wire up notification recorder */
         final TestSessionController result = new TestSessionController(jqtiExtensionManager,
@@ -477,6 +559,8 @@ public class CandidateDataService {
         final TestDeliverySettings testDeliverySettings = (TestDeliverySettings) assessmentDataService.getEffectiveDeliverySettings(candidate, delivery);
         final TestSessionControllerSettings testSessionControllerSettings = new TestSessionControllerSettings();
         testSessionControllerSettings.setTemplateProcessingLimit(computeTemplateProcessingLimit(testDeliverySettings));
+        testSessionControllerSettings.setCompiledProcessing(qtiWorksDeploymentSettings.isCompiledProcessing());
+        testSessionControllerSettings.setIncrementalOutcomeProcessing(qtiWorksDeploymentSettings.isIncrementalOutcomeProcessing());
 
         /* Create controller and wire up notification recorder (if passed) */
         final TestSessionController result = new TestSessionController(jqtiExtensionManager,
@@ -525,8 +609,9 @@ public class CandidateDataService {
         }
         event.setTimestamp(requestTimestampContext.getCurrentRequestTimestamp());
 
-        /* Store event */
+        /* Store event, which makes any previous rendering stale */
         candidateEventDao.persist(event);
+        renderedPageCache.evict(candidateSession);
 
         /* Store test session state */
         storeTestSessionState(event, testSessionState);
@@ -554,11 +639,25 @@ public class CandidateDataService {
     }
 
     public void recordTestAssessmentResult(final CandidateSession candidateSession, final AssessmentResult assessmentResult) {
-        /* First record full result XML to filesystem */
-        storeAssessmentResultFile(candidateSession, assessmentResult);
+        /* Record full result XML to filesystem and test outcome variables to DB */
+        candidateResultWriter.recordResult(candidateSession, assessmentResult,
+                extractOutcomeVariables(candidateSession, assessmentResult.getTestResult()));
+    }
 
-        /* Then record test outcome variables to DB */
-        recordOutcomeVariables(candidateSession, assessmentResult.getTestResult());
+    /**
+     * Ensures that the most recently recorded result for the given {@link CandidateSession}
+     * has been written out. Call this once a session has been terminated.
+     *
+     * @see CandidateResultWriter
+     */
+    /**
+     * Tidies up the stored data for the given {@link CandidateSession} once it has terminated
+     * without a final state being stored, making sure its last result has been written out and
+     * compacting any state journal.
+     */
+    public void handleSessionTermination(final CandidateSession candidateSession) {
+        candidateResultWriter.flush(candidateSession);
+        testSessionStateJournal.compact(candidateSession);
     }
 
     private void ensureTestDelivery(final Delivery delivery) {
@@ -571,75 +670,137 @@ public class CandidateDataService {
     //----------------------------------------------------
     // State file management
 
+    private void storeStateData(final CandidateEvent candidateEvent, final byte[] stateData) {
+        final File sessionFile = getSessionStateFile(candidateEvent, SessionStateFormat.BINARY);
+        try {
+            Files.write(stateData, sessionFile);
+        }
+        catch (final IOException e) {
+            throw QtiWorksRuntimeException.unexpectedException(e);
+        }
+    }
+
     private void storeStateDocument(final CandidateEvent candidateEvent, final Document stateXml) {
-        final File sessionFile = getSessionStateFile(candidateEvent);
+        final File sessionFile = getSessionStateFile(candidateEvent, SessionStateFormat.XML);
+        FileOutputStream resultStream = null;
+        try {
+            resultStream = new FileOutputStream(sessionFile);
+            serializeStateDocument(stateXml, resultStream);
+        }
+        catch (final FileNotFoundException e) {
+            throw QtiWorksRuntimeException.unexpectedException(e);
+        }
+        finally {
+            ServiceUtilities.ensureClose(resultStream);
+        }
+    }
+
+    private void serializeStateDocument(final Document stateXml, final OutputStream outputStream) {
         final XsltSerializationOptions xsltSerializationOptions = new XsltSerializationOptions();
         xsltSerializationOptions.setIndenting(true);
         xsltSerializationOptions.setIncludingXMLDeclaration(false);
         final Transformer serializer = XsltStylesheetManager.createSerializer(xsltSerializationOptions);
-        FileOutputStream resultStream = null;
         try {
-            resultStream = new FileOutputStream(sessionFile);
-            serializer.transform(new DOMSource(stateXml), new StreamResult(resultStream));
+            serializer.transform(new DOMSource(stateXml), new StreamResult(outputStream));
         }
         catch (final TransformerException e) {
             throw new QtiWorksRuntimeException("Unexpected Exception serializing state DOM", e);
         }
-        catch (final FileNotFoundException e) {
-            throw QtiWorksRuntimeException.unexpectedException(e);
+    }
+
+    private byte[] loadStateData(final File sessionStateFile) {
+        try {
+            return Files.toByteArray(sessionStateFile);
         }
-        finally {
-            ServiceUtilities.ensureClose(resultStream);
+        catch (final IOException e) {
+            throw QtiWorksRuntimeException.unexpectedException(e);
         }
     }
 
-    private Document loadStateDocument(final CandidateEvent candidateEvent) {
-        final File sessionFile = ensureSessionStateFile(candidateEvent);
+    private Document loadStateDocument(final File sessionStateFile) {
         final DocumentBuilder documentBuilder = XmlUtilities.createNsAwareDocumentBuilder();
         try {
-            return documentBuilder.parse(sessionFile);
+            return documentBuilder.parse(sessionStateFile);
         }
         catch (final Exception e) {
             throw new QtiWorksLogicException("Could not parse serailized state XML. This is an internal error as we currently don't expose this data to clients", e);
         }
     }
 
+    /**
+     * Returns the state recorded for the given {@link CandidateEvent} as indented XML, regardless
+     * of the {@link SessionStateFormat} it was stored in. This is used when making state available
+     * to authors.
+     */
+    public byte[] loadSessionStateXml(final CandidateEvent candidateEvent) {
+        final Document stateXml;
+        if (isItemSessionEvent(candidateEvent)) {
+            final File sessionStateFile = ensureSessionStateFile(candidateEvent);
+            if (!isBinarySessionStateFile(sessionStateFile)) {
+                return loadStateData(sessionStateFile);
+            }
+            stateXml = ItemSessionStateXmlMarshaller.marshal(ItemSessionStateBinaryMarshaller.unmarshal(loadStateData(sessionStateFile)));
+        }
+        else {
+            TestSessionState testSessionState = testSessionStateJournal.loadTestSessionState(candidateEvent);
+            if (testSessionState==null) {
+                final File sessionStateFile = ensureSessionStateFile(candidateEvent);
+                if (!isBinarySessionStateFile(sessionStateFile)) {
+                    return loadStateData(sessionStateFile);
+                }
+                testSessionState = TestSessionStateBinaryMarshaller.unmarshal(loadStateData(sessionStateFile));
+            }
+            stateXml = TestSessionStateXmlMarshaller.marshal(testSessionState);
+        }
+        final ByteArrayOutputStream xmlStream = new ByteArrayOutputStream();
+        serializeStateDocument(stateXml, xmlStream);
+        return xmlStream.toByteArray();
+    }
+
+    /**
+     * Locates the (non-journaled) state file for the given {@link CandidateEvent}. We look for state stored
+     * in the currently selected {@link SessionStateFormat} first, falling back to the other
+     * format so that existing state remains readable if the format is changed.
+     */
     public File ensureSessionStateFile(final CandidateEvent candidateEvent) {
-        final File sessionStateFile = getSessionStateFile(candidateEvent);
-        if (!sessionStateFile.exists()) {
-            throw new QtiWorksLogicException("Expectation failed: State file " + sessionStateFile + " does not exist");
+        final SessionStateFormat preferredFormat = qtiWorksDeploymentSettings.getCandidateSessionStateFormat();
+        final File preferredFile = getSessionStateFile(candidateEvent, preferredFormat);
+        if (preferredFile.exists()) {
+            return preferredFile;
+        }
+        for (final SessionStateFormat sessionStateFormat : SessionStateFormat.values()) {
+            if (sessionStateFormat!=preferredFormat) {
+                final File sessionStateFile = getSessionStateFile(candidateEvent, sessionStateFormat);
+                if (sessionStateFile.exists()) {
+                    return sessionStateFile;
+                }
+            }
         }
-        return sessionStateFile;
+        throw new QtiWorksLogicException("Expectation failed: State file " + preferredFile + " does not exist");
+    }
+
+    private boolean isBinarySessionStateFile(final File sessionStateFile) {
+        return sessionStateFile.getName().endsWith(SessionStateFormat.BINARY.getFileSuffix());
     }
 
-    private File getSessionStateFile(final CandidateEvent candidateEvent) {
+    private boolean isItemSessionEvent(final CandidateEvent candidateEvent) {
         final CandidateSession candidateSession = candidateEvent.getCandidateSession();
-        final AssessmentObjectType assessmentType = candidateSession.getDelivery().getAssessment().getAssessmentType();
-        final String stateFileBaseName = assessmentType==AssessmentObjectType.ASSESSMENT_ITEM ? "itemSessionState" : "testSessionState";
+        return candidateSession.getDelivery().getAssessment().getAssessmentType()==AssessmentObjectType.ASSESSMENT_ITEM;
+    }
+
+    private File getSessionStateFile(final CandidateEvent candidateEvent, final SessionStateFormat sessionStateFormat) {
+        final CandidateSession candidateSession = candidateEvent.getCandidateSession();
+        final String stateFileBaseName = isItemSessionEvent(candidateEvent) ? "itemSessionState" : "testSessionState";
         final File sessionFolder = filespaceManager.obtainCandidateSessionStateStore(candidateSession);
-        final String stateFileName = stateFileBaseName + candidateEvent.getId() + ".xml";
+        final String stateFileName = stateFileBaseName + candidateEvent.getId() + sessionStateFormat.getFileSuffix();
         return new File(sessionFolder, stateFileName);
     }
 
     //----------------------------------------------------
     // Result file management
 
-    private void storeAssessmentResultFile(final CandidateSession candidateSession, final QtiNode resultNode) {
-        final File resultFile = getAssessmentResultFile(candidateSession);
-        FileOutputStream resultStream = null;
-        try {
-            resultStream = new FileOutputStream(resultFile);
-            qtiSerializer.serializeJqtiObject(resultNode, resultStream);
-        }
-        catch (final Exception e) {
-            throw QtiWorksRuntimeException.unexpectedException(e);
-        }
-        finally {
-            ServiceUtilities.ensureClose(resultStream);
-        }
-    }
-
     public File ensureAssessmentResultFile(final CandidateSession candidateSession) {
+        candidateResultWriter.flush(candidateSession);
         final File resultFile = getAssessmentResultFile(candidateSession);
         if (!resultFile.exists()) {
             throw new QtiWorksLogicException("Expectation failed: assessmentResult file " + resultFile + " does not exist");
@@ -648,11 +809,11 @@ public class CandidateDataService {
     }
 
     private File getAssessmentResultFile(final CandidateSession candidateSession) {
-        final File sessionFolder = filespaceManager.obtainCandidateSessionStateStore(candidateSession);
-        return new File(sessionFolder, "assessmentResult.xml");
+        return candidateResultWriter.getAssessmentResultFile(candidateSession);
     }
 
     public String readAssessmentResultFile(final CandidateSession candidateSession) {
+        candidateResultWriter.flush(candidateSession);
         final File resultFile = getAssessmentResultFile(candidateSession);
         if (!resultFile.exists()) {
             return null;
@@ -677,8 +838,8 @@ public class CandidateDataService {
         return candidateEventDao.getNewestEventInSession(candidateSession);
     }
 
-    private void recordOutcomeVariables(final CandidateSession candidateSession, final AbstractResult resultNode) {
-        candidateSessionOutcomeDao.deleteForCandidateSession(candidateSession);
+    private List<CandidateSessionOutcome> extractOutcomeVariables(final CandidateSession candidateSession, final AbstractResult resultNode) {
+        final List<CandidateSessionOutcome> result = new ArrayList<CandidateSessionOutcome>();
         for (final ItemVariable itemVariable : resultNode.getItemVariables()) {
             if (itemVariable instanceof OutcomeVariable
                     || QtiConstants.VARIABLE_DURATION_IDENTIFIER.equals(itemVariable.getIdentifier())) {
@@ -688,9 +849,10 @@ public class CandidateDataService {
                 outcome.setBaseType(itemVariable.getBaseType());
                 outcome.setCardinality(itemVariable.getCardinality());
                 outcome.setStringValue(stringifyQtiValue(itemVariable.getComputedValue()));
-                candidateSessionOutcomeDao.persist(outcome);
+                result.add(outcome);
             }
         }
+        return result;
     }
 
     private String stringifyQtiValue(final Value value) {
@@ -0,0 +1,389 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.qtiworks.services;
+
+import uk.ac.ed.ph.qtiworks.QtiWorksRuntimeException;
+import uk.ac.ed.ph.qtiworks.config.beans.QtiWorksDeploymentSettings;
+import uk.ac.ed.ph.qtiworks.domain.DomainConstants;
+import uk.ac.ed.ph.qtiworks.domain.entities.CandidateSession;
+import uk.ac.ed.ph.qtiworks.domain.entities.CandidateSessionOutcome;
+import uk.ac.ed.ph.qtiworks.domain.entities.Delivery;
+import uk.ac.ed.ph.qtiworks.services.dao.CandidateSessionOutcomeDao;
+import uk.ac.ed.ph.qtiworks.utils.WriteBehindQueue;
+import uk.ac.ed.ph.qtiworks.utils.WriteBehindQueue.ValueWriter;
+
+import uk.ac.ed.ph.jqtiplus.internal.util.Assert;
+import uk.ac.ed.ph.jqtiplus.node.QtiNode;
+import uk.ac.ed.ph.jqtiplus.serialization.QtiSerializer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.google.common.base.Predicate;
+
+/**
+ * Records the current result of each {@link CandidateSession}, i.e. its
+ * <code>assessmentResult.xml</code> file and its {@link CandidateSessionOutcome}s.
+ * Only the {@link CandidateSessionOutcome}s that have changed since the last write are
+ * inserted, updated or deleted.
+ * <p>
+ * If {@link QtiWorksDeploymentSettings#getResultWriteBehindThreads()} is positive, results for
+ * sessions that are still running are written in the background, so that candidates don't have
+ * to wait for this. Results are coalesced per {@link CandidateSession}, so only the most recent
+ * result waiting to be written gets written. Results are always written immediately once
+ * the session has terminated, and anything still waiting is written out on shutdown.
+ * Failed background writes are retried until they succeed or are superseded by a newer result.
+ * This all uses a {@link WriteBehindQueue}.
+ * <p>
+ * The result file is always replaced atomically, so is never seen partially written.
+ * <p>
+ * Anything reading these results must call {@link #flush(CandidateSession)} or
+ * {@link #flush(Delivery)} first, and anything deleting them must call
+ * {@link #discard(CandidateSession)} or {@link #discard(Delivery)} first.
+ * {@link CandidateDataService} and the reporting and deletion services do this.
+ * <p>
+ * Usage: this is safe to use concurrently by multiple threads. Writes for the same
+ * {@link CandidateSession} are serialized.
+ *
+ * @see CandidateDataService
+ *
+ * @author David McKain
+ */
+@Service
+public class CandidateResultWriter {
+
+    private static final Logger logger = LoggerFactory.getLogger(CandidateResultWriter.class);
+
+    /** Name of the result file within each candidate session state store */
+    public static final String RESULT_FILE_NAME = "assessmentResult.xml";
+
+    /** Maximum time (in ms) to wait for background writes to finish on shutdown */
+    private static final long SHUTDOWN_TIMEOUT = 60 * DomainConstants.ONE_SECOND;
+
+    /** Time (in ms) to wait before retrying a failed background write */
+    private static final long RETRY_DELAY = 10 * DomainConstants.ONE_SECOND;
+
+    @Resource
+    private QtiWorksDeploymentSettings qtiWorksDeploymentSettings;
+
+    @Resource
+    private FilespaceManager filespaceManager;
+
+    @Resource
+    private CandidateSessionOutcomeDao candidateSessionOutcomeDao;
+
+    @Resource
+    private QtiSerializer qtiSerializer;
+
+    @Resource
+    private PlatformTransactionManager transactionManager;
+
+    private TransactionTemplate transactionTemplate;
+
+    /** {@link OutcomeStore} backed by the DB */
+    private OutcomeStore outcomeStore;
+
+    /** Results waiting to be written, keyed on {@link CandidateSession} ID */
+    private WriteBehindQueue<Long, PendingResult> writeBehindQueue;
+
+    @PostConstruct
+    public void init() {
+        transactionTemplate = new TransactionTemplate(transactionManager);
+        outcomeStore = new OutcomeStore() {
+            @Override
+            public List<CandidateSessionOutcome> getForSession(final CandidateSession candidateSession) {
+                return candidateSessionOutcomeDao.getForSession(candidateSession);
+            }
+
+            @Override
+            public void persist(final CandidateSessionOutcome outcome) {
+                candidateSessionOutcomeDao.persist(outcome);
+            }
+
+            @Override
+            public void remove(final CandidateSessionOutcome outcome) {
+                candidateSessionOutcomeDao.remove(outcome);
+            }
+        };
+        writeBehindQueue = new WriteBehindQueue<Long, PendingResult>(new ValueWriter<Long, PendingResult>() {
+            @Override
+            public void write(final Long candidateSessionId, final PendingResult pendingResult) {
+                writeResult(pendingResult);
+            }
+        }, Math.max(0, qtiWorksDeploymentSettings.getResultWriteBehindThreads()), RETRY_DELAY, "qtiworks-result-writer-");
+    }
+
+    @PreDestroy
+    public void destroy() {
+        writeBehindQueue.shutdown(SHUTDOWN_TIMEOUT);
+    }
+
+    //-------------------------------------------------
+
+    /**
+     * Returns the file used to store the <code>assessmentResult</code> for the given
+     * {@link CandidateSession}. Call {@link #flush(CandidateSession)} before reading this.
+     * <p>
+     * (This file is always replaced atomically, so it is safe to read even if a newer result
+     * is being written in the background at the same time.)
+     */
+    public File getAssessmentResultFile(final CandidateSession candidateSession) {
+        final File sessionFolder = filespaceManager.obtainCandidateSessionStateStore(candidateSession);
+        return new File(sessionFolder, RESULT_FILE_NAME);
+    }
+
+    /**
+     * Records the given result for the given {@link CandidateSession}.
+     *
+     * @param candidateSession session to record
+     * @param resultNode QTI result to store as XML. This must not be modified afterwards.
+     * @param outcomes outcome variables to store in the DB, which must not be modified afterwards.
+     */
+    public void recordResult(final CandidateSession candidateSession, final QtiNode resultNode,
+            final List<CandidateSessionOutcome> outcomes) {
+        Assert.notNull(candidateSession, "candidateSession");
+        Assert.notNull(resultNode, "resultNode");
+        Assert.notNull(outcomes, "outcomes");
+        final PendingResult pendingResult = new PendingResult(candidateSession,
+                candidateSession.getDelivery().getId(), resultNode, outcomes);
+
+        /* (Results for terminated sessions are written now, as there won't be any further
+         * events to trigger this.)
+         */
+        writeBehindQueue.submit(candidateSession.getId(), pendingResult, candidateSession.isTerminated());
+    }
+
+    /**
+     * Writes out any result waiting to be written for the given {@link CandidateSession},
+     * returning once this (and any write already in progress) has finished.
+     */
+    public void flush(final CandidateSession candidateSession) {
+        Assert.notNull(candidateSession, "candidateSession");
+        writeBehindQueue.flush(candidateSession.getId());
+    }
+
+    /**
+     * Writes out any results waiting to be written for {@link CandidateSession}s launched on the
+     * given {@link Delivery}.
+     */
+    public void flush(final Delivery delivery) {
+        Assert.notNull(delivery, "delivery");
+        for (final Long candidateSessionId : findPendingSessionIds(delivery)) {
+            writeBehindQueue.flush(candidateSessionId);
+        }
+    }
+
+    /**
+     * Discards any result waiting to be written for the given {@link CandidateSession}. Call this
+     * before deleting a session's results.
+     */
+    public void discard(final CandidateSession candidateSession) {
+        Assert.notNull(candidateSession, "candidateSession");
+        writeBehindQueue.discard(candidateSession.getId());
+    }
+
+    /**
+     * Discards any results waiting to be written for {@link CandidateSession}s launched on the
+     * given {@link Delivery}.
+     */
+    public void discard(final Delivery delivery) {
+        Assert.notNull(delivery, "delivery");
+        for (final Long candidateSessionId : findPendingSessionIds(delivery)) {
+            writeBehindQueue.discard(candidateSessionId);
+        }
+    }
+
+    /**
+     * Returns the number of results currently waiting to be written.
+     */
+    public int getPendingResultCount() {
+        return writeBehindQueue.getPendingCount();
+    }
+
+    //-------------------------------------------------
+
+    private Set<Long> findPendingSessionIds(final Delivery delivery) {
+        final Long deliveryId = delivery.getId();
+        return writeBehindQueue.findKeys(new Predicate<PendingResult>() {
+            @Override
+            public boolean apply(final PendingResult pendingResult) {
+                return pendingResult.deliveryId.equals(deliveryId);
+            }
+        });
+    }
+
+    private void writeResult(final PendingResult pendingResult) {
+        /* First record full result XML to filesystem. We write to a temporary file and then
+         * rename it over the existing result, so that readers never see a partial file.
+         */
+        final File resultFile = getAssessmentResultFile(pendingResult.candidateSession);
+        File tempFile = null;
+        FileOutputStream resultStream = null;
+        try {
+            tempFile = File.createTempFile(RESULT_FILE_NAME, ".tmp", resultFile.getParentFile());
+            resultStream = new FileOutputStream(tempFile);
+            qtiSerializer.serializeJqtiObject(pendingResult.resultNode, resultStream);
+            resultStream.close();
+            resultStream = null;
+            replaceFile(tempFile, resultFile);
+            tempFile = null;
+        }
+        catch (final Exception e) {
+            throw QtiWorksRuntimeException.unexpectedException(e);
+        }
+        finally {
+            ServiceUtilities.ensureClose(resultStream);
+            if (tempFile!=null && !tempFile.delete()) {
+                logger.warn("Could not delete temporary result file {}", tempFile);
+            }
+        }
+
+        /* Then record outcome variables to DB. (This joins the caller's transaction, if there is one.) */
+        transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+            @Override
+            protected void doInTransactionWithoutResult(final TransactionStatus status) {
+                updateOutcomes(outcomeStore, pendingResult.candidateSession, pendingResult.outcomes);
+            }
+        });
+    }
+
+    /**
+     * Renames the given source file over the given target file. This is atomic on POSIX
+     * filesystems. Some platforms (e.g. Windows) won't rename over an existing file, in which
+     * case we have to delete the target first.
+     */
+    private static void replaceFile(final File sourceFile, final File targetFile) throws IOException {
+        if (!sourceFile.renameTo(targetFile)) {
+            if (!targetFile.delete() || !sourceFile.renameTo(targetFile)) {
+                throw new IOException("Could not rename " + sourceFile + " to " + targetFile);
+            }
+        }
+    }
+
+    /**
+     * Brings the stored {@link CandidateSessionOutcome}s for the given {@link CandidateSession}
+     * into line with the given outcomes.
+     * <p>
+     * New outcomes are stored as copies, leaving the given outcomes untouched. This means that
+     * a failed write (whose transaction has rolled back) can safely be retried with the same
+     * outcomes, as persisting assigns IDs to the entities being persisted.
+     */
+    static void updateOutcomes(final OutcomeStore outcomeStore, final CandidateSession candidateSession,
+            final List<CandidateSessionOutcome> outcomes) {
+        final Map<String, CandidateSessionOutcome> existingOutcomeMap = new HashMap<String, CandidateSessionOutcome>();
+        for (final CandidateSessionOutcome existingOutcome : outcomeStore.getForSession(candidateSession)) {
+            existingOutcomeMap.put(existingOutcome.getOutcomeIdentifier(), existingOutcome);
+        }
+        for (final CandidateSessionOutcome outcome : outcomes) {
+            final CandidateSessionOutcome existingOutcome = existingOutcomeMap.remove(outcome.getOutcomeIdentifier());
+            if (existingOutcome==null) {
+                outcomeStore.persist(copyOutcome(outcome));
+            }
+            else if (existingOutcome.getBaseType()!=outcome.getBaseType()
+                    || existingOutcome.getCardinality()!=outcome.getCardinality()) {
+                outcomeStore.remove(existingOutcome);
+                outcomeStore.persist(copyOutcome(outcome));
+            }
+            else if (!existingOutcome.getStringValue().equals(outcome.getStringValue())) {
+                /* (Existing outcome is managed, so this will be written out on commit) */
+                existingOutcome.setStringValue(outcome.getStringValue());
+            }
+        }
+        for (final CandidateSessionOutcome staleOutcome : existingOutcomeMap.values()) {
+            outcomeStore.remove(staleOutcome);
+        }
+    }
+
+    private static CandidateSessionOutcome copyOutcome(final CandidateSessionOutcome outcome) {
+        final CandidateSessionOutcome result = new CandidateSessionOutcome();
+        result.setCandidateSession(outcome.getCandidateSession());
+        result.setOutcomeIdentifier(outcome.getOutcomeIdentifier());
+        result.setBaseType(outcome.getBaseType());
+        result.setCardinality(outcome.getCardinality());
+        result.setStringValue(outcome.getStringValue());
+        return result;
+    }
+
+    //-------------------------------------------------
+
+    /**
+     * Reads and writes the stored {@link CandidateSessionOutcome}s. (This is separated out
+     * from {@link CandidateSessionOutcomeDao} to make {@link #updateOutcomes(OutcomeStore, CandidateSession, List)}
+     * testable.)
+     */
+    interface OutcomeStore {
+
+        List<CandidateSessionOutcome> getForSession(CandidateSession candidateSession);
+
+        void persist(CandidateSessionOutcome outcome);
+
+        void remove(CandidateSessionOutcome outcome);
+    }
+
+    /**
+     * Encapsulates a result waiting to be written.
+     */
+    private static final class PendingResult {
+
+        private final CandidateSession candidateSession;
+        private final Long deliveryId;
+        private final QtiNode resultNode;
+        private final List<CandidateSessionOutcome> outcomes;
+
+        public PendingResult(final CandidateSession candidateSession, final Long deliveryId,
+                final QtiNode resultNode, final List<CandidateSessionOutcome> outcomes) {
+            this.candidateSession = candidateSession;
+            this.deliveryId = deliveryId;
+            this.resultNode = resultNode;
+            this.outcomes = outcomes;
+        }
+    }
+}
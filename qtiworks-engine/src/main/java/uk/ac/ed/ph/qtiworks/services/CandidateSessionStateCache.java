@@ -0,0 +1,238 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.qtiworks.services;
+
+import uk.ac.ed.ph.qtiworks.config.beans.QtiWorksDeploymentSettings;
+import uk.ac.ed.ph.qtiworks.domain.entities.CandidateEvent;
+import uk.ac.ed.ph.qtiworks.domain.entities.CandidateSession;
+
+import uk.ac.ed.ph.jqtiplus.internal.util.Assert;
+import uk.ac.ed.ph.jqtiplus.internal.util.ObjectUtilities;
+import uk.ac.ed.ph.jqtiplus.state.ItemSessionState;
+import uk.ac.ed.ph.jqtiplus.state.TestSessionState;
+
+import java.util.Date;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Keeps the live {@link ItemSessionState} or {@link TestSessionState} for recently active
+ * {@link CandidateSession}s in memory, so that consecutive requests within the same session
+ * don't need to reload and unmarshal the state stored for its most recent {@link CandidateEvent}.
+ * <p>
+ * This is write-through: state is only cached here once it has been stored, and each cached
+ * state is tagged with the ID of the {@link CandidateEvent} it was stored for. A cached state is
+ * only used if it was stored for the {@link CandidateEvent} the caller expects, which should be
+ * the most recent one in the session. This keeps things correct if the same session is
+ * accessed via more than one node without sticky sessions.
+ * <p>
+ * State Objects are mutable, so they are <em>checked out</em> of the cache when used and must
+ * be checked back in afterwards (which happens automatically when new state is stored). This
+ * ensures that a state Object is only used by one Thread at a time, and that state left in an
+ * unknown condition after a failure is never reused.
+ * <p>
+ * Eviction is by number of sessions and idle time, as configured in
+ * {@link QtiWorksDeploymentSettings}.
+ * <p>
+ * Usage: an instance of this class is safe to use concurrently by multiple threads.
+ *
+ * @see CandidateDataService
+ *
+ * @author David McKain
+ */
+@Service
+public class CandidateSessionStateCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(CandidateSessionStateCache.class);
+
+    @Resource
+    private QtiWorksDeploymentSettings qtiWorksDeploymentSettings;
+
+    /** Cached state, keyed on {@link CandidateSession} ID. Null if caching is disabled */
+    private Cache<Long, CacheEntry> cache;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        final int maxSize = qtiWorksDeploymentSettings.getSessionStateCacheMaxSize();
+        final int idleExpiry = qtiWorksDeploymentSettings.getSessionStateCacheIdleExpiry();
+        if (maxSize > 0) {
+            final CacheBuilder<Object, Object> cacheBuilder = CacheBuilder.newBuilder().maximumSize(maxSize);
+            if (idleExpiry > 0) {
+                cacheBuilder.expireAfterAccess(idleExpiry, TimeUnit.MINUTES);
+            }
+            this.cache = cacheBuilder.build();
+        }
+        logger.info("Created session state cache with max size {} and idle expiry {} mins",
+                Integer.valueOf(maxSize), Integer.valueOf(idleExpiry));
+    }
+
+    /**
+     * Checks out the cached {@link ItemSessionState} stored for the given {@link CandidateEvent},
+     * returning null if there is no such state.
+     *
+     * @param candidateEvent {@link CandidateEvent} that the required state was stored for
+     * @param timestamp timestamp of the current request. Cached state that has been touched
+     *   after this time will not be used.
+     */
+    public ItemSessionState checkOutItemSessionState(final CandidateEvent candidateEvent, final Date timestamp) {
+        return checkOut(candidateEvent, timestamp, ItemSessionState.class);
+    }
+
+    /**
+     * Checks out the cached {@link TestSessionState} stored for the given {@link CandidateEvent},
+     * returning null if there is no such state.
+     *
+     * @param candidateEvent {@link CandidateEvent} that the required state was stored for
+     * @param timestamp timestamp of the current request. Cached state that has been touched
+     *   after this time will not be used.
+     */
+    public TestSessionState checkOutTestSessionState(final CandidateEvent candidateEvent, final Date timestamp) {
+        return checkOut(candidateEvent, timestamp, TestSessionState.class);
+    }
+
+    /**
+     * Checks the given state back in, recording it as the state stored for the given
+     * {@link CandidateEvent}. This is ignored if state for a more recent {@link CandidateEvent}
+     * in the same session has already been cached.
+     * <p>
+     * The caller must not use or modify the state after checking it in.
+     *
+     * @param candidateEvent {@link CandidateEvent} the state was stored for
+     * @param state {@link ItemSessionState} or {@link TestSessionState} to check in
+     * @param timestamp timestamp at which the state was last touched
+     */
+    public void checkIn(final CandidateEvent candidateEvent, final Object state, final Date timestamp) {
+        Assert.notNull(candidateEvent, "candidateEvent");
+        Assert.notNull(state, "state");
+        Assert.notNull(timestamp, "timestamp");
+        if (cache==null) {
+            return;
+        }
+        final Long sessionId = candidateEvent.getCandidateSession().getId();
+        final CacheEntry newEntry = new CacheEntry(candidateEvent.getId().longValue(), state, timestamp.getTime());
+        final ConcurrentMap<Long, CacheEntry> cacheMap = cache.asMap();
+        while (true) {
+            final CacheEntry existingEntry = cacheMap.get(sessionId);
+            if (existingEntry==null) {
+                if (cacheMap.putIfAbsent(sessionId, newEntry)==null) {
+                    return;
+                }
+            }
+            else if (existingEntry.eventId > newEntry.eventId) {
+                return;
+            }
+            else if (cacheMap.replace(sessionId, existingEntry, newEntry)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Removes any state cached for the given {@link CandidateSession}.
+     */
+    public void evict(final CandidateSession candidateSession) {
+        Assert.notNull(candidateSession, "candidateSession");
+        if (cache!=null) {
+            cache.invalidate(candidateSession.getId());
+        }
+    }
+
+    private <E> E checkOut(final CandidateEvent candidateEvent, final Date timestamp, final Class<E> stateClass) {
+        Assert.notNull(candidateEvent, "candidateEvent");
+        Assert.notNull(timestamp, "timestamp");
+        if (cache==null) {
+            return null;
+        }
+        final Long sessionId = candidateEvent.getCandidateSession().getId();
+        final CacheEntry entry = cache.getIfPresent(sessionId);
+        if (entry!=null && entry.eventId==candidateEvent.getId().longValue()
+                && entry.timestamp <= timestamp.getTime()
+                && stateClass.isInstance(entry.state)
+                && cache.asMap().remove(sessionId, entry)) {
+            hitCount.incrementAndGet();
+            return stateClass.cast(entry.state);
+        }
+        missCount.incrementAndGet();
+        return null;
+    }
+
+    //--------------------------------------------------------------------------
+    // Reporting
+
+    public long getCacheUsage() {
+        return cache!=null ? cache.size() : 0L;
+    }
+
+    public long getCacheHitCount() {
+        return hitCount.get();
+    }
+
+    public long getCacheMissCount() {
+        return missCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return ObjectUtilities.beanToString(this);
+    }
+
+    //--------------------------------------------------------------------------
+
+    private static final class CacheEntry {
+
+        final long eventId;
+        final Object state;
+        final long timestamp;
+
+        CacheEntry(final long eventId, final Object state, final long timestamp) {
+            this.eventId = eventId;
+            this.state = state;
+            this.timestamp = timestamp;
+        }
+    }
+}
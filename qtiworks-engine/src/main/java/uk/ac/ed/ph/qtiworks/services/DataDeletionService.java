@@ -105,6 +105,12 @@ public class DataDeletionService {
     @Resource
     private FilespaceManager filespaceManager;
 
+    @Resource
+    private CandidateResultWriter candidateResultWriter;
+
+    @Resource
+    private RenderedPageCache renderedPageCache;
+
     @Resource
     private AssessmentObjectManagementService assessmentObjectManagementService;
 
@@ -169,6 +175,10 @@ public class DataDeletionService {
         Assert.notNull(candidateSession, "candidateSession");
         logger.info("Deleting candidate session {}", candidateSession.getId());
 
+        /* Make sure no results are written after we've deleted them */
+        candidateResultWriter.discard(candidateSession);
+        renderedPageCache.evict(candidateSession);
+
         /* Delete candidate file uploads & stored state information */
         if (!filespaceManager.deleteCandidateUploads(candidateSession)) {
             logger.error("Failed to delete upload folder for CandidateSession {}", candidateSession.getId());
@@ -207,6 +217,9 @@ public class DataDeletionService {
         Assert.notNull(delivery, "delivery");
         logger.info("Deleting candidate sessions for Delivery {}", delivery.getId());
 
+        /* Make sure no results are written after we've deleted them */
+        candidateResultWriter.discard(delivery);
+
         /* Delete candidate uploads & stored state information */
         if (delivery.getAssessment() != null) {
             if (!filespaceManager.deleteCandidateUploads(delivery)) {
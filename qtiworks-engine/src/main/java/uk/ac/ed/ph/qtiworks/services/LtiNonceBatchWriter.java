@@ -0,0 +1,166 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.qtiworks.services;
+
+import uk.ac.ed.ph.qtiworks.domain.entities.LtiNonce;
+
+import uk.ac.ed.ph.jqtiplus.internal.util.Assert;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Queues up new {@link LtiNonce}s and saves them in batches to a {@link NonceStore}.
+ * <p>
+ * Each batch is saved in one go. If that fails, perhaps because another server has saved one of
+ * the same nonces in the meantime, each nonce in the batch is saved on its own instead, skipping
+ * any that turn out to have been saved already. If that fails too then any nonces not yet saved
+ * are put back on the queue to be tried again next time, so nonces are never lost.
+ * <p>
+ * {@link LtiOauthValidationService} uses this to save nonces in the database, with each save
+ * done in its own transaction.
+ * <p>
+ * Usage: an instance of this class is safe to use concurrently by multiple threads,
+ * though only one thread should call {@link #persistPending()} at a time.
+ *
+ * @see LtiOauthValidationService
+ *
+ * @author David McKain
+ */
+public final class LtiNonceBatchWriter {
+
+    private static final Logger logger = LoggerFactory.getLogger(LtiNonceBatchWriter.class);
+
+    /**
+     * Callback interface for actually saving nonces. Each method should succeed or fail as a whole.
+     */
+    public interface NonceStore {
+
+        /**
+         * Saves the given nonces, skipping any that have already been saved.
+         *
+         * @return number of nonces saved
+         */
+        int saveNew(List<LtiNonce> ltiNonces);
+
+        /**
+         * Saves the given nonce if it has not already been saved.
+         *
+         * @return true if saved, false if it had already been saved
+         */
+        boolean saveIfAbsent(LtiNonce ltiNonce);
+
+    }
+
+    private final NonceStore nonceStore;
+    private final int batchSize;
+    private final Queue<LtiNonce> pendingNonces;
+
+    public LtiNonceBatchWriter(final NonceStore nonceStore, final int batchSize) {
+        Assert.notNull(nonceStore, "nonceStore");
+        if (batchSize<1) {
+            throw new IllegalArgumentException("batchSize must be positive");
+        }
+        this.nonceStore = nonceStore;
+        this.batchSize = batchSize;
+        this.pendingNonces = new ConcurrentLinkedQueue<LtiNonce>();
+    }
+
+    /** Queues up the given nonce to be saved */
+    public void add(final LtiNonce ltiNonce) {
+        Assert.notNull(ltiNonce, "ltiNonce");
+        pendingNonces.add(ltiNonce);
+    }
+
+    /** Returns the number of nonces waiting to be saved */
+    public int getPendingCount() {
+        return pendingNonces.size();
+    }
+
+    /**
+     * Saves all nonces waiting to be saved. If this fails, any nonces not yet saved are
+     * put back on the queue and the failure is propagated.
+     *
+     * @return number of nonces saved
+     */
+    public int persistPending() {
+        int persistedCount = 0;
+        while (true) {
+            /* Take the next batch of nonces */
+            final List<LtiNonce> batch = new ArrayList<LtiNonce>();
+            LtiNonce ltiNonce;
+            while (batch.size() < batchSize && (ltiNonce = pendingNonces.poll())!=null) {
+                batch.add(ltiNonce);
+            }
+            if (batch.isEmpty()) {
+                break;
+            }
+            persistedCount += persistBatch(batch);
+        }
+        return persistedCount;
+    }
+
+    private int persistBatch(final List<LtiNonce> batch) {
+        try {
+            return nonceStore.saveNew(batch);
+        }
+        catch (final RuntimeException e) {
+            logger.debug("Saving batch of {} LTI nonces failed, so saving each separately", batch.size(), e);
+        }
+        int persistedCount = 0;
+        for (int i=0; i<batch.size(); i++) {
+            final LtiNonce ltiNonce = batch.get(i);
+            try {
+                if (nonceStore.saveIfAbsent(ltiNonce)) {
+                    persistedCount++;
+                }
+                else {
+                    logger.warn("LTI nonce {} for consumer key {} was used on more than one server",
+                            ltiNonce.getNonce(), ltiNonce.getConsumerKey());
+                }
+            }
+            catch (final RuntimeException e) {
+                /* Put back whatever we haven't saved, so that we can try again later */
+                pendingNonces.addAll(batch.subList(i, batch.size()));
+                throw e;
+            }
+        }
+        return persistedCount;
+    }
+}
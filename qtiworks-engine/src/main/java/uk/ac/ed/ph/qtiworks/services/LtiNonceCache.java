@@ -0,0 +1,207 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.qtiworks.services;
+
+import uk.ac.ed.ph.jqtiplus.internal.util.Assert;
+import uk.ac.ed.ph.jqtiplus.internal.util.ObjectUtilities;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Records the OAuth nonces used by LTI launches in memory, so that replayed launches can be
+ * rejected without consulting the database.
+ * <p>
+ * A nonce is unique for its consumer key, as with the <code>lti_nonces</code> table. Nonces
+ * are held in buckets according to their message timestamp, each spanning the maximum
+ * permitted timestamp age. Once every timestamp in a bucket has become too old to be accepted,
+ * the whole bucket is dropped. Only a handful of buckets are live at once, so checking a
+ * nonce costs a few hash lookups.
+ * <p>
+ * Callers must reject messages whose timestamps are outside the permitted age before
+ * calling {@link #record(String, String, long, long)}. Nonces with timestamps that are older
+ * than the buckets being kept are treated as having already been used.
+ * <p>
+ * This class knows nothing about the entity model, so can be used (and tested) standalone.
+ * {@link LtiOauthValidationService} uses this to check the nonces of incoming LTI launches.
+ * <p>
+ * Usage: an instance of this class is safe to use concurrently by multiple threads.
+ *
+ * @see LtiOauthValidationService
+ *
+ * @author David McKain
+ */
+public final class LtiNonceCache {
+
+    /** Extra leeway (in ms) allowed for rounding when checking whether a bucket has expired */
+    private static final long EXPIRY_LEEWAY = 1000L;
+
+    /** Width (in ms) of each bucket. This is also the maximum permitted timestamp age */
+    private final long bucketWidth;
+
+    /** Nonces recorded in each live bucket, keyed on bucket index */
+    private final ConcurrentMap<Long, Set<String>> bucketMap;
+
+    /**
+     * Creates a new cache.
+     *
+     * @param maxTimestampAge maximum permitted age (in ms) of an OAuth message timestamp,
+     *   either side of the current time.
+     */
+    public LtiNonceCache(final long maxTimestampAge) {
+        if (maxTimestampAge<1L) {
+            throw new IllegalArgumentException("maxTimestampAge must be positive");
+        }
+        this.bucketWidth = maxTimestampAge;
+        this.bucketMap = new ConcurrentHashMap<Long, Set<String>>();
+    }
+
+    /**
+     * Records that the given nonce has been used by the given consumer key.
+     *
+     * @param consumerKey consumer key of the OAuth message, which must not be null
+     * @param nonce nonce of the OAuth message, which must not be null
+     * @param messageTimestamp timestamp of the OAuth message (in ms)
+     * @param currentTimestamp current time (in ms)
+     *
+     * @return true if the nonce was new and has now been recorded, false if it has been used before
+     *   (or is too old to check)
+     */
+    public boolean record(final String consumerKey, final String nonce, final long messageTimestamp,
+            final long currentTimestamp) {
+        Assert.notNull(consumerKey, "consumerKey");
+        Assert.notNull(nonce, "nonce");
+        purge(currentTimestamp);
+
+        final long bucketIndex = getBucketIndex(messageTimestamp);
+        if (isBucketExpired(bucketIndex, currentTimestamp)) {
+            return false;
+        }
+
+        /* Add to the bucket for this timestamp. This rejects replays having the same timestamp */
+        final String key = createKey(consumerKey, nonce);
+        if (!obtainBucket(bucketIndex).add(key)) {
+            return false;
+        }
+
+        /* Reject if this nonce has been used in any other live bucket. (If two messages using
+         * the same nonce in different buckets arrive at once then we might reject both, which
+         * is safe.)
+         */
+        for (final Entry<Long, Set<String>> entry : bucketMap.entrySet()) {
+            if (entry.getKey().longValue()!=bucketIndex && entry.getValue().contains(key)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Drops any buckets whose nonces are too old to be used again.
+     *
+     * @param currentTimestamp current time (in ms)
+     *
+     * @return number of nonces dropped
+     */
+    public int purge(final long currentTimestamp) {
+        int droppedCount = 0;
+        final Iterator<Entry<Long, Set<String>>> iterator = bucketMap.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Entry<Long, Set<String>> entry = iterator.next();
+            if (isBucketExpired(entry.getKey().longValue(), currentTimestamp)) {
+                droppedCount += entry.getValue().size();
+                iterator.remove();
+            }
+        }
+        return droppedCount;
+    }
+
+    /** Returns the number of nonces currently recorded */
+    public int size() {
+        int result = 0;
+        for (final Set<String> bucket : bucketMap.values()) {
+            result += bucket.size();
+        }
+        return result;
+    }
+
+    /** Returns the number of buckets currently being kept */
+    public int getBucketCount() {
+        return bucketMap.size();
+    }
+
+    //-------------------------------------------------
+
+    private long getBucketIndex(final long timestamp) {
+        /* (Round down for negative timestamps too, so that buckets never overlap) */
+        return timestamp>=0L ? timestamp / bucketWidth : -1L - (-1L - timestamp) / bucketWidth;
+    }
+
+    /**
+     * A bucket expires once its newest possible timestamp is older than the maximum timestamp age.
+     * Note that once a bucket has expired it stays expired, so nonces can't be lost by recording
+     * them in a bucket that is being dropped.
+     */
+    private boolean isBucketExpired(final long bucketIndex, final long currentTimestamp) {
+        final long newestTimestamp = (bucketIndex + 1) * bucketWidth - 1;
+        return newestTimestamp + bucketWidth + EXPIRY_LEEWAY < currentTimestamp;
+    }
+
+    private Set<String> obtainBucket(final long bucketIndex) {
+        final Long bucketKey = Long.valueOf(bucketIndex);
+        Set<String> bucket = bucketMap.get(bucketKey);
+        if (bucket==null) {
+            final Set<String> newBucket = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+            bucket = bucketMap.putIfAbsent(bucketKey, newBucket);
+            if (bucket==null) {
+                bucket = newBucket;
+            }
+        }
+        return bucket;
+    }
+
+    /** Creates an unambiguous key for the given (consumerKey, nonce) pair */
+    private static String createKey(final String consumerKey, final String nonce) {
+        return consumerKey.length() + ":" + consumerKey + nonce;
+    }
+
+    @Override
+    public String toString() {
+        return ObjectUtilities.beanToString(this);
+    }
+}
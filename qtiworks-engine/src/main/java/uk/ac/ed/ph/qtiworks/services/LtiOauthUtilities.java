@@ -60,6 +60,7 @@ import net.oauth.ParameterStyle;
 import net.oauth.client.OAuthClient;
 import net.oauth.client.OAuthResponseMessage;
 import net.oauth.client.httpclient4.HttpClient4;
+import net.oauth.http.HttpClient;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -164,6 +165,21 @@ public final class LtiOauthUtilities {
      * @throws QtiWorksLogicException
      */
     public static boolean sendLisResultMessage(final OAuthMessage lisResultMessage) {
+        return sendLisResultMessage(lisResultMessage, 0);
+    }
+
+    /**
+     * Attempts to send the given LIS result message
+     * (constructed by {@link #createLisResultMessage(String, String, String, String, double)}
+     * to the corresponding LIS outcome service, giving up if the outcome service doesn't
+     * accept the connection or respond within the given time.
+     *
+     * @param lisResultMessage LIS result message to be send to the outcome service
+     * @param timeout connect and read timeout (in ms), 0 to use the HTTP client's defaults
+     *
+     * @throws QtiWorksLogicException
+     */
+    public static boolean sendLisResultMessage(final OAuthMessage lisResultMessage, final int timeout) {
         Assert.notNull(lisResultMessage, "lisResultMessage");
 
         /* Send message to TC result service endpoint */
@@ -172,6 +188,10 @@ public final class LtiOauthUtilities {
             logger.debug("Attempting to send OAuth message {}", lisResultMessage);
             final HttpClient4 httpClient4 = new HttpClient4();
             final OAuthClient client = new OAuthClient(httpClient4);
+            if (timeout > 0) {
+                client.getHttpParameters().put(HttpClient.CONNECT_TIMEOUT, Integer.valueOf(timeout));
+                client.getHttpParameters().put(HttpClient.READ_TIMEOUT, Integer.valueOf(timeout));
+            }
             oauthResponseMessage = client.access(lisResultMessage, ParameterStyle.AUTHORIZATION_HEADER);
         }
         catch (final IOException e) {
@@ -33,6 +33,7 @@
  */
 package uk.ac.ed.ph.qtiworks.services;
 
+import uk.ac.ed.ph.qtiworks.config.beans.QtiWorksDeploymentSettings;
 import uk.ac.ed.ph.qtiworks.domain.DomainConstants;
 import uk.ac.ed.ph.qtiworks.domain.entities.LtiNonce;
 import uk.ac.ed.ph.qtiworks.services.dao.LtiNonceDao;
@@ -47,9 +48,12 @@ import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 
 import net.oauth.OAuth;
@@ -63,15 +67,26 @@ import net.oauth.OAuthValidator;
 import net.oauth.SimpleOAuthValidator;
 import net.oauth.signature.OAuthSignatureMethod;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
 
 /**
  * Service for validating LTI OAuth requests.
  * <p>
- * This reuses part of {@link SimpleOAuthValidator}, but uses the domain model to store and
- * check nonces. (Some bits of code from {@link SimpleOAuthValidator} have been pasted into here
+ * This reuses part of {@link SimpleOAuthValidator}, but checks nonces using an in-memory
+ * {@link LtiNonceCache}. If enabled via {@link QtiWorksDeploymentSettings}, nonces are also
+ * checked against the domain model, and new nonces are saved to it in batches by
+ * {@link #persistPendingNonces()}, so that they are visible to other QTIWorks servers.
+ * (Some bits of code from {@link SimpleOAuthValidator} have been pasted into here
  * and modified, as it's not easy to partially delegate to that class.)
  * <p>
  * This is NO authorisation at this level.
@@ -84,9 +99,26 @@ import org.springframework.transaction.annotation.Transactional;
 @Transactional(propagation=Propagation.REQUIRED)
 public class LtiOauthValidationService {
 
+    private static final Logger logger = LoggerFactory.getLogger(LtiOauthValidationService.class);
+
+    /** Maximum number of nonces to save in the domain model at once */
+    private static final int NONCE_BATCH_SIZE = 100;
+
+    @Resource
+    private QtiWorksDeploymentSettings qtiWorksDeploymentSettings;
+
     @Resource
     private LtiNonceDao ltiNonceDao;
 
+    @Resource
+    private PlatformTransactionManager transactionManager;
+
+    /** Nonces used within the permitted timestamp window */
+    private LtiNonceCache ltiNonceCache;
+
+    /** Saves new nonces in the domain model (if enabled) */
+    private LtiNonceBatchWriter ltiNonceBatchWriter;
+
     /**
      * Names of parameters that may not appear twice in a valid message.
      * This limitation is specified by OAuth Core
@@ -99,6 +131,20 @@ public class LtiOauthValidationService {
         }
     ));
 
+    @PostConstruct
+    public void init() {
+        ltiNonceCache = new LtiNonceCache(DomainConstants.OAUTH_TIMESTAMP_MAX_AGE);
+
+        /* Save each batch of nonces in its own transaction */
+        final TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+        transactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        ltiNonceBatchWriter = new LtiNonceBatchWriter(new DatabaseNonceStore(transactionTemplate), NONCE_BATCH_SIZE);
+    }
+
+    public LtiNonceCache getLtiNonceCache() {
+        return ltiNonceCache;
+    }
+
     /**
      * Validates the provided OAuth message against the given consumerKey and consumerSecret
      * and checks the timestamp and nonce
@@ -130,24 +176,45 @@ public class LtiOauthValidationService {
         validateVersion(oauthMessage, 1.0, 1.0);
         validateSignature(oauthMessage, oauthAccessor);
         validateTimestamp(messageTimestampSecs, currentTimestampMillis, DomainConstants.OAUTH_TIMESTAMP_MAX_AGE);
-        validateNonce(oauthMessage, messageTimestampSecs);
+        validateNonce(oauthMessage, messageTimestampSecs, currentTimestampMillis);
     }
 
-    private void validateNonce(final OAuthMessage message, final long messageTimestampSecs) throws IOException, OAuthProblemException {
-        /* Make sure this (nonce, consumer_key) pair hasn't already been recorded */
+    private void validateNonce(final OAuthMessage message, final long messageTimestampSecs, final long currentTimestampMillis)
+            throws IOException, OAuthProblemException {
+        /* Make sure this (nonce, consumer_key) pair hasn't already been used, recording it if not */
+        message.requireParameters(OAuth.OAUTH_NONCE);
         final String nonce = message.getParameter(OAuth.OAUTH_NONCE);
         final String consumerKey = message.getConsumerKey();
-        final LtiNonce existingNonce = ltiNonceDao.findByNonceAndConsumerKey(nonce, consumerKey);
-        if (existingNonce!=null) {
+        if (!ltiNonceCache.record(consumerKey, nonce, 1000L * messageTimestampSecs, currentTimestampMillis)) {
             throw new OAuthProblemException(OAuth.Problems.NONCE_USED);
         }
+        if (qtiWorksDeploymentSettings.isLtiNoncePersistence()) {
+            /* Check nonces saved by other servers, then queue this one up to be saved */
+            final LtiNonce existingNonce = ltiNonceDao.findByNonceAndConsumerKey(nonce, consumerKey);
+            if (existingNonce!=null) {
+                throw new OAuthProblemException(OAuth.Problems.NONCE_USED);
+            }
+            final LtiNonce ltiNonce = new LtiNonce();
+            ltiNonce.setNonce(nonce);
+            ltiNonce.setConsumerKey(consumerKey);
+            ltiNonce.setMessageTimestamp(new Date(1000L * messageTimestampSecs));
+            ltiNonceBatchWriter.add(ltiNonce);
+        }
+    }
 
-        /* Record new nonce */
-        final LtiNonce ltiNonce = new LtiNonce();
-        ltiNonce.setNonce(nonce);
-        ltiNonce.setConsumerKey(consumerKey);
-        ltiNonce.setMessageTimestamp(new Date(1000L * messageTimestampSecs));
-        ltiNonceDao.persist(ltiNonce);
+    /**
+     * Saves any nonces waiting to be saved in the domain model. Each batch of nonces is saved in
+     * its own transaction. Nonces that have since been saved by another server are skipped. (That
+     * is a replay which got past the checks because it arrived at another server within the same
+     * batching period.) If saving fails, the nonces not yet saved stay queued for next time.
+     *
+     * @see LtiNonceBatchWriter
+     *
+     * @return number of nonces saved
+     */
+    @Transactional(propagation=Propagation.NOT_SUPPORTED)
+    public int persistPendingNonces() {
+        return ltiNonceBatchWriter.persistPending();
     }
 
     /**
@@ -228,4 +295,86 @@ public class LtiOauthValidationService {
         }
     }
 
+    //-------------------------------------------------
+
+    /**
+     * Saves {@link LtiNonce}s via the {@link LtiNonceDao}, with each call made in a new transaction.
+     * (Fresh copies of the nonces are saved each time, as a failed save may leave IDs set on the
+     * originals.)
+     */
+    private final class DatabaseNonceStore implements LtiNonceBatchWriter.NonceStore {
+
+        private final TransactionTemplate transactionTemplate;
+
+        public DatabaseNonceStore(final TransactionTemplate transactionTemplate) {
+            this.transactionTemplate = transactionTemplate;
+        }
+
+        @Override
+        public int saveNew(final List<LtiNonce> ltiNonces) {
+            return transactionTemplate.execute(new TransactionCallback<Integer>() {
+                @Override
+                public Integer doInTransaction(final TransactionStatus status) {
+                    /* Skip any that have already been saved */
+                    final Map<String, LtiNonce> nonceMap = new LinkedHashMap<String, LtiNonce>();
+                    final Set<String> nonces = new HashSet<String>();
+                    for (final LtiNonce ltiNonce : ltiNonces) {
+                        nonceMap.put(createNonceKey(ltiNonce), ltiNonce);
+                        nonces.add(ltiNonce.getNonce());
+                    }
+                    for (final LtiNonce existingNonce : ltiNonceDao.getForNonces(nonces)) {
+                        if (nonceMap.remove(createNonceKey(existingNonce))!=null) {
+                            logger.warn("LTI nonce {} for consumer key {} was used on more than one server",
+                                    existingNonce.getNonce(), existingNonce.getConsumerKey());
+                        }
+                    }
+
+                    /* Then save the rest */
+                    for (final LtiNonce ltiNonce : nonceMap.values()) {
+                        ltiNonceDao.persist(copyNonce(ltiNonce));
+                    }
+                    return Integer.valueOf(nonceMap.size());
+                }
+            }).intValue();
+        }
+
+        @Override
+        public boolean saveIfAbsent(final LtiNonce ltiNonce) {
+            try {
+                transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+                    @Override
+                    protected void doInTransactionWithoutResult(final TransactionStatus status) {
+                        ltiNonceDao.persist(copyNonce(ltiNonce));
+                        ltiNonceDao.flush();
+                    }
+                });
+                return true;
+            }
+            catch (final RuntimeException e) {
+                /* See whether this failed because another server has saved this nonce */
+                final Boolean alreadySaved = transactionTemplate.execute(new TransactionCallback<Boolean>() {
+                    @Override
+                    public Boolean doInTransaction(final TransactionStatus status) {
+                        return Boolean.valueOf(ltiNonceDao.findByNonceAndConsumerKey(ltiNonce.getNonce(), ltiNonce.getConsumerKey())!=null);
+                    }
+                });
+                if (alreadySaved.booleanValue()) {
+                    return false;
+                }
+                throw e;
+            }
+        }
+    }
+
+    private static LtiNonce copyNonce(final LtiNonce ltiNonce) {
+        final LtiNonce result = new LtiNonce();
+        result.setNonce(ltiNonce.getNonce());
+        result.setConsumerKey(ltiNonce.getConsumerKey());
+        result.setMessageTimestamp(ltiNonce.getMessageTimestamp());
+        return result;
+    }
+
+    private static String createNonceKey(final LtiNonce ltiNonce) {
+        return ltiNonce.getConsumerKey().length() + ":" + ltiNonce.getConsumerKey() + ltiNonce.getNonce();
+    }
 }
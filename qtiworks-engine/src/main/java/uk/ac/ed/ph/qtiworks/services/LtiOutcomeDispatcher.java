@@ -0,0 +1,358 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.qtiworks.services;
+
+import uk.ac.ed.ph.qtiworks.utils.NamedDaemonThreadFactory;
+
+import uk.ac.ed.ph.jqtiplus.internal.util.Assert;
+import uk.ac.ed.ph.jqtiplus.internal.util.ObjectUtilities;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.oauth.OAuthMessage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends batches of LIS results to LTI outcome services concurrently.
+ * <p>
+ * Results are grouped by the host of their outcome service URL, and at most a fixed number of
+ * results are sent to each host at any one time. Each host is drained by its own small set of
+ * tasks, so a slow or unresponsive Tool Consumer only ties up its own share of the sending
+ * Threads and does not hold up results being returned to other Tool Consumers.
+ * <p>
+ * This class knows nothing about the entity model, so can be used (and tested) standalone.
+ * {@link LtiOutcomeService} uses this to send {@link uk.ac.ed.ph.qtiworks.domain.entities.QueuedLtiOutcome}s.
+ * <p>
+ * Usage: an instance of this class is safe to use concurrently by multiple threads.
+ * Call {@link #shutdown()} once finished with it.
+ *
+ * @see LtiOutcomeService
+ *
+ * @author David McKain
+ */
+public final class LtiOutcomeDispatcher {
+
+    private static final Logger logger = LoggerFactory.getLogger(LtiOutcomeDispatcher.class);
+
+    private final ExecutorService executorService;
+    private final int maxConcurrentSendsPerHost;
+    private final int sendTimeout;
+
+    private final AtomicLong sendCount = new AtomicLong();
+    private final AtomicLong sendFailureCount = new AtomicLong();
+    private final AtomicLong totalSendLatency = new AtomicLong();
+    private final AtomicLong maxSendLatency = new AtomicLong();
+
+    /**
+     * Creates a new dispatcher.
+     *
+     * @param threadCount maximum number of results to send at once, over all hosts
+     * @param maxConcurrentSendsPerHost maximum number of results to send to the same host at once
+     * @param sendTimeout timeout (in ms) used both when connecting to an outcome service and
+     *   when waiting for its response.
+     */
+    public LtiOutcomeDispatcher(final int threadCount, final int maxConcurrentSendsPerHost, final int sendTimeout) {
+        if (threadCount<1) {
+            throw new IllegalArgumentException("threadCount must be positive");
+        }
+        if (maxConcurrentSendsPerHost<1) {
+            throw new IllegalArgumentException("maxConcurrentSendsPerHost must be positive");
+        }
+        if (sendTimeout<0) {
+            throw new IllegalArgumentException("sendTimeout must not be negative");
+        }
+        this.maxConcurrentSendsPerHost = maxConcurrentSendsPerHost;
+        this.sendTimeout = sendTimeout;
+        this.executorService = Executors.newFixedThreadPool(threadCount, new NamedDaemonThreadFactory("qtiworks-lti-outcome-sender-"));
+    }
+
+    /**
+     * Sends the given results, blocking until they have all been sent (or have failed).
+     *
+     * @return array indicating whether each of the given results was sent successfully.
+     *   This is in the same order as the results passed.
+     */
+    public boolean[] send(final List<LisResult> lisResults) {
+        Assert.notNull(lisResults, "lisResults");
+        final boolean[] successes = new boolean[lisResults.size()];
+        if (lisResults.isEmpty()) {
+            return successes;
+        }
+        final long startTimestamp = System.currentTimeMillis();
+
+        /* Group results by host */
+        final Map<String, Queue<Integer>> indexQueueByHost = new LinkedHashMap<String, Queue<Integer>>();
+        for (int i=0; i<lisResults.size(); i++) {
+            final String host = extractHost(lisResults.get(i).getLisOutcomeServiceUrl());
+            Queue<Integer> indexQueue = indexQueueByHost.get(host);
+            if (indexQueue==null) {
+                indexQueue = new ConcurrentLinkedQueue<Integer>();
+                indexQueueByHost.put(host, indexQueue);
+            }
+            indexQueue.add(Integer.valueOf(i));
+        }
+
+        /* Submit up to the allowed number of drainers for each host. We interleave these across
+         * hosts so that each host gets its first sender as soon as possible.
+         */
+        final AtomicBoolean abandoned = new AtomicBoolean();
+        final List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int round=0; round<maxConcurrentSendsPerHost; round++) {
+            for (final Queue<Integer> indexQueue : indexQueueByHost.values()) {
+                if (round < indexQueue.size()) {
+                    futures.add(executorService.submit(new HostDrainer(lisResults, indexQueue, successes, abandoned)));
+                }
+            }
+        }
+
+        /* Wait for every drainer to finish, so that nothing is still writing to the results once we
+         * return. If we get interrupted then we tell the drainers to stop taking new results and
+         * carry on waiting for the ones in progress, then restore the interrupt status at the end.
+         * (Any results left unsent will be reported as failures.)
+         */
+        boolean interrupted = false;
+        for (final Future<?> future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                }
+                catch (final InterruptedException e) {
+                    if (!interrupted) {
+                        logger.warn("Interrupted while waiting for LIS results to be sent, so abandoning any not yet sent");
+                        interrupted = true;
+                        abandoned.set(true);
+                    }
+                }
+                catch (final ExecutionException e) {
+                    logger.error("Unexpected Exception sending LIS results", e.getCause());
+                    break;
+                }
+                catch (final CancellationException e) {
+                    logger.warn("Sending of LIS results was cancelled");
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        logger.debug("Sent {} LIS result(s) to {} host(s) in {}ms", new Object[] {
+                lisResults.size(), indexQueueByHost.size(), System.currentTimeMillis() - startTimestamp });
+        return successes;
+    }
+
+    /**
+     * Shuts down the Threads used to send results. Any sends in progress will be interrupted,
+     * and any not yet started will be cancelled.
+     */
+    public void shutdown() {
+        for (final Runnable notStarted : executorService.shutdownNow()) {
+            if (notStarted instanceof Future) {
+                ((Future<?>) notStarted).cancel(false);
+            }
+        }
+    }
+
+    private boolean sendLisResult(final LisResult lisResult) {
+        final long startTimestamp = System.currentTimeMillis();
+        boolean successful;
+        try {
+            final OAuthMessage lisResultMessage = LtiOauthUtilities.createLisResultMessage(lisResult.getLisOutcomeServiceUrl(),
+                    lisResult.getLisResultSourcedid(), lisResult.getConsumerKey(), lisResult.getConsumerSecret(),
+                    lisResult.getNormalizedScore());
+            successful = LtiOauthUtilities.sendLisResultMessage(lisResultMessage, sendTimeout);
+        }
+        catch (final RuntimeException e) {
+            logger.warn("Unexpected Exception sending LIS result {}", lisResult, e);
+            successful = false;
+        }
+        recordSend(System.currentTimeMillis() - startTimestamp, successful);
+        return successful;
+    }
+
+    private void recordSend(final long latency, final boolean successful) {
+        sendCount.incrementAndGet();
+        if (!successful) {
+            sendFailureCount.incrementAndGet();
+        }
+        totalSendLatency.addAndGet(latency);
+        long currentMax;
+        do {
+            currentMax = maxSendLatency.get();
+        } while (latency > currentMax && !maxSendLatency.compareAndSet(currentMax, latency));
+    }
+
+    private static String extractHost(final String url) {
+        try {
+            final String authority = new URI(url).getAuthority();
+            return authority!=null ? authority.toLowerCase() : url;
+        }
+        catch (final Exception e) {
+            /* (Sending will fail later, so just treat as its own host for now) */
+            return url;
+        }
+    }
+
+    //--------------------------------------------------------------------------
+    // Reporting
+
+    /** Returns the total number of results this has tried to send */
+    public long getSendCount() {
+        return sendCount.get();
+    }
+
+    /** Returns the total number of results this failed to send */
+    public long getSendFailureCount() {
+        return sendFailureCount.get();
+    }
+
+    /** Returns the mean time (in ms) taken to send each result */
+    public long getMeanSendLatency() {
+        final long count = sendCount.get();
+        return count > 0 ? totalSendLatency.get() / count : 0L;
+    }
+
+    /** Returns the maximum time (in ms) taken to send a result */
+    public long getMaxSendLatency() {
+        return maxSendLatency.get();
+    }
+
+    @Override
+    public String toString() {
+        return ObjectUtilities.beanToString(this);
+    }
+
+    //--------------------------------------------------------------------------
+
+    /**
+     * Sends results to a single host, taking them from a shared queue until it is empty.
+     */
+    private final class HostDrainer implements Runnable {
+
+        private final List<LisResult> lisResults;
+        private final Queue<Integer> indexQueue;
+        private final boolean[] successes;
+        private final AtomicBoolean abandoned;
+
+        HostDrainer(final List<LisResult> lisResults, final Queue<Integer> indexQueue, final boolean[] successes,
+                final AtomicBoolean abandoned) {
+            this.lisResults = lisResults;
+            this.indexQueue = indexQueue;
+            this.successes = successes;
+            this.abandoned = abandoned;
+        }
+
+        @Override
+        public void run() {
+            Integer index;
+            while (!abandoned.get() && !Thread.currentThread().isInterrupted() && (index = indexQueue.poll())!=null) {
+                final int i = index.intValue();
+                successes[i] = sendLisResult(lisResults.get(i));
+            }
+        }
+    }
+
+    //--------------------------------------------------------------------------
+
+    /**
+     * Encapsulates a single LIS result to be sent to an outcome service.
+     */
+    public static final class LisResult {
+
+        private final String lisOutcomeServiceUrl;
+        private final String lisResultSourcedid;
+        private final String consumerKey;
+        private final String consumerSecret;
+        private final double normalizedScore;
+
+        public LisResult(final String lisOutcomeServiceUrl, final String lisResultSourcedid,
+                final String consumerKey, final String consumerSecret, final double normalizedScore) {
+            Assert.notNull(lisOutcomeServiceUrl, "lisOutcomeServiceUrl");
+            Assert.notNull(lisResultSourcedid, "lisResultSourcedid");
+            Assert.notNull(consumerKey, "consumerKey");
+            Assert.notNull(consumerSecret, "consumerSecret");
+            this.lisOutcomeServiceUrl = lisOutcomeServiceUrl;
+            this.lisResultSourcedid = lisResultSourcedid;
+            this.consumerKey = consumerKey;
+            this.consumerSecret = consumerSecret;
+            this.normalizedScore = normalizedScore;
+        }
+
+        public String getLisOutcomeServiceUrl() {
+            return lisOutcomeServiceUrl;
+        }
+
+        public String getLisResultSourcedid() {
+            return lisResultSourcedid;
+        }
+
+        public String getConsumerKey() {
+            return consumerKey;
+        }
+
+        public String getConsumerSecret() {
+            return consumerSecret;
+        }
+
+        public double getNormalizedScore() {
+            return normalizedScore;
+        }
+
+        @Override
+        public String toString() {
+            return getClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(this))
+                    + "(lisOutcomeServiceUrl=" + lisOutcomeServiceUrl
+                    + ",lisResultSourcedid=" + lisResultSourcedid
+                    + ",normalizedScore=" + normalizedScore
+                    + ")";
+        }
+    }
+}
@@ -43,24 +43,33 @@ import uk.ac.ed.ph.qtiworks.domain.entities.LtiUser;
 import uk.ac.ed.ph.qtiworks.domain.entities.QueuedLtiOutcome;
 import uk.ac.ed.ph.qtiworks.domain.entities.User;
 import uk.ac.ed.ph.qtiworks.domain.entities.UserType;
+import uk.ac.ed.ph.qtiworks.services.LtiOutcomeDispatcher.LisResult;
 import uk.ac.ed.ph.qtiworks.services.dao.CandidateSessionDao;
 import uk.ac.ed.ph.qtiworks.services.dao.QueuedLtiOutcomeDao;
 
 import uk.ac.ed.ph.jqtiplus.internal.util.Assert;
 import uk.ac.ed.ph.jqtiplus.internal.util.Pair;
 
+import java.util.ArrayList;
 import java.util.Date;
-import java.util.LinkedHashMap;
 import java.util.List;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
 
 /**
  * This service is responsible for sending outcome data back to LTI Tool Consumers.
@@ -81,6 +90,9 @@ public class LtiOutcomeService {
 
     private static final Logger logger = LoggerFactory.getLogger(LtiOutcomeService.class);
 
+    @Resource
+    private QtiWorksDeploymentSettings qtiWorksDeploymentSettings;
+
     @Resource
     private AuditLogger auditLogger;
 
@@ -90,6 +102,9 @@ public class LtiOutcomeService {
     @Resource
     private QueuedLtiOutcomeDao queuedLtiOutcomeDao;
 
+    @Resource
+    private PlatformTransactionManager transactionManager;
+
     /**
      * Delays (in minutes) to wait until next retry. We try often to start with, then
      * less frequently. Then we give up.
@@ -100,6 +115,31 @@ public class LtiOutcomeService {
             1, 5, 10, 60, 60, 60, 240, 240, 240
     };
 
+    /** Sends outcomes to LIS result services */
+    private LtiOutcomeDispatcher ltiOutcomeDispatcher;
+
+    /** Used to run each step of sending outcomes in its own transaction */
+    private TransactionTemplate transactionTemplate;
+
+    @PostConstruct
+    public void init() {
+        transactionTemplate = new TransactionTemplate(transactionManager);
+        transactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        ltiOutcomeDispatcher = new LtiOutcomeDispatcher(
+                Math.max(1, qtiWorksDeploymentSettings.getLtiOutcomeSendThreads()),
+                Math.max(1, qtiWorksDeploymentSettings.getLtiOutcomeMaxSendsPerHost()),
+                1000 * Math.max(0, qtiWorksDeploymentSettings.getLtiOutcomeSendTimeout()));
+    }
+
+    @PreDestroy
+    public void destroy() {
+        ltiOutcomeDispatcher.shutdown();
+    }
+
+    public LtiOutcomeDispatcher getLtiOutcomeDispatcher() {
+        return ltiOutcomeDispatcher;
+    }
+
     //-------------------------------------------------
 
     @Async
@@ -143,6 +183,10 @@ public class LtiOutcomeService {
      * The logic here will check for duplicate {@link QueuedLtiOutcome}s for a given
      * {@link CandidateSession}, only sending the most recent outcomes back.
      * <p>
+     * Outcomes are loaded in batches, with the outcomes in each batch being sent concurrently
+     * via the {@link LtiOutcomeDispatcher}. No transaction is held open while outcomes are being
+     * sent: each batch is loaded in one transaction and the results recorded in another.
+     * <p>
      * Usage note: This MUST be called serially.
      * <p>
      * @param ignoreRetryTimes set to true to ignore any retry times set after previous failures.
@@ -150,53 +194,117 @@ public class LtiOutcomeService {
      *
      * @see ScheduledService#sendNextQueuedLtiOutcomes()
      */
+    @Transactional(propagation=Propagation.NOT_SUPPORTED)
     public Pair<Integer, Integer> sendQueuedLtiOutcomes(final boolean ignoreRetryTimes) {
-        /* Look up all unsent outcomes */
-        final List<QueuedLtiOutcome> pendingOutcomes = queuedLtiOutcomeDao.getAllQueuedOutcomes();
-
         /* Eliminate any duplicate outcomes for the same CandidateSession, always taking the newest
          * outcome over any earlier ones. (Duplicate outcomes can happen when delivering items,
          * which can sometimes be re-opened by candidates.)
          */
-        final LinkedHashMap<Long, QueuedLtiOutcome> outcomesBySessionMap = new LinkedHashMap<Long, QueuedLtiOutcome>();
-        for (final QueuedLtiOutcome queuedLtiOutcome : pendingOutcomes) {
-            final CandidateSession candidateSession = queuedLtiOutcome.getCandidateSession();
-            final User candidate = candidateSession.getCandidate();
-            final Long candidateSessionId = candidateSession.getId();
-            final QueuedLtiOutcome earlierQueuedOutcomeForSession = outcomesBySessionMap.get(candidateSessionId);
-            if (earlierQueuedOutcomeForSession!=null) {
-                /* Earlier outcome is queued up, so remove this in preference for this later outcome */
-                candidateSession.setLisOutcomeReportingStatus(LisOutcomeReportingStatus.TC_RETURN_SCHEDULED);
-                candidateSessionDao.update(candidateSession);
-                queuedLtiOutcomeDao.remove(earlierQueuedOutcomeForSession);
-                auditLogger.recordEvent(candidate, "De-queued LTI outcome #" + earlierQueuedOutcomeForSession.getId()
-                        + " as a later one for the same CandidateSession is already queued up");
-                logger.info("De-queued LTI outcome #{} as a later one for the same CandidateSession is already queued up",
-                        earlierQueuedOutcomeForSession.getId());
+        transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+            @Override
+            protected void doInTransactionWithoutResult(final TransactionStatus status) {
+                removeSupersededOutcomes();
             }
-            outcomesBySessionMap.put(candidateSessionId, queuedLtiOutcome);
-        }
+        });
 
-        /* Now attempt to send remaining outcomes to relevant result services */
-        final int totalSendCount = outcomesBySessionMap.size();
+        /* Now page through the outcomes that are due, sending each batch to the relevant result services */
+        final int batchSize = Math.max(1, qtiWorksDeploymentSettings.getLtiOutcomeBatchSize());
+        final Date timestamp = ignoreRetryTimes ? null : new Date();
+        int totalSendCount = 0;
         int failedSendCount = 0;
-        final Date timestamp = new Date();
-        for (final QueuedLtiOutcome queuedLtiOutcome : outcomesBySessionMap.values()) {
-            final Date retryTime = queuedLtiOutcome.getRetryTime();
-            if (ignoreRetryTimes || retryTime==null || retryTime.before(timestamp)) {
-                final boolean successful = handleQueuedLtiOutcome(queuedLtiOutcome);
-                if (!successful) {
-                    failedSendCount++;
+        long lastQoid = 0L;
+        OutcomeBatch outcomeBatch;
+        do {
+            final long afterQoid = lastQoid;
+            outcomeBatch = transactionTemplate.execute(new TransactionCallback<OutcomeBatch>() {
+                @Override
+                public OutcomeBatch doInTransaction(final TransactionStatus status) {
+                    return prepareOutcomeBatch(afterQoid, timestamp, batchSize);
                 }
+            });
+            if (outcomeBatch.loadedCount==0) {
+                break;
             }
-        }
+            failedSendCount += sendOutcomeBatch(outcomeBatch);
+            totalSendCount += outcomeBatch.loadedCount;
+            lastQoid = outcomeBatch.lastQoid;
+        } while (outcomeBatch.loadedCount==batchSize);
+
         return new Pair<Integer, Integer>(Integer.valueOf(failedSendCount), Integer.valueOf(totalSendCount));
     }
 
-    private boolean handleQueuedLtiOutcome(final QueuedLtiOutcome queuedLtiOutcome) {
+    private void removeSupersededOutcomes() {
+        for (final QueuedLtiOutcome supersededOutcome : queuedLtiOutcomeDao.getSupersededOutcomes()) {
+            final CandidateSession candidateSession = supersededOutcome.getCandidateSession();
+            final User candidate = candidateSession.getCandidate();
+            candidateSession.setLisOutcomeReportingStatus(LisOutcomeReportingStatus.TC_RETURN_SCHEDULED);
+            candidateSessionDao.update(candidateSession);
+            queuedLtiOutcomeDao.remove(supersededOutcome);
+            auditLogger.recordEvent(candidate, "De-queued LTI outcome #" + supersededOutcome.getId()
+                    + " as a later one for the same CandidateSession is already queued up");
+            logger.info("De-queued LTI outcome #{} as a later one for the same CandidateSession is already queued up",
+                    supersededOutcome.getId());
+        }
+    }
+
+    /**
+     * Loads the next batch of {@link QueuedLtiOutcome}s that are due and works out what to send.
+     * Any outcomes that cannot be sent are recorded as failures straight away.
+     * (This touches the entity model, so must be called within a transaction.)
+     */
+    private OutcomeBatch prepareOutcomeBatch(final long afterQoid, final Date timestamp, final int batchSize) {
+        final List<QueuedLtiOutcome> dueOutcomes = queuedLtiOutcomeDao.getNextQueuedOutcomes(afterQoid, timestamp, batchSize);
+        final OutcomeBatch result = new OutcomeBatch(dueOutcomes.size());
+        for (final QueuedLtiOutcome queuedLtiOutcome : dueOutcomes) {
+            final LisResult lisResult = createLisResult(queuedLtiOutcome);
+            if (lisResult!=null) {
+                result.lisResults.add(lisResult);
+                result.qoids.add(queuedLtiOutcome.getId());
+            }
+            else {
+                handleQueuedLtiOutcome(queuedLtiOutcome, false);
+                result.unsendableCount++;
+            }
+            result.lastQoid = queuedLtiOutcome.getId().longValue();
+        }
+        return result;
+    }
+
+    /**
+     * Sends the given batch of outcomes (outside any transaction), then records the results in a
+     * new transaction, returning the number of failures.
+     */
+    private int sendOutcomeBatch(final OutcomeBatch outcomeBatch) {
+        /* Send results concurrently */
+        final boolean[] successes = ltiOutcomeDispatcher.send(outcomeBatch.lisResults);
+
+        /* Then record what happened */
+        return transactionTemplate.execute(new TransactionCallback<Integer>() {
+            @Override
+            public Integer doInTransaction(final TransactionStatus status) {
+                int failedSendCount = outcomeBatch.unsendableCount;
+                for (int i=0; i<successes.length; i++) {
+                    final Long qoid = outcomeBatch.qoids.get(i);
+                    final QueuedLtiOutcome queuedLtiOutcome = queuedLtiOutcomeDao.findById(qoid);
+                    if (queuedLtiOutcome==null) {
+                        /* (Removed while we were sending, e.g. by its Delivery being deleted) */
+                        logger.info("LTI outcome #{} was removed while being sent, so not recording result", qoid);
+                    }
+                    else {
+                        handleQueuedLtiOutcome(queuedLtiOutcome, successes[i]);
+                    }
+                    if (!successes[i]) {
+                        failedSendCount++;
+                    }
+                }
+                return Integer.valueOf(failedSendCount);
+            }
+        }).intValue();
+    }
+
+    private void handleQueuedLtiOutcome(final QueuedLtiOutcome queuedLtiOutcome, final boolean successful) {
         final CandidateSession candidateSession = queuedLtiOutcome.getCandidateSession();
         final User candidate = candidateSession.getCandidate();
-        final boolean successful = trySendQueuedLtiOutcome(queuedLtiOutcome);
         if (successful) {
             /* Outcome sent successfully, so remove from queue */
             candidateSession.setLisOutcomeReportingStatus(LisOutcomeReportingStatus.TC_RETURN_SUCCESS);
@@ -235,14 +343,13 @@ public class LtiOutcomeService {
                         new Object[] { failureCount+1, queuedLtiOutcome.getId(), candidateSession.getLisOutcomeServiceUrl() });
             }
         }
-        return successful;
     }
 
     /**
-     * Attempts to send the given {@link QueuedLtiOutcome} back to the corresponding LIS
-     * result service. Returns true if the result was successfully returned, false otherwise.
+     * Creates the {@link LisResult} to be sent back to the corresponding LIS result service for
+     * the given {@link QueuedLtiOutcome}. Returns null if the outcome cannot be sent.
      */
-    private boolean trySendQueuedLtiOutcome(final QueuedLtiOutcome queuedLtiOutcome) {
+    private LisResult createLisResult(final QueuedLtiOutcome queuedLtiOutcome) {
         /* Extract the information we need to send */
         final double normalizedScore = queuedLtiOutcome.getScore();
         final CandidateSession candidateSession = queuedLtiOutcome.getCandidateSession();
@@ -251,7 +358,7 @@ public class LtiOutcomeService {
         final User candidate = candidateSession.getCandidate();
         if (candidate.getUserType()!=UserType.LTI) {
             logger.warn("Candidate must be an LTI user - ignoring {}", queuedLtiOutcome);
-            return false;
+            return null;
         }
         final LtiUser ltiCandidate = (LtiUser) candidate;
         final String ltiConsumerKey, ltiConsumerSecret;
@@ -272,8 +379,37 @@ public class LtiOutcomeService {
                 throw new QtiWorksLogicException("Unexpected switch case " + ltiCandidate.getLtiLaunchType());
         }
 
-        /* Now send the result */
-        return LtiOauthUtilities.sendLisResult(lisOutcomeServiceUrl, lisResultSourcedid,
+        return new LisResult(lisOutcomeServiceUrl, lisResultSourcedid,
                 ltiConsumerKey, ltiConsumerSecret, normalizedScore);
     }
+
+    //-------------------------------------------------
+
+    /**
+     * Batch of {@link QueuedLtiOutcome}s loaded for sending. This only holds the IDs of the
+     * outcomes, as the entities themselves are not used outside the transaction that loaded them.
+     */
+    private static final class OutcomeBatch {
+
+        /** Number of outcomes loaded */
+        final int loadedCount;
+
+        /** Results to send, in the same order as {@link #qoids} */
+        final List<LisResult> lisResults;
+
+        /** IDs of outcomes being sent */
+        final List<Long> qoids;
+
+        /** Number of outcomes that could not be sent at all */
+        int unsendableCount;
+
+        /** ID of last outcome loaded, used to fetch the next batch */
+        long lastQoid;
+
+        OutcomeBatch(final int loadedCount) {
+            this.loadedCount = loadedCount;
+            this.lisResults = new ArrayList<LisResult>(loadedCount);
+            this.qoids = new ArrayList<Long>(loadedCount);
+        }
+    }
 }
@@ -71,6 +71,9 @@ public class MaintenanceJobService {
     @Resource
     private LtiOutcomeService ltiOutcomeService;
 
+    @Resource
+    private LtiOauthValidationService ltiOauthValidationService;
+
     //-------------------------------------------------
 
     /** Invokes routine maintenance jobs */
@@ -112,9 +115,11 @@ public class MaintenanceJobService {
 
     /**
      * Purges OAuth nonces for LTI launches that were created more than
-     * {@link DomainConstants#OAUTH_TIMESTAMP_MAX_AGE} milliseconds ago.
+     * {@link DomainConstants#OAUTH_TIMESTAMP_MAX_AGE} milliseconds ago,
+     * both from memory and from the database.
      */
     private void purgeOldNonces(final long currentTimestamp) {
+        ltiOauthValidationService.getLtiNonceCache().purge(currentTimestamp);
         final Date nonceThreshold = new Date(currentTimestamp - DomainConstants.OAUTH_TIMESTAMP_MAX_AGE);
         dataDeletionService.purgeOldNonces(nonceThreshold);
     }
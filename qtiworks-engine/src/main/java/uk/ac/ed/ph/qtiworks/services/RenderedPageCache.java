@@ -0,0 +1,363 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.qtiworks.services;
+
+import uk.ac.ed.ph.qtiworks.config.beans.QtiWorksDeploymentSettings;
+import uk.ac.ed.ph.qtiworks.domain.entities.CandidateEvent;
+import uk.ac.ed.ph.qtiworks.domain.entities.CandidateSession;
+
+import uk.ac.ed.ph.jqtiplus.QtiConstants;
+import uk.ac.ed.ph.jqtiplus.internal.util.Assert;
+import uk.ac.ed.ph.jqtiplus.internal.util.ObjectUtilities;
+import uk.ac.ed.ph.jqtiplus.node.QtiNode;
+import uk.ac.ed.ph.jqtiplus.node.content.variable.PrintedVariable;
+import uk.ac.ed.ph.jqtiplus.node.item.AssessmentItem;
+import uk.ac.ed.ph.jqtiplus.node.test.AssessmentTest;
+import uk.ac.ed.ph.jqtiplus.node.test.TimeLimits;
+import uk.ac.ed.ph.jqtiplus.resolution.RootNodeLookup;
+import uk.ac.ed.ph.jqtiplus.state.ItemProcessingMap;
+import uk.ac.ed.ph.jqtiplus.state.TestProcessingMap;
+import uk.ac.ed.ph.jqtiplus.utils.QueryUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.io.ByteStreams;
+
+/**
+ * Keeps the most recently rendered candidate page for each {@link CandidateSession} in memory
+ * (compressed), so that the page can be sent again if the candidate re-requests it without
+ * anything having happened in the session since.
+ * <p>
+ * Each cached page is tagged with the ID of the most recent {@link CandidateEvent} in the
+ * session when it was rendered, plus a fingerprint of everything else that affects the rendering
+ * (rendering options, assessment package and delivery settings). A cached page is only used if
+ * both of these still match. Pages are also evicted explicitly when new events are recorded and
+ * when sessions are terminated.
+ * <p>
+ * Renderings of assessments having time limits, or showing durations, change each time they are
+ * rendered so must not be cached here. Use {@link #isDurationSensitive(ItemProcessingMap)} and
+ * {@link #isDurationSensitive(TestProcessingMap)} to check this.
+ * <p>
+ * Eviction is by total (compressed) size and idle time, as configured in
+ * {@link QtiWorksDeploymentSettings}.
+ * <p>
+ * Usage: an instance of this class is safe to use concurrently by multiple threads.
+ *
+ * @author David McKain
+ */
+@Service
+public class RenderedPageCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(RenderedPageCache.class);
+
+    @Resource
+    private QtiWorksDeploymentSettings qtiWorksDeploymentSettings;
+
+    /** Cached pages, keyed on {@link CandidateSession} ID. Null if caching is disabled */
+    private Cache<Long, CachedPage> cache;
+
+    /** Records whether each processing map is duration-sensitive. (Weak keys, so compared by identity) */
+    private Cache<Object, Boolean> durationSensitivityCache;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        final int maxWeight = qtiWorksDeploymentSettings.getRenderedPageCacheMaxWeight();
+        final int idleExpiry = qtiWorksDeploymentSettings.getRenderedPageCacheIdleExpiry();
+        if (maxWeight > 0) {
+            final CacheBuilder<Long, CachedPage> cacheBuilder = CacheBuilder.newBuilder()
+                    .maximumWeight(maxWeight * 1024L * 1024L)
+                    .weigher(new Weigher<Long, CachedPage>() {
+                        @Override
+                        public int weigh(final Long key, final CachedPage value) {
+                            return value.getWeight();
+                        }
+                    });
+            if (idleExpiry > 0) {
+                cacheBuilder.expireAfterAccess(idleExpiry, TimeUnit.MINUTES);
+            }
+            this.cache = cacheBuilder.build();
+        }
+        this.durationSensitivityCache = CacheBuilder.newBuilder().weakKeys().build();
+        logger.info("Created rendered page cache with max weight {} MB and idle expiry {} mins",
+                Integer.valueOf(maxWeight), Integer.valueOf(idleExpiry));
+    }
+
+    public boolean isEnabled() {
+        return cache!=null;
+    }
+
+    /**
+     * Looks up the page cached for the given {@link CandidateEvent}, returning null if there is
+     * no such page or if it was rendered using a different fingerprint.
+     *
+     * @param candidateEvent most recent {@link CandidateEvent} in the session
+     * @param fingerprint fingerprint of everything else affecting the rendering
+     */
+    public CachedPage lookup(final CandidateEvent candidateEvent, final String fingerprint) {
+        Assert.notNull(candidateEvent, "candidateEvent");
+        Assert.notNull(fingerprint, "fingerprint");
+        if (cache==null) {
+            return null;
+        }
+        final CachedPage page = cache.getIfPresent(candidateEvent.getCandidateSession().getId());
+        if (page!=null && page.eventId==candidateEvent.getId().longValue() && page.fingerprint.equals(fingerprint)) {
+            hitCount.incrementAndGet();
+            return page;
+        }
+        missCount.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Stores the page rendered for the given {@link CandidateEvent}, read from the given
+     * {@link InputStream}. This is ignored if a page for a more recent {@link CandidateEvent}
+     * in the same session has already been cached.
+     *
+     * @param candidateEvent most recent {@link CandidateEvent} in the session when rendered
+     * @param fingerprint fingerprint of everything else affecting the rendering
+     * @param contentType content type of the page
+     * @param pageStream stream to read page data from. The caller should close this afterwards.
+     */
+    public void store(final CandidateEvent candidateEvent, final String fingerprint,
+            final String contentType, final InputStream pageStream) throws IOException {
+        Assert.notNull(candidateEvent, "candidateEvent");
+        Assert.notNull(fingerprint, "fingerprint");
+        Assert.notNull(contentType, "contentType");
+        Assert.notNull(pageStream, "pageStream");
+        if (cache==null) {
+            return;
+        }
+        final ByteArrayOutputStream compressedDataStream = new ByteArrayOutputStream();
+        final DeflaterOutputStream deflaterStream = new DeflaterOutputStream(compressedDataStream);
+        final long length = ByteStreams.copy(pageStream, deflaterStream);
+        deflaterStream.close();
+
+        final Long sessionId = candidateEvent.getCandidateSession().getId();
+        final CachedPage newPage = new CachedPage(candidateEvent.getId().longValue(), fingerprint,
+                contentType, compressedDataStream.toByteArray(), length);
+        final ConcurrentMap<Long, CachedPage> cacheMap = cache.asMap();
+        while (true) {
+            final CachedPage existingPage = cacheMap.get(sessionId);
+            if (existingPage==null) {
+                if (cacheMap.putIfAbsent(sessionId, newPage)==null) {
+                    return;
+                }
+            }
+            else if (existingPage.eventId > newPage.eventId) {
+                return;
+            }
+            else if (cacheMap.replace(sessionId, existingPage, newPage)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Removes any page cached for the given {@link CandidateSession}.
+     */
+    public void evict(final CandidateSession candidateSession) {
+        Assert.notNull(candidateSession, "candidateSession");
+        if (cache!=null) {
+            cache.invalidate(candidateSession.getId());
+        }
+    }
+
+    //--------------------------------------------------------------------------
+
+    /**
+     * Returns whether renderings of the given item may change over time, i.e. if it shows the
+     * value of the built-in <code>duration</code> variable.
+     */
+    public boolean isDurationSensitive(final ItemProcessingMap itemProcessingMap) {
+        Assert.notNull(itemProcessingMap, "itemProcessingMap");
+        Boolean result = durationSensitivityCache.getIfPresent(itemProcessingMap);
+        if (result==null) {
+            final RootNodeLookup<AssessmentItem> itemLookup = itemProcessingMap.getResolvedAssessmentItem().getItemLookup();
+            result = Boolean.valueOf(itemLookup.wasSuccessful()
+                    && showsDuration(Collections.singletonList(itemLookup.extractAssumingSuccessful())));
+            durationSensitivityCache.put(itemProcessingMap, result);
+        }
+        return result.booleanValue();
+    }
+
+    /**
+     * Returns whether renderings of the given test may change over time, i.e. if it has time
+     * limits, or if any of its items are duration-sensitive.
+     */
+    public boolean isDurationSensitive(final TestProcessingMap testProcessingMap) {
+        Assert.notNull(testProcessingMap, "testProcessingMap");
+        Boolean result = durationSensitivityCache.getIfPresent(testProcessingMap);
+        if (result==null) {
+            result = Boolean.valueOf(computeDurationSensitivity(testProcessingMap));
+            durationSensitivityCache.put(testProcessingMap, result);
+        }
+        return result.booleanValue();
+    }
+
+    private boolean computeDurationSensitivity(final TestProcessingMap testProcessingMap) {
+        final RootNodeLookup<AssessmentTest> testLookup = testProcessingMap.getResolvedAssessmentTest().getTestLookup();
+        if (testLookup.wasSuccessful()) {
+            final List<AssessmentTest> testNodes = Collections.singletonList(testLookup.extractAssumingSuccessful());
+            if (QueryUtils.hasDescendant(TimeLimits.class, testNodes) || showsDuration(testNodes)) {
+                return true;
+            }
+        }
+        for (final ItemProcessingMap itemProcessingMap : testProcessingMap.getItemProcessingMapMap().values()) {
+            if (itemProcessingMap!=null && isDurationSensitive(itemProcessingMap)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean showsDuration(final List<? extends QtiNode> nodes) {
+        for (final PrintedVariable printedVariable : QueryUtils.search(PrintedVariable.class, nodes)) {
+            if (QtiConstants.VARIABLE_DURATION_IDENTIFIER.equals(printedVariable.getIdentifier())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    //--------------------------------------------------------------------------
+    // Reporting
+
+    public long getCacheUsage() {
+        return cache!=null ? cache.size() : 0L;
+    }
+
+    public long getCacheMaxWeight() {
+        return qtiWorksDeploymentSettings.getRenderedPageCacheMaxWeight() * 1024L * 1024L;
+    }
+
+    /** Returns the total size of the (compressed) pages currently cached, in bytes */
+    public long getCacheWeight() {
+        long result = 0L;
+        if (cache!=null) {
+            for (final CachedPage page : cache.asMap().values()) {
+                result += page.getWeight();
+            }
+        }
+        return result;
+    }
+
+    /** Returns the total size of the pages currently cached when uncompressed, in bytes */
+    public long getCacheUncompressedWeight() {
+        long result = 0L;
+        if (cache!=null) {
+            for (final CachedPage page : cache.asMap().values()) {
+                result += page.getLength();
+            }
+        }
+        return result;
+    }
+
+    public long getCacheHitCount() {
+        return hitCount.get();
+    }
+
+    public long getCacheMissCount() {
+        return missCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return ObjectUtilities.beanToString(this);
+    }
+
+    //--------------------------------------------------------------------------
+
+    /**
+     * Encapsulates a cached rendered page.
+     */
+    public static final class CachedPage {
+
+        final long eventId;
+        final String fingerprint;
+        private final String contentType;
+        private final byte[] compressedData;
+        private final long length;
+
+        CachedPage(final long eventId, final String fingerprint, final String contentType,
+                final byte[] compressedData, final long length) {
+            this.eventId = eventId;
+            this.fingerprint = fingerprint;
+            this.contentType = contentType;
+            this.compressedData = compressedData;
+            this.length = length;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        /** Returns the (uncompressed) length of the page */
+        public long getLength() {
+            return length;
+        }
+
+        /** Returns the approximate memory used by this page */
+        int getWeight() {
+            return compressedData.length + 2 * fingerprint.length();
+        }
+
+        /** Returns a new {@link InputStream} for reading the (uncompressed) page data */
+        public InputStream openInputStream() {
+            return new InflaterInputStream(new ByteArrayInputStream(compressedData));
+        }
+    }
+}
@@ -34,6 +34,7 @@
 package uk.ac.ed.ph.qtiworks.services;
 
 import uk.ac.ed.ph.qtiworks.config.QtiWorksProfiles;
+import uk.ac.ed.ph.qtiworks.config.beans.QtiWorksDeploymentSettings;
 import uk.ac.ed.ph.qtiworks.domain.DomainConstants;
 
 import uk.ac.ed.ph.jqtiplus.internal.util.Pair;
@@ -61,6 +62,9 @@ public class ScheduledService {
 
     private static final Logger logger = LoggerFactory.getLogger(ScheduledService.class);
 
+    @Resource
+    private QtiWorksDeploymentSettings qtiWorksDeploymentSettings;
+
     @Resource
     private MaintenanceJobService maintenanceJobService;
 
@@ -70,6 +74,9 @@ public class ScheduledService {
     @Resource
     private LtiOutcomeService ltiOutcomeService;
 
+    @Resource
+    private LtiOauthValidationService ltiOauthValidationService;
+
     //-------------------------------------------------
 
     /**
@@ -96,5 +103,24 @@ public class ScheduledService {
         final int sendCount = result.getSecond().intValue();
         logger.debug("sendNextQueuedLtiOutcomes() completed in {}ms with {} failure(s) out of {} send(s)", duration,
                  failureCount, sendCount);
+        if (sendCount > 0) {
+            final LtiOutcomeDispatcher ltiOutcomeDispatcher = ltiOutcomeService.getLtiOutcomeDispatcher();
+            logger.info("Sent {} LTI outcome(s) in {}ms ({} outcomes/s) with {} failure(s). Overall mean send latency is {}ms, max {}ms",
+                    new Object[] { sendCount, duration, duration > 0 ? (1000L * sendCount) / duration : sendCount,
+                        failureCount, ltiOutcomeDispatcher.getMeanSendLatency(), ltiOutcomeDispatcher.getMaxSendLatency() });
+        }
+    }
+
+    /**
+     * Saves any new LTI nonces in the database, if this has been enabled.
+     */
+    @Scheduled(fixedDelay=5*DomainConstants.ONE_SECOND, initialDelay=5*DomainConstants.ONE_SECOND)
+    public void persistPendingLtiNonces() {
+        if (qtiWorksDeploymentSettings.isLtiNoncePersistence()) {
+            final int persistedCount = ltiOauthValidationService.persistPendingNonces();
+            if (persistedCount > 0) {
+                logger.debug("Saved {} LTI nonce(s)", persistedCount);
+            }
+        }
     }
 }
@@ -0,0 +1,110 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.qtiworks.services;
+
+import uk.ac.ed.ph.qtiworks.config.QtiWorksProfiles;
+import uk.ac.ed.ph.qtiworks.config.beans.QtiWorksDeploymentSettings;
+import uk.ac.ed.ph.qtiworks.rendering.AssessmentRenderer;
+import uk.ac.ed.ph.qtiworks.utils.NamedDaemonThreadFactory;
+
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Service;
+
+/**
+ * Precompiles the XSLT stylesheets used by the {@link AssessmentRenderer} in the background
+ * when the webapp starts up, so that the first candidates to arrive after a (re)deployment
+ * don't have to wait for this to happen.
+ * <p>
+ * This is NO authorisation at this level.
+ *
+ * @author David McKain
+ */
+@Service
+@Profile(QtiWorksProfiles.WEBAPP)
+public class StylesheetPrecompilationService {
+
+    private static final Logger logger = LoggerFactory.getLogger(StylesheetPrecompilationService.class);
+
+    @Resource
+    private QtiWorksDeploymentSettings qtiWorksDeploymentSettings;
+
+    @Resource
+    private AssessmentRenderer assessmentRenderer;
+
+    @PostConstruct
+    public void init() {
+        final int threadCount = qtiWorksDeploymentSettings.getStylesheetPrecompilationThreads();
+        if (threadCount <= 0) {
+            logger.info("Precompilation of rendering stylesheets is disabled");
+            return;
+        }
+        final List<URI> stylesheetUris = AssessmentRenderer.getStylesheetUris();
+        final ExecutorService executorService = Executors.newFixedThreadPool(Math.min(threadCount, stylesheetUris.size()),
+                new NamedDaemonThreadFactory("qtiworks-stylesheet-precompiler-"));
+        final long startTimestamp = System.currentTimeMillis();
+        final AtomicInteger remainingCount = new AtomicInteger(stylesheetUris.size());
+        for (final URI stylesheetUri : stylesheetUris) {
+            executorService.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        assessmentRenderer.precompileStylesheet(stylesheetUri);
+                        logger.debug("Precompiled rendering stylesheet {}", stylesheetUri);
+                    }
+                    catch (final RuntimeException e) {
+                        logger.warn("Failed to precompile rendering stylesheet " + stylesheetUri, e);
+                    }
+                    if (remainingCount.decrementAndGet()==0) {
+                        logger.info("Precompiled {} rendering stylesheets in {}ms", stylesheetUris.size(),
+                                System.currentTimeMillis() - startTimestamp);
+                    }
+                }
+            });
+        }
+
+        /* (Threads will finish once all stylesheets have been compiled) */
+        executorService.shutdown();
+    }
+}
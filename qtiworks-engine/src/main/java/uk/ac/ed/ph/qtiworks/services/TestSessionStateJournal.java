@@ -0,0 +1,833 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.qtiworks.services;
+
+import uk.ac.ed.ph.qtiworks.QtiWorksLogicException;
+import uk.ac.ed.ph.qtiworks.QtiWorksRuntimeException;
+import uk.ac.ed.ph.qtiworks.config.beans.QtiWorksDeploymentSettings;
+import uk.ac.ed.ph.qtiworks.domain.entities.CandidateEvent;
+import uk.ac.ed.ph.qtiworks.domain.entities.CandidateSession;
+import uk.ac.ed.ph.qtiworks.domain.entities.CandidateTestEventType;
+import uk.ac.ed.ph.qtiworks.services.domain.SessionStateFormat;
+
+import uk.ac.ed.ph.jqtiplus.internal.util.Assert;
+import uk.ac.ed.ph.jqtiplus.state.ItemSessionState;
+import uk.ac.ed.ph.jqtiplus.state.TestPlan;
+import uk.ac.ed.ph.jqtiplus.state.TestPlanNodeKey;
+import uk.ac.ed.ph.jqtiplus.state.TestSessionState;
+import uk.ac.ed.ph.jqtiplus.state.marshalling.ItemSessionStateBinaryMarshaller;
+import uk.ac.ed.ph.jqtiplus.state.marshalling.TestPlanBinaryMarshaller;
+import uk.ac.ed.ph.jqtiplus.state.marshalling.TestSessionStateBinaryMarshaller;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.zip.CRC32;
+
+import javax.annotation.Resource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.Striped;
+
+/**
+ * Stores the {@link TestSessionState}s of a {@link CandidateSession} in a single append-only
+ * journal file, rather than as a full snapshot per {@link CandidateEvent}.
+ * <p>
+ * Each {@link TestSessionState} is split into segments: the {@link TestPlan}, the test-level
+ * state and one segment per {@link ItemSessionState}. Each journal record (one per
+ * {@link CandidateEvent}) is either a full snapshot of all segments or a delta containing only
+ * the segments that have changed since the previous record. (For the most common events, only
+ * the items that can have been affected by the event are checked for changes.) A snapshot is
+ * written every {@link QtiWorksDeploymentSettings#getCandidateStateJournalSnapshotInterval()}
+ * records so that reconstructing the state for any {@link CandidateEvent} only needs to replay a
+ * bounded number of records. Each record also ends with its payload length, so that the most
+ * recent records can be found by reading back from the end of the journal, without reading the
+ * whole file. The journal is compacted once the session has terminated.
+ * <p>
+ * The journal is only written when the {@link SessionStateFormat#BINARY} format is selected.
+ * Existing journals can always be read back.
+ * <p>
+ * Usage: this is safe to use concurrently by multiple threads. Writes to the same journal are
+ * serialized.
+ *
+ * @see CandidateDataService
+ *
+ * @author David McKain
+ */
+@Service
+public class TestSessionStateJournal {
+
+    private static final Logger logger = LoggerFactory.getLogger(TestSessionStateJournal.class);
+
+    /** Name of the journal file within each candidate session state store */
+    public static final String JOURNAL_FILE_NAME = "testSessionStateJournal.bin";
+
+    private static final byte[] MAGIC = { 'Q', 'W', 'S', 'J' };
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_LENGTH = MAGIC.length + 1;
+
+    /** Record header: eventId (long), record type (byte), payload length (int), CRC of these and the payload (int) */
+    private static final int RECORD_HEADER_LENGTH = 8 + 1 + 4 + 4;
+
+    /** Length of the part of the record header covered by the CRC */
+    private static final int RECORD_HEADER_CRC_LENGTH = 8 + 1 + 4;
+
+    /** Record trailer: payload length again (int) */
+    private static final int RECORD_TRAILER_LENGTH = 4;
+
+    /** Used when reading the journal to request the most recent record */
+    private static final long LATEST_EVENT = -1L;
+
+    private static final byte RECORD_SNAPSHOT = 'S';
+    private static final byte RECORD_DELTA = 'D';
+
+    private static final String TEST_PLAN_SEGMENT = "P";
+    private static final String TEST_LEVEL_SEGMENT = "T";
+    private static final String ITEM_SEGMENT_PREFIX = "I:";
+
+    /** Maximum number of sessions for which we remember the end of the journal */
+    private static final int JOURNAL_TAIL_CACHE_SIZE = 1000;
+
+    @Resource
+    private QtiWorksDeploymentSettings qtiWorksDeploymentSettings;
+
+    @Resource
+    private FilespaceManager filespaceManager;
+
+    /** Remembers the end of each recently used journal, keyed on {@link CandidateSession} ID */
+    private final Cache<Long, JournalTail> journalTailCache;
+
+    /** Serializes writes to each journal */
+    private final Striped<Lock> journalLocks;
+
+    public TestSessionStateJournal() {
+        this.journalTailCache = CacheBuilder.newBuilder().maximumSize(JOURNAL_TAIL_CACHE_SIZE).build();
+        this.journalLocks = Striped.lock(64);
+    }
+
+    /**
+     * Returns whether new {@link TestSessionState}s should be written to the journal.
+     */
+    public boolean isEnabled() {
+        return qtiWorksDeploymentSettings.getCandidateSessionStateFormat()==SessionStateFormat.BINARY
+                && qtiWorksDeploymentSettings.getCandidateStateJournalSnapshotInterval() > 0;
+    }
+
+    /**
+     * Appends the given {@link TestSessionState} to the journal for the {@link CandidateSession}
+     * owning the given {@link CandidateEvent}.
+     */
+    public void appendTestSessionState(final CandidateEvent candidateEvent, final TestSessionState testSessionState) {
+        Assert.notNull(candidateEvent, "candidateEvent");
+        Assert.notNull(testSessionState, "testSessionState");
+        final CandidateSession candidateSession = candidateEvent.getCandidateSession();
+        final int snapshotInterval = Math.max(1, qtiWorksDeploymentSettings.getCandidateStateJournalSnapshotInterval());
+
+        final Lock lock = journalLocks.get(candidateSession.getId());
+        lock.lock();
+        try {
+            final File journalFile = getJournalFile(candidateSession);
+            final JournalTail tail = ensureJournalTail(candidateSession, journalFile);
+            final boolean isSnapshot = tail.segmentDigests.isEmpty() || tail.deltasSinceSnapshot + 1 >= snapshotInterval;
+            final Set<TestPlanNodeKey> touchedItemKeys = isSnapshot ? null
+                    : getTouchedItemKeys(candidateEvent, tail, testSessionState);
+            final Map<String, byte[]> segments = touchedItemKeys!=null
+                    ? createTouchedSegments(testSessionState, touchedItemKeys)
+                    : createSegments(testSessionState);
+            final Map<String, byte[]> segmentDigests = createSegmentDigests(segments);
+
+            final Map<String, byte[]> changedSegments;
+            final List<String> removedSegmentNames;
+            if (isSnapshot) {
+                changedSegments = segments;
+                removedSegmentNames = Collections.emptyList();
+            }
+            else {
+                changedSegments = new LinkedHashMap<String, byte[]>();
+                for (final Entry<String, byte[]> entry : segments.entrySet()) {
+                    final byte[] previousDigest = tail.segmentDigests.get(entry.getKey());
+                    if (previousDigest==null || !Arrays.equals(previousDigest, segmentDigests.get(entry.getKey()))) {
+                        changedSegments.put(entry.getKey(), entry.getValue());
+                    }
+                }
+                removedSegmentNames = new ArrayList<String>();
+                if (touchedItemKeys!=null) {
+                    /* Untouched segments are unchanged, so carry their digests forward */
+                    for (final Entry<String, byte[]> entry : tail.segmentDigests.entrySet()) {
+                        if (!segmentDigests.containsKey(entry.getKey())) {
+                            segmentDigests.put(entry.getKey(), entry.getValue());
+                        }
+                    }
+                }
+                else {
+                    for (final String previousSegmentName : tail.segmentDigests.keySet()) {
+                        if (!segments.containsKey(previousSegmentName)) {
+                            removedSegmentNames.add(previousSegmentName);
+                        }
+                    }
+                }
+            }
+
+            final ByteArrayOutputStream recordStream = new ByteArrayOutputStream();
+            if (tail.isEmpty()) {
+                writeJournalHeader(recordStream);
+            }
+            writeRecord(recordStream, candidateEvent.getId().longValue(),
+                    isSnapshot ? RECORD_SNAPSHOT : RECORD_DELTA,
+                    changedSegments, removedSegmentNames);
+            final byte[] recordBytes = recordStream.toByteArray();
+            appendToFile(journalFile, recordBytes);
+
+            journalTailCache.put(candidateSession.getId(), new JournalTail(tail.validLength + recordBytes.length,
+                    isSnapshot ? 0 : tail.deltasSinceSnapshot + 1,
+                    segmentDigests, testSessionState.getCurrentItemKey()));
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reconstructs the {@link TestSessionState} recorded for the given {@link CandidateEvent}
+     * from its journal, returning null if this has not been journaled.
+     */
+    public TestSessionState loadTestSessionState(final CandidateEvent candidateEvent) {
+        Assert.notNull(candidateEvent, "candidateEvent");
+        final File journalFile = getJournalFile(candidateEvent.getCandidateSession());
+        if (!journalFile.exists()) {
+            return null;
+        }
+        final long eventId = candidateEvent.getId().longValue();
+        JournalData journalData = readJournalTail(journalFile, eventId);
+        if (journalData==null) {
+            journalData = readJournal(journalFile);
+        }
+        final int recordIndex = journalData.findRecordIndex(eventId);
+        if (recordIndex < 0) {
+            return null;
+        }
+        return createTestSessionState(journalData.replaySegments(recordIndex));
+    }
+
+    /**
+     * Compacts the journal for the given {@link CandidateSession}, if it has one. This should be
+     * called once the session has terminated, however that happened.
+     * <p>
+     * The state for every event is kept. Deltas are recomputed from the replayed states, with a
+     * snapshot at the same interval used when appending, so that the state for any event can
+     * still be reconstructed by replaying a bounded number of records. The final event is
+     * always stored as a snapshot so that the final state of the session can be reconstructed
+     * directly.
+     */
+    public void compact(final CandidateSession candidateSession) {
+        Assert.notNull(candidateSession, "candidateSession");
+        final Lock lock = journalLocks.get(candidateSession.getId());
+        lock.lock();
+        try {
+            final File journalFile = getJournalFile(candidateSession);
+            if (!journalFile.exists()) {
+                return;
+            }
+            final JournalData journalData = readJournal(journalFile);
+            final int recordCount = journalData.records.size();
+            if (recordCount==0) {
+                return;
+            }
+
+            final int snapshotInterval = Math.max(1, qtiWorksDeploymentSettings.getCandidateStateJournalSnapshotInterval());
+            final ByteArrayOutputStream journalStream = new ByteArrayOutputStream(journalData.validLength);
+            writeJournalHeader(journalStream);
+            Map<String, byte[]> previousSegments = Collections.emptyMap();
+            Map<String, byte[]> currentSegments = new LinkedHashMap<String, byte[]>();
+            for (int i=0; i<recordCount; i++) {
+                final JournalRecord record = journalData.records.get(i);
+                currentSegments = new LinkedHashMap<String, byte[]>(currentSegments);
+                journalData.applyRecord(record, currentSegments);
+                if (i % snapshotInterval==0 || i==recordCount-1) {
+                    writeRecord(journalStream, record.eventId, RECORD_SNAPSHOT, currentSegments, Collections.<String>emptyList());
+                }
+                else {
+                    final Map<String, byte[]> changedSegments = new LinkedHashMap<String, byte[]>();
+                    for (final Entry<String, byte[]> entry : currentSegments.entrySet()) {
+                        if (!Arrays.equals(entry.getValue(), previousSegments.get(entry.getKey()))) {
+                            changedSegments.put(entry.getKey(), entry.getValue());
+                        }
+                    }
+                    final List<String> removedSegmentNames = new ArrayList<String>();
+                    for (final String previousSegmentName : previousSegments.keySet()) {
+                        if (!currentSegments.containsKey(previousSegmentName)) {
+                            removedSegmentNames.add(previousSegmentName);
+                        }
+                    }
+                    writeRecord(journalStream, record.eventId, RECORD_DELTA, changedSegments, removedSegmentNames);
+                }
+                previousSegments = currentSegments;
+            }
+
+            final byte[] compactedJournal = journalStream.toByteArray();
+            replaceFile(journalFile, compactedJournal);
+            journalTailCache.put(candidateSession.getId(), new JournalTail(compactedJournal.length, 0,
+                    createSegmentDigests(currentSegments), extractCurrentItemKey(currentSegments)));
+            logger.debug("Compacted state journal for session {} from {} to {} bytes",
+                    new Object[] { candidateSession.getId(), Long.valueOf(journalData.validLength), Long.valueOf(compactedJournal.length) });
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    //----------------------------------------------------
+    // Segments
+
+    private Map<String, byte[]> createSegments(final TestSessionState testSessionState) {
+        final Map<String, byte[]> result = new LinkedHashMap<String, byte[]>();
+        result.put(TEST_PLAN_SEGMENT, TestPlanBinaryMarshaller.marshal(testSessionState.getTestPlan()));
+        result.put(TEST_LEVEL_SEGMENT, TestSessionStateBinaryMarshaller.marshalTestLevelState(testSessionState));
+        for (final Entry<TestPlanNodeKey, ItemSessionState> entry : testSessionState.getItemSessionStates().entrySet()) {
+            result.put(ITEM_SEGMENT_PREFIX + entry.getKey().toString(), ItemSessionStateBinaryMarshaller.marshal(entry.getValue()));
+        }
+        return result;
+    }
+
+    /**
+     * Creates segments for just the test-level state and the states of the given items.
+     */
+    private Map<String, byte[]> createTouchedSegments(final TestSessionState testSessionState, final Set<TestPlanNodeKey> itemKeys) {
+        final Map<String, byte[]> result = new LinkedHashMap<String, byte[]>();
+        result.put(TEST_LEVEL_SEGMENT, TestSessionStateBinaryMarshaller.marshalTestLevelState(testSessionState));
+        for (final TestPlanNodeKey itemKey : itemKeys) {
+            final ItemSessionState itemSessionState = testSessionState.getItemSessionStates().get(itemKey);
+            if (itemSessionState!=null) {
+                result.put(ITEM_SEGMENT_PREFIX + itemKey.toString(), ItemSessionStateBinaryMarshaller.marshal(itemSessionState));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the keys of the only items whose states can have been changed by the given
+     * {@link CandidateEvent}, or null if any of them might have changed.
+     * <p>
+     * Item events and nonlinear navigation only affect the item that was selected before the
+     * event and the one selected afterwards. (The {@link TestPlan} is also unchanged by these.)
+     * All other events can affect other items, e.g. by ending the current test part, so all
+     * items are checked for those.
+     */
+    private static Set<TestPlanNodeKey> getTouchedItemKeys(final CandidateEvent candidateEvent, final JournalTail tail,
+            final TestSessionState testSessionState) {
+        final CandidateTestEventType testEventType = candidateEvent.getTestEventType();
+        if (testEventType!=CandidateTestEventType.ITEM_EVENT
+                && testEventType!=CandidateTestEventType.SELECT_ITEM
+                && testEventType!=CandidateTestEventType.SELECT_MENU) {
+            return null;
+        }
+        final Set<TestPlanNodeKey> result = new HashSet<TestPlanNodeKey>();
+        if (tail.currentItemKey!=null) {
+            result.add(tail.currentItemKey);
+        }
+        if (testSessionState.getCurrentItemKey()!=null) {
+            result.add(testSessionState.getCurrentItemKey());
+        }
+        return result;
+    }
+
+    /**
+     * Returns the key of the item selected in the state having the given segments, without
+     * unmarshalling any item states.
+     */
+    private static TestPlanNodeKey extractCurrentItemKey(final Map<String, byte[]> segments) {
+        final byte[] testPlanData = segments.get(TEST_PLAN_SEGMENT);
+        final byte[] testLevelData = segments.get(TEST_LEVEL_SEGMENT);
+        if (testPlanData==null || testLevelData==null) {
+            throw new QtiWorksLogicException("Journaled test state is missing required segments");
+        }
+        final TestPlan testPlan = TestPlanBinaryMarshaller.unmarshal(testPlanData);
+        return TestSessionStateBinaryMarshaller.unmarshalTestLevelState(testPlan, testLevelData).getCurrentItemKey();
+    }
+
+    private TestSessionState createTestSessionState(final Map<String, byte[]> segments) {
+        final byte[] testPlanData = segments.get(TEST_PLAN_SEGMENT);
+        final byte[] testLevelData = segments.get(TEST_LEVEL_SEGMENT);
+        if (testPlanData==null || testLevelData==null) {
+            throw new QtiWorksLogicException("Journaled test state is missing required segments");
+        }
+        final TestPlan testPlan = TestPlanBinaryMarshaller.unmarshal(testPlanData);
+        final TestSessionState result = TestSessionStateBinaryMarshaller.unmarshalTestLevelState(testPlan, testLevelData);
+        for (final Entry<String, byte[]> entry : segments.entrySet()) {
+            final String segmentName = entry.getKey();
+            if (segmentName.startsWith(ITEM_SEGMENT_PREFIX)) {
+                final TestPlanNodeKey key = TestPlanNodeKey.fromString(segmentName.substring(ITEM_SEGMENT_PREFIX.length()));
+                result.getItemSessionStates().put(key, ItemSessionStateBinaryMarshaller.unmarshal(entry.getValue()));
+            }
+        }
+        return result;
+    }
+
+    private static Map<String, byte[]> createSegmentDigests(final Map<String, byte[]> segments) {
+        final Map<String, byte[]> result = new HashMap<String, byte[]>(segments.size() * 2);
+        for (final Entry<String, byte[]> entry : segments.entrySet()) {
+            result.put(entry.getKey(), digest(entry.getValue()));
+        }
+        return result;
+    }
+
+    private static byte[] digest(final byte[] data) {
+        try {
+            return MessageDigest.getInstance("MD5").digest(data);
+        }
+        catch (final NoSuchAlgorithmException e) {
+            throw QtiWorksRuntimeException.unexpectedException(e);
+        }
+    }
+
+    //----------------------------------------------------
+    // Journal file reading & writing
+
+    private File getJournalFile(final CandidateSession candidateSession) {
+        final File sessionFolder = filespaceManager.obtainCandidateSessionStateStore(candidateSession);
+        return new File(sessionFolder, JOURNAL_FILE_NAME);
+    }
+
+    /**
+     * Obtains the {@link JournalTail} for the given session, reading it from the journal file if
+     * it is not cached or if the file has changed underneath us. Any incomplete trailing record
+     * (e.g. left by a crash during writing) is truncated away here.
+     */
+    private JournalTail ensureJournalTail(final CandidateSession candidateSession, final File journalFile) {
+        final JournalTail cached = journalTailCache.getIfPresent(candidateSession.getId());
+        final long fileLength = journalFile.length();
+        if (cached!=null && cached.validLength==fileLength) {
+            return cached;
+        }
+        if (!journalFile.exists() || fileLength==0L) {
+            return JournalTail.EMPTY;
+        }
+        JournalData journalData = readJournalTail(journalFile, LATEST_EVENT);
+        if (journalData==null) {
+            /* End of journal is not intact, so read it all to find the last complete record */
+            journalData = readJournal(journalFile);
+            if (journalData.validLength < fileLength) {
+                logger.warn("Truncating incomplete data at end of state journal {}", journalFile);
+                truncateFile(journalFile, journalData.validLength);
+            }
+        }
+        final int recordCount = journalData.records.size();
+        if (recordCount==0) {
+            return new JournalTail(journalData.validLength, 0, Collections.<String, byte[]>emptyMap(), null);
+        }
+        int deltasSinceSnapshot = 0;
+        for (int i=recordCount-1; i>=0 && journalData.records.get(i).recordType!=RECORD_SNAPSHOT; i--) {
+            deltasSinceSnapshot++;
+        }
+        final Map<String, byte[]> segments = journalData.replaySegments(recordCount-1);
+        return new JournalTail(journalData.validLength, deltasSinceSnapshot, createSegmentDigests(segments),
+                extractCurrentItemKey(segments));
+    }
+
+    private static void writeJournalHeader(final ByteArrayOutputStream outputStream) {
+        outputStream.write(MAGIC, 0, MAGIC.length);
+        outputStream.write(FORMAT_VERSION);
+    }
+
+    private static void writeRecord(final ByteArrayOutputStream outputStream, final long eventId, final byte recordType,
+            final Map<String, byte[]> changedSegments, final List<String> removedSegmentNames) {
+        final ByteArrayOutputStream payloadStream = new ByteArrayOutputStream();
+        final DataOutputStream payloadOutput = new DataOutputStream(payloadStream);
+        final CRC32 crc = new CRC32();
+        try {
+            payloadOutput.writeInt(changedSegments.size());
+            for (final Entry<String, byte[]> entry : changedSegments.entrySet()) {
+                payloadOutput.writeUTF(entry.getKey());
+                payloadOutput.writeInt(entry.getValue().length);
+                payloadOutput.write(entry.getValue());
+            }
+            payloadOutput.writeInt(removedSegmentNames.size());
+            for (final String removedSegmentName : removedSegmentNames) {
+                payloadOutput.writeUTF(removedSegmentName);
+            }
+            payloadOutput.flush();
+            final byte[] payload = payloadStream.toByteArray();
+
+            final ByteArrayOutputStream headerStream = new ByteArrayOutputStream(RECORD_HEADER_CRC_LENGTH);
+            final DataOutputStream headerOutput = new DataOutputStream(headerStream);
+            headerOutput.writeLong(eventId);
+            headerOutput.writeByte(recordType);
+            headerOutput.writeInt(payload.length);
+            headerOutput.flush();
+            final byte[] header = headerStream.toByteArray();
+            crc.update(header);
+            crc.update(payload);
+
+            final DataOutputStream recordOutput = new DataOutputStream(outputStream);
+            recordOutput.write(header);
+            recordOutput.writeInt((int) crc.getValue());
+            recordOutput.write(payload);
+            recordOutput.writeInt(payload.length);
+            recordOutput.flush();
+        }
+        catch (final IOException e) {
+            throw new QtiWorksLogicException("Unexpected IOException writing to byte array", e);
+        }
+    }
+
+    /**
+     * Reads the whole journal, stopping at the first incomplete or corrupt record.
+     */
+    private static JournalData readJournal(final File journalFile) {
+        final byte[] data;
+        try {
+            data = Files.toByteArray(journalFile);
+        }
+        catch (final IOException e) {
+            throw QtiWorksRuntimeException.unexpectedException(e);
+        }
+        if (data.length < HEADER_LENGTH) {
+            /* Empty or incomplete header, presumably from a crash during the first write */
+            return new JournalData(data, 0, Collections.<JournalRecord>emptyList());
+        }
+        checkJournalHeader(journalFile, data);
+        final List<JournalRecord> records = new ArrayList<JournalRecord>();
+        final int validLength = parseRecords(data, HEADER_LENGTH, records);
+        return new JournalData(data, validLength, records);
+    }
+
+    /**
+     * Reads just the records needed to reconstruct the state for the given event (or the most
+     * recent one if {@link #LATEST_EVENT} is passed), by working back from the end of the journal
+     * to the record for this event, then on to the snapshot it starts from. The resulting
+     * {@link JournalData} contains only these records, and its length is the end of the
+     * requested record.
+     * <p>
+     * Returns an empty {@link JournalData} if the event is not in the journal, or null if the
+     * journal could not be read this way (e.g. because it ends with an incomplete record), in
+     * which case the whole journal should be read instead.
+     */
+    private static JournalData readJournalTail(final File journalFile, final long eventId) {
+        RandomAccessFile randomAccessFile = null;
+        try {
+            randomAccessFile = new RandomAccessFile(journalFile, "r");
+            final long fileLength = randomAccessFile.length();
+            if (fileLength < HEADER_LENGTH || fileLength > Integer.MAX_VALUE) {
+                return null;
+            }
+            final byte[] header = new byte[HEADER_LENGTH];
+            randomAccessFile.readFully(header);
+            checkJournalHeader(journalFile, header);
+
+            int recordEnd = (int) fileLength;
+            int targetEnd = -1;
+            while (recordEnd > HEADER_LENGTH) {
+                if (recordEnd - HEADER_LENGTH < RECORD_HEADER_LENGTH + RECORD_TRAILER_LENGTH) {
+                    return null;
+                }
+                randomAccessFile.seek(recordEnd - RECORD_TRAILER_LENGTH);
+                final int payloadLength = randomAccessFile.readInt();
+                if (payloadLength < 0 || payloadLength > recordEnd - HEADER_LENGTH - RECORD_HEADER_LENGTH - RECORD_TRAILER_LENGTH) {
+                    return null;
+                }
+                final int recordStart = recordEnd - RECORD_TRAILER_LENGTH - payloadLength - RECORD_HEADER_LENGTH;
+                randomAccessFile.seek(recordStart);
+                final long recordEventId = randomAccessFile.readLong();
+                final byte recordType = randomAccessFile.readByte();
+                if (randomAccessFile.readInt()!=payloadLength || (recordType!=RECORD_SNAPSHOT && recordType!=RECORD_DELTA)) {
+                    return null;
+                }
+                if (targetEnd < 0 && (eventId==LATEST_EVENT || recordEventId==eventId)) {
+                    targetEnd = recordEnd;
+                }
+                if (targetEnd >= 0 && recordType==RECORD_SNAPSHOT) {
+                    /* Read and check just the records we need */
+                    final byte[] data = new byte[targetEnd - recordStart];
+                    randomAccessFile.seek(recordStart);
+                    randomAccessFile.readFully(data);
+                    final List<JournalRecord> records = new ArrayList<JournalRecord>();
+                    if (parseRecords(data, 0, records)!=data.length) {
+                        return null;
+                    }
+                    return new JournalData(data, targetEnd, records);
+                }
+                recordEnd = recordStart;
+            }
+            if (targetEnd >= 0) {
+                /* (Found the record but no snapshot before it, so something is wrong) */
+                return null;
+            }
+            return new JournalData(new byte[0], (int) fileLength, Collections.<JournalRecord>emptyList());
+        }
+        catch (final IOException e) {
+            throw QtiWorksRuntimeException.unexpectedException(e);
+        }
+        finally {
+            ServiceUtilities.ensureClose(randomAccessFile);
+        }
+    }
+
+    private static void checkJournalHeader(final File journalFile, final byte[] header) {
+        for (int i=0; i<MAGIC.length; i++) {
+            if (header[i]!=MAGIC[i]) {
+                throw new QtiWorksLogicException("File " + journalFile + " is not a state journal");
+            }
+        }
+        if (header[MAGIC.length]!=FORMAT_VERSION) {
+            throw new QtiWorksLogicException("Unsupported state journal version " + header[MAGIC.length] + " in " + journalFile);
+        }
+    }
+
+    /**
+     * Parses the records in the given data starting at the given position, stopping at the
+     * first incomplete or corrupt record. Returns the position after the last complete record.
+     */
+    private static int parseRecords(final byte[] data, final int startPosition, final List<JournalRecord> records) {
+        int position = startPosition;
+        while (position + RECORD_HEADER_LENGTH + RECORD_TRAILER_LENGTH <= data.length) {
+            final DataInputStream headerInput = new DataInputStream(new ByteArrayInputStream(data, position, RECORD_HEADER_LENGTH));
+            final long eventId;
+            final byte recordType;
+            final int payloadLength;
+            final int recordCrc;
+            try {
+                eventId = headerInput.readLong();
+                recordType = headerInput.readByte();
+                payloadLength = headerInput.readInt();
+                recordCrc = headerInput.readInt();
+            }
+            catch (final IOException e) {
+                throw new QtiWorksLogicException("Unexpected IOException reading from byte array", e);
+            }
+            final int payloadOffset = position + RECORD_HEADER_LENGTH;
+            if ((recordType!=RECORD_SNAPSHOT && recordType!=RECORD_DELTA)
+                    || payloadLength < 0 || payloadLength > data.length - payloadOffset - RECORD_TRAILER_LENGTH) {
+                break;
+            }
+            final CRC32 crc = new CRC32();
+            crc.update(data, position, RECORD_HEADER_CRC_LENGTH);
+            crc.update(data, payloadOffset, payloadLength);
+            if ((int) crc.getValue()!=recordCrc) {
+                break;
+            }
+            final int trailerOffset = payloadOffset + payloadLength;
+            final DataInputStream trailerInput = new DataInputStream(new ByteArrayInputStream(data, trailerOffset, RECORD_TRAILER_LENGTH));
+            try {
+                if (trailerInput.readInt()!=payloadLength) {
+                    break;
+                }
+            }
+            catch (final IOException e) {
+                throw new QtiWorksLogicException("Unexpected IOException reading from byte array", e);
+            }
+            records.add(new JournalRecord(eventId, recordType, payloadOffset, payloadLength));
+            position = trailerOffset + RECORD_TRAILER_LENGTH;
+        }
+        return position;
+    }
+
+    private static void appendToFile(final File file, final byte[] data) {
+        FileOutputStream outputStream = null;
+        try {
+            outputStream = new FileOutputStream(file, true);
+            outputStream.write(data);
+        }
+        catch (final IOException e) {
+            throw QtiWorksRuntimeException.unexpectedException(e);
+        }
+        finally {
+            ServiceUtilities.ensureClose(outputStream);
+        }
+    }
+
+    private static void truncateFile(final File file, final long length) {
+        RandomAccessFile randomAccessFile = null;
+        try {
+            randomAccessFile = new RandomAccessFile(file, "rw");
+            randomAccessFile.setLength(length);
+        }
+        catch (final IOException e) {
+            throw QtiWorksRuntimeException.unexpectedException(e);
+        }
+        finally {
+            ServiceUtilities.ensureClose(randomAccessFile);
+        }
+    }
+
+    private static void replaceFile(final File file, final byte[] data) {
+        final File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+        try {
+            Files.write(data, tempFile);
+        }
+        catch (final IOException e) {
+            throw QtiWorksRuntimeException.unexpectedException(e);
+        }
+        if (!tempFile.renameTo(file)) {
+            /* Some platforms won't rename over an existing file */
+            if (!file.delete() || !tempFile.renameTo(file)) {
+                throw new QtiWorksRuntimeException("Could not replace state journal " + file);
+            }
+        }
+    }
+
+    //----------------------------------------------------
+
+    /** Location of a record within a journal */
+    private static final class JournalRecord {
+
+        final long eventId;
+        final byte recordType;
+        final int payloadOffset;
+        final int payloadLength;
+
+        JournalRecord(final long eventId, final byte recordType, final int payloadOffset, final int payloadLength) {
+            this.eventId = eventId;
+            this.recordType = recordType;
+            this.payloadOffset = payloadOffset;
+            this.payloadLength = payloadLength;
+        }
+    }
+
+    /**
+     * Raw journal data (either the whole journal or just the end of it) plus the (complete)
+     * records found in it.
+     */
+    private static final class JournalData {
+
+        final byte[] data;
+
+        /** Position in the journal file just after the last record read */
+        final int validLength;
+
+        final List<JournalRecord> records;
+
+        JournalData(final byte[] data, final int validLength, final List<JournalRecord> records) {
+            this.data = data;
+            this.validLength = validLength;
+            this.records = records;
+        }
+
+        int findRecordIndex(final long eventId) {
+            for (int i=records.size()-1; i>=0; i--) {
+                if (records.get(i).eventId==eventId) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Replays records up to and including the one at the given index, starting from the
+         * last snapshot at or before it.
+         */
+        Map<String, byte[]> replaySegments(final int recordIndex) {
+            int startIndex = recordIndex;
+            while (startIndex > 0 && records.get(startIndex).recordType!=RECORD_SNAPSHOT) {
+                startIndex--;
+            }
+            final Map<String, byte[]> result = new LinkedHashMap<String, byte[]>();
+            for (int i=startIndex; i<=recordIndex; i++) {
+                applyRecord(records.get(i), result);
+            }
+            return result;
+        }
+
+        void applyRecord(final JournalRecord record, final Map<String, byte[]> segments) {
+            if (record.recordType==RECORD_SNAPSHOT) {
+                segments.clear();
+            }
+            final DataInputStream payloadInput = new DataInputStream(new ByteArrayInputStream(data, record.payloadOffset, record.payloadLength));
+            try {
+                final int changedCount = payloadInput.readInt();
+                for (int i=0; i<changedCount; i++) {
+                    final String segmentName = payloadInput.readUTF();
+                    final byte[] segmentData = new byte[payloadInput.readInt()];
+                    payloadInput.readFully(segmentData);
+                    segments.put(segmentName, segmentData);
+                }
+                final int removedCount = payloadInput.readInt();
+                for (int i=0; i<removedCount; i++) {
+                    segments.remove(payloadInput.readUTF());
+                }
+            }
+            catch (final IOException e) {
+                throw new QtiWorksLogicException("Corrupt state journal record for event " + record.eventId, e);
+            }
+        }
+    }
+
+    /** Remembers what we need to know about the end of a journal in order to append to it */
+    private static final class JournalTail {
+
+        static final JournalTail EMPTY = new JournalTail(0L, 0, Collections.<String, byte[]>emptyMap(), null);
+
+        final long validLength;
+        final int deltasSinceSnapshot;
+        final Map<String, byte[]> segmentDigests;
+
+        /** Key of the item selected in the last recorded state, if any */
+        final TestPlanNodeKey currentItemKey;
+
+        JournalTail(final long validLength, final int deltasSinceSnapshot, final Map<String, byte[]> segmentDigests,
+                final TestPlanNodeKey currentItemKey) {
+            this.validLength = validLength;
+            this.deltasSinceSnapshot = deltasSinceSnapshot;
+            this.segmentDigests = segmentDigests;
+            this.currentItemKey = currentItemKey;
+        }
+
+        boolean isEmpty() {
+            return validLength==0L;
+        }
+    }
+}
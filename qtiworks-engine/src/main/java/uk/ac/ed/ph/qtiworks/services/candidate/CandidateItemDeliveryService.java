@@ -608,6 +608,7 @@ public class CandidateItemDeliveryService extends CandidateServiceBase {
         /* Update session entity */
         candidateSession.setTerminationTime(currentTimestamp);
         candidateSessionDao.update(candidateSession);
+        candidateDataService.handleSessionTermination(candidateSession);
 
         /* Record and log event */
         final CandidateEvent candidateEvent = candidateDataService.recordCandidateItemEvent(candidateSession,
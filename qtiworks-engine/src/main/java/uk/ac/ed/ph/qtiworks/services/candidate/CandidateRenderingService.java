@@ -35,6 +35,7 @@ package uk.ac.ed.ph.qtiworks.services.candidate;
 
 import uk.ac.ed.ph.qtiworks.QtiWorksLogicException;
 import uk.ac.ed.ph.qtiworks.QtiWorksRuntimeException;
+import uk.ac.ed.ph.qtiworks.config.beans.QtiWorksDeploymentSettings;
 import uk.ac.ed.ph.qtiworks.domain.entities.AssessmentPackage;
 import uk.ac.ed.ph.qtiworks.domain.entities.CandidateEvent;
 import uk.ac.ed.ph.qtiworks.domain.entities.CandidateEventNotification;
@@ -42,6 +43,7 @@ import uk.ac.ed.ph.qtiworks.domain.entities.CandidateItemEventType;
 import uk.ac.ed.ph.qtiworks.domain.entities.CandidateSession;
 import uk.ac.ed.ph.qtiworks.domain.entities.CandidateTestEventType;
 import uk.ac.ed.ph.qtiworks.domain.entities.Delivery;
+import uk.ac.ed.ph.qtiworks.domain.entities.DeliverySettings;
 import uk.ac.ed.ph.qtiworks.domain.entities.ItemDeliverySettings;
 import uk.ac.ed.ph.qtiworks.domain.entities.User;
 import uk.ac.ed.ph.qtiworks.rendering.AbstractRenderingOptions;
@@ -57,11 +59,15 @@ import uk.ac.ed.ph.qtiworks.rendering.TestRenderingMode;
 import uk.ac.ed.ph.qtiworks.rendering.TestRenderingOptions;
 import uk.ac.ed.ph.qtiworks.rendering.TestRenderingRequest;
 import uk.ac.ed.ph.qtiworks.services.AssessmentDataService;
+import uk.ac.ed.ph.qtiworks.services.AssessmentObjectManagementService;
 import uk.ac.ed.ph.qtiworks.services.AssessmentPackageFileService;
 import uk.ac.ed.ph.qtiworks.services.FilespaceManager;
+import uk.ac.ed.ph.qtiworks.services.RenderedPageCache;
+import uk.ac.ed.ph.qtiworks.services.RenderedPageCache.CachedPage;
 import uk.ac.ed.ph.qtiworks.services.ServiceUtilities;
 import uk.ac.ed.ph.qtiworks.services.dao.CandidateSessionDao;
 import uk.ac.ed.ph.qtiworks.services.domain.OutputStreamer;
+import uk.ac.ed.ph.qtiworks.utils.ByteChunkPool;
 
 import uk.ac.ed.ph.jqtiplus.internal.util.Assert;
 import uk.ac.ed.ph.jqtiplus.node.AssessmentObjectType;
@@ -69,16 +75,16 @@ import uk.ac.ed.ph.jqtiplus.notification.NotificationLevel;
 import uk.ac.ed.ph.jqtiplus.notification.NotificationRecorder;
 import uk.ac.ed.ph.jqtiplus.running.ItemSessionController;
 import uk.ac.ed.ph.jqtiplus.running.TestSessionController;
+import uk.ac.ed.ph.jqtiplus.state.ItemProcessingMap;
 import uk.ac.ed.ph.jqtiplus.state.ItemSessionState;
 import uk.ac.ed.ph.jqtiplus.state.TestPlanNodeKey;
 import uk.ac.ed.ph.jqtiplus.state.TestSessionState;
 import uk.ac.ed.ph.jqtiplus.validation.AssessmentObjectValidationResult;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.util.Date;
 import java.util.List;
@@ -90,6 +96,8 @@ import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 
+import com.google.common.io.ByteStreams;
+
 /**
  * Service for rendering the candidate state of assessments, connecting the domain
  * layer with the low-level {@link AssessmentRenderer}
@@ -114,6 +122,15 @@ public class CandidateRenderingService extends CandidateServiceBase {
     @Resource
     private AssessmentRenderer assessmentRenderer;
 
+    @Resource
+    private ByteChunkPool renderingBufferPool;
+
+    @Resource
+    private AssessmentObjectManagementService assessmentObjectManagementService;
+
+    @Resource
+    private QtiWorksDeploymentSettings qtiWorksDeploymentSettings;
+
     @Resource
     private CandidateItemDeliveryService candidateItemDeliveryService;
 
@@ -140,46 +157,37 @@ public class CandidateRenderingService extends CandidateServiceBase {
         /* Make sure this session is for an item */
         assertSessionType(candidateSession, AssessmentObjectType.ASSESSMENT_ITEM);
 
-        /* Create temporary file to hold the output before it gets streamed */
-        final File resultFile = filespaceManager.createTempFile();
+        /* Render page, then stream to caller */
+        final RenderingOutput renderingOutput = createRenderingOutput(outputStreamer, renderingOptions);
         try {
-            /* Render to temp file */
-            FileOutputStream resultOutputStream = null;
-            try {
-                resultOutputStream = new FileOutputStream(resultFile);
-                final StreamResult streamResult = new StreamResult(resultOutputStream);
-                renderCurrentCandidateItemSessionState(candidateSession, renderingOptions, streamResult);
-            }
-            catch (final IOException e) {
-                throw new QtiWorksRuntimeException("Unexpected IOException", e);
-            }
-            finally {
-                ServiceUtilities.ensureClose(resultOutputStream);
-            }
-
-            /* Finally stream to caller */
-            streamRenderingResultFile(resultFile, outputStreamer, renderingOptions);
+            renderCurrentCandidateItemSessionState(candidateSession, renderingOptions, renderingOutput);
+            renderingOutput.finish();
         }
         finally {
-            if (!resultFile.delete()) {
-                throw new QtiWorksRuntimeException("Could not delete result file " + resultFile.getPath());
-            }
+            renderingOutput.release();
         }
     }
 
     private void renderCurrentCandidateItemSessionState(final CandidateSession candidateSession,
-            final ItemRenderingOptions renderingOptions, final StreamResult result)
+            final ItemRenderingOptions renderingOptions, final RenderingOutput renderingOutput)
             throws CandidateException {
         if (candidateSession.isExploded()) {
-            renderExploded(candidateSession, renderingOptions, result);
+            renderExploded(candidateSession, renderingOptions, renderingOutput.createStreamResult());
         }
         else if (candidateSession.isTerminated()) {
-            renderTerminated(candidateSession, renderingOptions, result);
+            renderTerminated(candidateSession, renderingOptions, renderingOutput.createStreamResult());
         }
         else {
             /* Look up most recent event */
             final CandidateEvent latestEvent = assertSessionEntered(candidateSession);
 
+            /* Reuse previous rendering if nothing has happened since */
+            final String pageFingerprint = computePageFingerprint(candidateSession, renderingOptions);
+            if (writeCachedPage(latestEvent, pageFingerprint, renderingOutput)) {
+                candidateAuditLogger.logItemRendering(latestEvent);
+                return;
+            }
+
             /* Load the ItemSessionState */
             final ItemSessionState itemSessionState = candidateDataService.loadItemSessionState(latestEvent);
 
@@ -191,13 +199,21 @@ public class CandidateRenderingService extends CandidateServiceBase {
             }
 
             /* Render event */
-            renderItemEvent(candidateSession, latestEvent, itemSessionState, renderingOptions, result);
+            renderItemEvent(candidateSession, latestEvent, itemSessionState, renderingOptions, renderingOutput);
+
+            /* Return state to cache for the next request, and maybe cache rendering too */
+            if (!candidateSession.isExploded()) {
+                candidateDataService.releaseItemSessionState(latestEvent, itemSessionState);
+                if (pageFingerprint!=null && !isDurationSensitiveItem(candidateSession)) {
+                    storeCachedPage(latestEvent, pageFingerprint, renderingOutput);
+                }
+            }
         }
     }
 
     private void renderItemEvent(final CandidateSession candidateSession,
             final CandidateEvent candidateEvent, final ItemSessionState itemSessionState,
-            final ItemRenderingOptions renderingOptions, final StreamResult result) {
+            final ItemRenderingOptions renderingOptions, final RenderingOutput renderingOutput) {
         final CandidateItemEventType itemEventType = candidateEvent.getItemEventType();
         final User candidate = candidateSession.getCandidate();
         final Delivery delivery = candidateSession.getDelivery();
@@ -211,7 +227,8 @@ public class CandidateRenderingService extends CandidateServiceBase {
 
         /* If session has terminated, render appropriate state and exit */
         if (itemSessionState.isExited()) {
-            assessmentRenderer.renderTeminated(createTerminatedRenderingRequest(candidateSession, renderingRequest.getRenderingOptions()), result);
+            assessmentRenderer.renderTeminated(createTerminatedRenderingRequest(candidateSession, renderingRequest.getRenderingOptions()),
+                    renderingOutput.createStreamResult());
             return;
         }
 
@@ -248,7 +265,7 @@ public class CandidateRenderingService extends CandidateServiceBase {
         candidateAuditLogger.logItemRendering(candidateEvent);
         final List<CandidateEventNotification> notifications = candidateEvent.getNotifications();
         try {
-            assessmentRenderer.renderItem(renderingRequest, notifications, result);
+            assessmentRenderer.renderItem(renderingRequest, notifications, renderingOutput.createStreamResult());
         }
         catch (final RuntimeException e) {
             /* Rendering is complex and may trigger an unexpected Exception (due to a bug in the XSLT).
@@ -256,7 +273,7 @@ public class CandidateRenderingService extends CandidateServiceBase {
              * See bug #49.
              */
             handleExplosion(e, candidateSession);
-            assessmentRenderer.renderExploded(createTerminatedRenderingRequest(candidateSession, renderingOptions), result);
+            renderExplodedInPlace(candidateSession, renderingOptions, renderingOutput, e);
         }
     }
 
@@ -276,29 +293,14 @@ public class CandidateRenderingService extends CandidateServiceBase {
         /* Load the ItemSessionState */
         final ItemSessionState itemSessionState = candidateDataService.loadItemSessionState(latestEvent);
 
-        /* Create temporary file to hold the output before it gets streamed */
-        final File resultFile = filespaceManager.createTempFile();
+        /* Render page, then stream to caller */
+        final RenderingOutput renderingOutput = createRenderingOutput(outputStreamer, renderingOptions);
         try {
-            /* Render to temp file */
-            FileOutputStream resultOutputStream = null;
-            try {
-                resultOutputStream = new FileOutputStream(resultFile);
-                renderItemEventAuthorView(candidateSession, latestEvent, itemSessionState, renderingOptions, new StreamResult(resultOutputStream));
-            }
-            catch (final IOException e) {
-                throw new QtiWorksRuntimeException("Unexpected IOException", e);
-            }
-            finally {
-                ServiceUtilities.ensureClose(resultOutputStream);
-            }
-
-            /* Finally stream to caller */
-            streamRenderingResultFile(resultFile, outputStreamer, renderingOptions);
+            renderItemEventAuthorView(candidateSession, latestEvent, itemSessionState, renderingOptions, renderingOutput.createStreamResult());
+            renderingOutput.finish();
         }
         finally {
-            if (!resultFile.delete()) {
-                throw new QtiWorksRuntimeException("Could not delete result file " + resultFile.getPath());
-            }
+            renderingOutput.release();
         }
     }
 
@@ -334,48 +336,39 @@ public class CandidateRenderingService extends CandidateServiceBase {
         /* Make sure this session is for an item */
         assertSessionType(candidateSession, AssessmentObjectType.ASSESSMENT_TEST);
 
-        /* Create temporary file to hold the output before it gets streamed */
-        final File resultFile = filespaceManager.createTempFile();
+        /* Render page, then stream to caller */
+        final RenderingOutput renderingOutput = createRenderingOutput(outputStreamer, renderingOptions);
         try {
-            /* Render to temp file */
-            FileOutputStream resultOutputStream = null;
-            try {
-                resultOutputStream = new FileOutputStream(resultFile);
-                final StreamResult streamResult = new StreamResult(resultOutputStream);
-                renderCurrentCandidateTestSessionState(candidateSession, renderingOptions, streamResult);
-            }
-            catch (final IOException e) {
-                throw new QtiWorksRuntimeException("Unexpected IOException", e);
-            }
-            finally {
-                ServiceUtilities.ensureClose(resultOutputStream);
-            }
-
-            /* Finally stream to caller */
-            streamRenderingResultFile(resultFile, outputStreamer, renderingOptions);
+            renderCurrentCandidateTestSessionState(candidateSession, renderingOptions, renderingOutput);
+            renderingOutput.finish();
         }
         finally {
-            if (!resultFile.delete()) {
-                throw new QtiWorksRuntimeException("Could not delete result file " + resultFile.getPath());
-            }
+            renderingOutput.release();
         }
     }
 
 
 
     private void renderCurrentCandidateTestSessionState(final CandidateSession candidateSession,
-            final TestRenderingOptions renderingOptions, final StreamResult result)
+            final TestRenderingOptions renderingOptions, final RenderingOutput renderingOutput)
             throws CandidateException {
         if (candidateSession.isExploded()) {
-            renderExploded(candidateSession, renderingOptions, result);
+            renderExploded(candidateSession, renderingOptions, renderingOutput.createStreamResult());
         }
         else if (candidateSession.isTerminated()) {
-            renderTerminated(candidateSession, renderingOptions, result);
+            renderTerminated(candidateSession, renderingOptions, renderingOutput.createStreamResult());
         }
         else {
             /* Look up most recent event */
             final CandidateEvent latestEvent = assertSessionEntered(candidateSession);
 
+            /* Reuse previous rendering if nothing has happened since */
+            final String pageFingerprint = computePageFingerprint(candidateSession, renderingOptions);
+            if (writeCachedPage(latestEvent, pageFingerprint, renderingOutput)) {
+                candidateAuditLogger.logTestRendering(latestEvent);
+                return;
+            }
+
             /* Load the TestSessionState and create a TestSessionController */
             final TestSessionState testSessionState = candidateDataService.loadTestSessionState(latestEvent);
             final TestSessionController testSessionController = createTestSessionController(candidateSession, testSessionState);
@@ -387,12 +380,20 @@ public class CandidateRenderingService extends CandidateServiceBase {
             }
 
             /* Render event */
-            renderTestEvent(candidateSession, latestEvent, testSessionController, renderingOptions, result);
+            renderTestEvent(candidateSession, latestEvent, testSessionController, renderingOptions, renderingOutput);
+
+            /* Return state to cache for the next request, and maybe cache rendering too */
+            if (!candidateSession.isExploded()) {
+                candidateDataService.releaseTestSessionState(latestEvent, testSessionState);
+                if (pageFingerprint!=null && !renderedPageCache.isDurationSensitive(testSessionController.getTestProcessingMap())) {
+                    storeCachedPage(latestEvent, pageFingerprint, renderingOutput);
+                }
+            }
         }
     }
 
     private void renderTestEvent(final CandidateSession candidateSession, final CandidateEvent candidateEvent, final TestSessionController testSessionController,
-            final TestRenderingOptions renderingOptions, final StreamResult result) {
+            final TestRenderingOptions renderingOptions, final RenderingOutput renderingOutput) {
         final CandidateTestEventType testEventType = candidateEvent.getTestEventType();
 
         /* Create and partially configure rendering request */
@@ -403,7 +404,8 @@ public class CandidateRenderingService extends CandidateServiceBase {
         /* If session has terminated, render appropriate state and exit */
         final TestSessionState testSessionState = testSessionController.getTestSessionState();
         if (candidateSession.isTerminated() || testSessionState.isExited()) {
-            assessmentRenderer.renderTeminated(createTerminatedRenderingRequest(candidateSession, renderingRequest.getRenderingOptions()), result);
+            assessmentRenderer.renderTeminated(createTerminatedRenderingRequest(candidateSession, renderingRequest.getRenderingOptions()),
+                    renderingOutput.createStreamResult());
             return;
         }
 
@@ -425,7 +427,7 @@ public class CandidateRenderingService extends CandidateServiceBase {
         candidateAuditLogger.logTestRendering(candidateEvent);
         final List<CandidateEventNotification> notifications = candidateEvent.getNotifications();
         try {
-            assessmentRenderer.renderTest(renderingRequest, notifications, result);
+            assessmentRenderer.renderTest(renderingRequest, notifications, renderingOutput.createStreamResult());
         }
         catch (final RuntimeException e) {
             /* Rendering is complex and may trigger an unexpected Exception (due to a bug in the XSLT).
@@ -433,7 +435,7 @@ public class CandidateRenderingService extends CandidateServiceBase {
              * See bug #49.
              */
             handleExplosion(e, candidateSession);
-            assessmentRenderer.renderExploded(createTerminatedRenderingRequest(candidateSession, renderingOptions), result);
+            renderExplodedInPlace(candidateSession, renderingOptions, renderingOutput, e);
         }
     }
 
@@ -467,29 +469,14 @@ public class CandidateRenderingService extends CandidateServiceBase {
         final TestSessionState testSessionState = candidateDataService.loadTestSessionState(latestEvent);
         final TestSessionController testSessionController = createTestSessionController(candidateSession, testSessionState);
 
-        /* Create temporary file to hold the output before it gets streamed */
-        final File resultFile = filespaceManager.createTempFile();
+        /* Render page, then stream to caller */
+        final RenderingOutput renderingOutput = createRenderingOutput(outputStreamer, renderingOptions);
         try {
-            /* Render to temp file */
-            FileOutputStream resultOutputStream = null;
-            try {
-                resultOutputStream = new FileOutputStream(resultFile);
-                renderTestEventAuthorView(candidateSession, latestEvent, testSessionController, renderingOptions, new StreamResult(resultOutputStream));
-            }
-            catch (final IOException e) {
-                throw new QtiWorksRuntimeException("Unexpected IOException", e);
-            }
-            finally {
-                ServiceUtilities.ensureClose(resultOutputStream);
-            }
-
-            /* Finally stream to caller */
-            streamRenderingResultFile(resultFile, outputStreamer, renderingOptions);
+            renderTestEventAuthorView(candidateSession, latestEvent, testSessionController, renderingOptions, renderingOutput.createStreamResult());
+            renderingOutput.finish();
         }
         finally {
-            if (!resultFile.delete()) {
-                throw new QtiWorksRuntimeException("Could not delete result file " + resultFile.getPath());
-            }
+            renderingOutput.release();
         }
     }
 
@@ -575,15 +562,15 @@ public class CandidateRenderingService extends CandidateServiceBase {
         /* Get most recent event */
         final CandidateEvent mostRecentEvent = assertSessionEntered(candidateSession);
 
-        /* Generate result Object from current state */
-        final File sessionStateFile = candidateDataService.ensureSessionStateFile(mostRecentEvent);
+        /* Get current state as XML (regardless of how it has been stored) */
+        final byte[] sessionStateXml = candidateDataService.loadSessionStateXml(mostRecentEvent);
 
         /* Record action */
         candidateAuditLogger.logAction(candidateSession, "ACCESS_STATE");
 
-        /* Stream result file */
+        /* Stream state XML */
         final Date lastModifiedTime = mostRecentEvent.getTimestamp();
-        ServiceUtilities.streamFile(sessionStateFile, "application/xml", lastModifiedTime, outputStreamer);
+        outputStreamer.stream("application/xml", sessionStateXml.length, lastModifiedTime, new ByteArrayInputStream(sessionStateXml));
     }
 
     //----------------------------------------------------
@@ -645,6 +632,26 @@ public class CandidateRenderingService extends CandidateServiceBase {
         assessmentRenderer.renderTeminated(createTerminatedRenderingRequest(candidateSession, renderingOptions), result);
     }
 
+    /**
+     * Replaces whatever has been rendered so far with the "exploded" page. If some of the page
+     * has already been streamed to the candidate then this is no longer possible, so we rethrow
+     * the original Exception instead.
+     */
+    private void renderExplodedInPlace(final CandidateSession candidateSession, final AbstractRenderingOptions renderingOptions,
+            final RenderingOutput renderingOutput, final RuntimeException e) {
+        final boolean discarded;
+        try {
+            discarded = renderingOutput.reset();
+        }
+        catch (final IOException ioException) {
+            throw new QtiWorksRuntimeException("Unexpected IOException", ioException);
+        }
+        if (!discarded) {
+            throw e;
+        }
+        renderExploded(candidateSession, renderingOptions, renderingOutput.createStreamResult());
+    }
+
     //----------------------------------------------------
 
     private TerminatedRenderingRequest createTerminatedRenderingRequest(final CandidateSession candidateSession, final AbstractRenderingOptions renderingOptions) {
@@ -661,6 +668,7 @@ public class CandidateRenderingService extends CandidateServiceBase {
         renderingRequest.setRenderingOptions(renderingOptions);
         renderingRequest.setAssessmentResourceLocator(assessmentPackageFileService.createResolvingResourceLocator(assessmentPackage));
         renderingRequest.setAssessmentResourceUri(assessmentPackageFileService.createAssessmentObjectUri(assessmentPackage));
+        renderingRequest.setAssessmentPackageId(assessmentPackage.getId());
         renderingRequest.setAuthorMode(candidateSession.isAuthorMode());
         renderingRequest.setValidated(assessmentPackage.isValidated());
         renderingRequest.setLaunchable(assessmentPackage.isLaunchable());
@@ -670,29 +678,85 @@ public class CandidateRenderingService extends CandidateServiceBase {
     }
 
     //----------------------------------------------------
-    // Result streaming
+    // Rendered page caching
 
-    private void streamRenderingResultFile(final File resultFile, final OutputStreamer outputStreamer,
-            final AbstractRenderingOptions renderingOptions)
-            throws IOException {
-        final String contentType = renderingOptions.getSerializationMethod().getContentType();
-        final long contentLength = resultFile.length();
-        FileInputStream resultInputStream = null;
+    /**
+     * Computes a fingerprint of everything other than the session's latest event that affects the
+     * rendering of the given {@link CandidateSession}, for use with the {@link RenderedPageCache}.
+     * Returns null if the cache is disabled.
+     */
+    private String computePageFingerprint(final CandidateSession candidateSession, final AbstractRenderingOptions renderingOptions) {
+        if (!renderedPageCache.isEnabled()) {
+            return null;
+        }
+        final Delivery delivery = candidateSession.getDelivery();
+        final AssessmentPackage assessmentPackage = assessmentDataService.ensureSelectedAssessmentPackage(delivery);
+        final DeliverySettings deliverySettings = delivery.getDeliverySettings();
+        return renderingOptions.computeFingerprint()
+                + "\n" + assessmentPackage.getId()
+                + "\n" + (deliverySettings!=null ? deliverySettings.getId() + "/" + deliverySettings.getVersion() : "default");
+    }
+
+    private boolean isDurationSensitiveItem(final CandidateSession candidateSession) {
+        final AssessmentPackage assessmentPackage = assessmentDataService.ensureSelectedAssessmentPackage(candidateSession.getDelivery());
+        final ItemProcessingMap itemProcessingMap = assessmentObjectManagementService.getItemProcessingMap(assessmentPackage);
+        return itemProcessingMap==null || renderedPageCache.isDurationSensitive(itemProcessingMap);
+    }
+
+    /**
+     * Writes out the cached rendering for the given event, if available, returning true on success.
+     */
+    private boolean writeCachedPage(final CandidateEvent latestEvent, final String pageFingerprint,
+            final RenderingOutput renderingOutput) {
+        if (pageFingerprint==null) {
+            return false;
+        }
+        final CachedPage cachedPage = renderedPageCache.lookup(latestEvent, pageFingerprint);
+        if (cachedPage==null || !cachedPage.getContentType().equals(renderingOutput.getContentType())) {
+            return false;
+        }
+        final InputStream pageStream = cachedPage.openInputStream();
         try {
-            resultInputStream = new FileInputStream(resultFile);
-            outputStreamer.stream(contentType, contentLength,
-                    requestTimestampContext.getCurrentRequestTimestamp(), /* Use request time, which is less accurate than it could be */
-                    resultInputStream);
+            ByteStreams.copy(pageStream, renderingOutput);
         }
-        catch (final FileNotFoundException e) {
+        catch (final IOException e) {
             throw new QtiWorksRuntimeException("Unexpected IOException", e);
         }
+        finally {
+            ServiceUtilities.ensureClose(pageStream);
+        }
+        return true;
+    }
+
+    private void storeCachedPage(final CandidateEvent latestEvent, final String pageFingerprint,
+            final RenderingOutput renderingOutput) {
+        /* (We don't cache pages too big to have been kept in memory) */
+        if (renderingOutput.isOverflowed()) {
+            return;
+        }
+        final InputStream pageStream = renderingOutput.openBufferInputStream();
+        try {
+            renderedPageCache.store(latestEvent, pageFingerprint, renderingOutput.getContentType(), pageStream);
+        }
         catch (final IOException e) {
-            /* Streamer threw Exception */
-            throw e;
+            throw new QtiWorksRuntimeException("Unexpected IOException", e);
         }
         finally {
-            ServiceUtilities.ensureClose(resultInputStream);
+            ServiceUtilities.ensureClose(pageStream);
         }
     }
+
+    //----------------------------------------------------
+    // Result streaming
+
+    private RenderingOutput createRenderingOutput(final OutputStreamer outputStreamer,
+            final AbstractRenderingOptions renderingOptions) {
+        return new RenderingOutput(renderingBufferPool,
+                qtiWorksDeploymentSettings.getRenderingBufferLimit() * 1024,
+                filespaceManager,
+                qtiWorksDeploymentSettings.isRenderingStreaming(),
+                outputStreamer,
+                renderingOptions.getSerializationMethod().getContentType(),
+                requestTimestampContext.getCurrentRequestTimestamp() /* Use request time, which is less accurate than it could be */);
+    }
 }
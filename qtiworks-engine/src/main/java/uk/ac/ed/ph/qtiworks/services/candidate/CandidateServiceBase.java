@@ -37,6 +37,7 @@ import uk.ac.ed.ph.qtiworks.domain.entities.CandidateEvent;
 import uk.ac.ed.ph.qtiworks.domain.entities.CandidateSession;
 import uk.ac.ed.ph.qtiworks.services.CandidateAuditLogger;
 import uk.ac.ed.ph.qtiworks.services.CandidateDataService;
+import uk.ac.ed.ph.qtiworks.services.RenderedPageCache;
 import uk.ac.ed.ph.qtiworks.services.RequestTimestampContext;
 import uk.ac.ed.ph.qtiworks.services.dao.CandidateSessionDao;
 
@@ -76,6 +77,9 @@ public abstract class CandidateServiceBase {
     @Resource
     protected RequestTimestampContext requestTimestampContext;
 
+    @Resource
+    protected RenderedPageCache renderedPageCache;
+
     //----------------------------------------------------
     // Access controls
 
@@ -120,6 +124,8 @@ public abstract class CandidateServiceBase {
         candidateSession.setTerminationTime(currentTimestamp);
         candidateAuditLogger.logExplosion(candidateSession);
         candidateSessionDao.update(candidateSession);
+        candidateDataService.handleSessionTermination(candidateSession);
+        renderedPageCache.evict(candidateSession);
         return candidateSession;
     }
 }
@@ -0,0 +1,154 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.qtiworks.services.candidate;
+
+import uk.ac.ed.ph.qtiworks.QtiWorksRuntimeException;
+import uk.ac.ed.ph.qtiworks.services.FilespaceManager;
+import uk.ac.ed.ph.qtiworks.services.ServiceUtilities;
+import uk.ac.ed.ph.qtiworks.services.domain.OutputStreamer;
+import uk.ac.ed.ph.qtiworks.utils.ByteChunkPool;
+import uk.ac.ed.ph.qtiworks.utils.DeferredOutputStream;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Date;
+
+import javax.xml.transform.stream.StreamResult;
+
+/**
+ * Receives a rendered candidate page, holding it in memory until it is complete before passing
+ * it to an {@link OutputStreamer}. This allows us to send a Content-Length, and to replace the page
+ * with the "exploded" page if rendering fails part of the way through.
+ * <p>
+ * Pages larger than the buffer limit, or rendered while the {@link ByteChunkPool} has no memory
+ * to spare, either get moved to a temporary file, or (when streaming) are sent straight to the
+ * {@link OutputStreamer} from that point on.
+ * <p>
+ * Usage: create one of these for each page, and call {@link #release()} once finished with it.
+ *
+ * @see CandidateRenderingService
+ *
+ * @author David McKain
+ */
+final class RenderingOutput extends DeferredOutputStream {
+
+    private final FilespaceManager filespaceManager;
+    private final boolean streaming;
+    private final OutputStreamer outputStreamer;
+    private final String contentType;
+    private final Date lastModifiedTime;
+    private File spillFile;
+
+    public RenderingOutput(final ByteChunkPool chunkPool, final int bufferLimit,
+            final FilespaceManager filespaceManager, final boolean streaming,
+            final OutputStreamer outputStreamer, final String contentType, final Date lastModifiedTime) {
+        super(chunkPool, bufferLimit);
+        this.filespaceManager = filespaceManager;
+        this.streaming = streaming;
+        this.outputStreamer = outputStreamer;
+        this.contentType = contentType;
+        this.lastModifiedTime = lastModifiedTime;
+        this.spillFile = null;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public StreamResult createStreamResult() {
+        return new StreamResult(this);
+    }
+
+    @Override
+    protected OutputStream openOverflowStream() throws IOException {
+        if (streaming) {
+            return outputStreamer.openStream(contentType, lastModifiedTime);
+        }
+        spillFile = filespaceManager.createTempFile();
+        return new FileOutputStream(spillFile);
+    }
+
+    @Override
+    protected boolean discardOverflowStream(final OutputStream stream) throws IOException {
+        if (streaming) {
+            /* Data has already been sent, so it's too late to change it */
+            return false;
+        }
+        stream.close();
+        deleteSpillFile();
+        return true;
+    }
+
+    /**
+     * Passes the completed page to the {@link OutputStreamer}, if this hasn't already happened.
+     */
+    public void finish() throws IOException {
+        if (!isOverflowed()) {
+            outputStreamer.stream(contentType, getLength(), lastModifiedTime, openBufferInputStream());
+        }
+        else {
+            close();
+            if (!streaming) {
+                InputStream spillInputStream = null;
+                try {
+                    spillInputStream = new FileInputStream(spillFile);
+                    outputStreamer.stream(contentType, spillFile.length(), lastModifiedTime, spillInputStream);
+                }
+                finally {
+                    ServiceUtilities.ensureClose(spillInputStream);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void release() {
+        super.release();
+        if (spillFile!=null) {
+            ServiceUtilities.ensureClose(this);
+            deleteSpillFile();
+        }
+    }
+
+    private void deleteSpillFile() {
+        if (spillFile.exists() && !spillFile.delete()) {
+            throw new QtiWorksRuntimeException("Could not delete rendering spill file " + spillFile.getPath());
+        }
+        spillFile = null;
+    }
+}
@@ -37,6 +37,7 @@ import uk.ac.ed.ph.qtiworks.domain.entities.CandidateSession;
 import uk.ac.ed.ph.qtiworks.domain.entities.CandidateSessionOutcome;
 import uk.ac.ed.ph.qtiworks.domain.entities.Delivery;
 
+import java.util.Collection;
 import java.util.List;
 
 import javax.persistence.EntityManager;
@@ -44,6 +45,9 @@ import javax.persistence.PersistenceContext;
 import javax.persistence.Query;
 import javax.persistence.TypedQuery;
 
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
 import org.springframework.stereotype.Repository;
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
@@ -76,6 +80,55 @@ public class CandidateSessionOutcomeDao extends GenericDao<CandidateSessionOutco
         return query.getResultList();
     }
 
+    /**
+     * Returns the distinct (outcomeIdentifier, baseType, cardinality) triples recorded
+     * for all sessions launched on the given {@link Delivery}, each followed by the xid of
+     * the first session that recorded it.
+     */
+    public List<Object[]> getOutcomeSignaturesForDelivery(final Delivery delivery) {
+        final TypedQuery<Object[]> query = em.createNamedQuery("CandidateSessionOutcome.getOutcomeSignaturesForDelivery", Object[].class);
+        query.setParameter("delivery", delivery);
+        return query.getResultList();
+    }
+
+    /**
+     * Returns (xid, outcomeIdentifier, baseType, cardinality) for each outcome recorded for
+     * the sessions having the given xids, ordered by session then in the order recorded.
+     */
+    public List<Object[]> getOutcomeSignaturesForSessions(final Collection<Long> xids) {
+        final TypedQuery<Object[]> query = em.createNamedQuery("CandidateSessionOutcome.getOutcomeSignaturesForSessions", Object[].class);
+        query.setParameter("xids", xids);
+        return query.getResultList();
+    }
+
+    /**
+     * Opens a forward-only cursor over the flattened session, candidate and outcome data for
+     * all sessions launched on the given {@link Delivery}, ordered by session. Each row has
+     * one outcome and is an Object[] with the following elements:
+     * <ul>
+     *   <li>[0] xid (Long)</li>
+     *   <li>[1] session creation time (Date)</li>
+     *   <li>[2-4] candidate first name, last name and email address (String)</li>
+     *   <li>[5-6] session finish time and termination time (Date, possibly null)</li>
+     *   <li>[7] whether the session exploded (Boolean)</li>
+     *   <li>[8-9] LIS outcome reporting status and LIS score (possibly null)</li>
+     *   <li>[10-13] outcome identifier, base type, cardinality and string value</li>
+     * </ul>
+     * Rows are read from the database in chunks, so this is suitable for very large deliveries.
+     * The caller MUST close the resulting {@link ScrollableResults}.
+     *
+     * @param delivery {@link Delivery} to report on
+     * @param fetchSize number of rows to fetch from the database at a time
+     */
+    public ScrollableResults scrollSummaryRowsForDelivery(final Delivery delivery, final int fetchSize) {
+        final Session session = em.unwrap(Session.class);
+        final org.hibernate.Query query = session.getNamedQuery("CandidateSessionOutcome.getSummaryRowsForDelivery");
+        query.setParameter("delivery", delivery);
+        query.setFetchSize(fetchSize);
+        query.setReadOnly(true);
+        return query.scroll(ScrollMode.FORWARD_ONLY);
+    }
+
     public int deleteForCandidateSession(final CandidateSession candidateSession) {
         final Query query = em.createNamedQuery("CandidateSessionOutcome.deleteForSession");
         query.setParameter("candidateSession", candidateSession);
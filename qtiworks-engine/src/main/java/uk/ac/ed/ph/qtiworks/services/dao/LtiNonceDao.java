@@ -35,7 +35,9 @@ package uk.ac.ed.ph.qtiworks.services.dao;
 
 import uk.ac.ed.ph.qtiworks.domain.entities.LtiNonce;
 
+import java.util.Collection;
 import java.util.Date;
+import java.util.List;
 
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
@@ -69,6 +71,12 @@ public class LtiNonceDao extends GenericDao<LtiNonce> {
         return extractNullableFindResult(query);
     }
 
+    public List<LtiNonce> getForNonces(final Collection<String> nonces) {
+        final TypedQuery<LtiNonce> query = em.createNamedQuery("LtiNonce.getForNonces", LtiNonce.class);
+        query.setParameter("nonces", nonces);
+        return query.getResultList();
+    }
+
     public int deleteOldNonces(final Date threshold) {
         final Query query = em.createNamedQuery("LtiNonce.deleteOldNonces");
         query.setParameter("threshold", threshold);
@@ -37,6 +37,7 @@ import uk.ac.ed.ph.qtiworks.domain.entities.CandidateSession;
 import uk.ac.ed.ph.qtiworks.domain.entities.Delivery;
 import uk.ac.ed.ph.qtiworks.domain.entities.QueuedLtiOutcome;
 
+import java.util.Date;
 import java.util.List;
 
 import javax.persistence.EntityManager;
@@ -69,6 +70,34 @@ public class QueuedLtiOutcomeDao extends GenericDao<QueuedLtiOutcome> {
         return query.getResultList();
     }
 
+    /**
+     * Retrieves up to maxResults {@link QueuedLtiOutcome}s queued after the one having the
+     * given ID, skipping any that have been superseded by a later outcome for the same
+     * {@link CandidateSession}.
+     *
+     * @param afterQoid ID of the last {@link QueuedLtiOutcome} in the previous page, 0 to start
+     * @param timestamp if not null, only outcomes whose retry time is no later than this are returned
+     * @param maxResults maximum number of outcomes to return
+     */
+    public List<QueuedLtiOutcome> getNextQueuedOutcomes(final long afterQoid, final Date timestamp, final int maxResults) {
+        final TypedQuery<QueuedLtiOutcome> query;
+        if (timestamp!=null) {
+            query = em.createNamedQuery("QueuedLtiOutcome.getNextDueOutcomes", QueuedLtiOutcome.class);
+            query.setParameter("timestamp", timestamp);
+        }
+        else {
+            query = em.createNamedQuery("QueuedLtiOutcome.getNextOutcomes", QueuedLtiOutcome.class);
+        }
+        query.setParameter("afterQoid", Long.valueOf(afterQoid));
+        query.setMaxResults(maxResults);
+        return query.getResultList();
+    }
+
+    public List<QueuedLtiOutcome> getSupersededOutcomes() {
+        final TypedQuery<QueuedLtiOutcome> query = em.createNamedQuery("QueuedLtiOutcome.getSupersededOutcomes", QueuedLtiOutcome.class);
+        return query.getResultList();
+    }
+
     public int deleteForCandidateSession(final CandidateSession candidateSession) {
         final Query query = em.createNamedQuery("QueuedLtiOutcome.deleteForSession");
         query.setParameter("candidateSession", candidateSession);
@@ -35,6 +35,7 @@ package uk.ac.ed.ph.qtiworks.services.domain;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.Date;
 
 /**
@@ -61,4 +62,19 @@ public interface OutputStreamer {
     void stream(String contentType, long contentLength, Date lastModifiedTime, InputStream resultStream)
         throws IOException;
 
+    /**
+     * Alternative to {@link #stream(String, long, Date, InputStream)} for data whose length is not
+     * known in advance. The callback should return an {@link OutputStream} that the data will then
+     * be written to.
+     * <p>
+     * The caller will close the {@link OutputStream} once all of the data has been written.
+     *
+     * @param contentType
+     * @param lastModifiedTime
+     *
+     * @throws IOException if the implementor fails to provide a suitable stream
+     */
+    OutputStream openStream(String contentType, Date lastModifiedTime)
+        throws IOException;
+
 }
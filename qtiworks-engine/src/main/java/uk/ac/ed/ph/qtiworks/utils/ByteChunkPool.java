@@ -0,0 +1,136 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.qtiworks.utils;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded pool of fixed-size byte arrays ("chunks"), used to avoid allocating (and then
+ * garbage collecting) fresh buffers for short-lived output such as rendered pages.
+ * <p>
+ * Chunks are obtained via {@link #acquireChunk()} and should be handed back via
+ * {@link #releaseChunk(byte[])} once finished with. A new chunk is allocated whenever the
+ * pool is empty, and chunks released when the pool is already full are simply dropped,
+ * so the pool never retains more than <code>maxPooledChunks</code> chunks.
+ * <p>
+ * The number of chunks handed out and not yet released is also limited to
+ * <code>maxOutstandingChunks</code>. Once this limit is reached, {@link #acquireChunk()}
+ * returns null and callers should fall back to some other kind of storage. This caps the
+ * total memory used by callers of this pool, however many of them there are at once.
+ * <p>
+ * Usage: an instance of this class can be safely used by multiple threads.
+ *
+ * @see DeferredOutputStream
+ *
+ * @author David McKain
+ */
+public final class ByteChunkPool {
+
+    private final int chunkSize;
+    private final int maxOutstandingChunks;
+    private final BlockingQueue<byte[]> pooledChunks;
+    private final AtomicInteger outstandingChunkCount;
+
+    /**
+     * Creates a pool with no limit on the number of chunks that may be outstanding at once.
+     */
+    public ByteChunkPool(final int chunkSize, final int maxPooledChunks) {
+        this(chunkSize, maxPooledChunks, Integer.MAX_VALUE);
+    }
+
+    public ByteChunkPool(final int chunkSize, final int maxPooledChunks, final int maxOutstandingChunks) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive");
+        }
+        if (maxOutstandingChunks < 0) {
+            throw new IllegalArgumentException("maxOutstandingChunks must not be negative");
+        }
+        this.chunkSize = chunkSize;
+        this.maxOutstandingChunks = maxOutstandingChunks;
+        this.pooledChunks = maxPooledChunks > 0 ? new ArrayBlockingQueue<byte[]>(maxPooledChunks) : null;
+        this.outstandingChunkCount = new AtomicInteger();
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public int getMaxOutstandingChunks() {
+        return maxOutstandingChunks;
+    }
+
+    /** Returns the number of chunks currently held in the pool, ready for reuse */
+    public int getPooledChunkCount() {
+        return pooledChunks!=null ? pooledChunks.size() : 0;
+    }
+
+    /** Returns the number of chunks that have been acquired and not yet released */
+    public int getOutstandingChunkCount() {
+        return outstandingChunkCount.get();
+    }
+
+    /**
+     * Obtains a chunk from this pool, allocating a new one if the pool is empty.
+     *
+     * @return chunk, or null if <code>maxOutstandingChunks</code> chunks have already been
+     *   acquired and not released.
+     */
+    public byte[] acquireChunk() {
+        int current;
+        do {
+            current = outstandingChunkCount.get();
+            if (current >= maxOutstandingChunks) {
+                return null;
+            }
+        } while (!outstandingChunkCount.compareAndSet(current, current + 1));
+        final byte[] result = pooledChunks!=null ? pooledChunks.poll() : null;
+        return result!=null ? result : new byte[chunkSize];
+    }
+
+    /**
+     * Hands back a chunk previously obtained via {@link #acquireChunk()}. Each chunk must only
+     * be released once.
+     */
+    public void releaseChunk(final byte[] chunk) {
+        if (chunk.length!=chunkSize) {
+            throw new IllegalArgumentException("Chunk was not acquired from this pool");
+        }
+        outstandingChunkCount.decrementAndGet();
+        if (pooledChunks!=null) {
+            pooledChunks.offer(chunk);
+        }
+    }
+}
@@ -0,0 +1,261 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.qtiworks.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * {@link OutputStream} that holds the data written to it in memory, using chunks taken from
+ * a {@link ByteChunkPool}, until more than a given limit has been written or the pool refuses to
+ * supply any more chunks. At that point, everything written so far is passed on to the "overflow" {@link OutputStream} returned by
+ * {@link #openOverflowStream()}, which then receives all further data directly.
+ * <p>
+ * Until this overflow happens, the data written so far may be discarded via {@link #reset()}.
+ * Subclasses may also allow this afterwards via {@link #discardOverflowStream(OutputStream)}.
+ * <p>
+ * Note that {@link #flush()} does not force buffered data to overflow.
+ * <p>
+ * You MUST call {@link #release()} once finished so that the chunks are returned to the pool.
+ * <p>
+ * Usage: an instance of this class is NOT safe for use by multiple threads.
+ *
+ * @author David McKain
+ */
+public abstract class DeferredOutputStream extends OutputStream {
+
+    private final ByteChunkPool chunkPool;
+    private final int bufferLimit;
+    private final List<byte[]> chunks;
+    private int bufferedLength;
+    private long length;
+    private OutputStream overflowStream;
+
+    protected DeferredOutputStream(final ByteChunkPool chunkPool, final int bufferLimit) {
+        this.chunkPool = chunkPool;
+        this.bufferLimit = bufferLimit;
+        this.chunks = new ArrayList<byte[]>();
+        this.bufferedLength = 0;
+        this.length = 0L;
+        this.overflowStream = null;
+    }
+
+    /**
+     * Subclasses should implement this to open the {@link OutputStream} that data should be
+     * sent to once the buffer limit has been exceeded.
+     */
+    protected abstract OutputStream openOverflowStream() throws IOException;
+
+    /**
+     * Subclasses may override this to discard everything written to the given overflow stream
+     * so far, returning true on success. The default implementation does nothing and returns
+     * false.
+     */
+    protected boolean discardOverflowStream(final OutputStream stream) throws IOException {
+        return false;
+    }
+
+    //----------------------------------------------------
+
+    public int getBufferLimit() {
+        return bufferLimit;
+    }
+
+    /** Returns the total number of bytes written (and not discarded) so far */
+    public long getLength() {
+        return length;
+    }
+
+    /** Returns whether the data has overflowed from the memory buffer */
+    public boolean isOverflowed() {
+        return overflowStream!=null;
+    }
+
+    /**
+     * Returns an {@link InputStream} for reading the data held in the memory buffer. This must
+     * not be used once the buffer has overflowed, or modified afterwards.
+     */
+    public InputStream openBufferInputStream() {
+        ensureNotOverflowed();
+        final int chunkSize = chunkPool.getChunkSize();
+        final List<InputStream> chunkStreams = new ArrayList<InputStream>(chunks.size());
+        int remaining = bufferedLength;
+        for (final byte[] chunk : chunks) {
+            final int count = Math.min(remaining, chunkSize);
+            chunkStreams.add(new ByteArrayInputStream(chunk, 0, count));
+            remaining -= count;
+        }
+        return new SequenceInputStream(Collections.enumeration(chunkStreams));
+    }
+
+    //----------------------------------------------------
+
+    @Override
+    public void write(final int b) throws IOException {
+        if (overflowStream==null && (bufferedLength + 1 > bufferLimit || !ensureCapacity(1))) {
+            overflow();
+        }
+        if (overflowStream!=null) {
+            overflowStream.write(b);
+        }
+        else {
+            final byte[] chunk = getCurrentChunk();
+            chunk[bufferedLength % chunkPool.getChunkSize()] = (byte) b;
+            bufferedLength++;
+        }
+        length++;
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+        if (overflowStream==null && (bufferedLength + len > bufferLimit || !ensureCapacity(len))) {
+            overflow();
+        }
+        if (overflowStream!=null) {
+            overflowStream.write(b, off, len);
+        }
+        else {
+            final int chunkSize = chunkPool.getChunkSize();
+            int position = off;
+            int remaining = len;
+            while (remaining > 0) {
+                final byte[] chunk = getCurrentChunk();
+                final int chunkOffset = bufferedLength % chunkSize;
+                final int count = Math.min(remaining, chunkSize - chunkOffset);
+                System.arraycopy(b, position, chunk, chunkOffset, count);
+                position += count;
+                remaining -= count;
+                bufferedLength += count;
+            }
+        }
+        length += len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (overflowStream!=null) {
+            overflowStream.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (overflowStream!=null) {
+            overflowStream.close();
+        }
+    }
+
+    /**
+     * Discards all of the data written so far, if possible.
+     *
+     * @return true if the data was discarded, false if this was not possible because the data
+     *   has already overflowed and the overflow stream could not be discarded.
+     */
+    public boolean reset() throws IOException {
+        if (overflowStream!=null) {
+            if (!discardOverflowStream(overflowStream)) {
+                return false;
+            }
+            overflowStream = null;
+        }
+        releaseChunks();
+        length = 0L;
+        return true;
+    }
+
+    /**
+     * Returns the chunks used by this stream to the pool. The memory buffer may not be used
+     * afterwards. Subclasses should override this to release any other resources, calling up to
+     * this method.
+     */
+    public void release() {
+        releaseChunks();
+    }
+
+    //----------------------------------------------------
+
+    /**
+     * Acquires enough chunks to buffer a further <code>len</code> bytes, returning false if
+     * the pool would not supply them.
+     */
+    private boolean ensureCapacity(final int len) {
+        final int chunkSize = chunkPool.getChunkSize();
+        final int chunksRequired = (bufferedLength + len + chunkSize - 1) / chunkSize;
+        while (chunks.size() < chunksRequired) {
+            final byte[] chunk = chunkPool.acquireChunk();
+            if (chunk==null) {
+                return false;
+            }
+            chunks.add(chunk);
+        }
+        return true;
+    }
+
+    private byte[] getCurrentChunk() {
+        return chunks.get(bufferedLength / chunkPool.getChunkSize());
+    }
+
+    private void overflow() throws IOException {
+        final OutputStream stream = openOverflowStream();
+        final int chunkSize = chunkPool.getChunkSize();
+        int remaining = bufferedLength;
+        for (final byte[] chunk : chunks) {
+            final int count = Math.min(remaining, chunkSize);
+            stream.write(chunk, 0, count);
+            remaining -= count;
+        }
+        overflowStream = stream;
+        releaseChunks();
+    }
+
+    private void releaseChunks() {
+        for (final byte[] chunk : chunks) {
+            chunkPool.releaseChunk(chunk);
+        }
+        chunks.clear();
+        bufferedLength = 0;
+    }
+
+    private void ensureNotOverflowed() {
+        if (overflowStream!=null) {
+            throw new IllegalStateException("Data has already overflowed from the memory buffer");
+        }
+    }
+}
@@ -0,0 +1,301 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.qtiworks.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Calendar;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Writes a ZIP file whose entries have already been compressed, so that the (expensive)
+ * compression can be done in parallel elsewhere while the entries are still written out
+ * sequentially in a deterministic order. ({@link ZipOutputStream} can't do this as it always
+ * compresses entries itself.)
+ * <p>
+ * Entries are created using {@link #prepareEntry(String, byte[], boolean)}, which is thread-safe,
+ * then passed to {@link #writeEntry(PreparedEntry)}. Call {@link #finish()} once all entries have
+ * been written to write the ZIP central directory.
+ * <p>
+ * ZIP64 extensions are used automatically if the ZIP gets too large for the standard format.
+ * Each individual entry must be smaller than 4GB.
+ * <p>
+ * Usage: an instance of this class is NOT safe for use by multiple threads.
+ *
+ * @author David McKain
+ */
+public final class PreparedZipWriter {
+
+    private static final int LOCAL_FILE_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_FILE_HEADER_SIGNATURE = 0x02014b50;
+    private static final int ZIP64_END_OF_CENTRAL_DIR_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_END_OF_CENTRAL_DIR_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int END_OF_CENTRAL_DIR_SIGNATURE = 0x06054b50;
+
+    private static final int VERSION_DEFAULT = 20;
+    private static final int VERSION_ZIP64 = 45;
+
+    /** General purpose flag indicating that entry names are encoded as UTF-8 */
+    private static final int FLAG_UTF8 = 0x0800;
+
+    private static final long MAX_32 = 0xffffffffL;
+    private static final int MAX_16 = 0xffff;
+
+    private final OutputStream outputStream;
+    private final ByteArrayOutputStream centralDirectory;
+    private long offset;
+    private long entryCount;
+    private boolean finished;
+
+    public PreparedZipWriter(final OutputStream outputStream) {
+        this.outputStream = outputStream;
+        this.centralDirectory = new ByteArrayOutputStream();
+        this.offset = 0L;
+        this.entryCount = 0L;
+        this.finished = false;
+    }
+
+    /**
+     * Prepares a new ZIP entry having the given name and content, compressing the content
+     * if requested.
+     * <p>
+     * This is thread-safe, and is where most of the work happens.
+     *
+     * @param name name of the entry, which must not be null
+     * @param data uncompressed content of the entry, which must not be null
+     * @param compress true to DEFLATE the content, false to STORE it as-is.
+     */
+    public static PreparedEntry prepareEntry(final String name, final byte[] data, final boolean compress) {
+        final CRC32 crc32 = new CRC32();
+        crc32.update(data);
+        final byte[] entryData;
+        if (compress) {
+            final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            try {
+                deflater.setInput(data);
+                deflater.finish();
+                final ByteArrayOutputStream deflatedStream = new ByteArrayOutputStream(Math.max(64, data.length / 4));
+                final byte[] buffer = new byte[8192];
+                while (!deflater.finished()) {
+                    final int count = deflater.deflate(buffer);
+                    deflatedStream.write(buffer, 0, count);
+                }
+                entryData = deflatedStream.toByteArray();
+            }
+            finally {
+                deflater.end();
+            }
+        }
+        else {
+            entryData = data;
+        }
+        return new PreparedEntry(name, compress ? ZipEntry.DEFLATED : ZipEntry.STORED,
+                crc32.getValue(), data.length, entryData, System.currentTimeMillis());
+    }
+
+    /**
+     * Writes the given {@link PreparedEntry} to the ZIP.
+     */
+    public void writeEntry(final PreparedEntry entry) throws IOException {
+        if (finished) {
+            throw new IllegalStateException("ZIP has already been finished");
+        }
+        final byte[] nameBytes = entry.name.getBytes(Charsets.UTF_8);
+        final long dosTime = toDosTime(entry.time);
+        final long localHeaderOffset = offset;
+
+        /* Write local file header and data */
+        final ByteArrayOutputStream header = new ByteArrayOutputStream(30 + nameBytes.length);
+        writeInt(header, LOCAL_FILE_HEADER_SIGNATURE);
+        writeShort(header, VERSION_DEFAULT);
+        writeShort(header, FLAG_UTF8);
+        writeShort(header, entry.method);
+        writeInt(header, dosTime);
+        writeInt(header, entry.crc);
+        writeInt(header, entry.data.length);
+        writeInt(header, entry.size);
+        writeShort(header, nameBytes.length);
+        writeShort(header, 0);
+        header.write(nameBytes);
+        header.writeTo(outputStream);
+        outputStream.write(entry.data);
+        offset += header.size() + entry.data.length;
+
+        /* Record central directory header */
+        final boolean needsZip64 = localHeaderOffset >= MAX_32;
+        writeInt(centralDirectory, CENTRAL_FILE_HEADER_SIGNATURE);
+        writeShort(centralDirectory, needsZip64 ? VERSION_ZIP64 : VERSION_DEFAULT);
+        writeShort(centralDirectory, needsZip64 ? VERSION_ZIP64 : VERSION_DEFAULT);
+        writeShort(centralDirectory, FLAG_UTF8);
+        writeShort(centralDirectory, entry.method);
+        writeInt(centralDirectory, dosTime);
+        writeInt(centralDirectory, entry.crc);
+        writeInt(centralDirectory, entry.data.length);
+        writeInt(centralDirectory, entry.size);
+        writeShort(centralDirectory, nameBytes.length);
+        writeShort(centralDirectory, needsZip64 ? 12 : 0);
+        writeShort(centralDirectory, 0); /* (Comment length) */
+        writeShort(centralDirectory, 0); /* (Disk number) */
+        writeShort(centralDirectory, 0); /* (Internal attributes) */
+        writeInt(centralDirectory, 0); /* (External attributes) */
+        writeInt(centralDirectory, needsZip64 ? MAX_32 : localHeaderOffset);
+        centralDirectory.write(nameBytes);
+        if (needsZip64) {
+            writeShort(centralDirectory, 0x0001);
+            writeShort(centralDirectory, 8);
+            writeLong(centralDirectory, localHeaderOffset);
+        }
+        entryCount++;
+    }
+
+    /**
+     * Writes the ZIP central directory and flushes the underlying {@link OutputStream}.
+     * The caller is responsible for closing the stream.
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        final long centralDirectoryOffset = offset;
+        final long centralDirectorySize = centralDirectory.size();
+        centralDirectory.writeTo(outputStream);
+        offset += centralDirectorySize;
+
+        final ByteArrayOutputStream trailer = new ByteArrayOutputStream();
+        if (entryCount >= MAX_16 || centralDirectoryOffset >= MAX_32 || centralDirectorySize >= MAX_32) {
+            /* ZIP64 end of central directory record, followed by its locator */
+            final long zip64EndOffset = offset;
+            writeInt(trailer, ZIP64_END_OF_CENTRAL_DIR_SIGNATURE);
+            writeLong(trailer, 44L);
+            writeShort(trailer, VERSION_ZIP64);
+            writeShort(trailer, VERSION_ZIP64);
+            writeInt(trailer, 0);
+            writeInt(trailer, 0);
+            writeLong(trailer, entryCount);
+            writeLong(trailer, entryCount);
+            writeLong(trailer, centralDirectorySize);
+            writeLong(trailer, centralDirectoryOffset);
+
+            writeInt(trailer, ZIP64_END_OF_CENTRAL_DIR_LOCATOR_SIGNATURE);
+            writeInt(trailer, 0);
+            writeLong(trailer, zip64EndOffset);
+            writeInt(trailer, 1);
+        }
+        writeInt(trailer, END_OF_CENTRAL_DIR_SIGNATURE);
+        writeShort(trailer, 0);
+        writeShort(trailer, 0);
+        writeShort(trailer, (int) Math.min(entryCount, MAX_16));
+        writeShort(trailer, (int) Math.min(entryCount, MAX_16));
+        writeInt(trailer, Math.min(centralDirectorySize, MAX_32));
+        writeInt(trailer, Math.min(centralDirectoryOffset, MAX_32));
+        writeShort(trailer, 0);
+        trailer.writeTo(outputStream);
+        outputStream.flush();
+    }
+
+    private static long toDosTime(final long time) {
+        final Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        final int year = calendar.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return ((long) (year - 1980)) << 25
+                | (calendar.get(Calendar.MONTH) + 1) << 21
+                | calendar.get(Calendar.DAY_OF_MONTH) << 16
+                | calendar.get(Calendar.HOUR_OF_DAY) << 11
+                | calendar.get(Calendar.MINUTE) << 5
+                | calendar.get(Calendar.SECOND) >> 1;
+    }
+
+    private static void writeShort(final ByteArrayOutputStream stream, final int value) {
+        stream.write(value & 0xff);
+        stream.write((value >>> 8) & 0xff);
+    }
+
+    private static void writeInt(final ByteArrayOutputStream stream, final long value) {
+        writeShort(stream, (int) (value & 0xffff));
+        writeShort(stream, (int) ((value >>> 16) & 0xffff));
+    }
+
+    private static void writeLong(final ByteArrayOutputStream stream, final long value) {
+        writeInt(stream, value & MAX_32);
+        writeInt(stream, value >>> 32);
+    }
+
+    //--------------------------------------------------------------------------
+
+    /**
+     * Encapsulates a ZIP entry that is ready to be written out, as created by
+     * {@link PreparedZipWriter#prepareEntry(String, byte[], boolean)}.
+     */
+    public static final class PreparedEntry {
+
+        final String name;
+        final int method;
+        final long crc;
+        final long size;
+        final byte[] data;
+        final long time;
+
+        PreparedEntry(final String name, final int method, final long crc, final long size,
+                final byte[] data, final long time) {
+            this.name = name;
+            this.method = method;
+            this.crc = crc;
+            this.size = size;
+            this.data = data;
+            this.time = time;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getCompressedSize() {
+            return data.length;
+        }
+    }
+}
@@ -0,0 +1,540 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.qtiworks.utils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.DTDHandler;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXNotRecognizedException;
+import org.xml.sax.SAXNotSupportedException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.LocatorImpl;
+
+/**
+ * Immutable recording of the SAX events generated when parsing an XML document, which
+ * can be replayed any number of times into a {@link ContentHandler} without having to
+ * parse the document again.
+ * <p>
+ * Only the document content is recorded. DTD events and source locations are discarded.
+ * Comments and CDATA section boundaries are recorded if a {@link Builder} is registered as
+ * the parser's {@link LexicalHandler}, and are replayed only if a {@link LexicalHandler} is
+ * supplied.
+ * <p>
+ * Usage: an instance of this class can be safely replayed by multiple Threads concurrently.
+ * A {@link Builder} is not thread-safe.
+ *
+ * @author David McKain
+ */
+public final class SaxEventBuffer {
+
+    public static final String LEXICAL_HANDLER_PROPERTY = "http://xml.org/sax/properties/lexical-handler";
+    public static final String NAMESPACES_FEATURE = "http://xml.org/sax/features/namespaces";
+    public static final String NAMESPACE_PREFIXES_FEATURE = "http://xml.org/sax/features/namespace-prefixes";
+    public static final String VALIDATION_FEATURE = "http://xml.org/sax/features/validation";
+
+    private static final byte START_PREFIX_MAPPING = 1;
+    private static final byte END_PREFIX_MAPPING = 2;
+    private static final byte START_ELEMENT = 3;
+    private static final byte END_ELEMENT = 4;
+    private static final byte CHARACTERS = 5;
+    private static final byte IGNORABLE_WHITESPACE = 6;
+    private static final byte PROCESSING_INSTRUCTION = 7;
+    private static final byte COMMENT = 8;
+    private static final byte START_CDATA = 9;
+    private static final byte END_CDATA = 10;
+
+    private static final Attributes EMPTY_ATTRIBUTES = new AttributesImpl();
+
+    /** Recorded event types */
+    private final byte[] events;
+
+    /** String and {@link Attributes} arguments for each event, in order */
+    private final Object[] objectArgs;
+
+    /** Offset/length pairs into {@link #text} for character events, in order */
+    private final int[] textArgs;
+
+    /** All recorded character data, concatenated */
+    private final char[] text;
+
+    private SaxEventBuffer(final Builder builder) {
+        this.events = new byte[builder.eventCount];
+        System.arraycopy(builder.events, 0, events, 0, builder.eventCount);
+        this.objectArgs = builder.objectArgs.toArray();
+        this.textArgs = new int[builder.textArgCount];
+        System.arraycopy(builder.textArgs, 0, textArgs, 0, builder.textArgCount);
+        this.text = new char[builder.text.length()];
+        builder.text.getChars(0, text.length, text, 0);
+    }
+
+    /**
+     * Returns the number of recorded SAX events.
+     */
+    public int getEventCount() {
+        return events.length;
+    }
+
+    /**
+     * Returns a rough estimate of the memory used by this buffer, in bytes.
+     */
+    public long getEstimatedSize() {
+        long result = events.length + 4L * textArgs.length + 2L * text.length + 8L * objectArgs.length;
+        for (final Object objectArg : objectArgs) {
+            if (objectArg instanceof String) {
+                result += 2L * ((String) objectArg).length();
+            }
+            else if (objectArg instanceof Attributes) {
+                result += 64L * ((Attributes) objectArg).getLength();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns whether this buffer records any element in the given namespace having one
+     * of the given local names.
+     *
+     * @param namespaceUri namespace URI to look for, which must not be null
+     * @param localNames local names to look for, which must not be null
+     */
+    public boolean containsElement(final String namespaceUri, final Set<String> localNames) {
+        int objectIndex = 0;
+        for (final byte event : events) {
+            if (event==START_ELEMENT && namespaceUri.equals(objectArgs[objectIndex])
+                    && localNames.contains(objectArgs[objectIndex+1])) {
+                return true;
+            }
+            objectIndex += getObjectArgCount(event);
+        }
+        return false;
+    }
+
+    private static int getObjectArgCount(final byte event) {
+        switch (event) {
+            case START_PREFIX_MAPPING: return 2;
+            case END_PREFIX_MAPPING: return 1;
+            case START_ELEMENT: return 4;
+            case END_ELEMENT: return 3;
+            case PROCESSING_INSTRUCTION: return 2;
+            default: return 0;
+        }
+    }
+
+    /**
+     * Replays the recorded events into the given {@link ContentHandler}, including the
+     * start and end document events.
+     *
+     * @param contentHandler target {@link ContentHandler}, which must not be null
+     * @param lexicalHandler optional {@link LexicalHandler} to receive any recorded comments.
+     *   If null, comments will not be replayed.
+     * @param systemId optional system ID for the replayed document, passed to the
+     *   {@link ContentHandler} via a {@link Locator}
+     */
+    public void replay(final ContentHandler contentHandler, final LexicalHandler lexicalHandler,
+            final String systemId) throws SAXException {
+        replay(contentHandler, lexicalHandler, systemId, true);
+    }
+
+    /**
+     * Replays the recorded events into the given {@link ContentHandler}, including the
+     * start and end document events, optionally dropping any processing instructions.
+     *
+     * @param contentHandler target {@link ContentHandler}, which must not be null
+     * @param lexicalHandler optional {@link LexicalHandler} to receive any recorded comments.
+     *   If null, comments will not be replayed.
+     * @param systemId optional system ID for the replayed document, passed to the
+     *   {@link ContentHandler} via a {@link Locator}
+     * @param includeProcessingInstructions whether to replay processing instructions
+     */
+    public void replay(final ContentHandler contentHandler, final LexicalHandler lexicalHandler,
+            final String systemId, final boolean includeProcessingInstructions) throws SAXException {
+        if (systemId!=null) {
+            final LocatorImpl locator = new LocatorImpl();
+            locator.setSystemId(systemId);
+            contentHandler.setDocumentLocator(locator);
+        }
+        contentHandler.startDocument();
+        int objectIndex = 0;
+        int textIndex = 0;
+        for (final byte event : events) {
+            switch (event) {
+                case START_PREFIX_MAPPING:
+                    contentHandler.startPrefixMapping((String) objectArgs[objectIndex++], (String) objectArgs[objectIndex++]);
+                    break;
+
+                case END_PREFIX_MAPPING:
+                    contentHandler.endPrefixMapping((String) objectArgs[objectIndex++]);
+                    break;
+
+                case START_ELEMENT:
+                    contentHandler.startElement((String) objectArgs[objectIndex++], (String) objectArgs[objectIndex++],
+                            (String) objectArgs[objectIndex++], (Attributes) objectArgs[objectIndex++]);
+                    break;
+
+                case END_ELEMENT:
+                    contentHandler.endElement((String) objectArgs[objectIndex++], (String) objectArgs[objectIndex++],
+                            (String) objectArgs[objectIndex++]);
+                    break;
+
+                case CHARACTERS:
+                    contentHandler.characters(text, textArgs[textIndex++], textArgs[textIndex++]);
+                    break;
+
+                case IGNORABLE_WHITESPACE:
+                    contentHandler.ignorableWhitespace(text, textArgs[textIndex++], textArgs[textIndex++]);
+                    break;
+
+                case PROCESSING_INSTRUCTION:
+                    if (includeProcessingInstructions) {
+                        contentHandler.processingInstruction((String) objectArgs[objectIndex], (String) objectArgs[objectIndex+1]);
+                    }
+                    objectIndex += 2;
+                    break;
+
+                case COMMENT:
+                    if (lexicalHandler!=null) {
+                        lexicalHandler.comment(text, textArgs[textIndex], textArgs[textIndex+1]);
+                    }
+                    textIndex += 2;
+                    break;
+
+                case START_CDATA:
+                    if (lexicalHandler!=null) {
+                        lexicalHandler.startCDATA();
+                    }
+                    break;
+
+                case END_CDATA:
+                    if (lexicalHandler!=null) {
+                        lexicalHandler.endCDATA();
+                    }
+                    break;
+
+                default:
+                    throw new IllegalStateException("Unexpected event type " + event);
+            }
+        }
+        contentHandler.endDocument();
+    }
+
+    /**
+     * Creates a new {@link XMLReader} that will replay this buffer when asked to
+     * parse any {@link InputSource}. This is useful for passing this buffer to JAXP
+     * as a {@link javax.xml.transform.sax.SAXSource}.
+     */
+    public XMLReader createXMLReader() {
+        return new ReplayingXMLReader(this);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(this))
+                + "(eventCount=" + events.length
+                + ",textLength=" + text.length
+                + ")";
+    }
+
+    //-------------------------------------------------------------------
+
+    /**
+     * Records SAX events to create a {@link SaxEventBuffer}. Register this as both the
+     * {@link ContentHandler} and {@link LexicalHandler} of an {@link XMLReader}, parse
+     * your document, then call {@link #build()}.
+     */
+    public static final class Builder implements ContentHandler, LexicalHandler {
+
+        private byte[] events = new byte[256];
+        private int eventCount = 0;
+        private final List<Object> objectArgs = new ArrayList<Object>();
+        private int[] textArgs = new int[256];
+        private int textArgCount = 0;
+        private final StringBuilder text = new StringBuilder();
+        private int dtdDepth = 0;
+
+        public SaxEventBuffer build() {
+            return new SaxEventBuffer(this);
+        }
+
+        private void addEvent(final byte event) {
+            if (eventCount==events.length) {
+                final byte[] newEvents = new byte[events.length * 2];
+                System.arraycopy(events, 0, newEvents, 0, eventCount);
+                events = newEvents;
+            }
+            events[eventCount++] = event;
+        }
+
+        private void addText(final char[] ch, final int start, final int length) {
+            if (textArgCount + 2 > textArgs.length) {
+                final int[] newTextArgs = new int[textArgs.length * 2];
+                System.arraycopy(textArgs, 0, newTextArgs, 0, textArgCount);
+                textArgs = newTextArgs;
+            }
+            textArgs[textArgCount++] = text.length();
+            textArgs[textArgCount++] = length;
+            text.append(ch, start, length);
+        }
+
+        @Override
+        public void setDocumentLocator(final Locator locator) {
+            /* (Locations are not recorded) */
+        }
+
+        @Override
+        public void startDocument() {
+            /* (Replayed automatically) */
+        }
+
+        @Override
+        public void endDocument() {
+            /* (Replayed automatically) */
+        }
+
+        @Override
+        public void startPrefixMapping(final String prefix, final String uri) {
+            addEvent(START_PREFIX_MAPPING);
+            objectArgs.add(prefix);
+            objectArgs.add(uri);
+        }
+
+        @Override
+        public void endPrefixMapping(final String prefix) {
+            addEvent(END_PREFIX_MAPPING);
+            objectArgs.add(prefix);
+        }
+
+        @Override
+        public void startElement(final String uri, final String localName, final String qName, final Attributes atts) {
+            addEvent(START_ELEMENT);
+            objectArgs.add(uri);
+            objectArgs.add(localName);
+            objectArgs.add(qName);
+            objectArgs.add(atts.getLength()>0 ? new AttributesImpl(atts) : EMPTY_ATTRIBUTES);
+        }
+
+        @Override
+        public void endElement(final String uri, final String localName, final String qName) {
+            addEvent(END_ELEMENT);
+            objectArgs.add(uri);
+            objectArgs.add(localName);
+            objectArgs.add(qName);
+        }
+
+        @Override
+        public void characters(final char[] ch, final int start, final int length) {
+            addEvent(CHARACTERS);
+            addText(ch, start, length);
+        }
+
+        @Override
+        public void ignorableWhitespace(final char[] ch, final int start, final int length) {
+            addEvent(IGNORABLE_WHITESPACE);
+            addText(ch, start, length);
+        }
+
+        @Override
+        public void processingInstruction(final String target, final String data) {
+            addEvent(PROCESSING_INSTRUCTION);
+            objectArgs.add(target);
+            objectArgs.add(data);
+        }
+
+        @Override
+        public void skippedEntity(final String name) {
+            /* (Ignored) */
+        }
+
+        @Override
+        public void comment(final char[] ch, final int start, final int length) {
+            /* (Ignore any comments within the DTD) */
+            if (dtdDepth==0) {
+                addEvent(COMMENT);
+                addText(ch, start, length);
+            }
+        }
+
+        @Override
+        public void startDTD(final String name, final String publicId, final String systemId) {
+            dtdDepth++;
+        }
+
+        @Override
+        public void endDTD() {
+            dtdDepth--;
+        }
+
+        @Override
+        public void startEntity(final String name) {
+            /* (Ignored) */
+        }
+
+        @Override
+        public void endEntity(final String name) {
+            /* (Ignored) */
+        }
+
+        @Override
+        public void startCDATA() {
+            addEvent(START_CDATA);
+        }
+
+        @Override
+        public void endCDATA() {
+            addEvent(END_CDATA);
+        }
+    }
+
+    //-------------------------------------------------------------------
+
+    /**
+     * Trivial {@link XMLReader} that replays a {@link SaxEventBuffer} whenever asked to parse
+     * anything. The {@link InputSource} is only used to provide the system ID.
+     */
+    private static final class ReplayingXMLReader implements XMLReader {
+
+        private final SaxEventBuffer saxEventBuffer;
+        private ContentHandler contentHandler;
+        private LexicalHandler lexicalHandler;
+        private DTDHandler dtdHandler;
+        private EntityResolver entityResolver;
+        private ErrorHandler errorHandler;
+
+        public ReplayingXMLReader(final SaxEventBuffer saxEventBuffer) {
+            this.saxEventBuffer = saxEventBuffer;
+        }
+
+        @Override
+        public boolean getFeature(final String name) throws SAXNotRecognizedException {
+            if (NAMESPACES_FEATURE.equals(name)) {
+                return true;
+            }
+            else if (NAMESPACE_PREFIXES_FEATURE.equals(name) || VALIDATION_FEATURE.equals(name)) {
+                return false;
+            }
+            throw new SAXNotRecognizedException(name);
+        }
+
+        @Override
+        public void setFeature(final String name, final boolean value) throws SAXNotRecognizedException, SAXNotSupportedException {
+            if (getFeature(name)!=value) {
+                throw new SAXNotSupportedException(name + "=" + value);
+            }
+        }
+
+        @Override
+        public Object getProperty(final String name) throws SAXNotRecognizedException {
+            if (LEXICAL_HANDLER_PROPERTY.equals(name)) {
+                return lexicalHandler;
+            }
+            throw new SAXNotRecognizedException(name);
+        }
+
+        @Override
+        public void setProperty(final String name, final Object value) throws SAXNotRecognizedException, SAXNotSupportedException {
+            if (LEXICAL_HANDLER_PROPERTY.equals(name)) {
+                if (value!=null && !(value instanceof LexicalHandler)) {
+                    throw new SAXNotSupportedException(name);
+                }
+                this.lexicalHandler = (LexicalHandler) value;
+                return;
+            }
+            throw new SAXNotRecognizedException(name);
+        }
+
+        @Override
+        public void setEntityResolver(final EntityResolver resolver) {
+            this.entityResolver = resolver;
+        }
+
+        @Override
+        public EntityResolver getEntityResolver() {
+            return entityResolver;
+        }
+
+        @Override
+        public void setDTDHandler(final DTDHandler handler) {
+            this.dtdHandler = handler;
+        }
+
+        @Override
+        public DTDHandler getDTDHandler() {
+            return dtdHandler;
+        }
+
+        @Override
+        public void setContentHandler(final ContentHandler handler) {
+            this.contentHandler = handler;
+        }
+
+        @Override
+        public ContentHandler getContentHandler() {
+            return contentHandler;
+        }
+
+        @Override
+        public void setErrorHandler(final ErrorHandler handler) {
+            this.errorHandler = handler;
+        }
+
+        @Override
+        public ErrorHandler getErrorHandler() {
+            return errorHandler;
+        }
+
+        @Override
+        public void parse(final InputSource input) throws IOException, SAXException {
+            parse(input!=null ? input.getSystemId() : null);
+        }
+
+        @Override
+        public void parse(final String systemId) throws IOException, SAXException {
+            if (contentHandler==null) {
+                throw new SAXException("No ContentHandler has been set");
+            }
+            saxEventBuffer.replay(contentHandler, lexicalHandler, systemId);
+        }
+    }
+}
@@ -0,0 +1,291 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.qtiworks.utils;
+
+import uk.ac.ed.ph.jqtiplus.internal.util.Assert;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Predicate;
+import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.Striped;
+
+/**
+ * Queues up values to be written out by a {@link ValueWriter}, keyed on some identifier,
+ * and writes them in the background.
+ * <p>
+ * Values are coalesced per key, so only the most recent value waiting to be written for each
+ * key gets written. Writes for the same key are serialized. If a write fails, the value is put
+ * back on the queue (unless a newer value has since arrived) and the write is retried after
+ * a delay, so values are only ever lost by calling {@link #discard(Object)}.
+ * <p>
+ * If created with no background threads, values are simply written as soon as they are submitted.
+ * <p>
+ * This class knows nothing about the entity model, so can be used (and tested) standalone.
+ * Call {@link #shutdown(long)} once finished with it, which writes out anything still waiting.
+ * <p>
+ * Usage: an instance of this class is safe to use concurrently by multiple threads.
+ *
+ * @author David McKain
+ */
+public final class WriteBehindQueue<K, V> {
+
+    private static final Logger logger = LoggerFactory.getLogger(WriteBehindQueue.class);
+
+    /**
+     * Callback interface for actually writing values.
+     */
+    public interface ValueWriter<K, V> {
+
+        void write(K key, V value);
+
+    }
+
+    private final ValueWriter<K, V> valueWriter;
+    private final long retryDelay;
+
+    /** Values waiting to be written */
+    private final ConcurrentMap<K, V> pendingValueMap;
+
+    /** Values currently being written */
+    private final ConcurrentMap<K, V> writingValueMap;
+
+    /** Serializes writes for each key */
+    private final Striped<Lock> keyLocks;
+
+    /** Runs background writes, or null if everything should be written immediately */
+    private final ScheduledThreadPoolExecutor executorService;
+
+    private volatile boolean shuttingDown;
+
+    /**
+     * Creates a new queue.
+     *
+     * @param valueWriter used to write out values
+     * @param threadCount number of threads to use for writing values in the background,
+     *   or 0 to write them immediately.
+     * @param retryDelay delay (in ms) to wait before retrying failed writes
+     * @param threadNamePrefix prefix for the names of background threads
+     */
+    public WriteBehindQueue(final ValueWriter<K, V> valueWriter, final int threadCount, final long retryDelay,
+            final String threadNamePrefix) {
+        Assert.notNull(valueWriter, "valueWriter");
+        Assert.notNull(threadNamePrefix, "threadNamePrefix");
+        if (threadCount<0) {
+            throw new IllegalArgumentException("threadCount must not be negative");
+        }
+        if (retryDelay<0L) {
+            throw new IllegalArgumentException("retryDelay must not be negative");
+        }
+        this.valueWriter = valueWriter;
+        this.retryDelay = retryDelay;
+        this.pendingValueMap = new ConcurrentHashMap<K, V>();
+        this.writingValueMap = new ConcurrentHashMap<K, V>();
+        this.keyLocks = Striped.lock(64);
+        if (threadCount > 0) {
+            executorService = new ScheduledThreadPoolExecutor(threadCount, new NamedDaemonThreadFactory(threadNamePrefix));
+
+            /* (Retries waiting to happen at shutdown are done by shutdown() instead) */
+            executorService.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        }
+        else {
+            executorService = null;
+        }
+    }
+
+    /**
+     * Submits the given value to be written for the given key.
+     *
+     * @param writeNow if true, the value is written before this method returns, replacing
+     *   anything older that's waiting to be written. (This also happens if this queue has no
+     *   background threads or is shutting down.) Any failure is then propagated to the caller.
+     */
+    public void submit(final K key, final V value, final boolean writeNow) {
+        Assert.notNull(key, "key");
+        Assert.notNull(value, "value");
+        if (executorService==null || shuttingDown || writeNow) {
+            final Lock lock = keyLocks.get(key);
+            lock.lock();
+            try {
+                pendingValueMap.remove(key);
+                valueWriter.write(key, value);
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+        else if (pendingValueMap.put(key, value)==null) {
+            /* Nothing was waiting, so schedule a write. (Otherwise the scheduled write will
+             * pick up this newer value instead.)
+             */
+            scheduleWrite(key, 0L);
+        }
+    }
+
+    /**
+     * Writes out any value waiting to be written for the given key, returning once this
+     * (and any write already in progress) has finished. If the write fails then the value
+     * remains queued and the failure is propagated to the caller.
+     */
+    public void flush(final K key) {
+        Assert.notNull(key, "key");
+        writePending(key);
+    }
+
+    /**
+     * Discards any value waiting to be written for the given key, waiting for any write
+     * already in progress to finish.
+     */
+    public void discard(final K key) {
+        Assert.notNull(key, "key");
+        final Lock lock = keyLocks.get(key);
+        lock.lock();
+        try {
+            pendingValueMap.remove(key);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the keys of all values waiting to be written or currently being written
+     * that satisfy the given {@link Predicate}.
+     */
+    public Set<K> findKeys(final Predicate<? super V> predicate) {
+        Assert.notNull(predicate, "predicate");
+        final Set<K> result = new HashSet<K>();
+        for (final Entry<K, V> entry : Iterables.concat(pendingValueMap.entrySet(), writingValueMap.entrySet())) {
+            if (predicate.apply(entry.getValue())) {
+                result.add(entry.getKey());
+            }
+        }
+        return result;
+    }
+
+    /** Returns the number of values currently waiting to be written */
+    public int getPendingCount() {
+        return pendingValueMap.size();
+    }
+
+    /**
+     * Stops writing in the background, waiting up to the given time for background writes
+     * to finish, then writes out anything still waiting.
+     *
+     * @param timeout maximum time (in ms) to wait for background writes to finish
+     */
+    public void shutdown(final long timeout) {
+        shuttingDown = true;
+        if (executorService!=null) {
+            executorService.shutdown();
+            try {
+                if (!executorService.awaitTermination(timeout, TimeUnit.MILLISECONDS)) {
+                    logger.warn("Timed out waiting for background writes to finish");
+                }
+            }
+            catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (final K key : new ArrayList<K>(pendingValueMap.keySet())) {
+            try {
+                writePending(key);
+            }
+            catch (final RuntimeException e) {
+                logger.error("Failed to write value for key {} during shutdown", key, e);
+            }
+        }
+    }
+
+    //-------------------------------------------------
+
+    private void scheduleWrite(final K key, final long delay) {
+        try {
+            executorService.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        writePending(key);
+                    }
+                    catch (final RuntimeException e) {
+                        logger.error("Failed to write value for key {}. Will retry in {}ms", new Object[] { key, retryDelay, e });
+                    }
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+        catch (final RejectedExecutionException e) {
+            /* Shutting down, so shutdown() will write this out instead */
+        }
+    }
+
+    private void writePending(final K key) {
+        final Lock lock = keyLocks.get(key);
+        lock.lock();
+        try {
+            final V value = pendingValueMap.remove(key);
+            if (value!=null) {
+                writingValueMap.put(key, value);
+                try {
+                    valueWriter.write(key, value);
+                }
+                catch (final RuntimeException e) {
+                    /* Put value back, unless something newer has arrived, and try again later */
+                    pendingValueMap.putIfAbsent(key, value);
+                    if (executorService!=null && !shuttingDown) {
+                        scheduleWrite(key, retryDelay);
+                    }
+                    throw e;
+                }
+                finally {
+                    writingValueMap.remove(key);
+                }
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+}
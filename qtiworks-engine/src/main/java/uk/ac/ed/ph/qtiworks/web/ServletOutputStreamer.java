@@ -75,8 +75,24 @@ public final class ServletOutputStreamer implements OutputStreamer {
             final InputStream resultStream)
             throws IOException {
         /* Set appropriate headers */
-        httpServletResponse.setContentType(contentType);
         httpServletResponse.setContentLength((int) contentLength); /* Huge files aren't going to happen... */
+        setHeaders(contentType, lastModifiedTime);
+
+        /* Finally stream data to ServletOutputStream */
+        final ServletOutputStream servletOutputStream = httpServletResponse.getOutputStream();
+        ByteStreams.copy(resultStream, servletOutputStream);
+    }
+
+    @Override
+    public OutputStream openStream(final String contentType, final Date lastModifiedTime)
+            throws IOException {
+        /* (No Content-Length here, so the container will send the data using chunked encoding) */
+        setHeaders(contentType, lastModifiedTime);
+        return httpServletResponse.getOutputStream();
+    }
+
+    private void setHeaders(final String contentType, final Date lastModifiedTime) {
+        httpServletResponse.setContentType(contentType);
         if (lastModifiedTime!=null) {
             httpServletResponse.setHeader("Last-Modified", WebUtilities.formatHttpDate(lastModifiedTime));
         }
@@ -89,9 +105,5 @@ public final class ServletOutputStreamer implements OutputStreamer {
         else {
             httpServletResponse.setHeader("Cache-Control", "private, no-cache, no-store, max-age=0, must-revalidate");
         }
-
-        /* Finally stream data to ServletOutputStream */
-        final ServletOutputStream servletOutputStream = httpServletResponse.getOutputStream();
-        ByteStreams.copy(resultStream, servletOutputStream);
     }
 }
@@ -20,8 +20,9 @@ Input document: doesn't matter
 
   <xsl:import href="author-view-common.xsl"/>
 
-  <!-- State of item being rendered -->
-  <xsl:param name="itemSessionState" as="element(qw:itemSessionState)"/>
+  <!-- State of item being rendered (passed as a document built directly from the JQTI+ state) -->
+  <xsl:param name="itemSessionStateDocument" as="document-node(element(qw:itemSessionState))"/>
+  <xsl:variable name="itemSessionState" select="$itemSessionStateDocument/qw:itemSessionState" as="element(qw:itemSessionState)"/>
 
   <!-- ************************************************************ -->
 
@@ -515,7 +515,7 @@ rendering.
       <xsl:when test="not(empty(@unboundResponseIdentifiers) and empty(@invalidResponseIdentifiers))">
         <span class="itemStatus invalid">Needs Attention</span>
       </xsl:when>
-      <xsl:when test="@responded='true' or exists(qw:uncommittedResponseValue)">
+      <xsl:when test="@responded='true' or @hasUncommittedResponses='true' or exists(qw:uncommittedResponseValue)">
         <span class="itemStatus answered">Answered</span>
       </xsl:when>
       <xsl:when test="@entryTime!=''">
@@ -0,0 +1,91 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.qtiworks.rendering;
+
+import java.io.InputStream;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * Tests parts of the {@link AssessmentRenderer} that can be checked standalone.
+ *
+ * @author David McKain
+ */
+public class AssessmentRendererTest {
+
+    private static final String XSL_NAMESPACE_URI = "http://www.w3.org/1999/XSL/Transform";
+
+    /** Matches MathML element names (using the m: prefix declared by ctop.xsl) */
+    private static final Pattern MATHML_NAME_PATTERN = Pattern.compile("m:([A-Za-z][\\w-]*(?:\\.[\\w-]+)*)");
+
+    /**
+     * Checks that the MathML elements we look for before running ctop.xsl are exactly the ones
+     * named in its template match patterns.
+     */
+    @Test
+    public void testCtopConvertedMathmlElementNames() throws Exception {
+        final DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
+        documentBuilderFactory.setNamespaceAware(true);
+        final InputStream ctopStream = getClass().getResourceAsStream("/rendering-xslt/ctop.xsl");
+        Assert.assertNotNull(ctopStream);
+        final Document ctopDocument;
+        try {
+            ctopDocument = documentBuilderFactory.newDocumentBuilder().parse(ctopStream);
+        }
+        finally {
+            ctopStream.close();
+        }
+
+        final Set<String> matchedNames = new TreeSet<String>();
+        final NodeList templates = ctopDocument.getElementsByTagNameNS(XSL_NAMESPACE_URI, "template");
+        for (int i=0; i<templates.getLength(); i++) {
+            final Matcher matcher = MATHML_NAME_PATTERN.matcher(((Element) templates.item(i)).getAttribute("match"));
+            while (matcher.find()) {
+                matchedNames.add(matcher.group(1));
+            }
+        }
+        Assert.assertTrue(matchedNames.contains("lambda"));
+        Assert.assertEquals(matchedNames, new TreeSet<String>(AssessmentRenderer.ctopConvertedMathmlElementNames));
+    }
+}
@@ -0,0 +1,129 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.qtiworks.rendering;
+
+import uk.ac.ed.ph.qtiworks.utils.SaxEventBuffer;
+
+import uk.ac.ed.ph.jqtiplus.xmlutils.locators.ResourceLocator;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the {@link AssessmentSourceCache} class
+ *
+ * @author David McKain
+ */
+public class AssessmentSourceCacheTest {
+
+    public static final URI ITEM1_URI = URI.create("test:/item1.xml");
+    public static final URI ITEM2_URI = URI.create("test:/item2.xml");
+    public static final URI MISSING_URI = URI.create("test:/missing.xml");
+
+    private AssessmentSourceCache assessmentSourceCache;
+    private CountingResourceLocator resourceLocator;
+
+    @Before
+    public void setup() {
+        assessmentSourceCache = new AssessmentSourceCache(0);
+        resourceLocator = new CountingResourceLocator();
+        resourceLocator.documents.put(ITEM1_URI, "<item1/>");
+        resourceLocator.documents.put(ITEM2_URI, "<item2/>");
+    }
+
+    @Test
+    public void testHit() {
+        final SaxEventBuffer buffer1 = assessmentSourceCache.getSaxEventBuffer(Long.valueOf(1L), ITEM1_URI, resourceLocator);
+        final SaxEventBuffer buffer2 = assessmentSourceCache.getSaxEventBuffer(Long.valueOf(1L), ITEM1_URI, resourceLocator);
+        Assert.assertNotNull(buffer1);
+        Assert.assertSame(buffer1, buffer2);
+        Assert.assertEquals(1, resourceLocator.findCount);
+        Assert.assertEquals(1L, assessmentSourceCache.getCacheUsage());
+    }
+
+    @Test
+    public void testOwnersKeptSeparate() {
+        final SaxEventBuffer buffer1 = assessmentSourceCache.getSaxEventBuffer(Long.valueOf(1L), ITEM1_URI, resourceLocator);
+        final SaxEventBuffer buffer2 = assessmentSourceCache.getSaxEventBuffer(Long.valueOf(2L), ITEM1_URI, resourceLocator);
+        Assert.assertNotSame(buffer1, buffer2);
+        Assert.assertEquals(2L, assessmentSourceCache.getCacheUsage());
+    }
+
+    @Test
+    public void testMissing() {
+        Assert.assertNull(assessmentSourceCache.getSaxEventBuffer(Long.valueOf(1L), MISSING_URI, resourceLocator));
+        Assert.assertEquals(0L, assessmentSourceCache.getCacheUsage());
+    }
+
+    @Test(expected=QtiWorksRenderingException.class)
+    public void testIllFormed() {
+        resourceLocator.documents.put(ITEM1_URI, "<item1>");
+        assessmentSourceCache.getSaxEventBuffer(Long.valueOf(1L), ITEM1_URI, resourceLocator);
+    }
+
+    @Test
+    public void testPurge() {
+        final SaxEventBuffer owner1Item1 = assessmentSourceCache.getSaxEventBuffer(Long.valueOf(1L), ITEM1_URI, resourceLocator);
+        assessmentSourceCache.getSaxEventBuffer(Long.valueOf(1L), ITEM2_URI, resourceLocator);
+        final SaxEventBuffer owner2Item1 = assessmentSourceCache.getSaxEventBuffer(Long.valueOf(2L), ITEM1_URI, resourceLocator);
+        Assert.assertEquals(3L, assessmentSourceCache.getCacheUsage());
+
+        assessmentSourceCache.purge(Long.valueOf(1L));
+        Assert.assertEquals(1L, assessmentSourceCache.getCacheUsage());
+        Assert.assertSame(owner2Item1, assessmentSourceCache.getSaxEventBuffer(Long.valueOf(2L), ITEM1_URI, resourceLocator));
+        Assert.assertNotSame(owner1Item1, assessmentSourceCache.getSaxEventBuffer(Long.valueOf(1L), ITEM1_URI, resourceLocator));
+    }
+
+    //-------------------------------------------------------
+
+    private static final class CountingResourceLocator implements ResourceLocator {
+
+        final Map<URI, String> documents = new HashMap<URI, String>();
+        int findCount;
+
+        @Override
+        public InputStream findResource(final URI systemId) {
+            findCount++;
+            final String document = documents.get(systemId);
+            return document!=null ? new ByteArrayInputStream(document.getBytes()) : null;
+        }
+    }
+}
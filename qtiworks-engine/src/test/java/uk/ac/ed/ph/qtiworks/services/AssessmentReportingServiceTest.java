@@ -0,0 +1,192 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.qtiworks.services;
+
+import uk.ac.ed.ph.qtiworks.services.domain.CandidateSessionSummaryMetadata;
+
+import uk.ac.ed.ph.jqtiplus.value.BaseType;
+import uk.ac.ed.ph.jqtiplus.value.Cardinality;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks that the outcome columns of the streamed candidate summary CSV come out in the same
+ * order as those of the in-memory report built by
+ * {@link AssessmentReportingService#buildDeliveryCandidateSummaryReport(uk.ac.ed.ph.qtiworks.domain.entities.Delivery)}.
+ *
+ * @author David McKain
+ */
+public class AssessmentReportingServiceTest {
+
+    @Test
+    public void testSingleSession() {
+        final List<Outcome> outcomes = new ArrayList<Outcome>();
+        outcomes.add(new Outcome(1L, 3L, "SCORE", BaseType.FLOAT, Cardinality.SINGLE));
+        outcomes.add(new Outcome(1L, 1L, "completionStatus", BaseType.IDENTIFIER, Cardinality.SINGLE));
+        outcomes.add(new Outcome(1L, 2L, "duration", BaseType.FLOAT, Cardinality.SINGLE));
+        assertSameColumns(outcomes);
+    }
+
+    @Test
+    public void testInterleavedSessions() {
+        /* Later sessions may record their outcomes before earlier ones, and in a different order */
+        final List<Outcome> outcomes = new ArrayList<Outcome>();
+        outcomes.add(new Outcome(2L, 1L, "B", BaseType.INTEGER, Cardinality.SINGLE));
+        outcomes.add(new Outcome(2L, 2L, "A", BaseType.INTEGER, Cardinality.SINGLE));
+        outcomes.add(new Outcome(2L, 3L, "X", BaseType.STRING, Cardinality.SINGLE));
+        outcomes.add(new Outcome(1L, 4L, "A", BaseType.INTEGER, Cardinality.SINGLE));
+        outcomes.add(new Outcome(1L, 5L, "C", BaseType.INTEGER, Cardinality.SINGLE));
+        outcomes.add(new Outcome(1L, 6L, "B", BaseType.INTEGER, Cardinality.SINGLE));
+        outcomes.add(new Outcome(3L, 7L, "D", BaseType.INTEGER, Cardinality.SINGLE));
+        outcomes.add(new Outcome(3L, 8L, "Y", BaseType.STRING, Cardinality.SINGLE));
+        outcomes.add(new Outcome(3L, 9L, "A", BaseType.INTEGER, Cardinality.SINGLE));
+        assertSameColumns(outcomes);
+    }
+
+    @Test
+    public void testChangingSignatures() {
+        /* The same identifier may be recorded with different types in different sessions */
+        final List<Outcome> outcomes = new ArrayList<Outcome>();
+        outcomes.add(new Outcome(1L, 1L, "A", BaseType.INTEGER, Cardinality.SINGLE));
+        outcomes.add(new Outcome(1L, 2L, "B", BaseType.INTEGER, Cardinality.MULTIPLE));
+        outcomes.add(new Outcome(2L, 3L, "B", BaseType.INTEGER, Cardinality.SINGLE));
+        outcomes.add(new Outcome(2L, 4L, "A", BaseType.STRING, Cardinality.SINGLE));
+        outcomes.add(new Outcome(2L, 5L, "C", null, Cardinality.SINGLE));
+        outcomes.add(new Outcome(3L, 0L, "D", BaseType.FLOAT, Cardinality.SINGLE));
+        outcomes.add(new Outcome(3L, 6L, "C", BaseType.FLOAT, Cardinality.SINGLE));
+        assertSameColumns(outcomes);
+    }
+
+    @Test
+    public void testNoOutcomes() {
+        final CandidateSessionSummaryMetadata metadata = AssessmentReportingService.createCandidateSessionSummaryMetadata(null,
+                Collections.<Object[]>emptyList(), Collections.<Object[]>emptyList());
+        Assert.assertTrue(metadata.getNumericOutcomeIdentifiers().isEmpty());
+        Assert.assertTrue(metadata.getOtherOutcomeIdentifiers().isEmpty());
+    }
+
+    //-------------------------------------------------
+
+    private static void assertSameColumns(final List<Outcome> outcomes) {
+        /* Sort as CandidateSessionOutcome.getForDelivery does */
+        final List<Outcome> sortedOutcomes = new ArrayList<Outcome>(outcomes);
+        Collections.sort(sortedOutcomes, new Comparator<Outcome>() {
+            @Override
+            public int compare(final Outcome o1, final Outcome o2) {
+                if (o1.xid!=o2.xid) {
+                    return o1.xid < o2.xid ? -1 : 1;
+                }
+                return o1.xoid < o2.xoid ? -1 : (o1.xoid==o2.xoid ? 0 : 1);
+            }
+        });
+
+        /* Work out expected columns in the same way as buildDeliveryCandidateSummaryReport() */
+        final LinkedHashSet<String> expectedNumeric = new LinkedHashSet<String>();
+        final LinkedHashSet<String> expectedOther = new LinkedHashSet<String>();
+        for (final Outcome outcome : sortedOutcomes) {
+            if (outcome.isNumeric()) {
+                expectedNumeric.add(outcome.identifier);
+            }
+            else {
+                expectedOther.add(outcome.identifier);
+            }
+        }
+
+        /* Simulate CandidateSessionOutcome.getOutcomeSignaturesForDelivery (unordered) */
+        final Map<List<Object>, Long> firstXidBySignature = new LinkedHashMap<List<Object>, Long>();
+        for (final Outcome outcome : outcomes) {
+            final Long firstXid = firstXidBySignature.get(outcome.signature());
+            if (firstXid==null || outcome.xid < firstXid.longValue()) {
+                firstXidBySignature.put(outcome.signature(), Long.valueOf(outcome.xid));
+            }
+        }
+        final List<Object[]> outcomeSignatures = new ArrayList<Object[]>();
+        for (final Map.Entry<List<Object>, Long> entry : firstXidBySignature.entrySet()) {
+            final List<Object> signature = entry.getKey();
+            outcomeSignatures.add(new Object[] { signature.get(0), signature.get(1), signature.get(2), entry.getValue() });
+        }
+        Collections.reverse(outcomeSignatures);
+
+        /* Simulate CandidateSessionOutcome.getOutcomeSignaturesForSessions */
+        final Set<Long> firstXids = new HashSet<Long>(firstXidBySignature.values());
+        final List<Object[]> firstSessionOutcomeSignatures = new ArrayList<Object[]>();
+        for (final Outcome outcome : sortedOutcomes) {
+            if (firstXids.contains(Long.valueOf(outcome.xid))) {
+                firstSessionOutcomeSignatures.add(new Object[] { Long.valueOf(outcome.xid), outcome.identifier, outcome.baseType, outcome.cardinality });
+            }
+        }
+
+        final CandidateSessionSummaryMetadata metadata = AssessmentReportingService.createCandidateSessionSummaryMetadata(null,
+                outcomeSignatures, firstSessionOutcomeSignatures);
+        Assert.assertEquals(new ArrayList<String>(expectedNumeric), metadata.getNumericOutcomeIdentifiers());
+        Assert.assertEquals(new ArrayList<String>(expectedOther), metadata.getOtherOutcomeIdentifiers());
+    }
+
+    private static final class Outcome {
+
+        final long xid;
+        final long xoid;
+        final String identifier;
+        final BaseType baseType;
+        final Cardinality cardinality;
+
+        Outcome(final long xid, final long xoid, final String identifier, final BaseType baseType, final Cardinality cardinality) {
+            this.xid = xid;
+            this.xoid = xoid;
+            this.identifier = identifier;
+            this.baseType = baseType;
+            this.cardinality = cardinality;
+        }
+
+        List<Object> signature() {
+            return Arrays.<Object>asList(identifier, baseType, cardinality);
+        }
+
+        boolean isNumeric() {
+            return baseType!=null && baseType.isNumeric() && cardinality==Cardinality.SINGLE;
+        }
+    }
+}
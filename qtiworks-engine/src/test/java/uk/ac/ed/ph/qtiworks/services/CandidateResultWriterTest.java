@@ -0,0 +1,169 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.qtiworks.services;
+
+import uk.ac.ed.ph.qtiworks.domain.entities.CandidateSession;
+import uk.ac.ed.ph.qtiworks.domain.entities.CandidateSessionOutcome;
+
+import uk.ac.ed.ph.jqtiplus.value.BaseType;
+import uk.ac.ed.ph.jqtiplus.value.Cardinality;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link CandidateResultWriter#updateOutcomes(CandidateResultWriter.OutcomeStore, CandidateSession, List)}
+ * using a fake {@link CandidateResultWriter.OutcomeStore} that behaves like JPA within a transaction.
+ *
+ * @author David McKain
+ */
+public class CandidateResultWriterTest {
+
+    private CandidateSession candidateSession;
+    private FakeOutcomeStore outcomeStore;
+
+    @Before
+    public void setup() {
+        candidateSession = new CandidateSession();
+        candidateSession.setId(Long.valueOf(1L));
+        outcomeStore = new FakeOutcomeStore();
+    }
+
+    @Test
+    public void testRetryAfterRollback() {
+        final List<CandidateSessionOutcome> outcomes = Arrays.asList(
+                createOutcome("SCORE", BaseType.FLOAT, "1.0"),
+                createOutcome("PASSED", BaseType.BOOLEAN, "true"));
+
+        /* First write fails and rolls back */
+        CandidateResultWriter.updateOutcomes(outcomeStore, candidateSession, outcomes);
+        outcomeStore.rollback();
+        Assert.assertTrue(outcomeStore.getStoredValues().isEmpty());
+
+        /* Retry with the same outcomes should succeed */
+        CandidateResultWriter.updateOutcomes(outcomeStore, candidateSession, outcomes);
+        outcomeStore.commit();
+        final Map<String, String> expected = new HashMap<String, String>();
+        expected.put("SCORE", "1.0");
+        expected.put("PASSED", "true");
+        Assert.assertEquals(expected, outcomeStore.getStoredValues());
+    }
+
+    @Test
+    public void testUpdateOutcomes() {
+        CandidateResultWriter.updateOutcomes(outcomeStore, candidateSession, Arrays.asList(
+                createOutcome("SCORE", BaseType.FLOAT, "1.0"),
+                createOutcome("FEEDBACK", BaseType.IDENTIFIER, "A"),
+                createOutcome("STALE", BaseType.BOOLEAN, "true")));
+        outcomeStore.commit();
+
+        CandidateResultWriter.updateOutcomes(outcomeStore, candidateSession, Arrays.asList(
+                createOutcome("SCORE", BaseType.FLOAT, "2.0"),
+                createOutcome("FEEDBACK", BaseType.STRING, "B")));
+        outcomeStore.commit();
+
+        final Map<String, String> expected = new HashMap<String, String>();
+        expected.put("SCORE", "2.0");
+        expected.put("FEEDBACK", "B");
+        Assert.assertEquals(expected, outcomeStore.getStoredValues());
+    }
+
+    private CandidateSessionOutcome createOutcome(final String identifier, final BaseType baseType, final String value) {
+        final CandidateSessionOutcome result = new CandidateSessionOutcome();
+        result.setCandidateSession(candidateSession);
+        result.setOutcomeIdentifier(identifier);
+        result.setBaseType(baseType);
+        result.setCardinality(Cardinality.SINGLE);
+        result.setStringValue(value);
+        return result;
+    }
+
+    /**
+     * Fake {@link CandidateResultWriter.OutcomeStore} that assigns IDs when persisting and
+     * refuses to persist entities that already have one, like JPA does for detached entities.
+     * Changes only take effect on {@link #commit()}.
+     */
+    private static final class FakeOutcomeStore implements CandidateResultWriter.OutcomeStore {
+
+        private final List<CandidateSessionOutcome> stored = new ArrayList<CandidateSessionOutcome>();
+        private final List<CandidateSessionOutcome> persisted = new ArrayList<CandidateSessionOutcome>();
+        private final List<CandidateSessionOutcome> removed = new ArrayList<CandidateSessionOutcome>();
+        private long nextId = 1L;
+
+        @Override
+        public List<CandidateSessionOutcome> getForSession(final CandidateSession candidateSession) {
+            return new ArrayList<CandidateSessionOutcome>(stored);
+        }
+
+        @Override
+        public void persist(final CandidateSessionOutcome outcome) {
+            if (outcome.getId()!=null) {
+                throw new IllegalStateException("detached entity passed to persist");
+            }
+            outcome.setId(Long.valueOf(nextId++));
+            persisted.add(outcome);
+        }
+
+        @Override
+        public void remove(final CandidateSessionOutcome outcome) {
+            removed.add(outcome);
+        }
+
+        void commit() {
+            stored.removeAll(removed);
+            stored.addAll(persisted);
+            rollback();
+        }
+
+        void rollback() {
+            persisted.clear();
+            removed.clear();
+        }
+
+        Map<String, String> getStoredValues() {
+            final Map<String, String> result = new HashMap<String, String>();
+            for (final CandidateSessionOutcome outcome : stored) {
+                result.put(outcome.getOutcomeIdentifier(), outcome.getStringValue());
+            }
+            return result;
+        }
+    }
+}
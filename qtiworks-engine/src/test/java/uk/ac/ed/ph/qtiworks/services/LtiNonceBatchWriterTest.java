@@ -0,0 +1,212 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.qtiworks.services;
+
+import uk.ac.ed.ph.qtiworks.domain.entities.LtiNonce;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the {@link LtiNonceBatchWriter}, using a fake {@link LtiNonceBatchWriter.NonceStore}
+ * that behaves like the unique constraint in the database.
+ *
+ * @author David McKain
+ */
+public class LtiNonceBatchWriterTest {
+
+    private FakeNonceStore nonceStore;
+    private LtiNonceBatchWriter writer;
+
+    @Before
+    public void setup() {
+        nonceStore = new FakeNonceStore();
+        writer = new LtiNonceBatchWriter(nonceStore, 3);
+    }
+
+    @Test
+    public void testNothingPending() {
+        Assert.assertEquals(0, writer.persistPending());
+        Assert.assertEquals(0, nonceStore.batchCount);
+    }
+
+    @Test
+    public void testBatches() {
+        for (int i=0; i<7; i++) {
+            writer.add(createNonce("n" + i));
+        }
+        Assert.assertEquals(7, writer.persistPending());
+        Assert.assertEquals(3, nonceStore.batchCount);
+        Assert.assertEquals(7, nonceStore.savedKeys.size());
+        Assert.assertEquals(0, writer.getPendingCount());
+    }
+
+    @Test
+    public void testSkipsAlreadySaved() {
+        nonceStore.savedKeys.add("key:n1");
+        writer.add(createNonce("n1"));
+        writer.add(createNonce("n2"));
+        Assert.assertEquals(1, writer.persistPending());
+        Assert.assertEquals(2, nonceStore.savedKeys.size());
+    }
+
+    @Test
+    public void testSavedByAnotherServerDuringBatch() {
+        /* Another server saves n2 after our batch has been checked, so the batch fails */
+        nonceStore.savedDuringBatch = "n2";
+        writer.add(createNonce("n1"));
+        writer.add(createNonce("n2"));
+        writer.add(createNonce("n3"));
+
+        /* Each nonce should then be saved separately, skipping n2 */
+        Assert.assertEquals(2, writer.persistPending());
+        Assert.assertEquals(3, nonceStore.savedKeys.size());
+        Assert.assertEquals(3, nonceStore.singleSaveCount);
+        Assert.assertEquals(0, writer.getPendingCount());
+    }
+
+    @Test
+    public void testFailureRequeues() {
+        nonceStore.remainingFailures = 2; /* (Batch save then first single save) */
+        writer.add(createNonce("n1"));
+        writer.add(createNonce("n2"));
+        writer.add(createNonce("n3"));
+        writer.add(createNonce("n4"));
+        try {
+            writer.persistPending();
+            Assert.fail("Expected failure to propagate");
+        }
+        catch (final IllegalStateException e) {
+            /* Expected */
+        }
+        Assert.assertTrue(nonceStore.savedKeys.isEmpty());
+        Assert.assertEquals(4, writer.getPendingCount());
+
+        /* Next time round everything should get saved */
+        Assert.assertEquals(4, writer.persistPending());
+        Assert.assertEquals(4, nonceStore.savedKeys.size());
+        Assert.assertEquals(0, writer.getPendingCount());
+    }
+
+    @Test
+    public void testFailurePartwayThroughBatchRequeuesRest() {
+        nonceStore.savedDuringBatch = "n1";
+        nonceStore.failSingleSaveOf = "n3";
+        writer.add(createNonce("n1"));
+        writer.add(createNonce("n2"));
+        writer.add(createNonce("n3"));
+        try {
+            writer.persistPending();
+            Assert.fail("Expected failure to propagate");
+        }
+        catch (final IllegalStateException e) {
+            /* Expected */
+        }
+        Assert.assertEquals(2, nonceStore.savedKeys.size());
+        Assert.assertEquals(1, writer.getPendingCount());
+
+        nonceStore.failSingleSaveOf = null;
+        Assert.assertEquals(1, writer.persistPending());
+        Assert.assertEquals(3, nonceStore.savedKeys.size());
+        Assert.assertEquals(0, writer.getPendingCount());
+    }
+
+    //-------------------------------------------------
+
+    private static LtiNonce createNonce(final String nonce) {
+        final LtiNonce result = new LtiNonce();
+        result.setConsumerKey("key");
+        result.setNonce(nonce);
+        return result;
+    }
+
+    private static String createKey(final LtiNonce ltiNonce) {
+        return ltiNonce.getConsumerKey() + ":" + ltiNonce.getNonce();
+    }
+
+    /**
+     * Fake store, where each method either succeeds or fails as a whole.
+     */
+    static final class FakeNonceStore implements LtiNonceBatchWriter.NonceStore {
+
+        final Set<String> savedKeys = new HashSet<String>();
+        int batchCount;
+        int singleSaveCount;
+        int remainingFailures;
+        String savedDuringBatch;
+        String failSingleSaveOf;
+
+        @Override
+        public int saveNew(final List<LtiNonce> ltiNonces) {
+            batchCount++;
+            if (remainingFailures > 0) {
+                remainingFailures--;
+                throw new IllegalStateException("Simulated failure");
+            }
+            final List<String> newKeys = new ArrayList<String>();
+            for (final LtiNonce ltiNonce : ltiNonces) {
+                final String key = createKey(ltiNonce);
+                if (!savedKeys.contains(key)) {
+                    newKeys.add(key);
+                }
+            }
+            if (savedDuringBatch!=null) {
+                /* Simulate unique constraint violation, rolling back the whole batch */
+                savedKeys.add("key:" + savedDuringBatch);
+                savedDuringBatch = null;
+                throw new IllegalStateException("Simulated constraint violation");
+            }
+            savedKeys.addAll(newKeys);
+            return newKeys.size();
+        }
+
+        @Override
+        public boolean saveIfAbsent(final LtiNonce ltiNonce) {
+            singleSaveCount++;
+            if (remainingFailures > 0 || ltiNonce.getNonce().equals(failSingleSaveOf)) {
+                if (remainingFailures > 0) {
+                    remainingFailures--;
+                }
+                throw new IllegalStateException("Simulated failure");
+            }
+            return savedKeys.add(createKey(ltiNonce));
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.qtiworks.services;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the {@link LtiNonceCache}, checking that it accepts and rejects the same nonces
+ * as the original database lookup did.
+ *
+ * @author David McKain
+ */
+public class LtiNonceCacheTest {
+
+    private static final long MAX_AGE = 90 * 60 * 1000L;
+
+    /** (Arbitrary "current" time, deliberately not aligned with a bucket boundary) */
+    private static final long NOW = 1000L * MAX_AGE + 12345L;
+
+    private static final int THREAD_COUNT = 8;
+    private static final int NONCE_COUNT = 500;
+
+    private LtiNonceCache cache;
+
+    @Before
+    public void setup() {
+        cache = new LtiNonceCache(MAX_AGE);
+    }
+
+    @Test
+    public void testNewNonce() {
+        Assert.assertTrue(cache.record("key", "n1", NOW, NOW));
+        Assert.assertTrue(cache.record("key", "n2", NOW, NOW));
+        Assert.assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testReplay() {
+        Assert.assertTrue(cache.record("key", "n1", NOW, NOW));
+        Assert.assertFalse(cache.record("key", "n1", NOW, NOW + 1000L));
+        Assert.assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testSameNonceDifferentConsumerKeys() {
+        Assert.assertTrue(cache.record("key1", "n1", NOW, NOW));
+        Assert.assertTrue(cache.record("key2", "n1", NOW, NOW));
+    }
+
+    @Test
+    public void testKeysNotAmbiguous() {
+        Assert.assertTrue(cache.record("ab", "c", NOW, NOW));
+        Assert.assertTrue(cache.record("a", "bc", NOW, NOW));
+    }
+
+    @Test
+    public void testSameNonceDifferentTimestamp() {
+        Assert.assertTrue(cache.record("key", "n1", NOW, NOW));
+        Assert.assertFalse(cache.record("key", "n1", NOW - 1000L, NOW));
+    }
+
+    @Test
+    public void testSameNonceAcrossBuckets() {
+        /* Timestamps at either end of the permitted window must end up in different buckets */
+        Assert.assertTrue(cache.record("key", "n1", NOW - MAX_AGE, NOW));
+        Assert.assertFalse(cache.record("key", "n1", NOW + MAX_AGE, NOW));
+        Assert.assertTrue(cache.getBucketCount() > 1);
+    }
+
+    @Test
+    public void testReplayLateInWindow() {
+        /* Nonces must be remembered for as long as their timestamps could still be accepted */
+        Assert.assertTrue(cache.record("key", "n1", NOW, NOW));
+        Assert.assertFalse(cache.record("key", "n1", NOW, NOW + MAX_AGE));
+        Assert.assertFalse(cache.record("key", "n1", NOW, NOW + MAX_AGE + 500L));
+    }
+
+    @Test
+    public void testFutureTimestamp() {
+        Assert.assertTrue(cache.record("key", "n1", NOW + MAX_AGE, NOW));
+        Assert.assertFalse(cache.record("key", "n1", NOW + MAX_AGE, NOW + 2 * MAX_AGE));
+    }
+
+    @Test
+    public void testExpiry() {
+        Assert.assertTrue(cache.record("key", "n1", NOW - MAX_AGE, NOW));
+        Assert.assertTrue(cache.record("key", "n2", NOW, NOW));
+        Assert.assertEquals(2, cache.size());
+
+        /* Neither nonce could be accepted at this point, so both should have been dropped */
+        Assert.assertEquals(2, cache.purge(NOW + 3 * MAX_AGE));
+        Assert.assertEquals(0, cache.size());
+        Assert.assertEquals(0, cache.getBucketCount());
+    }
+
+    @Test
+    public void testExpiredTimestamp() {
+        Assert.assertFalse(cache.record("key", "n1", NOW - 3 * MAX_AGE, NOW));
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testBucketCountBounded() {
+        /* Simulate a steady stream of launches over many windows */
+        final long step = MAX_AGE / 10;
+        for (int i=0; i<100; i++) {
+            final long timestamp = NOW + i * step;
+            Assert.assertTrue(cache.record("key", "n" + i, timestamp, timestamp));
+            Assert.assertTrue(cache.getBucketCount() <= 3);
+        }
+    }
+
+    @Test
+    public void testConcurrentReplays() throws Exception {
+        /* Replays of the same message must be accepted exactly once */
+        Assert.assertEquals(NONCE_COUNT, recordConcurrently(0L));
+        assertAllRecorded();
+    }
+
+    @Test
+    public void testConcurrentReplaysAcrossBuckets() throws Exception {
+        /* Reusing nonces with different timestamps may be rejected every time, but never accepted twice */
+        Assert.assertTrue(recordConcurrently(MAX_AGE / 4) <= NONCE_COUNT);
+        assertAllRecorded();
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testBadMaxAge() {
+        new LtiNonceCache(0L);
+    }
+
+    /**
+     * Records the same set of nonces from a number of threads at once, using a different
+     * timestamp for each thread, and returns the total number of nonces accepted.
+     */
+    private int recordConcurrently(final long timestampStep) throws Exception {
+        final ExecutorService executorService = Executors.newFixedThreadPool(THREAD_COUNT);
+        try {
+            final CountDownLatch startLatch = new CountDownLatch(1);
+            final List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+            for (int t=0; t<THREAD_COUNT; t++) {
+                final long timestamp = NOW + t * timestampStep;
+                futures.add(executorService.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        startLatch.await();
+                        int acceptedCount = 0;
+                        for (int i=0; i<NONCE_COUNT; i++) {
+                            if (cache.record("key", "n" + i, timestamp, NOW)) {
+                                acceptedCount++;
+                            }
+                        }
+                        return Integer.valueOf(acceptedCount);
+                    }
+                }));
+            }
+            startLatch.countDown();
+            int result = 0;
+            for (final Future<Integer> future : futures) {
+                result += future.get().intValue();
+            }
+            return result;
+        }
+        finally {
+            executorService.shutdown();
+        }
+    }
+
+    private void assertAllRecorded() {
+        for (int i=0; i<NONCE_COUNT; i++) {
+            Assert.assertFalse(cache.record("key", "n" + i, NOW, NOW));
+        }
+    }
+}
@@ -0,0 +1,261 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.qtiworks.services;
+
+import uk.ac.ed.ph.qtiworks.services.LtiOutcomeDispatcher.LisResult;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Tests the {@link LtiOutcomeDispatcher} against a local stub LIS outcome service.
+ *
+ * @author David McKain
+ */
+public class LtiOutcomeDispatcherTest {
+
+    private static final Pattern SOURCEDID_PATTERN = Pattern.compile("<sourcedId>(.+?)</sourcedId>");
+
+    private HttpServer httpServer;
+    private StubOutcomeService stubOutcomeService;
+    private LtiOutcomeDispatcher dispatcher;
+
+    @Before
+    public void setup() throws IOException {
+        stubOutcomeService = new StubOutcomeService();
+        httpServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        httpServer.createContext("/outcomes", stubOutcomeService);
+        httpServer.setExecutor(Executors.newCachedThreadPool());
+        httpServer.start();
+        dispatcher = new LtiOutcomeDispatcher(8, 2, 5000);
+    }
+
+    @After
+    public void cleanup() {
+        dispatcher.shutdown();
+        httpServer.stop(0);
+    }
+
+    @Test
+    public void testSendSuccess() {
+        final List<LisResult> lisResults = createLisResults(20);
+        final boolean[] successes = dispatcher.send(lisResults);
+
+        Assert.assertEquals(20, successes.length);
+        for (final boolean success : successes) {
+            Assert.assertTrue(success);
+        }
+        Assert.assertEquals(20, stubOutcomeService.receivedSourcedids.size());
+        for (final LisResult lisResult : lisResults) {
+            Assert.assertTrue(stubOutcomeService.receivedSourcedids.contains(lisResult.getLisResultSourcedid()));
+        }
+        Assert.assertEquals(20L, dispatcher.getSendCount());
+        Assert.assertEquals(0L, dispatcher.getSendFailureCount());
+    }
+
+    @Test
+    public void testSendFailureResponse() {
+        stubOutcomeService.codeMajor = "failure";
+        final boolean[] successes = dispatcher.send(createLisResults(3));
+
+        Assert.assertEquals(3, successes.length);
+        for (final boolean success : successes) {
+            Assert.assertFalse(success);
+        }
+        Assert.assertEquals(3L, dispatcher.getSendFailureCount());
+    }
+
+    @Test
+    public void testSendNoResults() {
+        Assert.assertEquals(0, dispatcher.send(new ArrayList<LisResult>()).length);
+    }
+
+    @Test
+    public void testMaxConcurrentSendsPerHost() {
+        stubOutcomeService.responseDelay = 50;
+        final boolean[] successes = dispatcher.send(createLisResults(12));
+
+        for (final boolean success : successes) {
+            Assert.assertTrue(success);
+        }
+        Assert.assertTrue(stubOutcomeService.maxConcurrentRequests.get() <= 2);
+    }
+
+    @Test
+    public void testUnresponsiveHostDoesNotHoldUpOthers() throws IOException {
+        /* Make the main stub host respond too slowly, and create a second host that responds quickly */
+        final LtiOutcomeDispatcher timeoutDispatcher = new LtiOutcomeDispatcher(4, 1, 500);
+        stubOutcomeService.responseDelay = 2000;
+        final HttpServer fastServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        final StubOutcomeService fastOutcomeService = new StubOutcomeService();
+        fastServer.createContext("/outcomes", fastOutcomeService);
+        fastServer.start();
+        try {
+            final List<LisResult> lisResults = new ArrayList<LisResult>();
+            lisResults.add(createLisResult(httpServer, "slow"));
+            for (int i=0; i<5; i++) {
+                lisResults.add(createLisResult(fastServer, "fast" + i));
+            }
+            final boolean[] successes = timeoutDispatcher.send(lisResults);
+
+            Assert.assertFalse(successes[0]);
+            for (int i=1; i<successes.length; i++) {
+                Assert.assertTrue(successes[i]);
+            }
+        }
+        finally {
+            timeoutDispatcher.shutdown();
+            fastServer.stop(0);
+        }
+    }
+
+    @Test
+    public void testInterruptedWhileWaiting() throws InterruptedException {
+        final LtiOutcomeDispatcher serialDispatcher = new LtiOutcomeDispatcher(1, 1, 5000);
+        stubOutcomeService.responseDelay = 200;
+        try {
+            /* Interrupt ourselves, so waiting for the results is interrupted straight away */
+            Thread.currentThread().interrupt();
+            final boolean[] successes = serialDispatcher.send(createLisResults(5));
+            Assert.assertTrue(Thread.interrupted());
+
+            /* Unsent results should be reported as failures, and nothing more should be sent afterwards */
+            int successCount = 0;
+            for (final boolean success : successes) {
+                if (success) {
+                    successCount++;
+                }
+            }
+            Assert.assertTrue(successCount < 5);
+            Thread.sleep(500);
+            Assert.assertEquals(successCount, stubOutcomeService.receivedSourcedids.size());
+        }
+        finally {
+            serialDispatcher.shutdown();
+        }
+    }
+
+    private List<LisResult> createLisResults(final int count) {
+        final List<LisResult> result = new ArrayList<LisResult>();
+        for (int i=0; i<count; i++) {
+            result.add(createLisResult(httpServer, "sourcedid" + i));
+        }
+        return result;
+    }
+
+    private static LisResult createLisResult(final HttpServer server, final String lisResultSourcedid) {
+        final String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/outcomes";
+        return new LisResult(url, lisResultSourcedid, "key", "secret", 0.5);
+    }
+
+    /**
+     * Minimal stand-in for an LIS outcome service, which records the results it receives.
+     */
+    private static final class StubOutcomeService implements HttpHandler {
+
+        final Set<String> receivedSourcedids = Collections.synchronizedSet(new HashSet<String>());
+        final AtomicInteger concurrentRequests = new AtomicInteger();
+        final AtomicInteger maxConcurrentRequests = new AtomicInteger();
+        volatile String codeMajor = "success";
+        volatile long responseDelay = 0L;
+
+        @Override
+        public void handle(final HttpExchange exchange) throws IOException {
+            final int concurrent = concurrentRequests.incrementAndGet();
+            int currentMax;
+            do {
+                currentMax = maxConcurrentRequests.get();
+            } while (concurrent > currentMax && !maxConcurrentRequests.compareAndSet(currentMax, concurrent));
+            try {
+                final String requestBody = readBody(exchange.getRequestBody());
+                final Matcher matcher = SOURCEDID_PATTERN.matcher(requestBody);
+                if (matcher.find()) {
+                    receivedSourcedids.add(matcher.group(1));
+                }
+                if (responseDelay > 0) {
+                    Thread.sleep(responseDelay);
+                }
+                final byte[] response = ("<?xml version='1.0' encoding='UTF-8'?>\n"
+                        + "<imsx_POXEnvelopeResponse xmlns='http://www.imsglobal.org/services/ltiv1p1/xsd/imsoms_v1p0'>"
+                        + "<imsx_POXHeader><imsx_POXResponseHeaderInfo><imsx_statusInfo>"
+                        + "<imsx_codeMajor>" + codeMajor + "</imsx_codeMajor>"
+                        + "</imsx_statusInfo></imsx_POXResponseHeaderInfo></imsx_POXHeader>"
+                        + "<imsx_POXBody/></imsx_POXEnvelopeResponse>").getBytes("UTF-8");
+                exchange.getResponseHeaders().add("Content-Type", "application/xml");
+                exchange.sendResponseHeaders(200, response.length);
+                final OutputStream responseStream = exchange.getResponseBody();
+                responseStream.write(response);
+                responseStream.close();
+            }
+            catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            finally {
+                concurrentRequests.decrementAndGet();
+                exchange.close();
+            }
+        }
+
+        private static String readBody(final InputStream inputStream) throws IOException {
+            final ByteArrayOutputStream result = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[1024];
+            int count;
+            while ((count = inputStream.read(buffer))!=-1) {
+                result.write(buffer, 0, count);
+            }
+            return result.toString("UTF-8");
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.qtiworks.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.io.ByteStreams;
+
+/**
+ * Tests the {@link DeferredOutputStream} and {@link ByteChunkPool} classes
+ *
+ * @author David McKain
+ */
+public class DeferredOutputStreamTest {
+
+    private static final int CHUNK_SIZE = 16;
+
+    @Test
+    public void testBufferedWithinLimit() throws IOException {
+        final ByteChunkPool pool = new ByteChunkPool(CHUNK_SIZE, 10);
+        final TestDeferredOutputStream stream = new TestDeferredOutputStream(pool, 100, false);
+        final byte[] data = createData(100);
+        stream.write(data[0]);
+        stream.write(data, 1, data.length - 1);
+        stream.flush();
+
+        Assert.assertFalse(stream.isOverflowed());
+        Assert.assertEquals(100L, stream.getLength());
+        Assert.assertArrayEquals(data, ByteStreams.toByteArray(stream.openBufferInputStream()));
+
+        stream.release();
+        Assert.assertEquals(7, pool.getPooledChunkCount());
+    }
+
+    @Test
+    public void testOverflow() throws IOException {
+        final ByteChunkPool pool = new ByteChunkPool(CHUNK_SIZE, 10);
+        final TestDeferredOutputStream stream = new TestDeferredOutputStream(pool, 40, false);
+        final byte[] data = createData(100);
+        stream.write(data, 0, 30);
+        Assert.assertFalse(stream.isOverflowed());
+        stream.write(data, 30, 30);
+        Assert.assertTrue(stream.isOverflowed());
+        Assert.assertEquals(2, pool.getPooledChunkCount());
+        stream.write(data, 60, 40);
+
+        Assert.assertEquals(100L, stream.getLength());
+        Assert.assertArrayEquals(data, stream.overflowData.toByteArray());
+        stream.release();
+    }
+
+    @Test
+    public void testResetBeforeOverflow() throws IOException {
+        final ByteChunkPool pool = new ByteChunkPool(CHUNK_SIZE, 10);
+        final TestDeferredOutputStream stream = new TestDeferredOutputStream(pool, 100, false);
+        stream.write(createData(50));
+        Assert.assertTrue(stream.reset());
+        Assert.assertEquals(0L, stream.getLength());
+
+        final byte[] data = createData(20);
+        stream.write(data);
+        Assert.assertArrayEquals(data, ByteStreams.toByteArray(stream.openBufferInputStream()));
+        stream.release();
+    }
+
+    @Test
+    public void testResetAfterOverflow() throws IOException {
+        final ByteChunkPool pool = new ByteChunkPool(CHUNK_SIZE, 10);
+        final TestDeferredOutputStream stream = new TestDeferredOutputStream(pool, 10, false);
+        stream.write(createData(20));
+        Assert.assertTrue(stream.isOverflowed());
+        Assert.assertFalse(stream.reset());
+        Assert.assertEquals(20L, stream.getLength());
+        stream.release();
+    }
+
+    @Test
+    public void testDiscardableOverflow() throws IOException {
+        final ByteChunkPool pool = new ByteChunkPool(CHUNK_SIZE, 10);
+        final TestDeferredOutputStream stream = new TestDeferredOutputStream(pool, 10, true);
+        stream.write(createData(20));
+        Assert.assertTrue(stream.reset());
+        Assert.assertFalse(stream.isOverflowed());
+
+        final byte[] data = createData(5);
+        stream.write(data);
+        Assert.assertArrayEquals(data, ByteStreams.toByteArray(stream.openBufferInputStream()));
+        stream.release();
+    }
+
+    @Test
+    public void testPoolBound() {
+        final ByteChunkPool pool = new ByteChunkPool(CHUNK_SIZE, 2);
+        final byte[] chunk1 = pool.acquireChunk();
+        final byte[] chunk2 = pool.acquireChunk();
+        final byte[] chunk3 = pool.acquireChunk();
+        pool.releaseChunk(chunk1);
+        pool.releaseChunk(chunk2);
+        pool.releaseChunk(chunk3);
+        Assert.assertEquals(2, pool.getPooledChunkCount());
+        Assert.assertSame(chunk1, pool.acquireChunk());
+
+        final ByteChunkPool unpooled = new ByteChunkPool(CHUNK_SIZE, 0);
+        unpooled.releaseChunk(unpooled.acquireChunk());
+        Assert.assertEquals(0, unpooled.getPooledChunkCount());
+    }
+
+    @Test
+    public void testOutstandingLimit() {
+        final ByteChunkPool pool = new ByteChunkPool(CHUNK_SIZE, 10, 2);
+        final byte[] chunk1 = pool.acquireChunk();
+        Assert.assertNotNull(pool.acquireChunk());
+        Assert.assertNull(pool.acquireChunk());
+        Assert.assertEquals(2, pool.getOutstandingChunkCount());
+        pool.releaseChunk(chunk1);
+        Assert.assertNotNull(pool.acquireChunk());
+    }
+
+    @Test
+    public void testOverflowWhenPoolExhausted() throws IOException {
+        final ByteChunkPool pool = new ByteChunkPool(CHUNK_SIZE, 10, 2);
+        final TestDeferredOutputStream stream = new TestDeferredOutputStream(pool, 100, false);
+        final byte[] data = createData(50);
+        stream.write(data, 0, 20);
+        Assert.assertFalse(stream.isOverflowed());
+        stream.write(data, 20, 30);
+        Assert.assertTrue(stream.isOverflowed());
+        Assert.assertEquals(0, pool.getOutstandingChunkCount());
+
+        Assert.assertEquals(50L, stream.getLength());
+        Assert.assertArrayEquals(data, stream.overflowData.toByteArray());
+        stream.release();
+    }
+
+    private static byte[] createData(final int length) {
+        final byte[] result = new byte[length];
+        for (int i=0; i<length; i++) {
+            result[i] = (byte) i;
+        }
+        return result;
+    }
+
+    private static final class TestDeferredOutputStream extends DeferredOutputStream {
+
+        private final boolean discardable;
+        ByteArrayOutputStream overflowData;
+
+        TestDeferredOutputStream(final ByteChunkPool chunkPool, final int bufferLimit, final boolean discardable) {
+            super(chunkPool, bufferLimit);
+            this.discardable = discardable;
+        }
+
+        @Override
+        protected OutputStream openOverflowStream() {
+            overflowData = new ByteArrayOutputStream();
+            return overflowData;
+        }
+
+        @Override
+        protected boolean discardOverflowStream(final OutputStream stream) {
+            if (discardable) {
+                overflowData = null;
+                return true;
+            }
+            return false;
+        }
+    }
+}
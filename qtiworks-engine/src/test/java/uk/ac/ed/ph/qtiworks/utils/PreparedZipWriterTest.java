@@ -0,0 +1,153 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.qtiworks.utils;
+
+import uk.ac.ed.ph.qtiworks.utils.PreparedZipWriter.PreparedEntry;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+/**
+ * Tests the {@link PreparedZipWriter} by reading its results back in with the standard
+ * Java ZIP classes.
+ *
+ * @author David McKain
+ */
+public class PreparedZipWriterTest {
+
+    @Test
+    public void testDeflatedEntries() throws IOException {
+        doTestRoundTrip(true, 20);
+    }
+
+    @Test
+    public void testStoredEntries() throws IOException {
+        doTestRoundTrip(false, 20);
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+        doTestRoundTrip(true, 0);
+    }
+
+    @Test
+    public void testZip64EntryCount() throws IOException {
+        doTestRoundTrip(false, 70000);
+    }
+
+    @Test
+    public void testEntrySizes() {
+        final byte[] data = createEntryData(1);
+        final PreparedEntry storedEntry = PreparedZipWriter.prepareEntry("stored", data, false);
+        final PreparedEntry deflatedEntry = PreparedZipWriter.prepareEntry("deflated", data, true);
+
+        Assert.assertEquals(data.length, storedEntry.getSize());
+        Assert.assertEquals(data.length, storedEntry.getCompressedSize());
+        Assert.assertEquals(data.length, deflatedEntry.getSize());
+        Assert.assertTrue(deflatedEntry.getCompressedSize() < data.length);
+    }
+
+    private void doTestRoundTrip(final boolean compress, final int entryCount) throws IOException {
+        final ByteArrayOutputStream zipBytes = new ByteArrayOutputStream();
+        final PreparedZipWriter zipWriter = new PreparedZipWriter(zipBytes);
+        for (int i=0; i<entryCount; i++) {
+            zipWriter.writeEntry(PreparedZipWriter.prepareEntry(createEntryName(i), createEntryData(i), compress));
+        }
+        zipWriter.finish();
+
+        /* Read back sequentially */
+        final ZipInputStream zipInputStream = new ZipInputStream(new ByteArrayInputStream(zipBytes.toByteArray()));
+        int readCount = 0;
+        ZipEntry zipEntry;
+        while ((zipEntry = zipInputStream.getNextEntry())!=null) {
+            Assert.assertEquals(createEntryName(readCount), zipEntry.getName());
+            Assert.assertTrue(Arrays.equals(createEntryData(readCount), ByteStreams.toByteArray(zipInputStream)));
+            readCount++;
+        }
+        Assert.assertEquals(entryCount, readCount);
+
+        /* Then read back via the central directory */
+        final File zipFile = File.createTempFile("qtiworks", ".zip");
+        try {
+            Files.write(zipBytes.toByteArray(), zipFile);
+            final ZipFile zip = new ZipFile(zipFile);
+            try {
+                Assert.assertEquals(entryCount, zip.size());
+                final Enumeration<? extends ZipEntry> entries = zip.entries();
+                int index = 0;
+                while (entries.hasMoreElements()) {
+                    final ZipEntry entry = entries.nextElement();
+                    Assert.assertEquals(createEntryName(index), entry.getName());
+                    Assert.assertEquals(compress ? ZipEntry.DEFLATED : ZipEntry.STORED, entry.getMethod());
+                    if (index % 1000 == 0) {
+                        Assert.assertTrue(Arrays.equals(createEntryData(index), ByteStreams.toByteArray(zip.getInputStream(entry))));
+                    }
+                    index++;
+                }
+            }
+            finally {
+                zip.close();
+            }
+        }
+        finally {
+            zipFile.delete();
+        }
+    }
+
+    private static String createEntryName(final int index) {
+        return "assessmentResult-" + index + "-caf\u00e9@example.org.xml";
+    }
+
+    private static byte[] createEntryData(final int index) {
+        final StringBuilder result = new StringBuilder("<assessmentResult>");
+        for (int i=0; i<=index % 50; i++) {
+            result.append("<itemResult identifier='i").append(i).append("'/>");
+        }
+        return result.append("</assessmentResult>").toString().getBytes(Charsets.UTF_8);
+    }
+}
@@ -0,0 +1,251 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.qtiworks.utils;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMResult;
+import javax.xml.transform.sax.SAXSource;
+import javax.xml.transform.stream.StreamSource;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.Locator;
+import org.xml.sax.XMLReader;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Tests the {@link SaxEventBuffer} class
+ *
+ * @author David McKain
+ */
+public class SaxEventBufferTest {
+
+    public static final String TEST_XML = "<?xml version='1.0'?>\n"
+            + "<!-- Before root -->\n"
+            + "<root xmlns='urn:default' xmlns:a='urn:a' a:attr='1' plain='x &amp; y'>\n"
+            + "  <?pi some data?>\n"
+            + "  <child>Text &lt;here&gt;<!-- inside --></child>\n"
+            + "  <a:child xmlns:b='urn:b' b:attr='2'><![CDATA[<cdata & stuff>]]> after</a:child>\n"
+            + "  <empty/>\n"
+            + "</root>\n";
+
+    private SaxEventBuffer saxEventBuffer;
+
+    @Before
+    public void setup() throws Exception {
+        final SaxEventBuffer.Builder builder = new SaxEventBuffer.Builder();
+        parse(builder, builder);
+        saxEventBuffer = builder.build();
+    }
+
+    @Test
+    public void testReplayMatchesParse() throws Exception {
+        final RecordingHandler parsed = new RecordingHandler();
+        parse(parsed, parsed);
+
+        final RecordingHandler replayed = new RecordingHandler();
+        saxEventBuffer.replay(replayed, replayed, "urn:test");
+
+        Assert.assertEquals(parsed.log, replayed.log);
+        Assert.assertTrue(replayed.log.contains("comment( inside )"));
+        Assert.assertTrue(replayed.log.contains("startCDATA"));
+        Assert.assertTrue(replayed.log.contains("startPrefixMapping(b,urn:b)"));
+        Assert.assertEquals("urn:test", replayed.systemId);
+    }
+
+    @Test
+    public void testReplayMultipleTimes() throws Exception {
+        final RecordingHandler first = new RecordingHandler();
+        saxEventBuffer.replay(first, first, null);
+        final RecordingHandler second = new RecordingHandler();
+        saxEventBuffer.replay(second, second, null);
+        Assert.assertEquals(first.log, second.log);
+    }
+
+    @Test
+    public void testReplayWithoutLexicalHandler() throws Exception {
+        final RecordingHandler replayed = new RecordingHandler();
+        saxEventBuffer.replay(replayed, null, null, false);
+
+        for (final String event : replayed.log) {
+            Assert.assertFalse(event, event.startsWith("comment")
+                    || event.endsWith("CDATA")
+                    || event.startsWith("processingInstruction"));
+        }
+        Assert.assertTrue(replayed.log.contains("characters(<cdata & stuff>)"));
+    }
+
+    @Test
+    public void testXMLReader() throws Exception {
+        final TransformerFactory transformerFactory = TransformerFactory.newInstance();
+
+        final DOMResult parsed = new DOMResult();
+        transformerFactory.newTransformer().transform(new StreamSource(new StringReader(TEST_XML)), parsed);
+
+        final DOMResult replayed = new DOMResult();
+        final Transformer transformer = transformerFactory.newTransformer();
+        transformer.transform(new SAXSource(saxEventBuffer.createXMLReader(), new InputSource("urn:test")), replayed);
+
+        Assert.assertTrue(((Document) parsed.getNode()).isEqualNode(replayed.getNode()));
+    }
+
+    @Test
+    public void testContainsElement() {
+        Assert.assertTrue(saxEventBuffer.containsElement("urn:a", new HashSet<String>(Arrays.asList("child"))));
+        Assert.assertTrue(saxEventBuffer.containsElement("urn:default", new HashSet<String>(Arrays.asList("x", "empty"))));
+        Assert.assertFalse(saxEventBuffer.containsElement("urn:b", new HashSet<String>(Arrays.asList("child"))));
+    }
+
+    //-------------------------------------------------------
+
+    private static void parse(final ContentHandler contentHandler, final LexicalHandler lexicalHandler) throws Exception {
+        final XMLReader xmlReader = XmlUtilities.createNsAwareSaxReader(false);
+        xmlReader.setContentHandler(contentHandler);
+        xmlReader.setProperty(SaxEventBuffer.LEXICAL_HANDLER_PROPERTY, lexicalHandler);
+        xmlReader.parse(new InputSource(new StringReader(TEST_XML)));
+    }
+
+    /**
+     * Records the (non-DTD) SAX events it receives as Strings.
+     */
+    static final class RecordingHandler extends DefaultHandler implements LexicalHandler {
+
+        final List<String> log = new ArrayList<String>();
+        String systemId;
+
+        @Override
+        public void setDocumentLocator(final Locator locator) {
+            systemId = locator.getSystemId();
+        }
+
+        @Override
+        public void startDocument() {
+            log.add("startDocument");
+        }
+
+        @Override
+        public void endDocument() {
+            log.add("endDocument");
+        }
+
+        @Override
+        public void startPrefixMapping(final String prefix, final String uri) {
+            log.add("startPrefixMapping(" + prefix + "," + uri + ")");
+        }
+
+        @Override
+        public void endPrefixMapping(final String prefix) {
+            log.add("endPrefixMapping(" + prefix + ")");
+        }
+
+        @Override
+        public void startElement(final String uri, final String localName, final String qName, final Attributes atts) {
+            final StringBuilder event = new StringBuilder("startElement(").append(uri).append(',')
+                    .append(localName).append(',').append(qName);
+            for (int i=0; i<atts.getLength(); i++) {
+                event.append(',').append(atts.getURI(i)).append('|').append(atts.getLocalName(i))
+                    .append('|').append(atts.getQName(i)).append('=').append(atts.getValue(i));
+            }
+            log.add(event.append(')').toString());
+        }
+
+        @Override
+        public void endElement(final String uri, final String localName, final String qName) {
+            log.add("endElement(" + uri + "," + localName + "," + qName + ")");
+        }
+
+        @Override
+        public void characters(final char[] ch, final int start, final int length) {
+            log.add("characters(" + new String(ch, start, length) + ")");
+        }
+
+        @Override
+        public void ignorableWhitespace(final char[] ch, final int start, final int length) {
+            log.add("ignorableWhitespace(" + new String(ch, start, length) + ")");
+        }
+
+        @Override
+        public void processingInstruction(final String target, final String data) {
+            log.add("processingInstruction(" + target + "," + data + ")");
+        }
+
+        @Override
+        public void comment(final char[] ch, final int start, final int length) {
+            log.add("comment(" + new String(ch, start, length) + ")");
+        }
+
+        @Override
+        public void startCDATA() {
+            log.add("startCDATA");
+        }
+
+        @Override
+        public void endCDATA() {
+            log.add("endCDATA");
+        }
+
+        @Override
+        public void startDTD(final String name, final String publicId, final String systemId) {
+            /* (Not recorded) */
+        }
+
+        @Override
+        public void endDTD() {
+            /* (Not recorded) */
+        }
+
+        @Override
+        public void startEntity(final String name) {
+            /* (Not recorded) */
+        }
+
+        @Override
+        public void endEntity(final String name) {
+            /* (Not recorded) */
+        }
+    }
+}
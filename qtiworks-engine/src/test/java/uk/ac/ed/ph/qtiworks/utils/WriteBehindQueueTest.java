@@ -0,0 +1,273 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.qtiworks.utils;
+
+import uk.ac.ed.ph.qtiworks.utils.WriteBehindQueue.ValueWriter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.base.Predicate;
+
+/**
+ * Tests the {@link WriteBehindQueue}.
+ *
+ * @author David McKain
+ */
+public class WriteBehindQueueTest {
+
+    /** Key whose writes are held up until {@link #blockingLatch} is released */
+    private static final String BLOCKING_KEY = "blocker";
+
+    private final List<String> writes = Collections.synchronizedList(new ArrayList<String>());
+    private final CountDownLatch blockingLatch = new CountDownLatch(1);
+    private final CountDownLatch blockedLatch = new CountDownLatch(1);
+    private final AtomicInteger remainingFailures = new AtomicInteger();
+
+    private WriteBehindQueue<String, String> queue;
+
+    @After
+    public void cleanup() {
+        blockingLatch.countDown();
+        if (queue!=null) {
+            queue.shutdown(5000L);
+        }
+    }
+
+    @Test
+    public void testNoThreads() {
+        queue = createQueue(0);
+        queue.submit("a", "a1", false);
+        queue.submit("a", "a2", false);
+        Assert.assertEquals(Arrays.asList("a=a1", "a=a2"), writes);
+        Assert.assertEquals(0, queue.getPendingCount());
+    }
+
+    @Test
+    public void testCoalescing() throws Exception {
+        queue = createQueue(1);
+        blockWriterThread();
+        queue.submit("a", "a1", false);
+        queue.submit("a", "a2", false);
+        queue.submit("a", "a3", false);
+        Assert.assertEquals(1, queue.getPendingCount());
+
+        blockingLatch.countDown();
+        queue.shutdown(5000L);
+        Assert.assertEquals(Arrays.asList("blocker=b", "a=a3"), writes);
+    }
+
+    @Test
+    public void testFlush() throws Exception {
+        queue = createQueue(1);
+        blockWriterThread();
+        queue.submit("a", "a1", false);
+        queue.flush("a");
+        Assert.assertEquals(Arrays.asList("a=a1"), writes);
+        Assert.assertEquals(0, queue.getPendingCount());
+    }
+
+    @Test
+    public void testWriteNow() throws Exception {
+        /* (This is what happens once a session terminates) */
+        queue = createQueue(1);
+        blockWriterThread();
+        queue.submit("a", "a1", false);
+        queue.submit("a", "a2", true);
+        Assert.assertEquals(Arrays.asList("a=a2"), writes);
+        Assert.assertEquals(0, queue.getPendingCount());
+
+        /* The older value must not be written afterwards */
+        blockingLatch.countDown();
+        queue.shutdown(5000L);
+        Assert.assertEquals(Arrays.asList("a=a2", "blocker=b"), writes);
+    }
+
+    @Test
+    public void testDiscard() throws Exception {
+        queue = createQueue(1);
+        blockWriterThread();
+        queue.submit("a", "a1", false);
+        queue.discard("a");
+        Assert.assertEquals(0, queue.getPendingCount());
+
+        blockingLatch.countDown();
+        queue.shutdown(5000L);
+        Assert.assertEquals(Arrays.asList("blocker=b"), writes);
+    }
+
+    @Test
+    public void testFindKeys() throws Exception {
+        queue = createQueue(1);
+        blockWriterThread();
+        queue.submit("a", "x1", false);
+        queue.submit("b", "y1", false);
+        queue.submit("c", "x2", false);
+        final Predicate<String> predicate = new Predicate<String>() {
+            @Override
+            public boolean apply(final String value) {
+                return value.startsWith("x");
+            }
+        };
+        Assert.assertEquals(new HashSet<String>(Arrays.asList("a", "c")), queue.findKeys(predicate));
+    }
+
+    @Test
+    public void testDrainOnShutdown() throws Exception {
+        queue = createQueue(1);
+        blockWriterThread();
+        queue.submit("a", "a1", false);
+        queue.submit("b", "b1", false);
+
+        /* Don't wait for the background thread, which is still blocked */
+        releaseBlockerLater();
+        queue.shutdown(0L);
+        Assert.assertEquals(0, queue.getPendingCount());
+        Assert.assertTrue(writes.contains("a=a1"));
+        Assert.assertTrue(writes.contains("b=b1"));
+
+        /* Values submitted after shutdown are written immediately */
+        queue.submit("c", "c1", false);
+        Assert.assertTrue(writes.contains("c=c1"));
+    }
+
+    @Test
+    public void testRetryAfterFailure() throws Exception {
+        queue = createQueue(1);
+        remainingFailures.set(2);
+        queue.submit("a", "a1", false);
+        waitForWrites(1);
+        Assert.assertEquals(Arrays.asList("a=a1"), writes);
+        Assert.assertEquals(0, queue.getPendingCount());
+    }
+
+    @Test
+    public void testFailedFlushRequeued() throws Exception {
+        queue = createQueue(1);
+        blockWriterThread();
+        queue.submit("a", "a1", false);
+        remainingFailures.set(1);
+        try {
+            queue.flush("a");
+            Assert.fail("Expected flush to fail");
+        }
+        catch (final IllegalStateException e) {
+            /* Expected */
+        }
+        Assert.assertEquals(1, queue.getPendingCount());
+        queue.flush("a");
+        Assert.assertEquals(Arrays.asList("a=a1"), writes);
+    }
+
+    @Test
+    public void testFailureSupersededByNewerValue() throws Exception {
+        queue = createQueue(1);
+        blockWriterThread();
+        queue.submit("a", "a1", false);
+        remainingFailures.set(1);
+        try {
+            queue.flush("a");
+            Assert.fail("Expected flush to fail");
+        }
+        catch (final IllegalStateException e) {
+            /* Expected */
+        }
+        queue.submit("a", "a2", false);
+        queue.flush("a");
+        Assert.assertEquals(Arrays.asList("a=a2"), writes);
+    }
+
+    //-------------------------------------------------
+
+    private WriteBehindQueue<String, String> createQueue(final int threadCount) {
+        return new WriteBehindQueue<String, String>(new ValueWriter<String, String>() {
+            @Override
+            public void write(final String key, final String value) {
+                if (BLOCKING_KEY.equals(key)) {
+                    blockedLatch.countDown();
+                    try {
+                        blockingLatch.await();
+                    }
+                    catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                else if (remainingFailures.getAndDecrement() > 0) {
+                    throw new IllegalStateException("Simulated failure");
+                }
+                writes.add(key + "=" + value);
+            }
+        }, threadCount, 10L, "test-writer-");
+    }
+
+    /** Ties up the (single) background thread until {@link #blockingLatch} is released */
+    private void blockWriterThread() throws InterruptedException {
+        queue.submit(BLOCKING_KEY, "b", false);
+        Assert.assertTrue(blockedLatch.await(5, TimeUnit.SECONDS));
+    }
+
+    private void releaseBlockerLater() {
+        final Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(200L);
+                }
+                catch (final InterruptedException e) {
+                    /* Release anyway */
+                }
+                blockingLatch.countDown();
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void waitForWrites(final int count) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000L;
+        while (writes.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+-- Schema update preparation script for migrating from
+-- QTIWorks Engine 1.0-beta11 to 1.0-beta12.
+--
+-- This script is written for PostgreSQL only.
+--
+-- How to apply this update:
+--
+-- (1) Run the PostgreSQL client utility (psql) on your QTIWorks
+--     database.
+--
+-- (2) Invoke:
+--     \i /path/to/beta11-to-beta12.sql
+--
+-- (3) Then run the *updateSchema* action in the QTIWorks engine
+--     manager to complete the schema update.
+--
+-- ************************************************************
+
+BEGIN WORK;
+
+-- Increase sequence allocation sizes for the responses and
+-- notifications recorded on each candidate action. These must match
+-- the allocationSize values in the corresponding entity classes.
+-- (candidate_event_sequence is left alone, as event IDs must stay in
+-- the order the events happened.)
+ALTER SEQUENCE candidate_response_sequence INCREMENT BY 50;
+ALTER SEQUENCE candidate_event_notification_sequence INCREMENT BY 50;
+
+-- Increase the sequence allocation size for LTI nonces, which are
+-- now saved in batches. This must match the allocationSize value
+-- in the LtiNonce entity class.
+ALTER SEQUENCE lti_nonce_sequence INCREMENT BY 50;
+
+-- Add indexes used when selecting queued LTI outcomes that are due
+-- for sending, and when skipping outcomes superseded by a later one
+-- for the same candidate session. These must match the @Index
+-- definitions in the QueuedLtiOutcome entity class.
+CREATE INDEX queued_lti_outcomes_retry_time_idx ON queued_lti_outcomes (retry_time);
+CREATE INDEX queued_lti_outcomes_xid_qoid_idx ON queued_lti_outcomes (xid, qoid);
+
+COMMIT WORK;
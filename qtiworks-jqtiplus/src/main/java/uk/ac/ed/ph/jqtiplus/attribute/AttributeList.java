@@ -69,6 +69,7 @@ import uk.ac.ed.ph.jqtiplus.attribute.value.UriAttribute;
 import uk.ac.ed.ph.jqtiplus.exception.QtiAttributeException;
 import uk.ac.ed.ph.jqtiplus.exception.QtiParseException;
 import uk.ac.ed.ph.jqtiplus.internal.util.Assert;
+import uk.ac.ed.ph.jqtiplus.internal.util.SlotIndex;
 import uk.ac.ed.ph.jqtiplus.node.LoadingContext;
 import uk.ac.ed.ph.jqtiplus.node.QtiNode;
 import uk.ac.ed.ph.jqtiplus.validation.ValidationContext;
@@ -77,6 +78,8 @@ import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.xml.XMLConstants;
 
@@ -85,6 +88,10 @@ import org.w3c.dom.Node;
 
 /**
  * Container for all attributes of one node.
+ * <p>
+ * Lookups by name use a {@link SlotIndex} shared by all nodes of the same class, so that
+ * the typed attribute getters don't need to scan the list each time. The shared index is
+ * no longer used once a list has been rearranged after its first lookup.
  *
  * @author Jiri Kajaba
  */
@@ -98,6 +105,15 @@ public final class AttributeList implements Serializable, Iterable<Attribute<?>>
     /** Children (attributes) of this container. */
     private final List<Attribute<?>> attributes;
 
+    /** Shared {@link SlotIndex} for each node class */
+    private static final ConcurrentMap<Class<?>, SlotIndex> slotIndexRegistry = new ConcurrentHashMap<Class<?>, SlotIndex>();
+
+    /** {@link SlotIndex} shared with other nodes of the owner's class, looked up on first use */
+    private transient SlotIndex slotIndex;
+
+    /** Set once this list has been rearranged after first use, so the shared {@link SlotIndex} no longer applies */
+    private boolean detachedFromSlotIndex;
+
     public AttributeList(final QtiNode owner) {
         Assert.notNull(owner);
         this.owner = owner;
@@ -148,6 +164,7 @@ public final class AttributeList implements Serializable, Iterable<Attribute<?>>
         for (final Attribute<?> child : attributes) {
             if (child.getLocalName().equals(attribute.getLocalName())) {
                 attributes.remove(child);
+                detachFromSlotIndex();
                 break;
             }
         }
@@ -164,6 +181,9 @@ public final class AttributeList implements Serializable, Iterable<Attribute<?>>
      */
     public void add(final int index, final Attribute<?> attribute) {
         attributes.add(index, attribute);
+        if (index < attributes.size() - 1) {
+            detachFromSlotIndex();
+        }
     }
 
     /**
@@ -230,6 +250,7 @@ public final class AttributeList implements Serializable, Iterable<Attribute<?>>
      */
     public void clear() {
         attributes.clear();
+        detachFromSlotIndex();
     }
 
     /**
@@ -295,12 +316,28 @@ public final class AttributeList implements Serializable, Iterable<Attribute<?>>
     private Attribute<?> get(final String localName, final String namespaceUri, final boolean silent) {
         Assert.notNull(localName, "localName");
         Assert.notNull(namespaceUri, "namespaceUri");
-        for (final Attribute<?> attribute : attributes) {
+
+        /* Try the slot where this attribute was found in other nodes of the same class */
+        final SlotIndex index = getSlotIndex();
+        final int slot = index!=null ? index.getSlot(localName) : -1;
+        if (slot>=0 && slot<attributes.size()) {
+            final Attribute<?> attribute = attributes.get(slot);
             if (attribute.getLocalName().equals(localName) && attribute.getNamespaceUri().equals(namespaceUri)) {
                 return attribute;
             }
         }
 
+        /* Otherwise scan, remembering where we found it */
+        for (int i=0, size=attributes.size(); i<size; i++) {
+            final Attribute<?> attribute = attributes.get(i);
+            if (attribute.getLocalName().equals(localName) && attribute.getNamespaceUri().equals(namespaceUri)) {
+                if (index!=null && slot==-1 && !(attribute instanceof ForeignAttribute)) {
+                    index.recordSlot(localName, i);
+                }
+                return attribute;
+            }
+        }
+
         if (silent) {
             return null;
         }
@@ -308,6 +345,20 @@ public final class AttributeList implements Serializable, Iterable<Attribute<?>>
                 + "' in Node with XPath " + owner.computeXPath());
     }
 
+    private SlotIndex getSlotIndex() {
+        if (slotIndex==null && !detachedFromSlotIndex) {
+            slotIndex = SlotIndex.forClass(slotIndexRegistry, owner.getClass());
+        }
+        return slotIndex;
+    }
+
+    private void detachFromSlotIndex() {
+        if (slotIndex!=null) {
+            slotIndex = null;
+            detachedFromSlotIndex = true;
+        }
+    }
+
     @Override
     public Iterator<Attribute<?>> iterator() {
         return attributes.iterator();
@@ -119,6 +119,7 @@ import uk.ac.ed.ph.jqtiplus.group.test.TestPartGroup;
 import uk.ac.ed.ph.jqtiplus.group.test.TimeLimitsGroup;
 import uk.ac.ed.ph.jqtiplus.group.test.VariableMappingGroup;
 import uk.ac.ed.ph.jqtiplus.group.test.WeightGroup;
+import uk.ac.ed.ph.jqtiplus.internal.util.SlotIndex;
 import uk.ac.ed.ph.jqtiplus.node.LoadingContext;
 import uk.ac.ed.ph.jqtiplus.node.QtiNode;
 import uk.ac.ed.ph.jqtiplus.node.content.BodyElement;
@@ -210,6 +211,8 @@ import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
@@ -217,6 +220,10 @@ import org.w3c.dom.NodeList;
 
 /**
  * Container for all node groups contained (owned) by a particular {@link QtiNode}.
+ * <p>
+ * Lookups by name use {@link SlotIndex}es shared by all nodes of the same class, so that
+ * the typed group getters don't need to scan the list each time. The shared indexes are
+ * no longer used once a list has been rearranged after its first lookup.
  *
  * @author Jiri Kajaba
  */
@@ -230,6 +237,21 @@ public final class NodeGroupList implements Serializable, Iterable<NodeGroup<?,?
     /** Children (groups) of this container. */
     private final List<NodeGroup<?,?>> groups;
 
+    /** Shared {@link SlotIndex} for {@link #get(String)} for each node class */
+    private static final ConcurrentMap<Class<?>, SlotIndex> nameSlotIndexRegistry = new ConcurrentHashMap<Class<?>, SlotIndex>();
+
+    /** Shared {@link SlotIndex} for {@link #getGroupSupporting(String)} for each node class */
+    private static final ConcurrentMap<Class<?>, SlotIndex> supportingSlotIndexRegistry = new ConcurrentHashMap<Class<?>, SlotIndex>();
+
+    /** {@link SlotIndex} for {@link #get(String)} shared with other nodes of the parent's class, looked up on first use */
+    private transient SlotIndex nameSlotIndex;
+
+    /** {@link SlotIndex} for {@link #getGroupSupporting(String)} shared with other nodes of the parent's class, looked up on first use */
+    private transient SlotIndex supportingSlotIndex;
+
+    /** Set once this list has been rearranged after first use, so the shared {@link SlotIndex}es no longer apply */
+    private boolean detachedFromSlotIndexes;
+
     public NodeGroupList(final QtiNode parent) {
         this.parent = parent;
         this.groups = new ArrayList<NodeGroup<?,?>>();
@@ -281,6 +303,9 @@ public final class NodeGroupList implements Serializable, Iterable<NodeGroup<?,?
      */
     public void add(final int index, final NodeGroup<?,?> group) {
         groups.add(index, group);
+        if (index < groups.size() - 1) {
+            detachFromSlotIndexes();
+        }
     }
 
     /**
@@ -302,6 +327,9 @@ public final class NodeGroupList implements Serializable, Iterable<NodeGroup<?,?
         }
 
         groups.add(index, group);
+        if (index < groups.size() - 1) {
+            detachFromSlotIndexes();
+        }
     }
 
     /**
@@ -347,6 +375,7 @@ public final class NodeGroupList implements Serializable, Iterable<NodeGroup<?,?
      */
     public void clear() {
         groups.clear();
+        detachFromSlotIndexes();
     }
 
     /**
@@ -367,11 +396,26 @@ public final class NodeGroupList implements Serializable, Iterable<NodeGroup<?,?
      * @throws QtiNodeGroupException if group is not found
      */
     public NodeGroup<?,?> get(final String name) {
-        for (final NodeGroup<?,?> child : groups) {
+        if (nameSlotIndex==null && !detachedFromSlotIndexes) {
+            nameSlotIndex = SlotIndex.forClass(nameSlotIndexRegistry, parent.getClass());
+        }
+        final SlotIndex index = nameSlotIndex;
+        final int slot = index!=null ? index.getSlot(name) : -1;
+        if (slot>=0 && slot<groups.size()) {
+            final NodeGroup<?,?> child = groups.get(slot);
             if (child.getName().equals(name) || child.supportsQtiClass(name)) {
                 return child;
             }
         }
+        for (int i=0, size=groups.size(); i<size; i++) {
+            final NodeGroup<?,?> child = groups.get(i);
+            if (child.getName().equals(name) || child.supportsQtiClass(name)) {
+                if (index!=null && slot==-1) {
+                    index.recordSlot(name, i);
+                }
+                return child;
+            }
+        }
         throw new QtiNodeGroupException("Cannot find node group with name " + name);
     }
 
@@ -384,14 +428,34 @@ public final class NodeGroupList implements Serializable, Iterable<NodeGroup<?,?
      * @throws QtiNodeGroupException if group is not found
      */
     public NodeGroup<?,?> getGroupSupporting(final String qtiClassName) {
-        for (final NodeGroup<?,?> child : groups) {
+        if (supportingSlotIndex==null && !detachedFromSlotIndexes) {
+            supportingSlotIndex = SlotIndex.forClass(supportingSlotIndexRegistry, parent.getClass());
+        }
+        final SlotIndex index = supportingSlotIndex;
+        final int slot = index!=null ? index.getSlot(qtiClassName) : -1;
+        if (slot>=0 && slot<groups.size() && groups.get(slot).supportsQtiClass(qtiClassName)) {
+            return groups.get(slot);
+        }
+        for (int i=0, size=groups.size(); i<size; i++) {
+            final NodeGroup<?,?> child = groups.get(i);
             if (child.supportsQtiClass(qtiClassName)) {
+                if (index!=null && slot==-1) {
+                    index.recordSlot(qtiClassName, i);
+                }
                 return child;
             }
         }
         throw new QtiNodeGroupException("Cannot find node group supporting " + qtiClassName);
     }
 
+    private void detachFromSlotIndexes() {
+        if (nameSlotIndex!=null || supportingSlotIndex!=null) {
+            nameSlotIndex = null;
+            supportingSlotIndex = null;
+            detachedFromSlotIndexes = true;
+        }
+    }
+
     /**
      * Gets expression group.
      *
@@ -0,0 +1,125 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.jqtiplus.internal.util;
+
+import uk.ac.ed.ph.jqtiplus.exception.QtiLogicException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Helpers for doing independent units of work in parallel.
+ *
+ * @author David McKain
+ */
+public final class ConcurrencyUtilities {
+
+    /**
+     * Performs the given tasks using the given {@link Executor}, returning their results in the same
+     * order as the tasks. If the {@link Executor} is null, or there is only one task, then the tasks
+     * are simply performed in turn on the calling Thread.
+     * <p>
+     * Any {@link RuntimeException} or {@link Error} thrown by a task is rethrown on the calling Thread,
+     * after attempting to cancel any tasks that have not yet started.
+     *
+     * @param executor {@link Executor} to use, which may be null
+     * @param tasks tasks to perform, which must not be null. The tasks should not throw checked
+     *   Exceptions.
+     */
+    public static <T> List<T> invokeInOrder(final Executor executor, final List<? extends Callable<T>> tasks) {
+        Assert.notNull(tasks, "tasks");
+        final List<T> result = new ArrayList<T>(tasks.size());
+        if (executor==null || tasks.size() <= 1) {
+            for (final Callable<T> task : tasks) {
+                result.add(callUnchecked(task));
+            }
+            return result;
+        }
+
+        final List<FutureTask<T>> futureTasks = new ArrayList<FutureTask<T>>(tasks.size());
+        try {
+            for (final Callable<T> task : tasks) {
+                final FutureTask<T> futureTask = new FutureTask<T>(task);
+                futureTasks.add(futureTask);
+                executor.execute(futureTask);
+            }
+            for (final FutureTask<T> futureTask : futureTasks) {
+                result.add(waitFor(futureTask));
+            }
+        }
+        finally {
+            /* Abandon any outstanding work if something went wrong */
+            for (final FutureTask<T> futureTask : futureTasks) {
+                futureTask.cancel(false);
+            }
+        }
+        return result;
+    }
+
+    private static <T> T callUnchecked(final Callable<T> task) {
+        try {
+            return task.call();
+        }
+        catch (final RuntimeException e) {
+            throw e;
+        }
+        catch (final Exception e) {
+            throw new QtiLogicException("Unexpected checked Exception from task " + task, e);
+        }
+    }
+
+    private static <T> T waitFor(final FutureTask<T> futureTask) {
+        try {
+            return futureTask.get();
+        }
+        catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new QtiLogicException("Interrupted while waiting for task to complete", e);
+        }
+        catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new QtiLogicException("Unexpected checked Exception from task", cause);
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.jqtiplus.internal.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Bounded, process-wide cache of compiled regular expressions, as used by
+ * <code>patternMatch</code> and the <code>patternMask</code> of string interactions.
+ * <p>
+ * QTI regular expressions follow the XML Schema regex syntax, so each expression is first
+ * translated into an equivalent Java regex (see {@link #translateXmlSchemaRegex(String)}), and the
+ * resulting compiled {@link Pattern} (which records the translation) is cached against the
+ * original expression.
+ * <p>
+ * The cache holds at most {@link #MAX_SIZE} entries. It is simply emptied whenever this is
+ * exceeded, which is adequate as the patterns used in practice are few in number.
+ * <p>
+ * This class may safely be used by multiple threads.
+ *
+ * @author David McKain
+ */
+public final class RegexCache {
+
+    /** Maximum number of compiled patterns to keep */
+    public static final int MAX_SIZE = 1024;
+
+    /** Ranges of characters matched by the XML Schema <code>\i</code> escape (XML 1.0 NameStartChar) */
+    private static final String NAME_START_CHAR_RANGES = ":A-Z_a-z\\u00C0-\\u00D6\\u00D8-\\u00F6\\u00F8-\\u02FF\\u0370-\\u037D"
+            + "\\u037F-\\u1FFF\\u200C-\\u200D\\u2070-\\u218F\\u2C00-\\u2FEF\\u3001-\\uD7FF\\uF900-\\uFDCF\\uFDF0-\\uFFFD";
+
+    /** Ranges of characters matched by the XML Schema <code>\c</code> escape (XML 1.0 NameChar) */
+    private static final String NAME_CHAR_RANGES = NAME_START_CHAR_RANGES + "\\-.0-9\\u00B7\\u0300-\\u036F\\u203F-\\u2040";
+
+    private static final ConcurrentMap<String, Pattern> patternMap = new ConcurrentHashMap<String, Pattern>();
+
+    /**
+     * Returns the compiled form of the given XML Schema regular expression, compiling and
+     * caching it if required.
+     *
+     * @throws PatternSyntaxException if the expression is not valid
+     */
+    public static Pattern getPattern(final String xmlSchemaRegex) {
+        Assert.notNull(xmlSchemaRegex, "xmlSchemaRegex");
+        Pattern result = patternMap.get(xmlSchemaRegex);
+        if (result==null) {
+            result = Pattern.compile(translateXmlSchemaRegex(xmlSchemaRegex));
+            if (patternMap.size() >= MAX_SIZE) {
+                patternMap.clear();
+            }
+            patternMap.put(xmlSchemaRegex, result);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of compiled patterns currently cached.
+     */
+    public static int size() {
+        return patternMap.size();
+    }
+
+    /**
+     * Empties the cache.
+     */
+    public static void clear() {
+        patternMap.clear();
+    }
+
+    /**
+     * Translates an XML Schema regular expression into an equivalent Java regular expression.
+     * This rewrites the XML Schema constructs that Java either doesn't support or interprets
+     * differently:
+     * <ul>
+     *   <li>The multi-character escapes <code>\i</code>, <code>\I</code>, <code>\c</code> and <code>\C</code></li>
+     *   <li>Block escapes such as <code>\p{IsBasicLatin}</code>, which become <code>\p{InBasicLatin}</code></li>
+     *   <li>Character class subtraction, such as <code>[a-z-[aeiou]]</code></li>
+     * </ul>
+     * Existing content has always been matched using Java regexes, so Java constructs that overlap
+     * with these are left alone. <code>\c</code> followed by an ASCII letter is kept as a Java
+     * control character escape, and <code>\p{Is...}</code> is only rewritten when Java doesn't
+     * accept it as it stands (e.g. <code>\p{IsL}</code> and <code>\p{IsAlphabetic}</code> are kept)
+     * and it names a Unicode block.
+     * Everything else is passed through unchanged. (In particular, <code>^</code> and <code>$</code>
+     * keep their Java meanings, which is what existing content has always relied on.)
+     */
+    public static String translateXmlSchemaRegex(final String xmlSchemaRegex) {
+        final int length = xmlSchemaRegex.length();
+        final StringBuilder result = new StringBuilder(length);
+        int classDepth = 0;
+        for (int i=0; i<length; i++) {
+            final char c = xmlSchemaRegex.charAt(i);
+            final char next = i+1 < length ? xmlSchemaRegex.charAt(i+1) : 0;
+            if (c=='\\' && i+1 < length) {
+                i++;
+                if (next=='i') {
+                    result.append('[').append(NAME_START_CHAR_RANGES).append(']');
+                }
+                else if (next=='I') {
+                    result.append("[^").append(NAME_START_CHAR_RANGES).append(']');
+                }
+                else if (next=='c' && !isAsciiLetter(i+1 < length ? xmlSchemaRegex.charAt(i+1) : 0)) {
+                    result.append('[').append(NAME_CHAR_RANGES).append(']');
+                }
+                else if (next=='C') {
+                    result.append("[^").append(NAME_CHAR_RANGES).append(']');
+                }
+                else if ((next=='p' || next=='P') && isXmlSchemaBlockEscape(xmlSchemaRegex, i+1)) {
+                    result.append('\\').append(next).append("{In");
+                    i += 3;
+                }
+                else {
+                    result.append(c).append(next);
+                }
+            }
+            else if (c=='[') {
+                classDepth++;
+                result.append(c);
+            }
+            else if (c==']' && classDepth > 0) {
+                classDepth--;
+                result.append(c);
+            }
+            else if (c=='-' && next=='[' && classDepth > 0) {
+                /* Subtraction of (possibly negated) character class */
+                classDepth++;
+                i++;
+                if (i+1 < length && xmlSchemaRegex.charAt(i+1)=='^') {
+                    result.append("&&[");
+                    i++;
+                }
+                else {
+                    result.append("&&[^");
+                }
+            }
+            else {
+                result.append(c);
+            }
+        }
+        return result.toString();
+    }
+
+    private static boolean isAsciiLetter(final char c) {
+        return (c>='A' && c<='Z') || (c>='a' && c<='z');
+    }
+
+    /**
+     * Decides whether the property escape body starting at the given position (e.g.
+     * <code>{IsBasicLatin}</code>) is an XML Schema block escape that Java will only understand
+     * once rewritten to <code>{In...}</code>.
+     */
+    private static boolean isXmlSchemaBlockEscape(final String regex, final int braceIndex) {
+        if (!regex.startsWith("{Is", braceIndex)) {
+            return false;
+        }
+        final int closeIndex = regex.indexOf('}', braceIndex);
+        if (closeIndex < 0) {
+            return false;
+        }
+        final String property = regex.substring(braceIndex, closeIndex + 1);
+        try {
+            /* Leave alone anything Java already accepts (general categories, scripts, binary properties...) */
+            Pattern.compile("\\p" + property);
+            return false;
+        }
+        catch (final PatternSyntaxException e) {
+            /* Not valid in Java, so continue */
+        }
+        try {
+            Character.UnicodeBlock.forName(property.substring(3, property.length() - 1));
+            return true;
+        }
+        catch (final IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private RegexCache() {
+        /* (No instances) */
+    }
+}
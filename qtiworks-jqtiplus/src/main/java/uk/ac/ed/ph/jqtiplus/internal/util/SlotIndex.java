@@ -0,0 +1,183 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.jqtiplus.internal.util;
+
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Remembers the positions ("slots") at which named members, such as attributes or node groups,
+ * have been found within the lists held by instances of a particular node class.
+ * <p>
+ * Every instance of a given node class creates these members in the same order, so a slot found
+ * by scanning one instance makes a good first guess for a lookup of the same name within another
+ * instance. Slots are only ever hints: callers must check that the member found in a slot is the
+ * one they want, and fall back to scanning if not.
+ * <p>
+ * Lookups are made against an immutable open-addressed table, which is copied whenever a new
+ * name is recorded. This is cheap since each class only has a handful of names, and they are
+ * all recorded early on.
+ * <p>
+ * Usage: an instance of this class is safe to use concurrently by multiple threads.
+ *
+ * @author David McKain
+ */
+public final class SlotIndex {
+
+    private static final Table EMPTY_TABLE = new Table(new String[4], new int[4]);
+
+    /** Current table. This is replaced (never modified) when new names are recorded */
+    private volatile Table table;
+
+    public SlotIndex() {
+        this.table = EMPTY_TABLE;
+    }
+
+    /**
+     * Obtains the {@link SlotIndex} for the given class from the given registry, creating and
+     * registering a new one if required.
+     */
+    public static SlotIndex forClass(final ConcurrentMap<Class<?>, SlotIndex> registry, final Class<?> nodeClass) {
+        Assert.notNull(registry, "registry");
+        Assert.notNull(nodeClass, "nodeClass");
+        SlotIndex result = registry.get(nodeClass);
+        if (result==null) {
+            final SlotIndex newIndex = new SlotIndex();
+            result = registry.putIfAbsent(nodeClass, newIndex);
+            if (result==null) {
+                result = newIndex;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the slot recorded for the member having the given name, or -1 if no slot
+     * has been recorded.
+     */
+    public int getSlot(final String name) {
+        final Table current = table;
+        final String[] names = current.names;
+        final int mask = names.length - 1;
+        int i = name.hashCode() & mask;
+        while (true) {
+            final String candidate = names[i];
+            if (candidate==null) {
+                return -1;
+            }
+            if (candidate==name || candidate.equals(name)) {
+                return current.slots[i];
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    /**
+     * Records the slot at which the member having the given name was found. This does nothing if
+     * a slot has already been recorded for this name, so the first layout seen for a class wins.
+     */
+    public synchronized void recordSlot(final String name, final int slot) {
+        Assert.notNull(name, "name");
+        if (getSlot(name)!=-1) {
+            return;
+        }
+        final Table current = table;
+        int capacity = current.names.length;
+        if (2 * (current.size + 1) > capacity) {
+            capacity *= 2;
+        }
+        final String[] newNames = new String[capacity];
+        final int[] newSlots = new int[capacity];
+        for (int i=0; i<current.names.length; i++) {
+            if (current.names[i]!=null) {
+                insert(newNames, newSlots, current.names[i], current.slots[i]);
+            }
+        }
+        insert(newNames, newSlots, name, slot);
+        table = new Table(newNames, newSlots);
+    }
+
+    private static void insert(final String[] names, final int[] slots, final String name, final int slot) {
+        final int mask = names.length - 1;
+        int i = name.hashCode() & mask;
+        while (names[i]!=null) {
+            i = (i + 1) & mask;
+        }
+        names[i] = name;
+        slots[i] = slot;
+    }
+
+    public int size() {
+        return table.size;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder result = new StringBuilder(getClass().getSimpleName())
+            .append("@").append(Integer.toHexString(System.identityHashCode(this)))
+            .append("(slots={");
+        final Table current = table;
+        boolean first = true;
+        for (int i=0; i<current.names.length; i++) {
+            if (current.names[i]!=null) {
+                if (!first) {
+                    result.append(",");
+                }
+                result.append(current.names[i]).append("=").append(current.slots[i]);
+                first = false;
+            }
+        }
+        return result.append("})").toString();
+    }
+
+    //--------------------------------------------------------------------------
+
+    private static final class Table {
+
+        final String[] names;
+        final int[] slots;
+        final int size;
+
+        Table(final String[] names, final int[] slots) {
+            this.names = names;
+            this.slots = slots;
+            int count = 0;
+            for (final String name : names) {
+                if (name!=null) {
+                    count++;
+                }
+            }
+            this.size = count;
+        }
+    }
+}
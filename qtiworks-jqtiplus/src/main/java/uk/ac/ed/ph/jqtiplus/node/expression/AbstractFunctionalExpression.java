@@ -69,4 +69,19 @@ public abstract class AbstractFunctionalExpression extends AbstractExpression {
      * @return result of evaluation, which must not be null
      */
     protected abstract Value evaluateValidSelf(ProcessingContext context, Value[] childValues, int depth);
+
+    /**
+     * Evaluates this expression using the given child values, which the caller has already
+     * calculated. No validity checks are performed here.
+     * <p>
+     * This is used by compiled processing, which evaluates the children itself and is only
+     * used on valid items and tests.
+     *
+     * @see uk.ac.ed.ph.jqtiplus.running.compiled.ProcessingCompiler
+     *
+     * @return result of evaluation, which must not be null
+     */
+    public final Value evaluateWithChildValues(final ProcessingContext context, final Value[] childValues) {
+        return evaluateValidSelf(context, childValues, 0);
+    }
 }
@@ -34,8 +34,10 @@
 package uk.ac.ed.ph.jqtiplus.node.expression.operator;
 
 import uk.ac.ed.ph.jqtiplus.attribute.value.StringOrVariableRefAttribute;
+import uk.ac.ed.ph.jqtiplus.internal.util.RegexCache;
 import uk.ac.ed.ph.jqtiplus.node.expression.AbstractFunctionalExpression;
 import uk.ac.ed.ph.jqtiplus.node.expression.ExpressionParent;
+import uk.ac.ed.ph.jqtiplus.running.ItemProcessingContext;
 import uk.ac.ed.ph.jqtiplus.running.ProcessingContext;
 import uk.ac.ed.ph.jqtiplus.types.StringOrVariableRef;
 import uk.ac.ed.ph.jqtiplus.value.BooleanValue;
@@ -43,6 +45,8 @@ import uk.ac.ed.ph.jqtiplus.value.NullValue;
 import uk.ac.ed.ph.jqtiplus.value.StringValue;
 import uk.ac.ed.ph.jqtiplus.value.Value;
 
+import java.util.regex.Pattern;
+
 /**
  * The patternMatch operator takes a sub-expression which must have single cardinality and a base-type
  * of string. The result is a single boolean with a value of true if the sub-expression matches the regular
@@ -51,7 +55,9 @@ import uk.ac.ed.ph.jqtiplus.value.Value;
  * <p>
  * The syntax for the regular expression language is defined in Appendix F of <A href="http://www.w3.org/TR/2001/REC-xmlschema-2-20010502/#regexs">XML</A>.
  * <p>
- * Current implementation supports only java regular expression language definition!
+ * The pattern is translated into a Java regular expression and compiled using {@link RegexCache},
+ * or taken from the precompiled patterns in the item's {@link uk.ac.ed.ph.jqtiplus.state.ItemProcessingMap}
+ * if it is a literal.
  *
  * @see uk.ac.ed.ph.jqtiplus.value.Cardinality
  * @see uk.ac.ed.ph.jqtiplus.value.BaseType
@@ -97,7 +103,10 @@ public final class PatternMatch extends AbstractFunctionalExpression {
         final String pattern = ((StringValue) computedPattern).stringValue();
         final String childString =  ((StringValue) childValues[0]).toQtiString();
 
-        final boolean result = childString.matches(pattern);
+        final Pattern compiledPattern = context instanceof ItemProcessingContext
+                ? ((ItemProcessingContext) context).getItemProcessingMap().getPattern(pattern)
+                : RegexCache.getPattern(pattern);
+        final boolean result = compiledPattern.matcher(childString).matches();
         return BooleanValue.valueOf(result);
     }
 }
@@ -39,6 +39,7 @@ import uk.ac.ed.ph.jqtiplus.node.expression.AbstractFunctionalExpression;
 import uk.ac.ed.ph.jqtiplus.node.expression.ExpressionParent;
 import uk.ac.ed.ph.jqtiplus.node.test.AbstractPart;
 import uk.ac.ed.ph.jqtiplus.node.test.AssessmentSection;
+import uk.ac.ed.ph.jqtiplus.running.ItemSubsetMemo;
 import uk.ac.ed.ph.jqtiplus.running.ProcessingContext;
 import uk.ac.ed.ph.jqtiplus.running.TestProcessingContext;
 import uk.ac.ed.ph.jqtiplus.state.TestPlanNode;
@@ -132,7 +133,27 @@ public abstract class ItemSubset extends AbstractFunctionalExpression {
     protected final Value evaluateValidSelf(final ProcessingContext context, final Value[] childValues, final int depth) {
         final TestProcessingContext testProcessingContext = (TestProcessingContext) context;
 
-        final List<TestPlanNode> matchedTestPlanNodes = testProcessingContext.computeItemSubset(getSectionIdentifier(), getIncludeCategories(), getExcludeCategories());
+        /* Use remembered results if we're doing incremental outcome processing */
+        final ItemSubsetMemo itemSubsetMemo = testProcessingContext.getTestSessionState().getItemSubsetMemo();
+        if (itemSubsetMemo!=null) {
+            return itemSubsetMemo.evaluate(this, testProcessingContext);
+        }
+        return handleSubset(testProcessingContext, computeSubset(testProcessingContext));
+    }
+
+    /**
+     * Computes the {@link TestPlanNode}s of the items matched by this subset.
+     */
+    public final List<TestPlanNode> computeSubset(final TestProcessingContext testProcessingContext) {
+        return testProcessingContext.computeItemSubset(getSectionIdentifier(), getIncludeCategories(), getExcludeCategories());
+    }
+
+    /**
+     * Evaluates this expression over the given (previously computed) subset of items.
+     *
+     * @see #computeSubset(TestProcessingContext)
+     */
+    public final Value evaluateSubset(final TestProcessingContext testProcessingContext, final List<TestPlanNode> matchedTestPlanNodes) {
         return handleSubset(testProcessingContext, matchedTestPlanNodes);
     }
 
@@ -421,7 +421,7 @@ public final class ExtendedTextInteraction extends BlockInteraction implements S
             return false;
         }
         if (patternMask != null) {
-            final Pattern pattern = Pattern.compile(patternMask);
+            final Pattern pattern = interactionBindingContext.getItemProcessingMap().getPattern(patternMask);
             for (final SingleValue responseEntry : nonNullResponseStrings) {
                 if (!pattern.matcher(responseEntry.toQtiString()).matches()) {
                     return false;
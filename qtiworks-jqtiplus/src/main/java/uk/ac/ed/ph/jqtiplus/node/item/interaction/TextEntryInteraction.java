@@ -56,6 +56,7 @@ import uk.ac.ed.ph.jqtiplus.value.NullValue;
 import uk.ac.ed.ph.jqtiplus.value.Value;
 
 import java.util.List;
+import java.util.regex.Pattern;
 
 /**
  * A textEntry interaction is an inlineInteraction that obtains A
@@ -240,7 +241,8 @@ public final class TextEntryInteraction extends InlineInteraction implements Str
     public boolean validateResponse(final InteractionBindingContext interactionBindingContext, final Value responseValue) {
         final String patternMask = getPatternMask();
         if (patternMask != null) {
-            if (!responseValue.toQtiString().matches(patternMask)) {
+            final Pattern pattern = interactionBindingContext.getItemProcessingMap().getPattern(patternMask);
+            if (!pattern.matcher(responseValue.toQtiString()).matches()) {
                 return false;
             }
         }
@@ -108,29 +108,37 @@ public final class LookupOutcomeValue extends ProcessResponseValue {
         final Value value = getExpression().evaluate(context);
         if (isThisRuleValid(context)) {
             final OutcomeDeclaration outcomeDeclaration = (OutcomeDeclaration) context.ensureVariableDeclaration(getIdentifier(), VariableType.OUTCOME);
-            final LookupTable<?, ?> lookupTable = outcomeDeclaration.getLookupTable();
-            final Value targetValue;
-            if (value.isNull()) {
-                /* Spec is not completely clear as to what to do here, but I assume it means we should
-                 * take the default value?
-                 */
-                targetValue = lookupTable.getDefaultValue();
-            }
-            else {
-                double valueAsDouble;
-                if (value.getBaseType().isDuration()) {
-                    valueAsDouble = ((DurationValue) value).doubleValue();
-                }
-                else {
-                    /* (If it's not duration, then it should be numeric) */
-                    valueAsDouble = ((NumberValue) value).doubleValue();
-                }
-                targetValue = lookupTable.getTargetValue(valueAsDouble);
-            }
-            context.setVariableValue(outcomeDeclaration, targetValue!=null ? targetValue : NullValue.INSTANCE);
+            context.setVariableValue(outcomeDeclaration, lookupTargetValue(outcomeDeclaration, value));
         }
         else {
             context.fireRuntimeWarning(this, "Rule is not valid, so discarding computed value " + value.toQtiString());
         }
     }
+
+    /**
+     * Looks up the given (evaluated) value in the {@link LookupTable} of the given
+     * {@link OutcomeDeclaration}, returning the resulting target value. This will not return null.
+     */
+    public static Value lookupTargetValue(final OutcomeDeclaration outcomeDeclaration, final Value value) {
+        final LookupTable<?, ?> lookupTable = outcomeDeclaration.getLookupTable();
+        final Value targetValue;
+        if (value.isNull()) {
+            /* Spec is not completely clear as to what to do here, but I assume it means we should
+             * take the default value?
+             */
+            targetValue = lookupTable.getDefaultValue();
+        }
+        else {
+            double valueAsDouble;
+            if (value.getBaseType().isDuration()) {
+                valueAsDouble = ((DurationValue) value).doubleValue();
+            }
+            else {
+                /* (If it's not duration, then it should be numeric) */
+                valueAsDouble = ((NumberValue) value).doubleValue();
+            }
+            targetValue = lookupTable.getTargetValue(valueAsDouble);
+        }
+        return targetValue!=null ? targetValue : NullValue.INSTANCE;
+    }
 }
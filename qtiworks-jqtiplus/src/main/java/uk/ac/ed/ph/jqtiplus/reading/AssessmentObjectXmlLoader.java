@@ -44,12 +44,16 @@ import uk.ac.ed.ph.jqtiplus.validation.TestValidationResult;
 import uk.ac.ed.ph.jqtiplus.xmlutils.locators.ResourceLocator;
 
 import java.net.URI;
+import java.util.concurrent.Executor;
 
 /**
  * Convenient facade for loading, resolving and validating {@link AssessmentItem}s
  * and {@link AssessmentTest}s from XML using a {@link QtiXmlReader} for the low
  * level XML parsing and a {@link ResourceLocator} for locating and finding the
  * required XML resources.
+ * <p>
+ * If an {@link Executor} is provided, then the items within a test will be read, resolved and
+ * validated in parallel using it.
  *
  * @see QtiXmlReader
  * @see ResourceLocator
@@ -61,9 +65,18 @@ public final class AssessmentObjectXmlLoader {
     private final QtiXmlReader qtiXmlReader;
     private final ResourceLocator inputResourceLocator;
 
+    /** Used to process test items in parallel. Null to process them serially */
+    private final Executor executor;
+
     public AssessmentObjectXmlLoader(final QtiXmlReader qtiXmlReader, final ResourceLocator inputResourceLocator) {
+        this(qtiXmlReader, inputResourceLocator, null);
+    }
+
+    public AssessmentObjectXmlLoader(final QtiXmlReader qtiXmlReader, final ResourceLocator inputResourceLocator,
+            final Executor executor) {
         this.qtiXmlReader = qtiXmlReader;
         this.inputResourceLocator = inputResourceLocator;
+        this.executor = executor;
     }
 
     public QtiXmlReader getQtiXmlReader() {
@@ -74,6 +87,10 @@ public final class AssessmentObjectXmlLoader {
         return inputResourceLocator;
     }
 
+    public Executor getExecutor() {
+        return executor;
+    }
+
     //-------------------------------------------------------------------
     // AssessmentItem resolution & validation
 
@@ -95,14 +112,14 @@ public final class AssessmentObjectXmlLoader {
 
     public ResolvedAssessmentTest loadAndResolveAssessmentTest(final URI systemId) {
         final QtiObjectReader qtiObjectReader = qtiXmlReader.createQtiObjectReader(inputResourceLocator, false);
-        final AssessmentObjectResolver assessmentObjectResolver = new AssessmentObjectResolver(qtiObjectReader);
+        final AssessmentObjectResolver assessmentObjectResolver = new AssessmentObjectResolver(qtiObjectReader, executor);
         return assessmentObjectResolver.resolveAssessmentTest(systemId);
     }
 
     public TestValidationResult loadResolveAndValidateTest(final URI systemId) {
         final QtiObjectReader qtiObjectReader = qtiXmlReader.createQtiObjectReader(inputResourceLocator, true);
-        final ResolvedAssessmentTest resolvedAssessmentTest = new AssessmentObjectResolver(qtiObjectReader).resolveAssessmentTest(systemId);
-        final AssessmentObjectValidator assessmentObjectValidator = new AssessmentObjectValidator(qtiObjectReader.getJqtiExtensionManager());
+        final ResolvedAssessmentTest resolvedAssessmentTest = new AssessmentObjectResolver(qtiObjectReader, executor).resolveAssessmentTest(systemId);
+        final AssessmentObjectValidator assessmentObjectValidator = new AssessmentObjectValidator(qtiObjectReader.getJqtiExtensionManager(), executor);
         return assessmentObjectValidator.validateTest(resolvedAssessmentTest);
     }
 
@@ -113,6 +130,7 @@ public final class AssessmentObjectXmlLoader {
         return getClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(this))
                 + "(qtiXmlReader=" + qtiXmlReader
                 + ",inputResourceLocator=" + inputResourceLocator
+                + ",executor=" + executor
                 + ")";
     }
 }
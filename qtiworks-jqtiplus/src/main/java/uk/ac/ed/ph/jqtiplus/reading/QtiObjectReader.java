@@ -59,6 +59,7 @@ import uk.ac.ed.ph.jqtiplus.xmlutils.locators.ResourceLocator;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -147,6 +148,31 @@ public final class QtiObjectReader implements RootNodeProvider {
             throws XmlResourceNotFoundException, QtiXmlInterpretationException {
         Assert.notNull(systemId, "systemId");
         Assert.notNull(requiredRootNodeClass, "requiredRootNodeClass");
+
+        /* Use shared cache for standard resources, if available */
+        final SharedRootNodeCache sharedRootNodeCache = qtiXmlReader.getSharedRootNodeCache();
+        if (sharedRootNodeCache!=null && sharedRootNodeCache.isStandardResource(systemId)) {
+            final QtiObjectReadResult<RootNode> sharedResult = sharedRootNodeCache.getReadResult(systemId, schemaValidating,
+                    new Callable<QtiObjectReadResult<RootNode>>() {
+                        @Override
+                        public QtiObjectReadResult<RootNode> call() throws XmlResourceNotFoundException, QtiXmlInterpretationException {
+                            return readRootNode(systemId, RootNode.class);
+                        }
+                    });
+            final RootNode rootNode = sharedResult.getRootNode();
+            if (!requiredRootNodeClass.isInstance(rootNode)) {
+                logger.debug("Shared QTI Object {} is not of the required type {}", rootNode, requiredRootNodeClass);
+                throw new QtiXmlInterpretationException(WRONG_RESULT_TYPE, "QTI Object Model was not of the required type " + requiredRootNodeClass,
+                        requiredRootNodeClass, sharedResult.getXmlParseResult(), rootNode, new ArrayList<QtiModelBuildingError>());
+            }
+            return new QtiObjectReadResult<E>(requiredRootNodeClass, sharedResult.getXmlParseResult(),
+                    sharedResult.getQtiNamespaceUri(), requiredRootNodeClass.cast(rootNode));
+        }
+        return readRootNode(systemId, requiredRootNodeClass);
+    }
+
+    private <E extends RootNode> QtiObjectReadResult<E> readRootNode(final URI systemId, final Class<E> requiredRootNodeClass)
+            throws XmlResourceNotFoundException, QtiXmlInterpretationException {
         logger.debug("Attempting to read QTI Object at system ID {}, requiring result result class {}", systemId, requiredRootNodeClass);
 
         /* We'll create a chained resource locator using the one used to locate parser resources first, as this
@@ -68,6 +68,9 @@ import java.util.Map.Entry;
  *     to be maintained internally for performance reasons, before using the standard input locator.
  *   </li>
  * </ul>
+ * If a {@link SharedRootNodeCache} is supplied, then the QTI Object models built from standard
+ * resources (such as response processing templates) are shared between all readers using it.
+ * <p>
  * An instance of this class may safely be used by multiple threads.
  *
  * @author David McKain
@@ -90,6 +93,9 @@ public final class QtiXmlReader {
     /** Delegating {@link XmlResourceReader} */
     private final XmlResourceReader xmlResourceReader;
 
+    /** Optional cache of built standard resources, shared by all {@link QtiObjectReader}s */
+    private final SharedRootNodeCache sharedRootNodeCache;
+
     public QtiXmlReader() {
         this(new JqtiExtensionManager(), null);
     }
@@ -99,6 +105,11 @@ public final class QtiXmlReader {
     }
 
     public QtiXmlReader(final JqtiExtensionManager jqtiExtensionManager, final SchemaCache schemaCache) {
+        this(jqtiExtensionManager, schemaCache, null);
+    }
+
+    public QtiXmlReader(final JqtiExtensionManager jqtiExtensionManager, final SchemaCache schemaCache,
+            final SharedRootNodeCache sharedRootNodeCache) {
         Assert.notNull(jqtiExtensionManager, "jqtiExtensionManager");
 
         /* Merge extension schemas with core QTI 2.0 and 2.1 schemas */
@@ -112,6 +123,7 @@ public final class QtiXmlReader {
 
         this.jqtiExtensionManager = jqtiExtensionManager;
         this.xmlResourceReader = new XmlResourceReader(JQTIPLUS_PARSER_RESOURCE_LOCATOR, resultingSchemaMapTemplate, schemaCache);
+        this.sharedRootNodeCache = sharedRootNodeCache;
     }
 
     public JqtiExtensionManager getJqtiExtensionManager() {
@@ -122,6 +134,10 @@ public final class QtiXmlReader {
         return xmlResourceReader.getSchemaCache();
     }
 
+    public SharedRootNodeCache getSharedRootNodeCache() {
+        return sharedRootNodeCache;
+    }
+
     //--------------------------------------------------
 
     /**
@@ -161,6 +177,7 @@ public final class QtiXmlReader {
         return getClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(this))
                 + "(jqtiExtensionManager=" + jqtiExtensionManager
                 + ",schemaCache=" + getSchemaCache()
+                + ",sharedRootNodeCache=" + sharedRootNodeCache
                 + ")";
     }
 }
@@ -0,0 +1,310 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.jqtiplus.reading;
+
+import uk.ac.ed.ph.jqtiplus.exception.QtiLogicException;
+import uk.ac.ed.ph.jqtiplus.internal.util.Assert;
+import uk.ac.ed.ph.jqtiplus.node.QtiNode;
+import uk.ac.ed.ph.jqtiplus.node.RootNode;
+import uk.ac.ed.ph.jqtiplus.utils.QueryUtils;
+import uk.ac.ed.ph.jqtiplus.utils.TreeWalkNodeHandler;
+import uk.ac.ed.ph.jqtiplus.xmlutils.XmlResourceNotFoundException;
+import uk.ac.ed.ph.jqtiplus.xmlutils.locators.ResourceLocator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Process-wide cache of the QTI Object models built from "standard" resources, i.e. those
+ * having <code>http</code> or <code>https</code> System IDs that can be found within the
+ * ClassPath using {@link QtiXmlReader#JQTIPLUS_PARSER_RESOURCE_LOCATOR}. The standard
+ * response processing templates are the main example of these. Resources found only via a
+ * package's own {@link ResourceLocator} are never cached here.
+ * <p>
+ * Pass an instance of this to {@link QtiXmlReader#QtiXmlReader(uk.ac.ed.ph.jqtiplus.JqtiExtensionManager, uk.ac.ed.ph.jqtiplus.xmlutils.SchemaCache, SharedRootNodeCache)}
+ * so that every {@link QtiObjectReader} it creates (and hence every resolution performed using
+ * them) shares a single built {@link RootNode} tree for each standard resource, rather than
+ * re-parsing and re-building it for each package.
+ * <p>
+ * The resulting {@link RootNode}s are shared, so callers must treat them as read-only.
+ * Only successful reads are cached, and each resource is read at most once at a time:
+ * any other Thread wanting the same resource while this is happening will wait for the result.
+ * <p>
+ * An instance of this class may safely be used by multiple threads.
+ *
+ * @author David McKain
+ */
+public final class SharedRootNodeCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(SharedRootNodeCache.class);
+
+    /**
+     * Maximum number of System IDs found <strong>not</strong> to be standard resources that
+     * we'll remember. (The number of standard resources is fixed by the ClassPath, but the
+     * others come from the packages being read, so we don't let these grow without limit.)
+     */
+    public static final int MAX_REMEMBERED_NON_STANDARD_RESOURCES = 1000;
+
+    private final ResourceLocator standardResourceLocator;
+    private final ConcurrentMap<URI, Boolean> standardResourceDecisions;
+    private final AtomicInteger nonStandardResourceCount;
+    private final ConcurrentMap<CacheKey, Future<QtiObjectReadResult<RootNode>>> cacheData;
+    private final AtomicLong hitCount;
+    private final AtomicLong missCount;
+
+    public SharedRootNodeCache() {
+        this(QtiXmlReader.JQTIPLUS_PARSER_RESOURCE_LOCATOR);
+    }
+
+    SharedRootNodeCache(final ResourceLocator standardResourceLocator) {
+        this.standardResourceLocator = standardResourceLocator;
+        this.standardResourceDecisions = new ConcurrentHashMap<URI, Boolean>();
+        this.nonStandardResourceCount = new AtomicInteger();
+        this.cacheData = new ConcurrentHashMap<CacheKey, Future<QtiObjectReadResult<RootNode>>>();
+        this.hitCount = new AtomicLong();
+        this.missCount = new AtomicLong();
+    }
+
+    //--------------------------------------------------------------------------
+
+    /**
+     * Returns whether resources having the given System ID are eligible for sharing via this
+     * cache.
+     * <p>
+     * The decision for each System ID is remembered, so the ClassPath is only searched the
+     * first time a particular System ID is asked about.
+     */
+    public boolean isStandardResource(final URI systemId) {
+        Assert.notNull(systemId, "systemId");
+        final String scheme = systemId.getScheme();
+        if (!"http".equals(scheme) && !"https".equals(scheme)) {
+            return false;
+        }
+        final Boolean decision = standardResourceDecisions.get(systemId);
+        if (decision!=null) {
+            return decision.booleanValue();
+        }
+        final boolean result = locateStandardResource(systemId);
+        if (result) {
+            standardResourceDecisions.put(systemId, Boolean.TRUE);
+        }
+        else if (nonStandardResourceCount.get() < MAX_REMEMBERED_NON_STANDARD_RESOURCES
+                && standardResourceDecisions.putIfAbsent(systemId, Boolean.FALSE)==null) {
+            nonStandardResourceCount.incrementAndGet();
+        }
+        return result;
+    }
+
+    private boolean locateStandardResource(final URI systemId) {
+        final InputStream inputStream = standardResourceLocator.findResource(systemId);
+        if (inputStream==null) {
+            return false;
+        }
+        try {
+            inputStream.close();
+        }
+        catch (final IOException e) {
+            logger.warn("Could not close stream for standard resource {}", systemId, e);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of resources currently cached.
+     */
+    public int getCacheUsage() {
+        return cacheData.size();
+    }
+
+    public long getCacheHitCount() {
+        return hitCount.get();
+    }
+
+    public long getCacheMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Returns a rough estimate of the size of the cached data, measured as the total number
+     * of {@link QtiNode}s in the cached {@link RootNode} trees.
+     */
+    public long getEstimatedFootprint() {
+        final long[] counter = new long[1];
+        final TreeWalkNodeHandler counterHandler = new TreeWalkNodeHandler() {
+            @Override
+            public boolean handleNode(final QtiNode node) {
+                counter[0]++;
+                return true;
+            }
+        };
+        for (final Future<QtiObjectReadResult<RootNode>> future : cacheData.values()) {
+            if (future.isDone()) {
+                try {
+                    QueryUtils.walkTree(counterHandler, Arrays.asList(future.get().getRootNode()));
+                }
+                catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                catch (final ExecutionException e) {
+                    /* Failed lookup, which will be removed shortly */
+                }
+            }
+        }
+        return counter[0];
+    }
+
+    /**
+     * Empties this cache. Readers that are part way through using a previously cached
+     * {@link RootNode} are unaffected.
+     */
+    public void clear() {
+        logger.debug("Clearing shared RootNode cache containing {} resource(s)", cacheData.size());
+        cacheData.clear();
+    }
+
+    //--------------------------------------------------------------------------
+
+    /**
+     * Returns the cached result of reading the standard resource with the given System ID,
+     * using the given Callable to read it in if required.
+     */
+    QtiObjectReadResult<RootNode> getReadResult(final URI systemId, final boolean schemaValidating,
+            final Callable<QtiObjectReadResult<RootNode>> reader)
+            throws XmlResourceNotFoundException, QtiXmlInterpretationException {
+        final CacheKey cacheKey = new CacheKey(systemId, schemaValidating);
+        Future<QtiObjectReadResult<RootNode>> future = cacheData.get(cacheKey);
+        if (future!=null) {
+            logger.debug("Shared RootNode cache hit for {}", cacheKey);
+            hitCount.incrementAndGet();
+        }
+        else {
+            final FutureTask<QtiObjectReadResult<RootNode>> readTask = new FutureTask<QtiObjectReadResult<RootNode>>(reader);
+            future = cacheData.putIfAbsent(cacheKey, readTask);
+            if (future==null) {
+                logger.debug("Shared RootNode cache miss for {}", cacheKey);
+                missCount.incrementAndGet();
+                future = readTask;
+                readTask.run();
+            }
+            else {
+                hitCount.incrementAndGet();
+            }
+        }
+        return waitFor(cacheKey, future);
+    }
+
+    private QtiObjectReadResult<RootNode> waitFor(final CacheKey cacheKey, final Future<QtiObjectReadResult<RootNode>> future)
+            throws XmlResourceNotFoundException, QtiXmlInterpretationException {
+        try {
+            return future.get();
+        }
+        catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new QtiLogicException("Interrupted while waiting for read of standard resource " + cacheKey.systemId, e);
+        }
+        catch (final ExecutionException e) {
+            /* Failures aren't shared, so forget about this one */
+            cacheData.remove(cacheKey, future);
+            final Throwable cause = e.getCause();
+            if (cause instanceof XmlResourceNotFoundException) {
+                throw (XmlResourceNotFoundException) cause;
+            }
+            else if (cause instanceof QtiXmlInterpretationException) {
+                throw (QtiXmlInterpretationException) cause;
+            }
+            else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new QtiLogicException("Unexpected Exception reading standard resource " + cacheKey.systemId, cause);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(this))
+                + "(cacheKeys=" + cacheData.keySet()
+                + ",hitCount=" + hitCount
+                + ",missCount=" + missCount
+                + ")";
+    }
+
+    //--------------------------------------------------------------------------
+
+    private static final class CacheKey {
+
+        private final URI systemId;
+        private final boolean schemaValidating;
+
+        public CacheKey(final URI systemId, final boolean schemaValidating) {
+            this.systemId = systemId;
+            this.schemaValidating = schemaValidating;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof CacheKey)) {
+                return false;
+            }
+            final CacheKey other = (CacheKey) obj;
+            return systemId.equals(other.systemId) && schemaValidating==other.schemaValidating;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * systemId.hashCode() + (schemaValidating ? 1 : 0);
+        }
+
+        @Override
+        public String toString() {
+            return systemId + (schemaValidating ? " (validating)" : "");
+        }
+    }
+}
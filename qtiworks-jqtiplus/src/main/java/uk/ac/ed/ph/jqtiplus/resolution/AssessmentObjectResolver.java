@@ -33,6 +33,7 @@
  */
 package uk.ac.ed.ph.jqtiplus.resolution;
 
+import uk.ac.ed.ph.jqtiplus.internal.util.ConcurrencyUtilities;
 import uk.ac.ed.ph.jqtiplus.node.RootNode;
 import uk.ac.ed.ph.jqtiplus.node.item.AssessmentItem;
 import uk.ac.ed.ph.jqtiplus.node.item.response.processing.ResponseProcessing;
@@ -46,6 +47,8 @@ import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -57,6 +60,10 @@ import org.slf4j.LoggerFactory;
  * <p>
  * This provides a rich {@link ResolvedAssessmentItem} or {@link ResolvedAssessmentTest}
  * which is useful for the running/delivery of assessments.
+ * <p>
+ * If an {@link Executor} is provided, then the distinct items within a test will be resolved
+ * in parallel using it. The {@link RootNodeProvider} must then be safe for use by multiple
+ * threads. The results are the same as when resolving serially.
  *
  * @author David McKain
  */
@@ -66,8 +73,24 @@ public final class AssessmentObjectResolver {
 
     private final RootNodeProvider rootNodeProvider;
 
+    /** Used to resolve test items in parallel. Null to resolve them serially */
+    private final Executor executor;
+
     public AssessmentObjectResolver(final RootNodeProvider rootNodeProvider) {
+        this(rootNodeProvider, null);
+    }
+
+    public AssessmentObjectResolver(final RootNodeProvider rootNodeProvider, final Executor executor) {
         this.rootNodeProvider = rootNodeProvider;
+        this.executor = executor;
+    }
+
+    public RootNodeProvider getRootNodeProvider() {
+        return rootNodeProvider;
+    }
+
+    public Executor getExecutor() {
+        return executor;
     }
 
     //-------------------------------------------------------------------
@@ -174,9 +197,22 @@ public final class AssessmentObjectResolver {
                 }
             }
 
-            /* Resolve each unique item */
+            /* Resolve each unique item (possibly in parallel) */
+            final List<Callable<ResolvedAssessmentItem>> itemResolutionTasks = new ArrayList<Callable<ResolvedAssessmentItem>>();
+            for (final URI itemSystemId : itemRefsBySystemIdMap.keySet()) {
+                itemResolutionTasks.add(new Callable<ResolvedAssessmentItem>() {
+                    @Override
+                    public ResolvedAssessmentItem call() {
+                        return resolveAssessmentItem(itemSystemId, cachedResourceProvider);
+                    }
+                });
+            }
+            final List<ResolvedAssessmentItem> resolvedAssessmentItems = ConcurrencyUtilities.invokeInOrder(executor, itemResolutionTasks);
+
+            /* Record results in the same order as the items were referenced */
+            int i = 0;
             for (final URI itemSystemId : itemRefsBySystemIdMap.keySet()) {
-                resolvedAssessmentItemMap.put(itemSystemId, resolveAssessmentItem(itemSystemId, cachedResourceProvider));
+                resolvedAssessmentItemMap.put(itemSystemId, resolvedAssessmentItems.get(i++));
             }
         }
         return new ResolvedAssessmentTest(testLookup, assessmentItemRefs,
@@ -197,6 +233,7 @@ public final class AssessmentObjectResolver {
     public String toString() {
         return getClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(this))
                 + "(rootNodeProvider=" + rootNodeProvider
+                + ",executor=" + executor
                 + ")";
     }
 }
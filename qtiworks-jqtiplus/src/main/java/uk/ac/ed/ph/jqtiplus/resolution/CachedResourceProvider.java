@@ -33,6 +33,7 @@
  */
 package uk.ac.ed.ph.jqtiplus.resolution;
 
+import uk.ac.ed.ph.jqtiplus.exception.QtiLogicException;
 import uk.ac.ed.ph.jqtiplus.internal.util.DumpMode;
 import uk.ac.ed.ph.jqtiplus.internal.util.ObjectDumperOptions;
 import uk.ac.ed.ph.jqtiplus.node.RootNode;
@@ -44,6 +45,13 @@ import uk.ac.ed.ph.jqtiplus.provision.RootNodeProvider;
 import java.net.URI;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -51,6 +59,10 @@ import org.slf4j.LoggerFactory;
 /**
  * Helper class that caches the results of calls to {@link AssessmentObjectResolver} during
  * resolution so that we only need to build once.
+ * <p>
+ * An instance of this class may safely be used by multiple threads, as happens when resolving
+ * the items in a test in parallel. Each resource is only looked up once: any other Thread wanting
+ * the same resource while this is happening will wait for the result.
  *
  * @author David McKain
  */
@@ -59,52 +71,99 @@ final class CachedResourceProvider {
     private static final Logger logger = LoggerFactory.getLogger(CachedResourceProvider.class);
 
     private final RootNodeProvider rootNodeProvider;
-    private final Map<URI, RootNodeLookup<?>> cacheData;
+    private final ConcurrentMap<URI, Future<RootNodeLookup<?>>> cacheData;
 
     public CachedResourceProvider(final RootNodeProvider rootNodeProvider) {
         this.rootNodeProvider = rootNodeProvider;
-        this.cacheData = new HashMap<URI, RootNodeLookup<?>>();
+        this.cacheData = new ConcurrentHashMap<URI, Future<RootNodeLookup<?>>>();
     }
 
     public RootNodeProvider getRootNodeProvider() {
         return rootNodeProvider;
     }
 
+    /**
+     * Returns a snapshot of the lookups that have been completed so far.
+     */
     @ObjectDumperOptions(DumpMode.DEEP)
     public Map<URI, RootNodeLookup<?>> getCacheData() {
-        return cacheData;
+        final Map<URI, RootNodeLookup<?>> result = new HashMap<URI, RootNodeLookup<?>>();
+        for (final Entry<URI, Future<RootNodeLookup<?>>> entry : cacheData.entrySet()) {
+            final Future<RootNodeLookup<?>> future = entry.getValue();
+            if (future.isDone()) {
+                result.put(entry.getKey(), waitFor(entry.getKey(), future));
+            }
+        }
+        return result;
     }
 
     @SuppressWarnings("unchecked")
     public <E extends RootNode> RootNodeLookup<E> getLookup(final URI systemId, final Class<E> resultClass) {
-        RootNodeLookup<E> frozenResult = (RootNodeLookup<E>) cacheData.get(systemId);
-        if (frozenResult!=null) {
-            /* Cache hit */
-            logger.debug("Resource cache hit for key {} yielded {}", systemId, frozenResult);
+        Future<RootNodeLookup<?>> future = cacheData.get(systemId);
+        if (future!=null) {
+            /* Cache hit (though lookup may still be in progress) */
+            logger.debug("Resource cache hit for key {}", systemId);
         }
         else {
-            /* Cache miss */
-            try {
-                final RootNodeHolder<E> result = rootNodeProvider.lookupRootNode(systemId, resultClass);
-                frozenResult = new RootNodeLookup<E>(systemId, result);
+            /* Cache miss. We'll do the lookup ourselves unless another Thread gets in first */
+            final FutureTask<RootNodeLookup<?>> lookupTask = new FutureTask<RootNodeLookup<?>>(new Callable<RootNodeLookup<?>>() {
+                @Override
+                public RootNodeLookup<?> call() {
+                    return doLookup(systemId, resultClass);
+                }
+            });
+            future = cacheData.putIfAbsent(systemId, lookupTask);
+            if (future==null) {
+                future = lookupTask;
+                lookupTask.run();
             }
-            catch (final BadResourceException e) {
-                frozenResult = new RootNodeLookup<E>(systemId, resultClass, e);
+        }
+        return (RootNodeLookup<E>) waitFor(systemId, future);
+    }
+
+    private <E extends RootNode> RootNodeLookup<E> doLookup(final URI systemId, final Class<E> resultClass) {
+        RootNodeLookup<E> frozenResult;
+        try {
+            final RootNodeHolder<E> result = rootNodeProvider.lookupRootNode(systemId, resultClass);
+            frozenResult = new RootNodeLookup<E>(systemId, result);
+        }
+        catch (final BadResourceException e) {
+            frozenResult = new RootNodeLookup<E>(systemId, resultClass, e);
+        }
+        catch (final ResourceNotFoundException e) {
+            frozenResult = new RootNodeLookup<E>(systemId, resultClass, e);
+        }
+        logger.debug("Resource cache miss for key {} stored {}", systemId, frozenResult);
+        return frozenResult;
+    }
+
+    private RootNodeLookup<?> waitFor(final URI systemId, final Future<RootNodeLookup<?>> future) {
+        try {
+            return future.get();
+        }
+        catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new QtiLogicException("Interrupted while waiting for lookup of resource " + systemId, e);
+        }
+        catch (final ExecutionException e) {
+            /* Forget about the failure so that we can try again later */
+            cacheData.remove(systemId, future);
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
             }
-            catch (final ResourceNotFoundException e) {
-                frozenResult = new RootNodeLookup<E>(systemId, resultClass, e);
+            else if (cause instanceof Error) {
+                throw (Error) cause;
             }
-            cacheData.put(systemId, frozenResult);
-            logger.debug("Resource cache miss for key {} stored {}", systemId, frozenResult);
+            throw new QtiLogicException("Unexpected Exception looking up resource " + systemId, cause);
         }
-        return frozenResult;
     }
 
     @Override
     public String toString() {
         return getClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(this))
                 + "(rootNodeProvider=" + rootNodeProvider
-                + ",cacheData=" + cacheData
+                + ",cacheKeys=" + cacheData.keySet()
                 + ")";
     }
 }
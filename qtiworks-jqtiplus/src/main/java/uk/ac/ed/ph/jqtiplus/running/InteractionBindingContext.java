@@ -37,6 +37,7 @@ import uk.ac.ed.ph.jqtiplus.JqtiExtensionManager;
 import uk.ac.ed.ph.jqtiplus.node.item.interaction.CustomInteraction;
 import uk.ac.ed.ph.jqtiplus.node.item.interaction.Interaction;
 import uk.ac.ed.ph.jqtiplus.notification.NotificationFirer;
+import uk.ac.ed.ph.jqtiplus.state.ItemProcessingMap;
 import uk.ac.ed.ph.jqtiplus.types.Identifier;
 import uk.ac.ed.ph.jqtiplus.value.NullValue;
 import uk.ac.ed.ph.jqtiplus.value.Value;
@@ -63,5 +64,10 @@ public interface InteractionBindingContext extends NotificationFirer {
      */
     JqtiExtensionManager getJqtiExtensionManager();
 
+    /**
+     * Returns the {@link ItemProcessingMap} for the item whose responses are being bound.
+     */
+    ItemProcessingMap getItemProcessingMap();
+
 
 }
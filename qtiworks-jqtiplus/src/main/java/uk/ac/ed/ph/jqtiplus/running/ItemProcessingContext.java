@@ -36,6 +36,7 @@ package uk.ac.ed.ph.jqtiplus.running;
 import uk.ac.ed.ph.jqtiplus.exception.QtiInvalidLookupException;
 import uk.ac.ed.ph.jqtiplus.node.item.AssessmentItem;
 import uk.ac.ed.ph.jqtiplus.node.item.response.declaration.ResponseDeclaration;
+import uk.ac.ed.ph.jqtiplus.state.ItemProcessingMap;
 import uk.ac.ed.ph.jqtiplus.state.ItemSessionState;
 import uk.ac.ed.ph.jqtiplus.types.Identifier;
 import uk.ac.ed.ph.jqtiplus.validation.ItemValidationContext;
@@ -52,6 +53,11 @@ import uk.ac.ed.ph.jqtiplus.value.Value;
  */
 public interface ItemProcessingContext extends ProcessingContext, ItemValidationContext {
 
+    /**
+     * Returns the {@link ItemProcessingMap} for the item being processed.
+     */
+    ItemProcessingMap getItemProcessingMap();
+
     /**
      * Returns the {@link ItemSessionState} attached to this context.
      */
@@ -91,6 +91,11 @@ public class ItemProcessingController extends ItemValidationController implement
         this.randomGenerator = null;
     }
 
+    @Override
+    public ItemProcessingMap getItemProcessingMap() {
+        return itemProcessingMap;
+    }
+
     @Override
     public ItemSessionState getItemSessionState() {
         return itemSessionState;
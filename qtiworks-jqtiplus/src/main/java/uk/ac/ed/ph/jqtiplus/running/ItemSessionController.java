@@ -68,6 +68,7 @@ import uk.ac.ed.ph.jqtiplus.node.shared.VariableType;
 import uk.ac.ed.ph.jqtiplus.node.shared.declaration.DefaultValue;
 import uk.ac.ed.ph.jqtiplus.node.test.TemplateDefault;
 import uk.ac.ed.ph.jqtiplus.resolution.RootNodeLookup;
+import uk.ac.ed.ph.jqtiplus.running.compiled.CompiledProcessing;
 import uk.ac.ed.ph.jqtiplus.state.ItemProcessingMap;
 import uk.ac.ed.ph.jqtiplus.state.ItemSessionState;
 import uk.ac.ed.ph.jqtiplus.types.Identifier;
@@ -833,28 +834,14 @@ public final class ItemSessionController extends ItemProcessingController implem
                 initOutcomeVariables();
             }
 
-            /* Work out which RP logic to perform */
-            ResponseProcessing responseProcessing = null;
-            final RootNodeLookup<ResponseProcessing> resolvedResponseProcessingTemplateLookup = resolvedAssessmentItem.getResolvedResponseProcessingTemplateLookup();
-            if (resolvedResponseProcessingTemplateLookup!=null) {
-                /* Template specified, so try to use that */
-                responseProcessing = resolvedResponseProcessingTemplateLookup.extractIfSuccessful();
-                if (responseProcessing==null) {
-                    fireRuntimeWarning(item.getResponseProcessing(), "responseProcessing template could not be loaded, so no responseProcessing will not be performed");
-                }
-            }
-            else {
-                /* Use RP specified within the item (if available) */
-                responseProcessing = item.getResponseProcessing();
-            }
-
-            /* Invoke response processing */
-            if (responseProcessing!=null) {
-                responseProcessing.evaluate(this);
+            /* Use compiled RP logic if requested and available */
+            final CompiledProcessing compiledResponseProcessing = itemSessionControllerSettings.isCompiledProcessing()
+                    ? itemProcessingMap.getCompiledResponseProcessing() : null;
+            if (compiledResponseProcessing!=null) {
+                compiledResponseProcessing.execute(this);
             }
             else {
-                fireRuntimeWarning(item, "There is no responseProcessing to be performed here");
-                logger.debug("No responseProcessing rules or responseProcessing template exists, so no response processing will be performed");
+                performInterpretedResponseProcessing();
             }
 
             /* Update final state */
@@ -870,6 +857,35 @@ public final class ItemSessionController extends ItemProcessingController implem
         }
     }
 
+    /**
+     * Performs response processing by evaluating the {@link ResponseProcessing} rules directly.
+     */
+    private void performInterpretedResponseProcessing() {
+        /* Work out which RP logic to perform */
+        ResponseProcessing responseProcessing = null;
+        final RootNodeLookup<ResponseProcessing> resolvedResponseProcessingTemplateLookup = resolvedAssessmentItem.getResolvedResponseProcessingTemplateLookup();
+        if (resolvedResponseProcessingTemplateLookup!=null) {
+            /* Template specified, so try to use that */
+            responseProcessing = resolvedResponseProcessingTemplateLookup.extractIfSuccessful();
+            if (responseProcessing==null) {
+                fireRuntimeWarning(item.getResponseProcessing(), "responseProcessing template could not be loaded, so no responseProcessing will not be performed");
+            }
+        }
+        else {
+            /* Use RP specified within the item (if available) */
+            responseProcessing = item.getResponseProcessing();
+        }
+
+        /* Invoke response processing */
+        if (responseProcessing!=null) {
+            responseProcessing.evaluate(this);
+        }
+        else {
+            fireRuntimeWarning(item, "There is no responseProcessing to be performed here");
+            logger.debug("No responseProcessing rules or responseProcessing template exists, so no response processing will be performed");
+        }
+    }
+
     /**
      * Resets all responses
      * <p>
@@ -36,6 +36,7 @@ package uk.ac.ed.ph.jqtiplus.running;
 import uk.ac.ed.ph.jqtiplus.JqtiPlus;
 import uk.ac.ed.ph.jqtiplus.internal.util.ObjectUtilities;
 import uk.ac.ed.ph.jqtiplus.node.test.ItemSessionControl;
+import uk.ac.ed.ph.jqtiplus.state.ItemProcessingMap;
 
 import java.io.Serializable;
 
@@ -61,15 +62,24 @@ public class ItemSessionControllerSettings implements Serializable {
      */
     private int maxAttempts;
 
+    /**
+     * Whether to use compiled response processing where possible.
+     *
+     * @see ItemProcessingMap#getCompiledResponseProcessing()
+     */
+    private boolean compiledProcessing;
+
     public ItemSessionControllerSettings() {
         this.templateProcessingLimit = JqtiPlus.DEFAULT_TEMPLATE_PROCESSING_LIMIT;
         this.maxAttempts = 0;
+        this.compiledProcessing = false;
     }
 
     /** (Copy constructor) */
     public ItemSessionControllerSettings(final ItemSessionControllerSettings template) {
         this.templateProcessingLimit = template.templateProcessingLimit;
         this.maxAttempts = template.maxAttempts;
+        this.compiledProcessing = template.compiledProcessing;
     }
 
 
@@ -92,6 +102,15 @@ public class ItemSessionControllerSettings implements Serializable {
     }
 
 
+    public boolean isCompiledProcessing() {
+        return compiledProcessing;
+    }
+
+    public void setCompiledProcessing(final boolean compiledProcessing) {
+        this.compiledProcessing = compiledProcessing;
+    }
+
+
     @Override
     public String toString() {
         return ObjectUtilities.beanToString(this);
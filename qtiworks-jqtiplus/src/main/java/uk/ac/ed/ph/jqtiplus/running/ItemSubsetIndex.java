@@ -0,0 +1,241 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.jqtiplus.running;
+
+import uk.ac.ed.ph.jqtiplus.internal.util.Assert;
+import uk.ac.ed.ph.jqtiplus.internal.util.ObjectUtilities;
+import uk.ac.ed.ph.jqtiplus.node.QtiNode;
+import uk.ac.ed.ph.jqtiplus.node.expression.outcome.ItemSubset;
+import uk.ac.ed.ph.jqtiplus.node.test.AssessmentItemRef;
+import uk.ac.ed.ph.jqtiplus.node.test.AssessmentSection;
+import uk.ac.ed.ph.jqtiplus.state.TestPlan;
+import uk.ac.ed.ph.jqtiplus.state.TestPlanNode;
+import uk.ac.ed.ph.jqtiplus.state.TestPlanNode.TestNodeType;
+import uk.ac.ed.ph.jqtiplus.state.TestProcessingMap;
+import uk.ac.ed.ph.jqtiplus.state.TestSessionState;
+import uk.ac.ed.ph.jqtiplus.types.Identifier;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Index of the {@link TestPlanNode}s corresponding to {@link AssessmentItemRef}s in a {@link TestPlan},
+ * used to compute the subsets of items matched by {@link ItemSubset} expressions without having to
+ * search the test each time.
+ * <p>
+ * Each item is given a position in the depth-first order of the {@link TestPlan}. The items belonging
+ * to each {@link AssessmentSection} in the ORIGINAL test structure, and those having each category,
+ * are then recorded as a {@link BitSet} of these positions, so that each subset can be computed using
+ * a few bitwise operations. Computed subsets are also remembered, so that subsequent requests for the
+ * same subset are simply looked up.
+ * <p>
+ * An instance of this class is created lazily for each {@link TestSessionState}. It is derived from
+ * the {@link TestPlan} and {@link TestProcessingMap}, so is not part of the state itself and is not saved.
+ * <p>
+ * An instance of this class is NOT safe for use by multiple threads.
+ *
+ * @see TestProcessingContext#computeItemSubset(Identifier, List, List)
+ *
+ * @author David McKain
+ */
+public final class ItemSubsetIndex {
+
+    /** {@link TestProcessingMap} that this index was built from */
+    private final TestProcessingMap testProcessingMap;
+
+    /** {@link TestPlan} that this index was built from */
+    private final TestPlan testPlan;
+
+    /** {@link TestPlanNode}s for each item, in depth-first order */
+    private final List<TestPlanNode> itemRefNodes;
+
+    /** Items belonging to each {@link AssessmentSection} identifier */
+    private final Map<Identifier, BitSet> sectionItemsMap;
+
+    /** Items having each category */
+    private final Map<String, BitSet> categoryItemsMap;
+
+    /** Previously computed subsets */
+    private final Map<SubsetKey, List<TestPlanNode>> subsetMap;
+
+    public ItemSubsetIndex(final TestProcessingMap testProcessingMap, final TestPlan testPlan) {
+        Assert.notNull(testProcessingMap, "testProcessingMap");
+        Assert.notNull(testPlan, "testPlan");
+        this.testProcessingMap = testProcessingMap;
+        this.testPlan = testPlan;
+        this.itemRefNodes = testPlan.searchNodes(TestNodeType.ASSESSMENT_ITEM_REF);
+        this.sectionItemsMap = new HashMap<Identifier, BitSet>();
+        this.categoryItemsMap = new HashMap<String, BitSet>();
+        this.subsetMap = new HashMap<SubsetKey, List<TestPlanNode>>();
+
+        for (int i=0; i<itemRefNodes.size(); i++) {
+            final AssessmentItemRef assessmentItemRef = (AssessmentItemRef) testProcessingMap.resolveAbstractPart(itemRefNodes.get(i));
+
+            /* Record item against all enclosing sections in the original test structure.
+             * (We don't use the TestPlan here as invisible sections may have been removed from it.)
+             */
+            for (QtiNode parent = assessmentItemRef.getParent(); parent instanceof AssessmentSection; parent = parent.getParent()) {
+                getOrCreateBitSet(sectionItemsMap, ((AssessmentSection) parent).getIdentifier()).set(i);
+            }
+
+            /* Record item against its categories */
+            final List<String> categories = assessmentItemRef.getCategories();
+            if (categories!=null) {
+                for (final String category : categories) {
+                    getOrCreateBitSet(categoryItemsMap, category).set(i);
+                }
+            }
+        }
+    }
+
+    private static <K> BitSet getOrCreateBitSet(final Map<K, BitSet> map, final K key) {
+        BitSet result = map.get(key);
+        if (result==null) {
+            result = new BitSet();
+            map.put(key, result);
+        }
+        return result;
+    }
+
+    public TestProcessingMap getTestProcessingMap() {
+        return testProcessingMap;
+    }
+
+    public TestPlan getTestPlan() {
+        return testPlan;
+    }
+
+    /**
+     * Computes the {@link TestPlanNode}s of the items in the given section (if not null) which have
+     * at least one of the given includeCategories (if not null) and none of the excludeCategories
+     * (if not null). The result is in depth-first order.
+     *
+     * @return unmodifiable {@link List} of matching {@link TestPlanNode}s, which will not be null
+     */
+    public List<TestPlanNode> computeSubset(final Identifier sectionIdentifier, final List<String> includeCategories,
+            final List<String> excludeCategories) {
+        final SubsetKey subsetKey = new SubsetKey(sectionIdentifier, includeCategories, excludeCategories);
+        List<TestPlanNode> result = subsetMap.get(subsetKey);
+        if (result==null) {
+            result = buildSubset(sectionIdentifier, includeCategories, excludeCategories);
+            subsetMap.put(subsetKey, result);
+        }
+        return result;
+    }
+
+    private List<TestPlanNode> buildSubset(final Identifier sectionIdentifier, final List<String> includeCategories,
+            final List<String> excludeCategories) {
+        final BitSet matched;
+        if (sectionIdentifier!=null) {
+            final BitSet sectionItems = sectionItemsMap.get(sectionIdentifier);
+            matched = sectionItems!=null ? (BitSet) sectionItems.clone() : new BitSet();
+        }
+        else {
+            matched = new BitSet();
+            matched.set(0, itemRefNodes.size());
+        }
+        if (includeCategories!=null) {
+            final BitSet includedItems = new BitSet();
+            for (final String includeCategory : includeCategories) {
+                final BitSet categoryItems = categoryItemsMap.get(includeCategory);
+                if (categoryItems!=null) {
+                    includedItems.or(categoryItems);
+                }
+            }
+            matched.and(includedItems);
+        }
+        if (excludeCategories!=null) {
+            for (final String excludeCategory : excludeCategories) {
+                final BitSet categoryItems = categoryItemsMap.get(excludeCategory);
+                if (categoryItems!=null) {
+                    matched.andNot(categoryItems);
+                }
+            }
+        }
+        final List<TestPlanNode> result = new ArrayList<TestPlanNode>(matched.cardinality());
+        for (int i=matched.nextSetBit(0); i>=0; i=matched.nextSetBit(i+1)) {
+            result.add(itemRefNodes.get(i));
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(this))
+                + "(itemCount=" + itemRefNodes.size()
+                + ",sectionCount=" + sectionItemsMap.size()
+                + ",categoryCount=" + categoryItemsMap.size()
+                + ",subsetCount=" + subsetMap.size()
+                + ")";
+    }
+
+    //-------------------------------------------------------------------
+
+    private static final class SubsetKey {
+
+        private final Identifier sectionIdentifier;
+        private final List<String> includeCategories;
+        private final List<String> excludeCategories;
+
+        SubsetKey(final Identifier sectionIdentifier, final List<String> includeCategories, final List<String> excludeCategories) {
+            this.sectionIdentifier = sectionIdentifier;
+            this.includeCategories = includeCategories!=null ? new ArrayList<String>(includeCategories) : null;
+            this.excludeCategories = excludeCategories!=null ? new ArrayList<String>(excludeCategories) : null;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof SubsetKey)) {
+                return false;
+            }
+            final SubsetKey other = (SubsetKey) obj;
+            return ObjectUtilities.nullSafeEquals(sectionIdentifier, other.sectionIdentifier)
+                    && ObjectUtilities.nullSafeEquals(includeCategories, other.includeCategories)
+                    && ObjectUtilities.nullSafeEquals(excludeCategories, other.excludeCategories);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * hash(sectionIdentifier) + hash(includeCategories)) + hash(excludeCategories);
+        }
+
+        private static int hash(final Object o) {
+            return o!=null ? o.hashCode() : 0;
+        }
+    }
+}
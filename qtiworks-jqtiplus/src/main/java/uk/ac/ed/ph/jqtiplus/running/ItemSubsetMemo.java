@@ -0,0 +1,276 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.jqtiplus.running;
+
+import uk.ac.ed.ph.jqtiplus.node.expression.outcome.ItemSubset;
+import uk.ac.ed.ph.jqtiplus.node.expression.outcome.NumberCorrect;
+import uk.ac.ed.ph.jqtiplus.node.expression.outcome.NumberIncorrect;
+import uk.ac.ed.ph.jqtiplus.node.expression.outcome.NumberPresented;
+import uk.ac.ed.ph.jqtiplus.node.expression.outcome.NumberResponded;
+import uk.ac.ed.ph.jqtiplus.node.expression.outcome.NumberSelected;
+import uk.ac.ed.ph.jqtiplus.node.expression.outcome.OutcomeMinMax;
+import uk.ac.ed.ph.jqtiplus.node.expression.outcome.TestVariables;
+import uk.ac.ed.ph.jqtiplus.node.item.response.declaration.ResponseDeclaration;
+import uk.ac.ed.ph.jqtiplus.state.ItemProcessingMap;
+import uk.ac.ed.ph.jqtiplus.state.ItemSessionState;
+import uk.ac.ed.ph.jqtiplus.state.TestPlan;
+import uk.ac.ed.ph.jqtiplus.state.TestPlanNode;
+import uk.ac.ed.ph.jqtiplus.state.TestPlanNodeKey;
+import uk.ac.ed.ph.jqtiplus.state.TestProcessingMap;
+import uk.ac.ed.ph.jqtiplus.state.TestSessionState;
+import uk.ac.ed.ph.jqtiplus.types.Identifier;
+import uk.ac.ed.ph.jqtiplus.value.IntegerValue;
+import uk.ac.ed.ph.jqtiplus.value.Value;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers the results of the {@link ItemSubset} aggregate expressions evaluated during outcome
+ * processing on a particular {@link TestSessionState}, together with the parts of each item's
+ * state that they were computed from. This allows outcome processing to be run incrementally:
+ * an aggregate is only recomputed if something it depends on has changed in some item.
+ * <p>
+ * The item subset matched by each expression depends only on the {@link TestPlan}, so is always
+ * remembered. The dependencies of each aggregate are then determined by the type of expression:
+ * <ul>
+ *   <li>{@link NumberSelected} and {@link OutcomeMinMax} depend only on the {@link TestPlan} and
+ *     the item declarations, so are computed once;</li>
+ *   <li>{@link NumberCorrect} and {@link NumberIncorrect} depend on each item's response values
+ *     and overridden correct responses. Correctness is remembered per item, so only items whose
+ *     responses have changed are checked again;</li>
+ *   <li>{@link TestVariables} depends on the value of the chosen variable in each item, so is
+ *     recomputed if any of these values have changed;</li>
+ *   <li>{@link NumberPresented} and {@link NumberResponded} are cheap, so are recomputed each time.</li>
+ * </ul>
+ * Any other type of {@link ItemSubset} (e.g. one defined in an extension) has dependencies that
+ * can't be determined here, so is evaluated in full each time.
+ * <p>
+ * Item values are compared by identity when checking correctness dependencies. (Values are
+ * immutable, so a change in a response will always result in a different {@link Value} Object.)
+ * <p>
+ * An instance of this class is held by the {@link TestSessionState} it was created for. It is not
+ * part of the state itself, so is not saved.
+ * <p>
+ * An instance of this class is NOT safe for use by multiple threads.
+ *
+ * @see TestSessionControllerSettings#isIncrementalOutcomeProcessing()
+ *
+ * @author David McKain
+ */
+public final class ItemSubsetMemo {
+
+    /** {@link TestProcessingMap} that the remembered data was computed against */
+    private TestProcessingMap testProcessingMap;
+
+    /** Remembered data for each {@link ItemSubset} expression */
+    private final Map<ItemSubset, SubsetEntry> subsetEntryMap;
+
+    /** Remembered correctness for each item */
+    private final Map<TestPlanNodeKey, CorrectnessEntry> correctnessEntryMap;
+
+    private int evaluationCount;
+    private int recomputationCount;
+
+    public ItemSubsetMemo() {
+        this.subsetEntryMap = new IdentityHashMap<ItemSubset, SubsetEntry>();
+        this.correctnessEntryMap = new HashMap<TestPlanNodeKey, CorrectnessEntry>();
+    }
+
+    /**
+     * Returns the number of times an {@link ItemSubset} has been evaluated via this memo.
+     */
+    public int getEvaluationCount() {
+        return evaluationCount;
+    }
+
+    /**
+     * Returns the number of evaluations that could not use a remembered aggregate, and so had
+     * to be (at least partly) recomputed.
+     */
+    public int getRecomputationCount() {
+        return recomputationCount;
+    }
+
+    /**
+     * Evaluates the given {@link ItemSubset} expression, reusing remembered results where the
+     * state they depend on has not changed.
+     */
+    public Value evaluate(final ItemSubset itemSubset, final TestProcessingContext testProcessingContext) {
+        evaluationCount++;
+        if (testProcessingContext.getTestProcessingMap()!=testProcessingMap) {
+            /* Test has been reloaded since we last ran, so forget everything */
+            subsetEntryMap.clear();
+            correctnessEntryMap.clear();
+            testProcessingMap = testProcessingContext.getTestProcessingMap();
+        }
+        SubsetEntry subsetEntry = subsetEntryMap.get(itemSubset);
+        if (subsetEntry==null) {
+            subsetEntry = new SubsetEntry(itemSubset.computeSubset(testProcessingContext));
+            subsetEntryMap.put(itemSubset, subsetEntry);
+        }
+        final List<TestPlanNode> matchedTestPlanNodes = subsetEntry.matchedTestPlanNodes;
+
+        if (itemSubset instanceof NumberSelected || itemSubset instanceof OutcomeMinMax) {
+            /* These only depend on the TestPlan and item declarations */
+            if (subsetEntry.result==null) {
+                recomputationCount++;
+                subsetEntry.result = itemSubset.evaluateSubset(testProcessingContext, matchedTestPlanNodes);
+            }
+            return subsetEntry.result;
+        }
+        else if (itemSubset instanceof NumberCorrect) {
+            return new IntegerValue(countCorrectness(testProcessingContext, matchedTestPlanNodes, true));
+        }
+        else if (itemSubset instanceof NumberIncorrect) {
+            return new IntegerValue(countCorrectness(testProcessingContext, matchedTestPlanNodes, false));
+        }
+        else if (itemSubset instanceof TestVariables) {
+            final Identifier variableIdentifier = ((TestVariables) itemSubset).getVariableIdentifier();
+            final Value[] inputValues = new Value[matchedTestPlanNodes.size()];
+            for (int i=0; i<inputValues.length; i++) {
+                final ItemProcessingContext itemProcessingContext = testProcessingContext.getItemProcessingContext(matchedTestPlanNodes.get(i));
+                inputValues[i] = itemProcessingContext.evaluateVariableValue(variableIdentifier);
+            }
+            if (subsetEntry.result==null || !Arrays.equals(inputValues, subsetEntry.inputValues)) {
+                recomputationCount++;
+                subsetEntry.result = itemSubset.evaluateSubset(testProcessingContext, matchedTestPlanNodes);
+                subsetEntry.inputValues = inputValues;
+            }
+            return subsetEntry.result;
+        }
+
+        /* Dependencies of anything else can't be determined here, so evaluate in full */
+        recomputationCount++;
+        return itemSubset.evaluateSubset(testProcessingContext, matchedTestPlanNodes);
+    }
+
+    private int countCorrectness(final TestProcessingContext testProcessingContext, final List<TestPlanNode> matchedTestPlanNodes,
+            final boolean countCorrect) {
+        final Map<TestPlanNodeKey, ItemSessionState> itemSessionStates = testProcessingContext.getTestSessionState().getItemSessionStates();
+        boolean recomputed = false;
+        int count = 0;
+        for (final TestPlanNode itemRefNode : matchedTestPlanNodes) {
+            final TestPlanNodeKey key = itemRefNode.getKey();
+            final ItemProcessingMap itemProcessingMap = testProcessingMap.resolveItemProcessingMap(itemRefNode);
+            final Value[] inputValues = computeCorrectnessInputValues(itemProcessingMap.getValidResponseDeclarationMap().values(),
+                    itemSessionStates.get(key));
+
+            CorrectnessEntry correctnessEntry = correctnessEntryMap.get(key);
+            if (correctnessEntry==null || !sameValues(inputValues, correctnessEntry.inputValues)) {
+                correctnessEntry = new CorrectnessEntry(inputValues);
+                correctnessEntryMap.put(key, correctnessEntry);
+            }
+            Boolean matches = countCorrect ? correctnessEntry.correct : correctnessEntry.incorrect;
+            if (matches==null) {
+                recomputed = true;
+                final ItemProcessingContext itemProcessingContext = testProcessingContext.getItemProcessingContext(itemRefNode);
+                if (countCorrect) {
+                    matches = correctnessEntry.correct = Boolean.valueOf(itemProcessingContext.isCorrect());
+                }
+                else {
+                    matches = correctnessEntry.incorrect = Boolean.valueOf(itemProcessingContext.isIncorrect());
+                }
+            }
+            if (matches.booleanValue()) {
+                count++;
+            }
+        }
+        if (recomputed) {
+            recomputationCount++;
+        }
+        return count;
+    }
+
+    private static Value[] computeCorrectnessInputValues(final Collection<ResponseDeclaration> responseDeclarations,
+            final ItemSessionState itemSessionState) {
+        final Value[] result = new Value[2 * responseDeclarations.size()];
+        int i = 0;
+        for (final ResponseDeclaration responseDeclaration : responseDeclarations) {
+            result[i++] = itemSessionState.getResponseValue(responseDeclaration);
+            result[i++] = itemSessionState.getOverriddenCorrectResponseValue(responseDeclaration);
+        }
+        return result;
+    }
+
+    private static boolean sameValues(final Value[] values1, final Value[] values2) {
+        if (values1.length!=values2.length) {
+            return false;
+        }
+        for (int i=0; i<values1.length; i++) {
+            if (values1[i]!=values2[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(this))
+                + "(subsetCount=" + subsetEntryMap.size()
+                + ",itemCount=" + correctnessEntryMap.size()
+                + ",evaluationCount=" + evaluationCount
+                + ",recomputationCount=" + recomputationCount
+                + ")";
+    }
+
+    //-------------------------------------------------------------------
+
+    private static final class SubsetEntry {
+
+        final List<TestPlanNode> matchedTestPlanNodes;
+        Value[] inputValues;
+        Value result;
+
+        SubsetEntry(final List<TestPlanNode> matchedTestPlanNodes) {
+            this.matchedTestPlanNodes = matchedTestPlanNodes;
+        }
+    }
+
+    private static final class CorrectnessEntry {
+
+        final Value[] inputValues;
+        Boolean correct;
+        Boolean incorrect;
+
+        CorrectnessEntry(final Value[] inputValues) {
+            this.inputValues = inputValues;
+        }
+    }
+}
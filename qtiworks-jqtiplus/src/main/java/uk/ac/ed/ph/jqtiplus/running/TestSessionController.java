@@ -60,6 +60,7 @@ import uk.ac.ed.ph.jqtiplus.node.test.SubmissionMode;
 import uk.ac.ed.ph.jqtiplus.node.test.TemplateDefault;
 import uk.ac.ed.ph.jqtiplus.node.test.TestPart;
 import uk.ac.ed.ph.jqtiplus.node.test.outcome.processing.OutcomeProcessing;
+import uk.ac.ed.ph.jqtiplus.running.compiled.CompiledProcessing;
 import uk.ac.ed.ph.jqtiplus.state.AssessmentSectionSessionState;
 import uk.ac.ed.ph.jqtiplus.state.ControlObjectSessionState;
 import uk.ac.ed.ph.jqtiplus.state.EffectiveItemSessionControl;
@@ -1550,9 +1551,26 @@ public final class TestSessionController extends TestProcessingController {
         try {
             resetOutcomeVariables();
 
-            final OutcomeProcessing outcomeProcessing = getSubjectTest().getOutcomeProcessing();
-            if (outcomeProcessing != null) {
-                outcomeProcessing.evaluate(this);
+            /* Set up or discard aggregates remembered for incremental outcome processing */
+            if (testSessionControllerSettings.isIncrementalOutcomeProcessing()) {
+                if (testSessionState.getItemSubsetMemo()==null) {
+                    testSessionState.setItemSubsetMemo(new ItemSubsetMemo());
+                }
+            }
+            else {
+                testSessionState.setItemSubsetMemo(null);
+            }
+
+            final CompiledProcessing compiledOutcomeProcessing = testSessionControllerSettings.isCompiledProcessing()
+                    ? testProcessingMap.getCompiledOutcomeProcessing() : null;
+            if (compiledOutcomeProcessing!=null) {
+                compiledOutcomeProcessing.execute(this);
+            }
+            else {
+                final OutcomeProcessing outcomeProcessing = getSubjectTest().getOutcomeProcessing();
+                if (outcomeProcessing != null) {
+                    outcomeProcessing.evaluate(this);
+                }
             }
         }
         finally {
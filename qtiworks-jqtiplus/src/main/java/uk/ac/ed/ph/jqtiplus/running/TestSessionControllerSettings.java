@@ -35,6 +35,8 @@ package uk.ac.ed.ph.jqtiplus.running;
 
 import uk.ac.ed.ph.jqtiplus.JqtiPlus;
 import uk.ac.ed.ph.jqtiplus.internal.util.ObjectUtilities;
+import uk.ac.ed.ph.jqtiplus.state.TestProcessingMap;
+import uk.ac.ed.ph.jqtiplus.state.TestSessionState;
 
 import java.io.Serializable;
 
@@ -53,13 +55,34 @@ public class TestSessionControllerSettings implements Serializable {
      */
     private int templateProcessingLimit;
 
+    /**
+     * Whether to use compiled outcome processing (and compiled response processing
+     * within items) where possible.
+     *
+     * @see TestProcessingMap#getCompiledOutcomeProcessing()
+     */
+    private boolean compiledProcessing;
+
+    /**
+     * Whether to run outcome processing incrementally, recomputing only those item subset
+     * aggregates whose dependencies have changed since outcome processing was last run on the
+     * same {@link TestSessionState}.
+     *
+     * @see ItemSubsetMemo
+     */
+    private boolean incrementalOutcomeProcessing;
+
     public TestSessionControllerSettings() {
         this.templateProcessingLimit = JqtiPlus.DEFAULT_TEMPLATE_PROCESSING_LIMIT;
+        this.compiledProcessing = false;
+        this.incrementalOutcomeProcessing = false;
     }
 
     /** (Copy constructor) */
     public TestSessionControllerSettings(final TestSessionControllerSettings template) {
         this.templateProcessingLimit = template.templateProcessingLimit;
+        this.compiledProcessing = template.compiledProcessing;
+        this.incrementalOutcomeProcessing = template.incrementalOutcomeProcessing;
     }
 
 
@@ -73,6 +96,24 @@ public class TestSessionControllerSettings implements Serializable {
     }
 
 
+    public boolean isCompiledProcessing() {
+        return compiledProcessing;
+    }
+
+    public void setCompiledProcessing(final boolean compiledProcessing) {
+        this.compiledProcessing = compiledProcessing;
+    }
+
+
+    public boolean isIncrementalOutcomeProcessing() {
+        return incrementalOutcomeProcessing;
+    }
+
+    public void setIncrementalOutcomeProcessing(final boolean incrementalOutcomeProcessing) {
+        this.incrementalOutcomeProcessing = incrementalOutcomeProcessing;
+    }
+
+
     @Override
     public String toString() {
         return ObjectUtilities.beanToString(this);
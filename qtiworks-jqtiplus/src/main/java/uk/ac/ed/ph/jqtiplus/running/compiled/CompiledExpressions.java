@@ -0,0 +1,185 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.jqtiplus.running.compiled;
+
+import uk.ac.ed.ph.jqtiplus.node.expression.AbstractFunctionalExpression;
+import uk.ac.ed.ph.jqtiplus.node.expression.Expression;
+import uk.ac.ed.ph.jqtiplus.running.ProcessingContext;
+import uk.ac.ed.ph.jqtiplus.types.Identifier;
+import uk.ac.ed.ph.jqtiplus.value.Value;
+
+/**
+ * The various types of {@link CompiledExpression} generated by {@link ProcessingCompiler}.
+ *
+ * @author David McKain
+ */
+final class CompiledExpressions {
+
+    /** Shared child values array for expressions without children */
+    private static final Value[] NO_CHILD_VALUES = new Value[0];
+
+    private CompiledExpressions() {
+        /* (No instances) */
+    }
+
+    /**
+     * Evaluates each of the given {@link CompiledExpression}s in turn.
+     */
+    static Value[] evaluateAll(final ProcessingContext context, final CompiledExpression[] expressions) {
+        if (expressions.length==0) {
+            return NO_CHILD_VALUES;
+        }
+        final Value[] values = new Value[expressions.length];
+        for (int i=0; i<expressions.length; i++) {
+            values[i] = expressions[i].evaluate(context);
+        }
+        return values;
+    }
+
+    /**
+     * Expression that always evaluates to the same {@link Value}. This is used for
+     * <code>baseValue</code> and <code>null</code>, as well as any subtrees built only
+     * from these and other context-independent operators.
+     */
+    static final class ConstantExpression implements CompiledExpression {
+
+        private final Value value;
+
+        ConstantExpression(final Value value) {
+            this.value = value;
+        }
+
+        @Override
+        public Value evaluate(final ProcessingContext context) {
+            return value;
+        }
+
+        @Override
+        public boolean isConstant() {
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return "constant(" + value + ")";
+        }
+    }
+
+    /**
+     * Expression that reads the value of a variable that was resolved when compiling, rather
+     * than dereferencing the (possibly complex) variable reference on each evaluation.
+     */
+    static final class VariableExpression implements CompiledExpression {
+
+        private final Identifier variableIdentifier;
+
+        VariableExpression(final Identifier variableIdentifier) {
+            this.variableIdentifier = variableIdentifier;
+        }
+
+        @Override
+        public Value evaluate(final ProcessingContext context) {
+            return context.evaluateVariableValue(variableIdentifier);
+        }
+
+        @Override
+        public boolean isConstant() {
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return "variable(" + variableIdentifier + ")";
+        }
+    }
+
+    /**
+     * Expression that evaluates its compiled children, then passes the resulting values
+     * to the underlying {@link AbstractFunctionalExpression}.
+     */
+    static final class FunctionalExpression implements CompiledExpression {
+
+        private final AbstractFunctionalExpression expression;
+        private final CompiledExpression[] children;
+
+        FunctionalExpression(final AbstractFunctionalExpression expression, final CompiledExpression[] children) {
+            this.expression = expression;
+            this.children = children;
+        }
+
+        @Override
+        public Value evaluate(final ProcessingContext context) {
+            return expression.evaluateWithChildValues(context, evaluateAll(context, children));
+        }
+
+        @Override
+        public boolean isConstant() {
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return expression.getQtiClassName() + "(" + children.length + " children)";
+        }
+    }
+
+    /**
+     * Expression that simply hands over to the usual (interpreted) evaluation of the
+     * underlying {@link Expression}. This is used for custom operators and any other
+     * {@link Expression}s that can't be compiled.
+     */
+    static final class InterpretedExpression implements CompiledExpression {
+
+        private final Expression expression;
+
+        InterpretedExpression(final Expression expression) {
+            this.expression = expression;
+        }
+
+        @Override
+        public Value evaluate(final ProcessingContext context) {
+            return expression.evaluate(context);
+        }
+
+        @Override
+        public boolean isConstant() {
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return "interpreted(" + expression.getQtiClassName() + ")";
+        }
+    }
+}
@@ -0,0 +1,301 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.jqtiplus.running.compiled;
+
+import uk.ac.ed.ph.jqtiplus.exception.QtiProcessingInterrupt;
+import uk.ac.ed.ph.jqtiplus.node.item.response.processing.LookupOutcomeValue;
+import uk.ac.ed.ph.jqtiplus.node.item.response.processing.ResponseProcessing;
+import uk.ac.ed.ph.jqtiplus.node.item.response.processing.ResponseRule;
+import uk.ac.ed.ph.jqtiplus.node.outcome.declaration.OutcomeDeclaration;
+import uk.ac.ed.ph.jqtiplus.node.test.outcome.processing.OutcomeProcessing;
+import uk.ac.ed.ph.jqtiplus.node.test.outcome.processing.OutcomeRule;
+import uk.ac.ed.ph.jqtiplus.running.ItemProcessingContext;
+import uk.ac.ed.ph.jqtiplus.running.ProcessingContext;
+import uk.ac.ed.ph.jqtiplus.running.TestProcessingContext;
+import uk.ac.ed.ph.jqtiplus.value.BooleanValue;
+import uk.ac.ed.ph.jqtiplus.value.Value;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compiled form of {@link ResponseProcessing} or {@link OutcomeProcessing}, created by
+ * {@link ProcessingCompiler}.
+ * <p>
+ * The rules are flattened into a single sequence of {@link Instruction}s, with conditions
+ * becoming jumps. Executing this has the same effect as evaluating the original rules.
+ * <p>
+ * Usage: an instance of this class is immutable and can be safely used by multiple Threads.
+ *
+ * @author David McKain
+ */
+public final class CompiledProcessing {
+
+    /** Special "program counter" value indicating that execution should stop */
+    static final int END = -1;
+
+    private final Instruction[] instructions;
+
+    CompiledProcessing(final List<Instruction> instructions) {
+        this.instructions = instructions.toArray(new Instruction[instructions.size()]);
+    }
+
+    public int getInstructionCount() {
+        return instructions.length;
+    }
+
+    /**
+     * Executes this compiled processing using the given {@link ProcessingContext}, which must
+     * be an {@link ItemProcessingContext} for compiled {@link ResponseProcessing} or a
+     * {@link TestProcessingContext} for compiled {@link OutcomeProcessing}.
+     */
+    public void execute(final ProcessingContext context) {
+        try {
+            int pc = 0;
+            while (pc!=END && pc<instructions.length) {
+                pc = instructions[pc].execute(context, pc);
+            }
+        }
+        catch (final QtiProcessingInterrupt interrupt) {
+            /* Terminate processing. (This only happens via interpreted rules) */
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(this))
+                + Arrays.toString(instructions);
+    }
+
+    //-------------------------------------------------------------------
+
+    /**
+     * Base for a single step in a {@link CompiledProcessing}.
+     */
+    static abstract class Instruction {
+
+        /**
+         * Executes this instruction, returning the index of the next instruction to execute
+         * or {@link CompiledProcessing#END} to stop.
+         *
+         * @param pc index of this instruction
+         */
+        abstract int execute(ProcessingContext context, int pc) throws QtiProcessingInterrupt;
+    }
+
+    /**
+     * Jumps to the given target if the condition is not true (i.e. is NULL or false),
+     * otherwise continues to the next instruction.
+     */
+    static final class JumpUnlessTrue extends Instruction {
+
+        private final CompiledExpression condition;
+        int target;
+
+        JumpUnlessTrue(final CompiledExpression condition) {
+            this.condition = condition;
+        }
+
+        @Override
+        int execute(final ProcessingContext context, final int pc) {
+            final Value value = condition.evaluate(context);
+            if (value.isNull() || !((BooleanValue) value).booleanValue()) {
+                return target;
+            }
+            return pc + 1;
+        }
+
+        @Override
+        public String toString() {
+            return "jumpUnlessTrue(" + condition + "," + target + ")";
+        }
+    }
+
+    /**
+     * Unconditionally jumps to the given target.
+     */
+    static final class Jump extends Instruction {
+
+        int target;
+
+        @Override
+        int execute(final ProcessingContext context, final int pc) {
+            return target;
+        }
+
+        @Override
+        public String toString() {
+            return "jump(" + target + ")";
+        }
+    }
+
+    /**
+     * Stops processing. (Compiled form of <code>exitResponse</code> and <code>exitTest</code>.)
+     */
+    static final class Exit extends Instruction {
+
+        @Override
+        int execute(final ProcessingContext context, final int pc) {
+            return END;
+        }
+
+        @Override
+        public String toString() {
+            return "exit";
+        }
+    }
+
+    /**
+     * Compiled form of <code>setOutcomeValue</code> within an item.
+     */
+    static final class SetItemOutcomeValue extends Instruction {
+
+        private final OutcomeDeclaration outcomeDeclaration;
+        private final CompiledExpression expression;
+
+        SetItemOutcomeValue(final OutcomeDeclaration outcomeDeclaration, final CompiledExpression expression) {
+            this.outcomeDeclaration = outcomeDeclaration;
+            this.expression = expression;
+        }
+
+        @Override
+        int execute(final ProcessingContext context, final int pc) {
+            context.setVariableValue(outcomeDeclaration, expression.evaluate(context));
+            return pc + 1;
+        }
+
+        @Override
+        public String toString() {
+            return "setOutcomeValue(" + outcomeDeclaration.getIdentifier() + "," + expression + ")";
+        }
+    }
+
+    /**
+     * Compiled form of <code>lookupOutcomeValue</code> within an item.
+     */
+    static final class LookupItemOutcomeValue extends Instruction {
+
+        private final OutcomeDeclaration outcomeDeclaration;
+        private final CompiledExpression expression;
+
+        LookupItemOutcomeValue(final OutcomeDeclaration outcomeDeclaration, final CompiledExpression expression) {
+            this.outcomeDeclaration = outcomeDeclaration;
+            this.expression = expression;
+        }
+
+        @Override
+        int execute(final ProcessingContext context, final int pc) {
+            final Value value = expression.evaluate(context);
+            context.setVariableValue(outcomeDeclaration, LookupOutcomeValue.lookupTargetValue(outcomeDeclaration, value));
+            return pc + 1;
+        }
+
+        @Override
+        public String toString() {
+            return "lookupOutcomeValue(" + outcomeDeclaration.getIdentifier() + "," + expression + ")";
+        }
+    }
+
+    /**
+     * Compiled form of <code>setOutcomeValue</code> within a test.
+     */
+    static final class SetTestOutcomeValue extends Instruction {
+
+        private final OutcomeDeclaration outcomeDeclaration;
+        private final CompiledExpression expression;
+
+        SetTestOutcomeValue(final OutcomeDeclaration outcomeDeclaration, final CompiledExpression expression) {
+            this.outcomeDeclaration = outcomeDeclaration;
+            this.expression = expression;
+        }
+
+        @Override
+        int execute(final ProcessingContext context, final int pc) {
+            final Value value = expression.evaluate(context);
+            ((TestProcessingContext) context).getTestSessionState().setOutcomeValue(outcomeDeclaration, value);
+            return pc + 1;
+        }
+
+        @Override
+        public String toString() {
+            return "setOutcomeValue(" + outcomeDeclaration.getIdentifier() + "," + expression + ")";
+        }
+    }
+
+    /**
+     * Fallback instruction that evaluates a {@link ResponseRule} in the usual way.
+     */
+    static final class InterpretedResponseRule extends Instruction {
+
+        private final ResponseRule responseRule;
+
+        InterpretedResponseRule(final ResponseRule responseRule) {
+            this.responseRule = responseRule;
+        }
+
+        @Override
+        int execute(final ProcessingContext context, final int pc) throws QtiProcessingInterrupt {
+            responseRule.evaluate((ItemProcessingContext) context);
+            return pc + 1;
+        }
+
+        @Override
+        public String toString() {
+            return "interpreted(" + responseRule.getQtiClassName() + ")";
+        }
+    }
+
+    /**
+     * Fallback instruction that evaluates an {@link OutcomeRule} in the usual way.
+     */
+    static final class InterpretedOutcomeRule extends Instruction {
+
+        private final OutcomeRule outcomeRule;
+
+        InterpretedOutcomeRule(final OutcomeRule outcomeRule) {
+            this.outcomeRule = outcomeRule;
+        }
+
+        @Override
+        int execute(final ProcessingContext context, final int pc) throws QtiProcessingInterrupt {
+            outcomeRule.evaluate((TestProcessingContext) context);
+            return pc + 1;
+        }
+
+        @Override
+        public String toString() {
+            return "interpreted(" + outcomeRule.getQtiClassName() + ")";
+        }
+    }
+}
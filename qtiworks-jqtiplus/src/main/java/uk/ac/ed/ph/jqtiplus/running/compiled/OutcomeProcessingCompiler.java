@@ -0,0 +1,156 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.jqtiplus.running.compiled;
+
+import uk.ac.ed.ph.jqtiplus.node.expression.general.Variable;
+import uk.ac.ed.ph.jqtiplus.node.outcome.declaration.OutcomeDeclaration;
+import uk.ac.ed.ph.jqtiplus.node.test.AssessmentTest;
+import uk.ac.ed.ph.jqtiplus.node.test.outcome.processing.ExitTest;
+import uk.ac.ed.ph.jqtiplus.node.test.outcome.processing.OutcomeCondition;
+import uk.ac.ed.ph.jqtiplus.node.test.outcome.processing.OutcomeConditionExpressionChild;
+import uk.ac.ed.ph.jqtiplus.node.test.outcome.processing.OutcomeElse;
+import uk.ac.ed.ph.jqtiplus.node.test.outcome.processing.OutcomeProcessing;
+import uk.ac.ed.ph.jqtiplus.node.test.outcome.processing.OutcomeProcessingFragment;
+import uk.ac.ed.ph.jqtiplus.node.test.outcome.processing.OutcomeRule;
+import uk.ac.ed.ph.jqtiplus.node.test.outcome.processing.SetOutcomeValue;
+import uk.ac.ed.ph.jqtiplus.resolution.ResolvedTestVariableReference;
+import uk.ac.ed.ph.jqtiplus.running.compiled.CompiledExpressions.VariableExpression;
+import uk.ac.ed.ph.jqtiplus.running.compiled.CompiledProcessing.Exit;
+import uk.ac.ed.ph.jqtiplus.running.compiled.CompiledProcessing.InterpretedOutcomeRule;
+import uk.ac.ed.ph.jqtiplus.running.compiled.CompiledProcessing.Jump;
+import uk.ac.ed.ph.jqtiplus.running.compiled.CompiledProcessing.JumpUnlessTrue;
+import uk.ac.ed.ph.jqtiplus.running.compiled.CompiledProcessing.SetTestOutcomeValue;
+import uk.ac.ed.ph.jqtiplus.state.TestProcessingMap;
+import uk.ac.ed.ph.jqtiplus.types.Identifier;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link ProcessingCompiler} for the {@link OutcomeProcessing} of an {@link AssessmentTest}.
+ * <p>
+ * Variable references within the test are compiled into direct lookups. References to
+ * variables within items depend on the current test plan so are still dereferenced when
+ * evaluated.
+ *
+ * @author David McKain
+ */
+final class OutcomeProcessingCompiler extends ProcessingCompiler {
+
+    private final TestProcessingMap testProcessingMap;
+
+    OutcomeProcessingCompiler(final TestProcessingMap testProcessingMap) {
+        this.testProcessingMap = testProcessingMap;
+    }
+
+    @Override
+    protected CompiledProcessing compile() {
+        final AssessmentTest test = testProcessingMap.getResolvedAssessmentTest().getTestLookup().extractIfSuccessful();
+        if (test==null || test.getOutcomeProcessing()==null || !testProcessingMap.isValid()) {
+            return null;
+        }
+        compileRules(test.getOutcomeProcessing().getOutcomeRules());
+        return new CompiledProcessing(instructions);
+    }
+
+    private void compileRules(final List<OutcomeRule> outcomeRules) {
+        for (final OutcomeRule outcomeRule : outcomeRules) {
+            compileRule(outcomeRule);
+        }
+    }
+
+    private void compileRule(final OutcomeRule outcomeRule) {
+        if (outcomeRule instanceof OutcomeCondition) {
+            compileCondition((OutcomeCondition) outcomeRule);
+        }
+        else if (outcomeRule instanceof OutcomeProcessingFragment) {
+            compileRules(((OutcomeProcessingFragment) outcomeRule).getOutcomeRules());
+        }
+        else if (outcomeRule instanceof SetOutcomeValue) {
+            final SetOutcomeValue setOutcomeValue = (SetOutcomeValue) outcomeRule;
+            final Identifier identifier = setOutcomeValue.getIdentifier();
+            final OutcomeDeclaration outcomeDeclaration = identifier!=null ? testProcessingMap.getValidOutcomeDeclarationMap().get(identifier) : null;
+            if (outcomeDeclaration!=null) {
+                instructions.add(new SetTestOutcomeValue(outcomeDeclaration, compileExpression(setOutcomeValue.getExpression())));
+            }
+            else {
+                instructions.add(new InterpretedOutcomeRule(outcomeRule));
+            }
+        }
+        else if (outcomeRule instanceof ExitTest) {
+            instructions.add(new Exit());
+        }
+        else {
+            /* (This includes lookupOutcomeValue, which is rarely used in tests) */
+            instructions.add(new InterpretedOutcomeRule(outcomeRule));
+        }
+    }
+
+    private void compileCondition(final OutcomeCondition outcomeCondition) {
+        final List<OutcomeConditionExpressionChild> expressionChildren = new ArrayList<OutcomeConditionExpressionChild>();
+        expressionChildren.add(outcomeCondition.getOutcomeIf());
+        expressionChildren.addAll(outcomeCondition.getOutcomeElseIfs());
+
+        final List<Jump> jumpsToEnd = new ArrayList<Jump>();
+        for (final OutcomeConditionExpressionChild expressionChild : expressionChildren) {
+            final JumpUnlessTrue jumpToNext = addJumpUnlessTrue(expressionChild.getExpression());
+            compileRules(expressionChild.getOutcomeRules());
+            jumpsToEnd.add(addJump());
+            setJumpTarget(jumpToNext);
+        }
+        final OutcomeElse outcomeElse = outcomeCondition.getOutcomeElse();
+        if (outcomeElse!=null) {
+            compileRules(outcomeElse.getOutcomeRules());
+        }
+        for (final Jump jumpToEnd : jumpsToEnd) {
+            setJumpTarget(jumpToEnd);
+        }
+    }
+
+    @Override
+    protected CompiledExpression compileVariable(final Variable variable) {
+        final List<ResolvedTestVariableReference> resolvedReferences = testProcessingMap.getResolvedAssessmentTest()
+                .resolveVariableReference(variable.getIdentifier());
+        if (resolvedReferences!=null && resolvedReferences.size()==1) {
+            final ResolvedTestVariableReference resolvedReference = resolvedReferences.get(0);
+            if (resolvedReference.isTestVariableReference()) {
+                final Identifier identifier = resolvedReference.getVariableDeclaration().getIdentifier();
+                if (testProcessingMap.isValidVariableIdentifier(identifier)) {
+                    return new VariableExpression(identifier);
+                }
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,207 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.jqtiplus.running.compiled;
+
+import uk.ac.ed.ph.jqtiplus.node.expression.AbstractFunctionalExpression;
+import uk.ac.ed.ph.jqtiplus.node.expression.AbstractSimpleFunctionalExpression;
+import uk.ac.ed.ph.jqtiplus.node.expression.Expression;
+import uk.ac.ed.ph.jqtiplus.node.expression.general.Variable;
+import uk.ac.ed.ph.jqtiplus.node.expression.operator.CustomOperator;
+import uk.ac.ed.ph.jqtiplus.node.item.response.processing.ResponseProcessing;
+import uk.ac.ed.ph.jqtiplus.node.test.outcome.processing.OutcomeProcessing;
+import uk.ac.ed.ph.jqtiplus.running.compiled.CompiledExpressions.ConstantExpression;
+import uk.ac.ed.ph.jqtiplus.running.compiled.CompiledExpressions.FunctionalExpression;
+import uk.ac.ed.ph.jqtiplus.running.compiled.CompiledExpressions.InterpretedExpression;
+import uk.ac.ed.ph.jqtiplus.running.compiled.CompiledProcessing.Instruction;
+import uk.ac.ed.ph.jqtiplus.running.compiled.CompiledProcessing.Jump;
+import uk.ac.ed.ph.jqtiplus.running.compiled.CompiledProcessing.JumpUnlessTrue;
+import uk.ac.ed.ph.jqtiplus.state.ItemProcessingMap;
+import uk.ac.ed.ph.jqtiplus.state.TestProcessingMap;
+import uk.ac.ed.ph.jqtiplus.value.Value;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compiles the {@link ResponseProcessing} of an item or the {@link OutcomeProcessing} of a test
+ * into a {@link CompiledProcessing}, which can then be executed repeatedly with less overhead
+ * than evaluating the original rules and expressions directly. In particular:
+ * <ul>
+ *   <li>Rules and conditions are flattened into a single sequence of instructions</li>
+ *   <li>Variable references and the target declarations of rules are resolved once</li>
+ *   <li>Constant subexpressions (e.g. <code>baseValue</code>) are evaluated once</li>
+ *   <li>Validity checks on each rule and expression are skipped</li>
+ * </ul>
+ * Only valid items and tests are compiled, as the latter point relies on this. Custom
+ * operators and anything else that can't be compiled are evaluated in the usual way.
+ * <p>
+ * You will not normally need to use this class directly; instead use
+ * {@link ItemProcessingMap#getCompiledResponseProcessing()} and
+ * {@link TestProcessingMap#getCompiledOutcomeProcessing()}, which cache the results.
+ * <p>
+ * Usage: an instance of this class is used to compile once only.
+ *
+ * @author David McKain
+ */
+public abstract class ProcessingCompiler {
+
+    private static final Logger logger = LoggerFactory.getLogger(ProcessingCompiler.class);
+
+    /** Instructions generated so far */
+    protected final List<Instruction> instructions;
+
+    protected ProcessingCompiler() {
+        this.instructions = new ArrayList<Instruction>();
+    }
+
+    /**
+     * Compiles the {@link ResponseProcessing} that will be used for the item described by the
+     * given {@link ItemProcessingMap}.
+     *
+     * @return resulting {@link CompiledProcessing}, or null if the item is not valid or has no
+     *   {@link ResponseProcessing}
+     */
+    public static CompiledProcessing compileResponseProcessing(final ItemProcessingMap itemProcessingMap) {
+        final CompiledProcessing result = new ResponseProcessingCompiler(itemProcessingMap).compile();
+        logger.debug("Compiled responseProcessing for {} => {}", itemProcessingMap.getResolvedAssessmentItem().getItemLookup().getSystemId(), result);
+        return result;
+    }
+
+    /**
+     * Compiles the {@link OutcomeProcessing} for the test described by the given
+     * {@link TestProcessingMap}.
+     *
+     * @return resulting {@link CompiledProcessing}, or null if the test is not valid or has no
+     *   {@link OutcomeProcessing}
+     */
+    public static CompiledProcessing compileOutcomeProcessing(final TestProcessingMap testProcessingMap) {
+        final CompiledProcessing result = new OutcomeProcessingCompiler(testProcessingMap).compile();
+        logger.debug("Compiled outcomeProcessing for {} => {}", testProcessingMap.getResolvedAssessmentTest().getTestLookup().getSystemId(), result);
+        return result;
+    }
+
+    /**
+     * Subclasses should fill in to compile the rules into {@link #instructions}, returning
+     * the resulting {@link CompiledProcessing}, or null if compilation is not possible.
+     */
+    protected abstract CompiledProcessing compile();
+
+    /**
+     * Subclasses should fill in to compile the given {@link Variable} expression into a direct
+     * variable lookup, if possible, returning null otherwise.
+     */
+    protected abstract CompiledExpression compileVariable(Variable variable);
+
+    //-------------------------------------------------------------------
+
+    /**
+     * Adds an instruction that jumps past the instructions that follow unless the given
+     * condition is true. The caller must use {@link #setJumpTarget(Instruction)} to set where
+     * this should jump to.
+     */
+    protected final JumpUnlessTrue addJumpUnlessTrue(final Expression condition) {
+        final JumpUnlessTrue instruction = new JumpUnlessTrue(compileExpression(condition));
+        instructions.add(instruction);
+        return instruction;
+    }
+
+    /**
+     * Adds an unconditional jump. The caller must use {@link #setJumpTarget(Instruction)} to
+     * set where this should jump to.
+     */
+    protected final Jump addJump() {
+        final Jump instruction = new Jump();
+        instructions.add(instruction);
+        return instruction;
+    }
+
+    /**
+     * Makes the given jump instruction jump to the next instruction to be added.
+     */
+    protected final void setJumpTarget(final Instruction jumpInstruction) {
+        final int target = instructions.size();
+        if (jumpInstruction instanceof JumpUnlessTrue) {
+            ((JumpUnlessTrue) jumpInstruction).target = target;
+        }
+        else {
+            ((Jump) jumpInstruction).target = target;
+        }
+    }
+
+    /**
+     * Compiles the given {@link Expression} and its children.
+     */
+    protected final CompiledExpression compileExpression(final Expression expression) {
+        if (expression instanceof Variable) {
+            final CompiledExpression result = compileVariable((Variable) expression);
+            if (result!=null) {
+                return result;
+            }
+        }
+        if (expression instanceof CustomOperator || !(expression instanceof AbstractFunctionalExpression)) {
+            return new InterpretedExpression(expression);
+        }
+
+        /* Compile children */
+        final AbstractFunctionalExpression functionalExpression = (AbstractFunctionalExpression) expression;
+        final List<Expression> childExpressions = functionalExpression.getExpressions();
+        final CompiledExpression[] children = new CompiledExpression[childExpressions.size()];
+        boolean allChildrenConstant = true;
+        for (int i=0; i<children.length; i++) {
+            children[i] = compileExpression(childExpressions.get(i));
+            allChildrenConstant &= children[i].isConstant();
+        }
+
+        /* Simple functional expressions only depend on their children, so fold these
+         * when all of the children are constant. (This includes baseValue and null.)
+         */
+        if (allChildrenConstant && functionalExpression instanceof AbstractSimpleFunctionalExpression) {
+            try {
+                /* (Simple functional expressions don't use the context) */
+                final Value value = functionalExpression.evaluateWithChildValues(null, CompiledExpressions.evaluateAll(null, children));
+                if (value!=null) {
+                    return new ConstantExpression(value);
+                }
+            }
+            catch (final RuntimeException e) {
+                /* Leave this to fail (or not!) when being evaluated */
+                logger.debug("Could not fold constant expression {}: {}", expression, e);
+            }
+        }
+        return new FunctionalExpression(functionalExpression, children);
+    }
+}
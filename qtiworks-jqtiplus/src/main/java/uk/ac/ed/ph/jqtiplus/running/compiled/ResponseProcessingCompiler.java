@@ -0,0 +1,178 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.jqtiplus.running.compiled;
+
+import uk.ac.ed.ph.jqtiplus.node.expression.general.Variable;
+import uk.ac.ed.ph.jqtiplus.node.item.AssessmentItem;
+import uk.ac.ed.ph.jqtiplus.node.item.response.processing.ExitResponse;
+import uk.ac.ed.ph.jqtiplus.node.item.response.processing.LookupOutcomeValue;
+import uk.ac.ed.ph.jqtiplus.node.item.response.processing.ResponseCondition;
+import uk.ac.ed.ph.jqtiplus.node.item.response.processing.ResponseConditionExpressionChild;
+import uk.ac.ed.ph.jqtiplus.node.item.response.processing.ResponseElse;
+import uk.ac.ed.ph.jqtiplus.node.item.response.processing.ResponseProcessing;
+import uk.ac.ed.ph.jqtiplus.node.item.response.processing.ResponseProcessingFragment;
+import uk.ac.ed.ph.jqtiplus.node.item.response.processing.ResponseRule;
+import uk.ac.ed.ph.jqtiplus.node.item.response.processing.SetOutcomeValue;
+import uk.ac.ed.ph.jqtiplus.node.outcome.declaration.OutcomeDeclaration;
+import uk.ac.ed.ph.jqtiplus.resolution.ResolvedAssessmentItem;
+import uk.ac.ed.ph.jqtiplus.resolution.RootNodeLookup;
+import uk.ac.ed.ph.jqtiplus.running.compiled.CompiledExpressions.VariableExpression;
+import uk.ac.ed.ph.jqtiplus.running.compiled.CompiledProcessing.Exit;
+import uk.ac.ed.ph.jqtiplus.running.compiled.CompiledProcessing.InterpretedResponseRule;
+import uk.ac.ed.ph.jqtiplus.running.compiled.CompiledProcessing.Jump;
+import uk.ac.ed.ph.jqtiplus.running.compiled.CompiledProcessing.JumpUnlessTrue;
+import uk.ac.ed.ph.jqtiplus.running.compiled.CompiledProcessing.LookupItemOutcomeValue;
+import uk.ac.ed.ph.jqtiplus.running.compiled.CompiledProcessing.SetItemOutcomeValue;
+import uk.ac.ed.ph.jqtiplus.state.ItemProcessingMap;
+import uk.ac.ed.ph.jqtiplus.types.Identifier;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link ProcessingCompiler} for the {@link ResponseProcessing} of an {@link AssessmentItem}.
+ *
+ * @author David McKain
+ */
+final class ResponseProcessingCompiler extends ProcessingCompiler {
+
+    private final ItemProcessingMap itemProcessingMap;
+
+    ResponseProcessingCompiler(final ItemProcessingMap itemProcessingMap) {
+        this.itemProcessingMap = itemProcessingMap;
+    }
+
+    @Override
+    protected CompiledProcessing compile() {
+        final ResponseProcessing responseProcessing = resolveResponseProcessing();
+        if (responseProcessing==null || !itemProcessingMap.isValid()) {
+            return null;
+        }
+        compileRules(responseProcessing.getResponseRules());
+        return new CompiledProcessing(instructions);
+    }
+
+    /**
+     * Works out which {@link ResponseProcessing} will be used, in the same way as
+     * the {@link uk.ac.ed.ph.jqtiplus.running.ItemSessionController}. Returns null if
+     * there is none.
+     */
+    private ResponseProcessing resolveResponseProcessing() {
+        final ResolvedAssessmentItem resolvedAssessmentItem = itemProcessingMap.getResolvedAssessmentItem();
+        final AssessmentItem item = resolvedAssessmentItem.getItemLookup().extractIfSuccessful();
+        if (item==null) {
+            return null;
+        }
+        final RootNodeLookup<ResponseProcessing> resolvedResponseProcessingTemplateLookup = resolvedAssessmentItem.getResolvedResponseProcessingTemplateLookup();
+        if (resolvedResponseProcessingTemplateLookup!=null) {
+            return resolvedResponseProcessingTemplateLookup.extractIfSuccessful();
+        }
+        return item.getResponseProcessing();
+    }
+
+    private void compileRules(final List<ResponseRule> responseRules) {
+        for (final ResponseRule responseRule : responseRules) {
+            compileRule(responseRule);
+        }
+    }
+
+    private void compileRule(final ResponseRule responseRule) {
+        if (responseRule instanceof ResponseCondition) {
+            compileCondition((ResponseCondition) responseRule);
+        }
+        else if (responseRule instanceof ResponseProcessingFragment) {
+            compileRules(((ResponseProcessingFragment) responseRule).getResponseRules());
+        }
+        else if (responseRule instanceof SetOutcomeValue) {
+            final SetOutcomeValue setOutcomeValue = (SetOutcomeValue) responseRule;
+            final OutcomeDeclaration outcomeDeclaration = lookupOutcomeDeclaration(setOutcomeValue.getIdentifier());
+            if (outcomeDeclaration!=null) {
+                instructions.add(new SetItemOutcomeValue(outcomeDeclaration, compileExpression(setOutcomeValue.getExpression())));
+            }
+            else {
+                instructions.add(new InterpretedResponseRule(responseRule));
+            }
+        }
+        else if (responseRule instanceof LookupOutcomeValue) {
+            final LookupOutcomeValue lookupOutcomeValue = (LookupOutcomeValue) responseRule;
+            final OutcomeDeclaration outcomeDeclaration = lookupOutcomeDeclaration(lookupOutcomeValue.getIdentifier());
+            if (outcomeDeclaration!=null && outcomeDeclaration.getLookupTable()!=null) {
+                instructions.add(new LookupItemOutcomeValue(outcomeDeclaration, compileExpression(lookupOutcomeValue.getExpression())));
+            }
+            else {
+                instructions.add(new InterpretedResponseRule(responseRule));
+            }
+        }
+        else if (responseRule instanceof ExitResponse) {
+            instructions.add(new Exit());
+        }
+        else {
+            instructions.add(new InterpretedResponseRule(responseRule));
+        }
+    }
+
+    private void compileCondition(final ResponseCondition responseCondition) {
+        final List<ResponseConditionExpressionChild> expressionChildren = new ArrayList<ResponseConditionExpressionChild>();
+        expressionChildren.add(responseCondition.getResponseIf());
+        expressionChildren.addAll(responseCondition.getResponseElseIfs());
+
+        final List<Jump> jumpsToEnd = new ArrayList<Jump>();
+        for (final ResponseConditionExpressionChild expressionChild : expressionChildren) {
+            final JumpUnlessTrue jumpToNext = addJumpUnlessTrue(expressionChild.getExpression());
+            compileRules(expressionChild.getResponseRules());
+            jumpsToEnd.add(addJump());
+            setJumpTarget(jumpToNext);
+        }
+        final ResponseElse responseElse = responseCondition.getResponseElse();
+        if (responseElse!=null) {
+            compileRules(responseElse.getResponseRules());
+        }
+        for (final Jump jumpToEnd : jumpsToEnd) {
+            setJumpTarget(jumpToEnd);
+        }
+    }
+
+    private OutcomeDeclaration lookupOutcomeDeclaration(final Identifier identifier) {
+        return identifier!=null ? itemProcessingMap.getValidOutcomeDeclarationMap().get(identifier) : null;
+    }
+
+    @Override
+    protected CompiledExpression compileVariable(final Variable variable) {
+        final Identifier identifier = Identifier.assumedLegal(variable.getIdentifier().toString());
+        if (itemProcessingMap.isValidVariableIdentifier(identifier)) {
+            return new VariableExpression(identifier);
+        }
+        return null;
+    }
+}
@@ -34,14 +34,23 @@
 package uk.ac.ed.ph.jqtiplus.state;
 
 import uk.ac.ed.ph.jqtiplus.internal.util.ObjectUtilities;
+import uk.ac.ed.ph.jqtiplus.internal.util.RegexCache;
+import uk.ac.ed.ph.jqtiplus.node.QtiNode;
+import uk.ac.ed.ph.jqtiplus.node.expression.operator.PatternMatch;
 import uk.ac.ed.ph.jqtiplus.node.item.AssessmentItem;
 import uk.ac.ed.ph.jqtiplus.node.item.interaction.Interaction;
+import uk.ac.ed.ph.jqtiplus.node.item.interaction.StringInteraction;
 import uk.ac.ed.ph.jqtiplus.node.item.response.declaration.ResponseDeclaration;
 import uk.ac.ed.ph.jqtiplus.node.item.template.declaration.TemplateDeclaration;
 import uk.ac.ed.ph.jqtiplus.node.outcome.declaration.OutcomeDeclaration;
 import uk.ac.ed.ph.jqtiplus.resolution.ResolvedAssessmentItem;
+import uk.ac.ed.ph.jqtiplus.resolution.RootNodeLookup;
 import uk.ac.ed.ph.jqtiplus.running.ItemProcessingInitializer;
+import uk.ac.ed.ph.jqtiplus.running.compiled.CompiledProcessing;
+import uk.ac.ed.ph.jqtiplus.running.compiled.ProcessingCompiler;
 import uk.ac.ed.ph.jqtiplus.types.Identifier;
+import uk.ac.ed.ph.jqtiplus.types.StringOrVariableRef;
+import uk.ac.ed.ph.jqtiplus.utils.QueryUtils;
 
 import java.io.Serializable;
 import java.util.ArrayList;
@@ -52,6 +61,8 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 /**
  * Encapsulates the key information about an {@link AssessmentItem} used during processing.
@@ -75,6 +86,13 @@ public final class ItemProcessingMap implements Serializable {
     private final Map<Identifier, ResponseDeclaration> validResponseDeclarationMap;
     private final Map<Identifier, OutcomeDeclaration> validOutcomeDeclarationMap;
 
+    /** Compiled forms of the literal (i.e. non-variable) regular expressions used by this item */
+    private final Map<String, Pattern> literalPatternMap;
+
+    /** Compiled response processing, created on demand */
+    private transient volatile CompiledProcessing compiledResponseProcessing;
+    private transient volatile boolean responseProcessingCompiled;
+
     public ItemProcessingMap(final ResolvedAssessmentItem resolvedAssessmentItem, final boolean isValid,
             final List<Interaction> interactionsBuilder,
             final LinkedHashMap<Identifier, TemplateDeclaration> validTemplateDeclarationMapBuilder,
@@ -102,6 +120,46 @@ public final class ItemProcessingMap implements Serializable {
         variableIdentifierSetBuilder.addAll(validResponseDeclarationMap.keySet());
         variableIdentifierSetBuilder.addAll(validOutcomeDeclarationMap.keySet());
         this.validVariableIdentifierSet = Collections.unmodifiableSet(variableIdentifierSetBuilder);
+
+        /* Precompile literal regular expressions */
+        this.literalPatternMap = isValid ? precompileLiteralPatterns() : Collections.<String, Pattern>emptyMap();
+    }
+
+    private Map<String, Pattern> precompileLiteralPatterns() {
+        final List<String> regexes = new ArrayList<String>();
+        for (final Interaction interaction : interactions) {
+            if (interaction instanceof StringInteraction) {
+                final String patternMask = ((StringInteraction) interaction).getPatternMask();
+                if (patternMask!=null) {
+                    regexes.add(patternMask);
+                }
+            }
+        }
+        final List<QtiNode> rootNodes = new ArrayList<QtiNode>();
+        final RootNodeLookup<AssessmentItem> itemLookup = resolvedAssessmentItem.getItemLookup();
+        if (itemLookup.wasSuccessful()) {
+            rootNodes.add(itemLookup.extractAssumingSuccessful());
+        }
+        final RootNodeLookup<?> templateLookup = resolvedAssessmentItem.getResolvedResponseProcessingTemplateLookup();
+        if (templateLookup!=null && templateLookup.wasSuccessful()) {
+            rootNodes.add(templateLookup.extractAssumingSuccessful());
+        }
+        for (final PatternMatch patternMatch : QueryUtils.search(PatternMatch.class, rootNodes)) {
+            final StringOrVariableRef pattern = patternMatch.getPattern();
+            if (pattern!=null && pattern.isConstantString()) {
+                regexes.add(pattern.getConstantStringValue().stringValue());
+            }
+        }
+        final Map<String, Pattern> result = new HashMap<String, Pattern>();
+        for (final String regex : regexes) {
+            try {
+                result.put(regex, RegexCache.getPattern(regex));
+            }
+            catch (final PatternSyntaxException e) {
+                /* Leave this to fail at runtime, as before */
+            }
+        }
+        return Collections.unmodifiableMap(result);
     }
 
     public boolean isValid() {
@@ -140,6 +198,38 @@ public final class ItemProcessingMap implements Serializable {
         return interactionByResponseIdentifierMap;
     }
 
+    /**
+     * Returns the compiled form of the given (XML Schema) regular expression, using the
+     * precompiled form if this is one of the item's literal patterns, and the shared
+     * {@link RegexCache} otherwise.
+     *
+     * @throws PatternSyntaxException if the expression is not valid
+     */
+    public Pattern getPattern(final String regex) {
+        final Pattern result = literalPatternMap.get(regex);
+        return result!=null ? result : RegexCache.getPattern(regex);
+    }
+
+    /**
+     * Returns the compiled form of the response processing for this item, compiling this
+     * the first time it is requested.
+     *
+     * @return compiled response processing, or null if this item is not valid or has no
+     *   response processing.
+     *
+     * @see ProcessingCompiler
+     */
+    public CompiledProcessing getCompiledResponseProcessing() {
+        if (!responseProcessingCompiled) {
+            /* (If multiple Threads get here at the same time, they will each compile the same
+             * result. This is harmless.)
+             */
+            compiledResponseProcessing = ProcessingCompiler.compileResponseProcessing(this);
+            responseProcessingCompiled = true;
+        }
+        return compiledResponseProcessing;
+    }
+
     @Override
     public String toString() {
         return ObjectUtilities.beanToString(this);
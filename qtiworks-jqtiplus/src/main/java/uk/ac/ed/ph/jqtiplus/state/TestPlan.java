@@ -106,6 +106,14 @@ public final class TestPlan implements Serializable {
      */
     private final Map<Identifier, List<TestPlanNode>> testPlanNodesByIdentifierMap;
 
+    /**
+     * Map of the global index of each {@link TestPlanNode}, keyed on {@link TestPlanNodeKey}.
+     * This is derived from {@link #testPlanNodeList} on demand.
+     * <p>
+     * (NB: The root Node is not included here as it has null key)
+     */
+    private transient volatile Map<TestPlanNodeKey, Integer> globalIndexByKeyMap;
+
     /**
      * This general constructor is used by {@link TestPlanXmlMarshaller}. It performs a depth-first
      * search starting at the given root node.
@@ -210,14 +218,20 @@ public final class TestPlan implements Serializable {
     public int getGlobalIndex(final TestPlanNode testPlanNode) {
         Assert.notNull(testPlanNode, "testPlanNode");
         final TestPlanNodeKey key = testPlanNode.getKey();
-        int index = 0;
-        for (final TestPlanNode searchNode : testPlanNodeList) {
-            if (key.equals(searchNode.getKey())) {
-                return index;
+        Map<TestPlanNodeKey, Integer> globalIndexMap = globalIndexByKeyMap;
+        if (globalIndexMap==null) {
+            /* Build index map. (This is idempotent, so there's no harm if more than one Thread does this) */
+            globalIndexMap = new HashMap<TestPlanNodeKey, Integer>();
+            for (int i=1; i<testPlanNodeList.size(); i++) { /* (Root node has null key, so starting at 1 here) */
+                globalIndexMap.put(testPlanNodeList.get(i).getKey(), Integer.valueOf(i));
             }
-            index++;
+            globalIndexByKeyMap = globalIndexMap;
+        }
+        final Integer result = globalIndexMap.get(key);
+        if (result==null) {
+            throw new IllegalArgumentException("No TestPlanNode with " + key + " found in this TestPlan");
         }
-        throw new IllegalArgumentException("No TestPlanNode with " + key + " found in this TestPlan");
+        return result.intValue();
     }
 
     /**
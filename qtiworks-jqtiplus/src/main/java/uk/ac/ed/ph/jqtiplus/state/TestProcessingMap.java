@@ -43,6 +43,8 @@ import uk.ac.ed.ph.jqtiplus.node.test.AssessmentItemRef;
 import uk.ac.ed.ph.jqtiplus.node.test.AssessmentTest;
 import uk.ac.ed.ph.jqtiplus.resolution.ResolvedAssessmentTest;
 import uk.ac.ed.ph.jqtiplus.running.TestProcessingInitializer;
+import uk.ac.ed.ph.jqtiplus.running.compiled.CompiledProcessing;
+import uk.ac.ed.ph.jqtiplus.running.compiled.ProcessingCompiler;
 import uk.ac.ed.ph.jqtiplus.state.TestPlanNode.TestNodeType;
 import uk.ac.ed.ph.jqtiplus.types.Identifier;
 
@@ -86,6 +88,10 @@ public final class TestProcessingMap implements Serializable {
      */
     private final Map<URI, ItemProcessingMap> itemProcessingMapMap;
 
+    /** Compiled outcome processing, created on demand */
+    private transient volatile CompiledProcessing compiledOutcomeProcessing;
+    private transient volatile boolean outcomeProcessingCompiled;
+
     public TestProcessingMap(final ResolvedAssessmentTest resolvedAssessmentTest, final boolean isValid,
             final List<AbstractPart> abstractPartListBuilder,
             final Map<AbstractPart, EffectiveItemSessionControl> effectiveItemSessionControlMap,
@@ -152,6 +158,26 @@ public final class TestProcessingMap implements Serializable {
         return itemProcessingMapMap;
     }
 
+    /**
+     * Returns the compiled form of the outcome processing for this test, compiling this
+     * the first time it is requested.
+     *
+     * @return compiled outcome processing, or null if this test is not valid or has no
+     *   outcome processing.
+     *
+     * @see ProcessingCompiler
+     */
+    public CompiledProcessing getCompiledOutcomeProcessing() {
+        if (!outcomeProcessingCompiled) {
+            /* (If multiple Threads get here at the same time, they will each compile the same
+             * result. This is harmless.)
+             */
+            compiledOutcomeProcessing = ProcessingCompiler.compileOutcomeProcessing(this);
+            outcomeProcessingCompiled = true;
+        }
+        return compiledOutcomeProcessing;
+    }
+
     public AbstractPart resolveAbstractPart(final TestPlanNode testPlanNode) {
         if (testPlanNode.getTestNodeType()==TestNodeType.ROOT) {
             throw new IllegalArgumentException("This method should not be called for " + testPlanNode.getTestNodeType());
@@ -40,7 +40,10 @@ import uk.ac.ed.ph.jqtiplus.internal.util.ObjectDumperOptions;
 import uk.ac.ed.ph.jqtiplus.internal.util.ObjectUtilities;
 import uk.ac.ed.ph.jqtiplus.node.outcome.declaration.OutcomeDeclaration;
 import uk.ac.ed.ph.jqtiplus.node.test.TestPart;
+import uk.ac.ed.ph.jqtiplus.running.ItemSubsetIndex;
+import uk.ac.ed.ph.jqtiplus.running.ItemSubsetMemo;
 import uk.ac.ed.ph.jqtiplus.running.TestSessionController;
+import uk.ac.ed.ph.jqtiplus.running.TestSessionControllerSettings;
 import uk.ac.ed.ph.jqtiplus.types.Identifier;
 import uk.ac.ed.ph.jqtiplus.value.FloatValue;
 import uk.ac.ed.ph.jqtiplus.value.NullValue;
@@ -80,6 +83,18 @@ public final class TestSessionState extends ControlObjectSessionState implements
     private TestPlanNodeKey currentTestPartKey;
     private TestPlanNodeKey currentItemKey;
 
+    /**
+     * Aggregates remembered for incremental outcome processing. This is derived data rather than
+     * part of the state, so is not saved and is ignored by {@link #equals(Object)}.
+     */
+    private transient ItemSubsetMemo itemSubsetMemo;
+
+    /**
+     * Index used to compute item subsets, created on demand. This is derived data rather than part
+     * of the state, so is not saved and is ignored by {@link #equals(Object)}.
+     */
+    private transient ItemSubsetIndex itemSubsetIndex;
+
     public TestSessionState(final TestPlan testPlan) {
         Assert.notNull(testPlan, "testPlan");
         this.testPlan = testPlan;
@@ -120,7 +135,37 @@ public final class TestSessionState extends ControlObjectSessionState implements
         this.initialized = false;
         this.currentTestPartKey = null;
         this.currentItemKey = null;
+        this.itemSubsetMemo = null;
+    }
+
+    //----------------------------------------------------------------
+
+    /**
+     * Returns the {@link ItemSubsetMemo} used for incremental outcome processing on this state,
+     * or null if incremental outcome processing is not being used.
+     *
+     * @see TestSessionControllerSettings#isIncrementalOutcomeProcessing()
+     */
+    @ObjectDumperOptions(DumpMode.IGNORE)
+    public ItemSubsetMemo getItemSubsetMemo() {
+        return itemSubsetMemo;
+    }
+
+    public void setItemSubsetMemo(final ItemSubsetMemo itemSubsetMemo) {
+        this.itemSubsetMemo = itemSubsetMemo;
+    }
+
+    /**
+     * Returns the {@link ItemSubsetIndex} used to compute item subsets for this state, or null if
+     * one has not been created yet.
+     */
+    @ObjectDumperOptions(DumpMode.IGNORE)
+    public ItemSubsetIndex getItemSubsetIndex() {
+        return itemSubsetIndex;
+    }
 
+    public void setItemSubsetIndex(final ItemSubsetIndex itemSubsetIndex) {
+        this.itemSubsetIndex = itemSubsetIndex;
     }
 
     //----------------------------------------------------------------
@@ -34,15 +34,19 @@
 package uk.ac.ed.ph.jqtiplus.state.marshalling;
 
 import uk.ac.ed.ph.jqtiplus.state.AssessmentSectionSessionState;
+import uk.ac.ed.ph.jqtiplus.state.marshalling.XmlMarshallerCore.RootElementWriter;
 
 import java.io.StringReader;
 
 import javax.xml.parsers.DocumentBuilder;
+import javax.xml.transform.sax.SAXSource;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
-import org.w3c.dom.Node;
+import org.xml.sax.ContentHandler;
 import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
 
 /**
  * Marshals an {@link AssessmentSectionSessionState} to/from XML
@@ -52,15 +56,41 @@ import org.xml.sax.InputSource;
 public final class AssessmentSectionSessionStateXmlMarshaller {
 
     public static Document marshal(final AssessmentSectionSessionState assessmentSectionSessionState) {
-        final DocumentBuilder documentBuilder = XmlMarshallerCore.createNsAwareDocumentBuilder();
-        final Document document = documentBuilder.newDocument();
-        appendAssessmentSectionSessionState(document, assessmentSectionSessionState);
-        return document;
+        return XmlMarshallerCore.marshalToDocument(createRootElementWriter(assessmentSectionSessionState));
+    }
+
+    /**
+     * Sends the SAX events for the XML form of the given {@link AssessmentSectionSessionState} to the
+     * given {@link ContentHandler}.
+     */
+    public static void marshal(final AssessmentSectionSessionState assessmentSectionSessionState, final ContentHandler handler)
+            throws SAXException {
+        XmlMarshallerCore.marshalToHandler(createRootElementWriter(assessmentSectionSessionState), handler);
+    }
+
+    /**
+     * Returns a {@link SAXSource} for the XML form of the given {@link AssessmentSectionSessionState}.
+     * This can be used to pass the state to an XSLT without creating an intermediate DOM.
+     */
+    public static SAXSource marshalToSaxSource(final AssessmentSectionSessionState assessmentSectionSessionState) {
+        return XmlMarshallerCore.marshalToSaxSource(createRootElementWriter(assessmentSectionSessionState));
+    }
+
+    private static RootElementWriter createRootElementWriter(final AssessmentSectionSessionState assessmentSectionSessionState) {
+        return new RootElementWriter() {
+            @Override
+            public void writeRootElement(final ContentHandler handler) throws SAXException {
+                appendAssessmentSectionSessionState(handler, assessmentSectionSessionState);
+            }
+        };
     }
 
-    static void appendAssessmentSectionSessionState(final Node documentOrElement, final AssessmentSectionSessionState testPartSessionState) {
-        final Element element = XmlMarshallerCore.appendElement(documentOrElement, "assessmentSectionSessionState");
-        XmlMarshallerCore.addAbstractPartSessionStateAttributes(element, testPartSessionState);
+    static void appendAssessmentSectionSessionState(final ContentHandler handler, final AssessmentSectionSessionState assessmentSectionSessionState)
+            throws SAXException {
+        final AttributesImpl attributes = new AttributesImpl();
+        XmlMarshallerCore.addAbstractPartSessionStateAttributes(attributes, assessmentSectionSessionState);
+        XmlMarshallerCore.startElement(handler, "assessmentSectionSessionState", attributes);
+        XmlMarshallerCore.endElement(handler, "assessmentSectionSessionState");
     }
 
     //----------------------------------------------
@@ -0,0 +1,471 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.jqtiplus.state.marshalling;
+
+import uk.ac.ed.ph.jqtiplus.exception.QtiLogicException;
+import uk.ac.ed.ph.jqtiplus.exception.QtiParseException;
+import uk.ac.ed.ph.jqtiplus.state.AbstractPartSessionState;
+import uk.ac.ed.ph.jqtiplus.state.ControlObjectSessionState;
+import uk.ac.ed.ph.jqtiplus.state.TestPlanNodeKey;
+import uk.ac.ed.ph.jqtiplus.types.Identifier;
+import uk.ac.ed.ph.jqtiplus.value.BaseType;
+import uk.ac.ed.ph.jqtiplus.value.Cardinality;
+import uk.ac.ed.ph.jqtiplus.value.FileValue;
+import uk.ac.ed.ph.jqtiplus.value.ListValue;
+import uk.ac.ed.ph.jqtiplus.value.MultipleValue;
+import uk.ac.ed.ph.jqtiplus.value.NullValue;
+import uk.ac.ed.ph.jqtiplus.value.OrderedValue;
+import uk.ac.ed.ph.jqtiplus.value.RecordValue;
+import uk.ac.ed.ph.jqtiplus.value.SingleValue;
+import uk.ac.ed.ph.jqtiplus.value.Value;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Core for the compact binary marshalling of JQTI+ state Objects. This is intended as a
+ * faster and smaller alternative to the XML marshalling (see {@link XmlMarshallerCore})
+ * for storing state, and records exactly the same information.
+ * <p>
+ * Each marshalled Object starts with a short header consisting of the {@link #MAGIC} bytes,
+ * the {@link #FORMAT_VERSION} and a type code indicating what has been marshalled.
+ *
+ * @author David McKain
+ */
+public final class BinaryMarshallerCore {
+
+    /** Bytes at the start of all binary marshalled state data */
+    public static final byte[] MAGIC = { 'Q', 'W', 'S', 'S' };
+
+    /** Current version of the binary format. Increment this if the format changes! */
+    public static final int FORMAT_VERSION = 1;
+
+    static final byte TYPE_ITEM_SESSION_STATE = 'I';
+    static final byte TYPE_TEST_SESSION_STATE = 'T';
+    static final byte TYPE_TEST_PLAN = 'P';
+    static final byte TYPE_TEST_LEVEL_STATE = 'L';
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int NULL_LENGTH = -1;
+
+    /**
+     * Returns whether the given data appears to be binary marshalled state, i.e. whether it
+     * starts with the {@link #MAGIC} bytes.
+     */
+    public static boolean isBinaryState(final byte[] data) {
+        if (data==null || data.length < MAGIC.length) {
+            return false;
+        }
+        for (int i=0; i<MAGIC.length; i++) {
+            if (data[i]!=MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //----------------------------------------------
+    // Marshalling to binary
+
+    /** Callback used to write out the body of a marshalled Object */
+    interface BodyWriter<E> {
+        void write(DataOutputStream output, E object) throws IOException;
+    }
+
+    /** Callback used to read in the body of a marshalled Object */
+    interface BodyReader<E> {
+        E read(DataInputStream input) throws IOException;
+    }
+
+    static <E> byte[] marshal(final byte type, final E object, final BodyWriter<E> bodyWriter) {
+        final ByteArrayOutputStream resultStream = new ByteArrayOutputStream(1024);
+        final DataOutputStream output = new DataOutputStream(resultStream);
+        try {
+            output.write(MAGIC);
+            output.writeByte(FORMAT_VERSION);
+            output.writeByte(type);
+            bodyWriter.write(output, object);
+            output.flush();
+        }
+        catch (final IOException e) {
+            throw new QtiLogicException("Unexpected IOException writing to byte array", e);
+        }
+        return resultStream.toByteArray();
+    }
+
+    static <E> E unmarshal(final byte[] data, final byte expectedType, final BodyReader<E> bodyReader) {
+        if (!isBinaryState(data)) {
+            throw new BinaryUnmarshallingException("Data does not start with the expected header");
+        }
+        final DataInputStream input = new DataInputStream(new ByteArrayInputStream(data, MAGIC.length, data.length - MAGIC.length));
+        try {
+            final int version = input.readUnsignedByte();
+            if (version!=FORMAT_VERSION) {
+                throw new BinaryUnmarshallingException("Unsupported binary state format version " + version
+                        + " (expected " + FORMAT_VERSION + ")");
+            }
+            final byte type = input.readByte();
+            if (type!=expectedType) {
+                throw new BinaryUnmarshallingException("Unexpected binary state type '" + (char) type
+                        + "' (expected '" + (char) expectedType + "')");
+            }
+            final E result = bodyReader.read(input);
+            if (input.read()!=-1) {
+                throw new BinaryUnmarshallingException("Unexpected trailing data after binary state");
+            }
+            return result;
+        }
+        catch (final EOFException e) {
+            throw new BinaryUnmarshallingException("Binary state data is truncated", e);
+        }
+        catch (final IOException e) {
+            throw new QtiLogicException("Unexpected IOException reading from byte array", e);
+        }
+    }
+
+    /**
+     * Writes a non-negative int using a variable number of bytes (7 bits per byte), which
+     * keeps the common case of small counts and lengths down to a single byte.
+     */
+    static void writeCount(final DataOutputStream output, final int count) throws IOException {
+        int remaining = count;
+        while ((remaining & ~0x7F)!=0) {
+            output.writeByte((remaining & 0x7F) | 0x80);
+            remaining >>>= 7;
+        }
+        output.writeByte(remaining);
+    }
+
+    static void writeString(final DataOutputStream output, final String string) throws IOException {
+        if (string==null) {
+            writeCount(output, 0);
+        }
+        else {
+            /* (Lengths are shifted up by 1 so that 0 can represent null) */
+            final byte[] bytes = string.getBytes(UTF8);
+            writeCount(output, bytes.length + 1);
+            output.write(bytes);
+        }
+    }
+
+    static void writeDate(final DataOutputStream output, final Date date) throws IOException {
+        output.writeBoolean(date!=null);
+        if (date!=null) {
+            output.writeLong(date.getTime());
+        }
+    }
+
+    static void writeIdentifier(final DataOutputStream output, final Identifier identifier) throws IOException {
+        writeString(output, identifier.toString());
+    }
+
+    static void writeIdentifiers(final DataOutputStream output, final Collection<Identifier> identifiers) throws IOException {
+        writeCount(output, identifiers.size());
+        for (final Identifier identifier : identifiers) {
+            writeIdentifier(output, identifier);
+        }
+    }
+
+    static void writeTestPlanNodeKey(final DataOutputStream output, final TestPlanNodeKey key) throws IOException {
+        writeString(output, key!=null ? key.toString() : null);
+    }
+
+    static void writeAbstractPartSessionState(final DataOutputStream output, final AbstractPartSessionState abstractPartSessionState) throws IOException {
+        writeControlObjectSessionState(output, abstractPartSessionState);
+        output.writeBoolean(abstractPartSessionState.isPreConditionFailed());
+        output.writeBoolean(abstractPartSessionState.isJumpedByBranchRule());
+        writeString(output, abstractPartSessionState.getBranchRuleTarget());
+    }
+
+    static void writeControlObjectSessionState(final DataOutputStream output, final ControlObjectSessionState controlObjectState) throws IOException {
+        writeDate(output, controlObjectState.getEntryTime());
+        writeDate(output, controlObjectState.getEndTime());
+        writeDate(output, controlObjectState.getExitTime());
+        writeDate(output, controlObjectState.getDurationIntervalStartTime());
+        output.writeLong(controlObjectState.getDurationAccumulated());
+    }
+
+    static void writeValues(final DataOutputStream output, final Map<Identifier, Value> valueMap) throws IOException {
+        writeCount(output, valueMap.size());
+        for (final Entry<Identifier, Value> entry : valueMap.entrySet()) {
+            writeIdentifier(output, entry.getKey());
+            writeValue(output, entry.getValue());
+        }
+    }
+
+    static void writeValue(final DataOutputStream output, final Value value) throws IOException {
+        if (value.isNull()) {
+            writeString(output, null);
+            return;
+        }
+        final Cardinality cardinality = value.getCardinality();
+        final BaseType baseType = value.getBaseType(); /* (NB: may be null) */
+        writeString(output, cardinality.toQtiString());
+        switch (cardinality) {
+            case SINGLE:
+                writeString(output, baseType.toQtiString());
+                writeSingleValue(output, (SingleValue) value);
+                break;
+
+            case MULTIPLE:
+            case ORDERED:
+                writeString(output, baseType.toQtiString());
+                final ListValue listValue = (ListValue) value;
+                writeCount(output, listValue.size());
+                for (final SingleValue listItem : listValue) {
+                    writeSingleValue(output, listItem);
+                }
+                break;
+
+            case RECORD:
+                final RecordValue recordValue = (RecordValue) value;
+                writeCount(output, recordValue.size());
+                for (final Entry<Identifier, SingleValue> entry : recordValue.entrySet()) {
+                    final SingleValue itemValue = entry.getValue();
+                    writeIdentifier(output, entry.getKey());
+                    writeString(output, itemValue.getBaseType().toQtiString());
+                    writeSingleValue(output, itemValue);
+                }
+                break;
+
+            default:
+                throw new QtiLogicException("Unexpected logic branch: " + cardinality);
+        }
+    }
+
+    static void writeSingleValue(final DataOutputStream output, final SingleValue value) throws IOException {
+        if (value instanceof FileValue) {
+            final FileValue fileValue = (FileValue) value;
+            writeString(output, fileValue.getFile().getAbsolutePath());
+            writeString(output, fileValue.getContentType());
+            writeString(output, fileValue.getFileName());
+        }
+        else {
+            writeString(output, value.toQtiString());
+        }
+    }
+
+    //----------------------------------------------
+    // Unmarshalling from binary
+
+    static int readCount(final DataInputStream input) throws IOException {
+        int result = 0;
+        for (int shift=0; shift<32; shift+=7) {
+            final int b = input.readUnsignedByte();
+            result |= (b & 0x7F) << shift;
+            if ((b & 0x80)==0) {
+                if (result<0) {
+                    break;
+                }
+                return result;
+            }
+        }
+        throw new BinaryUnmarshallingException("Bad count/length in binary state");
+    }
+
+    static String readString(final DataInputStream input) throws IOException {
+        final int lengthPlusOne = readCount(input);
+        if (lengthPlusOne==0) {
+            return null;
+        }
+        final byte[] bytes = new byte[lengthPlusOne - 1];
+        input.readFully(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    static String requireString(final DataInputStream input, final String what) throws IOException {
+        final String result = readString(input);
+        if (result==null) {
+            throw new BinaryUnmarshallingException("Expected non-null " + what);
+        }
+        return result;
+    }
+
+    static Date readDate(final DataInputStream input) throws IOException {
+        return input.readBoolean() ? new Date(input.readLong()) : null;
+    }
+
+    static Identifier readIdentifier(final DataInputStream input) throws IOException {
+        final String identifierString = requireString(input, "identifier");
+        try {
+            return Identifier.parseString(identifierString);
+        }
+        catch (final QtiParseException e) {
+            throw new BinaryUnmarshallingException("Value " + identifierString + " is not a valid QTI Identifier");
+        }
+    }
+
+    static List<Identifier> readIdentifiers(final DataInputStream input) throws IOException {
+        final int count = readCount(input);
+        final List<Identifier> result = new ArrayList<Identifier>(count);
+        for (int i=0; i<count; i++) {
+            result.add(readIdentifier(input));
+        }
+        return result;
+    }
+
+    static TestPlanNodeKey readTestPlanNodeKey(final DataInputStream input) throws IOException {
+        final String keyString = readString(input);
+        if (keyString==null) {
+            return null;
+        }
+        try {
+            return TestPlanNodeKey.fromString(keyString);
+        }
+        catch (final IllegalArgumentException e) {
+            throw new BinaryUnmarshallingException("Bad " + TestPlanNodeKey.class.getSimpleName()
+                    + " value '" + keyString + "'");
+        }
+    }
+
+    static TestPlanNodeKey requireTestPlanNodeKey(final DataInputStream input) throws IOException {
+        final TestPlanNodeKey result = readTestPlanNodeKey(input);
+        if (result==null) {
+            throw new BinaryUnmarshallingException("Expected non-null " + TestPlanNodeKey.class.getSimpleName());
+        }
+        return result;
+    }
+
+    static void readAbstractPartSessionState(final DataInputStream input, final AbstractPartSessionState target) throws IOException {
+        readControlObjectSessionState(input, target);
+        target.setPreConditionFailed(input.readBoolean());
+        target.setJumpedByBranchRule(input.readBoolean());
+        target.setBranchRuleTarget(readString(input));
+    }
+
+    static void readControlObjectSessionState(final DataInputStream input, final ControlObjectSessionState target) throws IOException {
+        target.setEntryTime(readDate(input));
+        target.setEndTime(readDate(input));
+        target.setExitTime(readDate(input));
+        target.setDurationIntervalStartTime(readDate(input));
+        target.setDurationAccumulated(input.readLong());
+    }
+
+    static Map<Identifier, Value> readValues(final DataInputStream input) throws IOException {
+        final int count = readCount(input);
+        final Map<Identifier, Value> result = new HashMap<Identifier, Value>(count * 2);
+        for (int i=0; i<count; i++) {
+            final Identifier identifier = readIdentifier(input);
+            result.put(identifier, readValue(input));
+        }
+        return result;
+    }
+
+    static Value readValue(final DataInputStream input) throws IOException {
+        final String cardinalityString = readString(input);
+        if (cardinalityString==null) {
+            return NullValue.INSTANCE;
+        }
+        final Cardinality cardinality;
+        try {
+            cardinality = Cardinality.parseCardinality(cardinalityString);
+        }
+        catch (final IllegalArgumentException e) {
+            throw new BinaryUnmarshallingException("Bad cardinality " + cardinalityString);
+        }
+        switch (cardinality) {
+            case SINGLE:
+                return readSingleValue(input, readBaseType(input));
+
+            case MULTIPLE:
+                return MultipleValue.createMultipleValue(readListValues(input));
+
+            case ORDERED:
+                return OrderedValue.createOrderedValue(readListValues(input));
+
+            case RECORD:
+                final int count = readCount(input);
+                final Map<Identifier, SingleValue> recordBuilder = new HashMap<Identifier, SingleValue>(count * 2);
+                for (int i=0; i<count; i++) {
+                    final Identifier itemIdentifier = readIdentifier(input);
+                    final SingleValue itemValue = readSingleValue(input, readBaseType(input));
+                    recordBuilder.put(itemIdentifier, itemValue);
+                }
+                return RecordValue.createRecordValue(recordBuilder);
+
+            default:
+                throw new QtiLogicException("Unexpected logic branch " + cardinality);
+        }
+    }
+
+    private static List<SingleValue> readListValues(final DataInputStream input) throws IOException {
+        final BaseType baseType = readBaseType(input);
+        final int count = readCount(input);
+        final List<SingleValue> result = new ArrayList<SingleValue>(count);
+        for (int i=0; i<count; i++) {
+            result.add(readSingleValue(input, baseType));
+        }
+        return result;
+    }
+
+    static SingleValue readSingleValue(final DataInputStream input, final BaseType baseType) throws IOException {
+        if (baseType==BaseType.FILE) {
+            final File file = new File(requireString(input, "absolutePath"));
+            final String contentType = readString(input);
+            final String fileName = readString(input);
+            return new FileValue(file, contentType, fileName);
+        }
+        final String singleValueString = requireString(input, "single value");
+        try {
+            return baseType.parseSingleValue(singleValueString);
+        }
+        catch (final QtiParseException e) {
+            throw new BinaryUnmarshallingException("Could not parse single value " + singleValueString + " of baseType " + baseType, e);
+        }
+    }
+
+    static BaseType readBaseType(final DataInputStream input) throws IOException {
+        final String baseTypeString = requireString(input, "baseType");
+        try {
+            return BaseType.parseBaseType(baseTypeString);
+        }
+        catch (final IllegalArgumentException e) {
+            throw new BinaryUnmarshallingException("Bad baseType " + baseTypeString);
+        }
+    }
+}
@@ -0,0 +1,255 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.jqtiplus.state.marshalling;
+
+import uk.ac.ed.ph.jqtiplus.exception.QtiLogicException;
+import uk.ac.ed.ph.jqtiplus.node.result.SessionStatus;
+import uk.ac.ed.ph.jqtiplus.state.ItemSessionState;
+import uk.ac.ed.ph.jqtiplus.types.FileResponseData;
+import uk.ac.ed.ph.jqtiplus.types.Identifier;
+import uk.ac.ed.ph.jqtiplus.types.ResponseData;
+import uk.ac.ed.ph.jqtiplus.types.ResponseData.ResponseDataType;
+import uk.ac.ed.ph.jqtiplus.types.StringResponseData;
+import uk.ac.ed.ph.jqtiplus.value.Value;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Marshals an {@link ItemSessionState} to/from the compact binary format described in
+ * {@link BinaryMarshallerCore}.
+ *
+ * @author David McKain
+ */
+public final class ItemSessionStateBinaryMarshaller {
+
+    private static final byte RESPONSE_DATA_STRING = 'S';
+    private static final byte RESPONSE_DATA_FILE = 'F';
+
+    private static final BinaryMarshallerCore.BodyWriter<ItemSessionState> bodyWriter = new BinaryMarshallerCore.BodyWriter<ItemSessionState>() {
+        @Override
+        public void write(final DataOutputStream output, final ItemSessionState itemSessionState) throws IOException {
+            writeItemSessionState(output, itemSessionState);
+        }
+    };
+
+    private static final BinaryMarshallerCore.BodyReader<ItemSessionState> bodyReader = new BinaryMarshallerCore.BodyReader<ItemSessionState>() {
+        @Override
+        public ItemSessionState read(final DataInputStream input) throws IOException {
+            return readItemSessionState(input);
+        }
+    };
+
+    public static byte[] marshal(final ItemSessionState itemSessionState) {
+        return BinaryMarshallerCore.marshal(BinaryMarshallerCore.TYPE_ITEM_SESSION_STATE, itemSessionState, bodyWriter);
+    }
+
+    public static ItemSessionState unmarshal(final byte[] data) {
+        return BinaryMarshallerCore.unmarshal(data, BinaryMarshallerCore.TYPE_ITEM_SESSION_STATE, bodyReader);
+    }
+
+    //----------------------------------------------
+
+    static void writeItemSessionState(final DataOutputStream output, final ItemSessionState itemSessionState) throws IOException {
+        BinaryMarshallerCore.writeAbstractPartSessionState(output, itemSessionState);
+        output.writeBoolean(itemSessionState.isInitialized());
+        output.writeBoolean(itemSessionState.isResponded());
+        BinaryMarshallerCore.writeDate(output, itemSessionState.getSuspendTime());
+        final SessionStatus sessionStatus = itemSessionState.getSessionStatus();
+        BinaryMarshallerCore.writeString(output, sessionStatus!=null ? sessionStatus.toQtiString() : null);
+
+        /* Implicit variables */
+        BinaryMarshallerCore.writeString(output, itemSessionState.getCompletionStatus());
+        BinaryMarshallerCore.writeCount(output, itemSessionState.getNumAttempts());
+
+        /* Unbound and/or invalid responses */
+        BinaryMarshallerCore.writeIdentifiers(output, itemSessionState.getUnboundResponseIdentifiers());
+        BinaryMarshallerCore.writeIdentifiers(output, itemSessionState.getInvalidResponseIdentifiers());
+
+        /* Shuffled choice orders */
+        final Map<Identifier, List<Identifier>> shuffledInteractionChoiceOrders = itemSessionState.getShuffledInteractionChoiceOrders();
+        BinaryMarshallerCore.writeCount(output, shuffledInteractionChoiceOrders.size());
+        for (final Entry<Identifier, List<Identifier>> entry : shuffledInteractionChoiceOrders.entrySet()) {
+            BinaryMarshallerCore.writeIdentifier(output, entry.getKey());
+            BinaryMarshallerCore.writeIdentifiers(output, entry.getValue());
+        }
+
+        /* Raw responses */
+        final Map<Identifier, ResponseData> rawResponseDataMap = itemSessionState.getRawResponseDataMap();
+        BinaryMarshallerCore.writeCount(output, rawResponseDataMap.size());
+        for (final Entry<Identifier, ResponseData> entry : rawResponseDataMap.entrySet()) {
+            BinaryMarshallerCore.writeIdentifier(output, entry.getKey());
+            writeResponseData(output, entry.getValue());
+        }
+
+        /* Candidate comment */
+        BinaryMarshallerCore.writeString(output, itemSessionState.getCandidateComment());
+
+        /* Various values */
+        BinaryMarshallerCore.writeValues(output, itemSessionState.getUncommittedResponseValues());
+        BinaryMarshallerCore.writeValues(output, itemSessionState.getTemplateValues());
+        BinaryMarshallerCore.writeValues(output, itemSessionState.getResponseValues());
+        BinaryMarshallerCore.writeValues(output, itemSessionState.getOutcomeValues());
+        BinaryMarshallerCore.writeValues(output, itemSessionState.getOverriddenTemplateDefaultValues());
+        BinaryMarshallerCore.writeValues(output, itemSessionState.getOverriddenResponseDefaultValues());
+        BinaryMarshallerCore.writeValues(output, itemSessionState.getOverriddenOutcomeDefaultValues());
+        BinaryMarshallerCore.writeValues(output, itemSessionState.getOverriddenCorrectResponseValues());
+    }
+
+    private static void writeResponseData(final DataOutputStream output, final ResponseData responseData) throws IOException {
+        final ResponseDataType type = responseData.getType();
+        switch (type) {
+            case STRING:
+                output.writeByte(RESPONSE_DATA_STRING);
+                final List<String> responseDataList = ((StringResponseData) responseData).getResponseData();
+                BinaryMarshallerCore.writeCount(output, responseDataList.size());
+                for (final String responseDatum : responseDataList) {
+                    BinaryMarshallerCore.writeString(output, responseDatum);
+                }
+                break;
+
+            case FILE:
+                output.writeByte(RESPONSE_DATA_FILE);
+                final FileResponseData fileResponseData = (FileResponseData) responseData;
+                BinaryMarshallerCore.writeString(output, fileResponseData.getContentType());
+                BinaryMarshallerCore.writeString(output, fileResponseData.getFileName());
+                BinaryMarshallerCore.writeString(output, fileResponseData.getFile().getAbsolutePath());
+                break;
+
+            default:
+                throw new QtiLogicException("Unexpected switch case " + type);
+        }
+    }
+
+    //----------------------------------------------
+
+    static ItemSessionState readItemSessionState(final DataInputStream input) throws IOException {
+        final ItemSessionState result = new ItemSessionState();
+        BinaryMarshallerCore.readAbstractPartSessionState(input, result);
+        result.setInitialized(input.readBoolean());
+        result.setResponded(input.readBoolean());
+        result.setSuspendTime(BinaryMarshallerCore.readDate(input));
+        final String sessionStatusString = BinaryMarshallerCore.readString(input);
+        if (sessionStatusString!=null) {
+            try {
+                result.setSessionStatus(SessionStatus.parseSessionStatus(sessionStatusString));
+            }
+            catch (final IllegalArgumentException e) {
+                throw new BinaryUnmarshallingException("Unexpected value for sessionStatus: " + sessionStatusString);
+            }
+        }
+
+        final String completionStatus = BinaryMarshallerCore.readString(input);
+        if (completionStatus!=null) {
+            try {
+                result.setCompletionStatus(completionStatus);
+            }
+            catch (final IllegalArgumentException e) {
+                throw new BinaryUnmarshallingException("Unexpected value for completionStatus: " + completionStatus);
+            }
+        }
+        result.setNumAttempts(BinaryMarshallerCore.readCount(input));
+
+        result.setUnboundResponseIdentifiers(BinaryMarshallerCore.readIdentifiers(input));
+        result.setInvalidResponseIdentifiers(BinaryMarshallerCore.readIdentifiers(input));
+
+        final int shuffleCount = BinaryMarshallerCore.readCount(input);
+        for (int i=0; i<shuffleCount; i++) {
+            final Identifier responseIdentifier = BinaryMarshallerCore.readIdentifier(input);
+            result.setShuffledInteractionChoiceOrder(responseIdentifier, BinaryMarshallerCore.readIdentifiers(input));
+        }
+
+        final int responseCount = BinaryMarshallerCore.readCount(input);
+        for (int i=0; i<responseCount; i++) {
+            final Identifier identifier = BinaryMarshallerCore.readIdentifier(input);
+            result.setRawResponseData(identifier, readResponseData(input));
+        }
+
+        result.setCandidateComment(BinaryMarshallerCore.readString(input));
+
+        for (final Entry<Identifier, Value> entry : BinaryMarshallerCore.readValues(input).entrySet()) {
+            result.setUncommittedResponseValue(entry.getKey(), entry.getValue());
+        }
+        for (final Entry<Identifier, Value> entry : BinaryMarshallerCore.readValues(input).entrySet()) {
+            result.setTemplateValue(entry.getKey(), entry.getValue());
+        }
+        for (final Entry<Identifier, Value> entry : BinaryMarshallerCore.readValues(input).entrySet()) {
+            result.setResponseValue(entry.getKey(), entry.getValue());
+        }
+        for (final Entry<Identifier, Value> entry : BinaryMarshallerCore.readValues(input).entrySet()) {
+            result.setOutcomeValue(entry.getKey(), entry.getValue());
+        }
+        for (final Entry<Identifier, Value> entry : BinaryMarshallerCore.readValues(input).entrySet()) {
+            result.setOverriddenTemplateDefaultValue(entry.getKey(), entry.getValue());
+        }
+        for (final Entry<Identifier, Value> entry : BinaryMarshallerCore.readValues(input).entrySet()) {
+            result.setOverriddenResponseDefaultValue(entry.getKey(), entry.getValue());
+        }
+        for (final Entry<Identifier, Value> entry : BinaryMarshallerCore.readValues(input).entrySet()) {
+            result.setOverriddenOutcomeDefaultValue(entry.getKey(), entry.getValue());
+        }
+        for (final Entry<Identifier, Value> entry : BinaryMarshallerCore.readValues(input).entrySet()) {
+            result.setOverriddenCorrectResponseValue(entry.getKey(), entry.getValue());
+        }
+        return result;
+    }
+
+    private static ResponseData readResponseData(final DataInputStream input) throws IOException {
+        final byte typeCode = input.readByte();
+        switch (typeCode) {
+            case RESPONSE_DATA_STRING:
+                final int count = BinaryMarshallerCore.readCount(input);
+                final List<String> stringResponseBuilder = new ArrayList<String>(count);
+                for (int i=0; i<count; i++) {
+                    stringResponseBuilder.add(BinaryMarshallerCore.readString(input));
+                }
+                return new StringResponseData(stringResponseBuilder);
+
+            case RESPONSE_DATA_FILE:
+                final String contentType = BinaryMarshallerCore.requireString(input, "contentType");
+                final String fileName = BinaryMarshallerCore.requireString(input, "fileName");
+                final String absoluteFilePath = BinaryMarshallerCore.requireString(input, "absoluteFilePath");
+                return new FileResponseData(new File(absoluteFilePath), contentType, fileName);
+
+            default:
+                throw new BinaryUnmarshallingException("Unexpected response data type code " + typeCode);
+        }
+    }
+}
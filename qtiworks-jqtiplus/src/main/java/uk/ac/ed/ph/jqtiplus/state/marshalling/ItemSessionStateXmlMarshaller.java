@@ -38,6 +38,7 @@ import uk.ac.ed.ph.jqtiplus.exception.QtiParseException;
 import uk.ac.ed.ph.jqtiplus.internal.util.StringUtilities;
 import uk.ac.ed.ph.jqtiplus.node.result.SessionStatus;
 import uk.ac.ed.ph.jqtiplus.state.ItemSessionState;
+import uk.ac.ed.ph.jqtiplus.state.marshalling.XmlMarshallerCore.RootElementWriter;
 import uk.ac.ed.ph.jqtiplus.types.FileResponseData;
 import uk.ac.ed.ph.jqtiplus.types.Identifier;
 import uk.ac.ed.ph.jqtiplus.types.ResponseData;
@@ -52,11 +53,14 @@ import java.util.List;
 import java.util.Map.Entry;
 
 import javax.xml.parsers.DocumentBuilder;
+import javax.xml.transform.sax.SAXSource;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
-import org.w3c.dom.Node;
+import org.xml.sax.ContentHandler;
 import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
 
 /**
  * Marshals an {@link ItemSessionState} to/from XML
@@ -66,78 +70,129 @@ import org.xml.sax.InputSource;
 public final class ItemSessionStateXmlMarshaller {
 
     public static Document marshal(final ItemSessionState itemSessionState) {
-        final DocumentBuilder documentBuilder = XmlMarshallerCore.createNsAwareDocumentBuilder();
-        final Document document = documentBuilder.newDocument();
-        appendItemSessionState(document, itemSessionState);
-        return document;
+        return XmlMarshallerCore.marshalToDocument(createRootElementWriter(itemSessionState));
     }
 
-    static void appendItemSessionState(final Node documentOrElement, final ItemSessionState itemSessionState) {
-        final Element element = XmlMarshallerCore.appendElement(documentOrElement, "itemSessionState");
-        XmlMarshallerCore.addAbstractPartSessionStateAttributes(element, itemSessionState);
-        element.setAttribute("initialized", StringUtilities.toTrueFalse(itemSessionState.isInitialized()));
-        element.setAttribute("responded", StringUtilities.toTrueFalse(itemSessionState.isResponded()));
-        XmlMarshallerCore.maybeAddDateAttribute(element, "suspendTime", itemSessionState.getSuspendTime());
-        final SessionStatus sessionStatus = itemSessionState.getSessionStatus();
-        if (sessionStatus!=null) {
-            element.setAttribute("sessionStatus", sessionStatus.toQtiString());
-        }
+    /**
+     * Sends the SAX events for the XML form of the given {@link ItemSessionState} to the
+     * given {@link ContentHandler}.
+     */
+    public static void marshal(final ItemSessionState itemSessionState, final ContentHandler handler)
+            throws SAXException {
+        XmlMarshallerCore.marshalToHandler(createRootElementWriter(itemSessionState), handler);
+    }
 
-        /* Append implicit variables */
-        XmlMarshallerCore.maybeAddStringAttribute(element, "completionStatus", itemSessionState.getCompletionStatus());
-        element.setAttribute("numAttempts", Integer.toString(itemSessionState.getNumAttempts()));
+    /**
+     * Returns a {@link SAXSource} for the XML form of the given {@link ItemSessionState}.
+     * This can be used to pass the state to an XSLT without creating an intermediate DOM.
+     */
+    public static SAXSource marshalToSaxSource(final ItemSessionState itemSessionState) {
+        return XmlMarshallerCore.marshalToSaxSource(createRootElementWriter(itemSessionState));
+    }
 
-        /* Show any unbound and/or invalid responses (as attribute) */
-        XmlMarshallerCore.maybeAddIdentifierListAttribute(element, "unboundResponseIdentifiers", itemSessionState.getUnboundResponseIdentifiers());
-        XmlMarshallerCore.maybeAddIdentifierListAttribute(element, "invalidResponseIdentifiers", itemSessionState.getInvalidResponseIdentifiers());
+    private static RootElementWriter createRootElementWriter(final ItemSessionState itemSessionState) {
+        return new RootElementWriter() {
+            @Override
+            public void writeRootElement(final ContentHandler handler) throws SAXException {
+                appendItemSessionState(handler, itemSessionState);
+            }
+        };
+    }
+
+    static void appendItemSessionState(final ContentHandler handler, final ItemSessionState itemSessionState)
+            throws SAXException {
+        XmlMarshallerCore.startElement(handler, "itemSessionState", createItemSessionStateAttributes(itemSessionState));
 
         /* Output shuffled choice orders */
         for (final Entry<Identifier, List<Identifier>> entry : itemSessionState.getShuffledInteractionChoiceOrders().entrySet()) {
             final Identifier responseIdentifier = entry.getKey();
             final List<Identifier> choiceIdentifiers = entry.getValue();
-            final Element orderElement = XmlMarshallerCore.appendElement(element, "shuffledInteractionChoiceOrder");
-            orderElement.setAttribute("responseIdentifier", responseIdentifier.toString());
-            orderElement.setAttribute("choiceSequence", StringUtilities.join(choiceIdentifiers, " "));
+            final AttributesImpl orderAttributes = new AttributesImpl();
+            XmlMarshallerCore.addAttribute(orderAttributes, "responseIdentifier", responseIdentifier.toString());
+            XmlMarshallerCore.addAttribute(orderAttributes, "choiceSequence", StringUtilities.join(choiceIdentifiers, " "));
+            XmlMarshallerCore.startElement(handler, "shuffledInteractionChoiceOrder", orderAttributes);
+            XmlMarshallerCore.endElement(handler, "shuffledInteractionChoiceOrder");
         }
 
         /* Output raw responses (as elements) */
         for (final Entry<Identifier, ResponseData> entry : itemSessionState.getRawResponseDataMap().entrySet()) {
             final Identifier identifier = entry.getKey();
             final ResponseData responseData = entry.getValue();
-            final Element responseInputElement = XmlMarshallerCore.appendElement(element, "responseInput");
-            responseInputElement.setAttribute("identifier", identifier.toString());
-            appendResponseData(responseInputElement, responseData);
+            final AttributesImpl responseInputAttributes = new AttributesImpl();
+            XmlMarshallerCore.addAttribute(responseInputAttributes, "identifier", identifier.toString());
+            XmlMarshallerCore.startElement(handler, "responseInput", responseInputAttributes);
+            appendResponseData(handler, responseData);
+            XmlMarshallerCore.endElement(handler, "responseInput");
         }
 
         /* Output candidate comment */
-        XmlMarshallerCore.maybeAppendTextElement(element, "candidateComment", itemSessionState.getCandidateComment());
+        XmlMarshallerCore.maybeAppendTextElement(handler, "candidateComment", itemSessionState.getCandidateComment());
 
         /* Do various values */
-        XmlMarshallerCore.appendValues(element, "uncommittedResponseValue", itemSessionState.getUncommittedResponseValues());
-        XmlMarshallerCore.appendValues(element, "templateVariable", itemSessionState.getTemplateValues());
-        XmlMarshallerCore.appendValues(element, "responseVariable", itemSessionState.getResponseValues());
-        XmlMarshallerCore.appendValues(element, "outcomeVariable", itemSessionState.getOutcomeValues());
-        XmlMarshallerCore.appendValues(element, "overriddenTemplateDefault", itemSessionState.getOverriddenTemplateDefaultValues());
-        XmlMarshallerCore.appendValues(element, "overriddenResponseDefault", itemSessionState.getOverriddenResponseDefaultValues());
-        XmlMarshallerCore.appendValues(element, "overriddenOutcomeDefault", itemSessionState.getOverriddenOutcomeDefaultValues());
-        XmlMarshallerCore.appendValues(element, "overriddenCorrectResponse", itemSessionState.getOverriddenCorrectResponseValues());
+        XmlMarshallerCore.appendValues(handler, "uncommittedResponseValue", itemSessionState.getUncommittedResponseValues());
+        XmlMarshallerCore.appendValues(handler, "templateVariable", itemSessionState.getTemplateValues());
+        XmlMarshallerCore.appendValues(handler, "responseVariable", itemSessionState.getResponseValues());
+        XmlMarshallerCore.appendValues(handler, "outcomeVariable", itemSessionState.getOutcomeValues());
+        XmlMarshallerCore.appendValues(handler, "overriddenTemplateDefault", itemSessionState.getOverriddenTemplateDefaultValues());
+        XmlMarshallerCore.appendValues(handler, "overriddenResponseDefault", itemSessionState.getOverriddenResponseDefaultValues());
+        XmlMarshallerCore.appendValues(handler, "overriddenOutcomeDefault", itemSessionState.getOverriddenOutcomeDefaultValues());
+        XmlMarshallerCore.appendValues(handler, "overriddenCorrectResponse", itemSessionState.getOverriddenCorrectResponseValues());
+        XmlMarshallerCore.endElement(handler, "itemSessionState");
+    }
+
+    /**
+     * Appends a summary form of the given {@link ItemSessionState}, containing only its attributes
+     * plus a precomputed <code>hasUncommittedResponses</code> flag. This is all that's needed to
+     * show an item's status in navigation or review menus.
+     */
+    static void appendItemSessionStateSummary(final ContentHandler handler, final ItemSessionState itemSessionState)
+            throws SAXException {
+        final AttributesImpl attributes = createItemSessionStateAttributes(itemSessionState);
+        XmlMarshallerCore.addAttribute(attributes, "hasUncommittedResponses",
+                StringUtilities.toTrueFalse(!itemSessionState.getUncommittedResponseValues().isEmpty()));
+        XmlMarshallerCore.startElement(handler, "itemSessionState", attributes);
+        XmlMarshallerCore.endElement(handler, "itemSessionState");
+    }
+
+    private static AttributesImpl createItemSessionStateAttributes(final ItemSessionState itemSessionState) {
+        final AttributesImpl attributes = new AttributesImpl();
+        XmlMarshallerCore.addAbstractPartSessionStateAttributes(attributes, itemSessionState);
+        XmlMarshallerCore.addAttribute(attributes, "initialized", StringUtilities.toTrueFalse(itemSessionState.isInitialized()));
+        XmlMarshallerCore.addAttribute(attributes, "responded", StringUtilities.toTrueFalse(itemSessionState.isResponded()));
+        XmlMarshallerCore.maybeAddDateAttribute(attributes, "suspendTime", itemSessionState.getSuspendTime());
+        final SessionStatus sessionStatus = itemSessionState.getSessionStatus();
+        if (sessionStatus!=null) {
+            XmlMarshallerCore.addAttribute(attributes, "sessionStatus", sessionStatus.toQtiString());
+        }
+
+        /* Append implicit variables */
+        XmlMarshallerCore.maybeAddStringAttribute(attributes, "completionStatus", itemSessionState.getCompletionStatus());
+        XmlMarshallerCore.addAttribute(attributes, "numAttempts", Integer.toString(itemSessionState.getNumAttempts()));
+
+        /* Show any unbound and/or invalid responses (as attribute) */
+        XmlMarshallerCore.maybeAddIdentifierListAttribute(attributes, "unboundResponseIdentifiers", itemSessionState.getUnboundResponseIdentifiers());
+        XmlMarshallerCore.maybeAddIdentifierListAttribute(attributes, "invalidResponseIdentifiers", itemSessionState.getInvalidResponseIdentifiers());
+        return attributes;
     }
 
-    private static void appendResponseData(final Element element, final ResponseData responseData) {
+    private static void appendResponseData(final ContentHandler handler, final ResponseData responseData)
+            throws SAXException {
         switch (responseData.getType()) {
             case STRING:
                 final StringResponseData stringResponseData = (StringResponseData) responseData;
                 for (final String responseDatum : stringResponseData.getResponseData()) {
-                    XmlMarshallerCore.maybeAppendTextElement(element, "string", responseDatum);
+                    XmlMarshallerCore.maybeAppendTextElement(handler, "string", responseDatum);
                 }
                 break;
 
             case FILE:
                 final FileResponseData fileResponseData = (FileResponseData) responseData;
-                final Element fileElement = XmlMarshallerCore.appendElement(element, "file");
-                fileElement.setAttribute("contentType", fileResponseData.getContentType());
-                fileElement.setAttribute("fileName", fileResponseData.getFileName());
-                fileElement.setAttribute("absoluteFilePath", fileResponseData.getFile().getAbsolutePath());
+                final AttributesImpl fileAttributes = new AttributesImpl();
+                XmlMarshallerCore.addAttribute(fileAttributes, "contentType", fileResponseData.getContentType());
+                XmlMarshallerCore.addAttribute(fileAttributes, "fileName", fileResponseData.getFileName());
+                XmlMarshallerCore.addAttribute(fileAttributes, "absoluteFilePath", fileResponseData.getFile().getAbsolutePath());
+                XmlMarshallerCore.startElement(handler, "file", fileAttributes);
+                XmlMarshallerCore.endElement(handler, "file");
                 break;
 
             default:
@@ -34,15 +34,19 @@
 package uk.ac.ed.ph.jqtiplus.state.marshalling;
 
 import uk.ac.ed.ph.jqtiplus.state.TestPartSessionState;
+import uk.ac.ed.ph.jqtiplus.state.marshalling.XmlMarshallerCore.RootElementWriter;
 
 import java.io.StringReader;
 
 import javax.xml.parsers.DocumentBuilder;
+import javax.xml.transform.sax.SAXSource;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
-import org.w3c.dom.Node;
+import org.xml.sax.ContentHandler;
 import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
 
 /**
  * Marshals an {@link TestPartSessionState} to/from XML
@@ -52,15 +56,41 @@ import org.xml.sax.InputSource;
 public final class TestPartSessionStateXmlMarshaller {
 
     public static Document marshal(final TestPartSessionState testPartSessionState) {
-        final DocumentBuilder documentBuilder = XmlMarshallerCore.createNsAwareDocumentBuilder();
-        final Document document = documentBuilder.newDocument();
-        appendTestPartSessionState(document, testPartSessionState);
-        return document;
+        return XmlMarshallerCore.marshalToDocument(createRootElementWriter(testPartSessionState));
+    }
+
+    /**
+     * Sends the SAX events for the XML form of the given {@link TestPartSessionState} to the
+     * given {@link ContentHandler}.
+     */
+    public static void marshal(final TestPartSessionState testPartSessionState, final ContentHandler handler)
+            throws SAXException {
+        XmlMarshallerCore.marshalToHandler(createRootElementWriter(testPartSessionState), handler);
+    }
+
+    /**
+     * Returns a {@link SAXSource} for the XML form of the given {@link TestPartSessionState}.
+     * This can be used to pass the state to an XSLT without creating an intermediate DOM.
+     */
+    public static SAXSource marshalToSaxSource(final TestPartSessionState testPartSessionState) {
+        return XmlMarshallerCore.marshalToSaxSource(createRootElementWriter(testPartSessionState));
+    }
+
+    private static RootElementWriter createRootElementWriter(final TestPartSessionState testPartSessionState) {
+        return new RootElementWriter() {
+            @Override
+            public void writeRootElement(final ContentHandler handler) throws SAXException {
+                appendTestPartSessionState(handler, testPartSessionState);
+            }
+        };
     }
 
-    static void appendTestPartSessionState(final Node documentOrElement, final TestPartSessionState testPartSessionState) {
-        final Element element = XmlMarshallerCore.appendElement(documentOrElement, "testPartSessionState");
-        XmlMarshallerCore.addAbstractPartSessionStateAttributes(element, testPartSessionState);
+    static void appendTestPartSessionState(final ContentHandler handler, final TestPartSessionState testPartSessionState)
+            throws SAXException {
+        final AttributesImpl attributes = new AttributesImpl();
+        XmlMarshallerCore.addAbstractPartSessionStateAttributes(attributes, testPartSessionState);
+        XmlMarshallerCore.startElement(handler, "testPartSessionState", attributes);
+        XmlMarshallerCore.endElement(handler, "testPartSessionState");
     }
 
     //----------------------------------------------
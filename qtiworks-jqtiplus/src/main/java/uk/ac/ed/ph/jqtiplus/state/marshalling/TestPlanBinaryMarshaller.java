@@ -0,0 +1,171 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.jqtiplus.state.marshalling;
+
+import uk.ac.ed.ph.jqtiplus.state.EffectiveItemSessionControl;
+import uk.ac.ed.ph.jqtiplus.state.TestPlan;
+import uk.ac.ed.ph.jqtiplus.state.TestPlanNode;
+import uk.ac.ed.ph.jqtiplus.state.TestPlanNode.TestNodeType;
+import uk.ac.ed.ph.jqtiplus.state.TestPlanNodeKey;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.List;
+
+/**
+ * Marshals a {@link TestPlan} to/from the compact binary format described in
+ * {@link BinaryMarshallerCore}.
+ *
+ * @author David McKain
+ */
+public final class TestPlanBinaryMarshaller {
+
+    private static final BinaryMarshallerCore.BodyWriter<TestPlan> bodyWriter = new BinaryMarshallerCore.BodyWriter<TestPlan>() {
+        @Override
+        public void write(final DataOutputStream output, final TestPlan testPlan) throws IOException {
+            writeTestPlan(output, testPlan);
+        }
+    };
+
+    private static final BinaryMarshallerCore.BodyReader<TestPlan> bodyReader = new BinaryMarshallerCore.BodyReader<TestPlan>() {
+        @Override
+        public TestPlan read(final DataInputStream input) throws IOException {
+            return readTestPlan(input);
+        }
+    };
+
+    public static byte[] marshal(final TestPlan testPlan) {
+        return BinaryMarshallerCore.marshal(BinaryMarshallerCore.TYPE_TEST_PLAN, testPlan, bodyWriter);
+    }
+
+    public static TestPlan unmarshal(final byte[] data) {
+        return BinaryMarshallerCore.unmarshal(data, BinaryMarshallerCore.TYPE_TEST_PLAN, bodyReader);
+    }
+
+    //----------------------------------------------
+
+    static void writeTestPlan(final DataOutputStream output, final TestPlan testPlan) throws IOException {
+        writeTestPlanNodeChildren(output, testPlan.getTestPlanRootNode());
+    }
+
+    private static void writeTestPlanNodeChildren(final DataOutputStream output, final TestPlanNode testPlanNode) throws IOException {
+        final List<TestPlanNode> children = testPlanNode.getChildren();
+        BinaryMarshallerCore.writeCount(output, children.size());
+        for (final TestPlanNode childNode : children) {
+            writeTestPlanNode(output, childNode);
+        }
+    }
+
+    private static void writeTestPlanNode(final DataOutputStream output, final TestPlanNode testPlanNode) throws IOException {
+        BinaryMarshallerCore.writeString(output, testPlanNode.getTestNodeType().toString());
+        BinaryMarshallerCore.writeTestPlanNodeKey(output, testPlanNode.getKey());
+        final EffectiveItemSessionControl effectiveItemSessionControl = testPlanNode.getEffectiveItemSessionControl();
+        output.writeBoolean(effectiveItemSessionControl!=null);
+        if (effectiveItemSessionControl!=null) {
+            output.writeInt(effectiveItemSessionControl.getMaxAttempts());
+            output.writeBoolean(effectiveItemSessionControl.isShowFeedback());
+            output.writeBoolean(effectiveItemSessionControl.isAllowReview());
+            output.writeBoolean(effectiveItemSessionControl.isShowSolution());
+            output.writeBoolean(effectiveItemSessionControl.isAllowComment());
+            output.writeBoolean(effectiveItemSessionControl.isAllowSkipping());
+            output.writeBoolean(effectiveItemSessionControl.isValidateResponses());
+        }
+        BinaryMarshallerCore.writeString(output, testPlanNode.getSectionPartTitle());
+        final URI itemSystemId = testPlanNode.getItemSystemId();
+        BinaryMarshallerCore.writeString(output, itemSystemId!=null ? itemSystemId.toString() : null);
+
+        /* Descend into children */
+        writeTestPlanNodeChildren(output, testPlanNode);
+    }
+
+    //----------------------------------------------
+
+    static TestPlan readTestPlan(final DataInputStream input) throws IOException {
+        final TestPlanNode rootNode = TestPlanNode.createRoot();
+        readTestPlanNodeChildren(input, rootNode);
+        return new TestPlan(rootNode);
+    }
+
+    private static void readTestPlanNodeChildren(final DataInputStream input, final TestPlanNode targetOwner) throws IOException {
+        final int childCount = BinaryMarshallerCore.readCount(input);
+        for (int i=0; i<childCount; i++) {
+            final TestNodeType type = readTestNodeType(input);
+            final TestPlanNodeKey key = BinaryMarshallerCore.requireTestPlanNodeKey(input);
+            EffectiveItemSessionControl effectiveItemSessionControl = null;
+            if (input.readBoolean()) {
+                final int maxAttempts = input.readInt();
+                final boolean showFeedback = input.readBoolean();
+                final boolean allowReview = input.readBoolean();
+                final boolean showSolution = input.readBoolean();
+                final boolean allowComment = input.readBoolean();
+                final boolean allowSkipping = input.readBoolean();
+                final boolean validateResponses = input.readBoolean();
+                effectiveItemSessionControl = new EffectiveItemSessionControl(maxAttempts, showFeedback, allowReview, showSolution, allowComment, allowSkipping, validateResponses);
+            }
+            final String sectionPartTitle = BinaryMarshallerCore.readString(input);
+            final URI itemSystemId = readOptionalUri(input);
+
+            final TestPlanNode childTestPlanNode = new TestPlanNode(type, key, effectiveItemSessionControl, sectionPartTitle, itemSystemId);
+            targetOwner.addChild(childTestPlanNode);
+            readTestPlanNodeChildren(input, childTestPlanNode);
+        }
+    }
+
+    private static TestNodeType readTestNodeType(final DataInputStream input) throws IOException {
+        final String stringValue = BinaryMarshallerCore.requireString(input, TestNodeType.class.getSimpleName());
+        try {
+            return TestNodeType.valueOf(stringValue);
+        }
+        catch (final IllegalArgumentException e) {
+            throw new BinaryUnmarshallingException("Bad " + TestNodeType.class.getSimpleName()
+                    + " value '" + stringValue + "'");
+        }
+    }
+
+    private static URI readOptionalUri(final DataInputStream input) throws IOException {
+        final String uriString = BinaryMarshallerCore.readString(input);
+        if (uriString==null) {
+            return null;
+        }
+        try {
+            return new URI(uriString);
+        }
+        catch (final URISyntaxException e) {
+            throw new BinaryUnmarshallingException("Bad URI value '" + uriString + "'", e);
+        }
+    }
+}
@@ -40,17 +40,21 @@ import uk.ac.ed.ph.jqtiplus.state.TestPlan;
 import uk.ac.ed.ph.jqtiplus.state.TestPlanNode;
 import uk.ac.ed.ph.jqtiplus.state.TestPlanNode.TestNodeType;
 import uk.ac.ed.ph.jqtiplus.state.TestPlanNodeKey;
+import uk.ac.ed.ph.jqtiplus.state.marshalling.XmlMarshallerCore.RootElementWriter;
 
 import java.io.StringReader;
 import java.net.URI;
 import java.util.List;
 
 import javax.xml.parsers.DocumentBuilder;
+import javax.xml.transform.sax.SAXSource;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
-import org.w3c.dom.Node;
+import org.xml.sax.ContentHandler;
 import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
 
 /**
  * Marshals a {@link TestPlan} to/from XML
@@ -60,48 +64,74 @@ import org.xml.sax.InputSource;
 public final class TestPlanXmlMarshaller {
 
     public static Document marshal(final TestPlan testPlan) {
-        final DocumentBuilder documentBuilder = XmlMarshallerCore.createNsAwareDocumentBuilder();
-        final Document document = documentBuilder.newDocument();
-        appendTestPlan(document, testPlan);
-        return document;
+        return XmlMarshallerCore.marshalToDocument(createRootElementWriter(testPlan));
     }
 
-    public static void appendTestPlan(final Node documentOrElement, final TestPlan testPlan) {
-        final Element element = XmlMarshallerCore.appendElement(documentOrElement, "testPlan");
+    /**
+     * Sends the SAX events for the XML form of the given {@link TestPlan} to the
+     * given {@link ContentHandler}.
+     */
+    public static void marshal(final TestPlan testPlan, final ContentHandler handler)
+            throws SAXException {
+        XmlMarshallerCore.marshalToHandler(createRootElementWriter(testPlan), handler);
+    }
 
+    /**
+     * Returns a {@link SAXSource} for the XML form of the given {@link TestPlan}.
+     * This can be used to pass the state to an XSLT without creating an intermediate DOM.
+     */
+    public static SAXSource marshalToSaxSource(final TestPlan testPlan) {
+        return XmlMarshallerCore.marshalToSaxSource(createRootElementWriter(testPlan));
+    }
+
+    private static RootElementWriter createRootElementWriter(final TestPlan testPlan) {
+        return new RootElementWriter() {
+            @Override
+            public void writeRootElement(final ContentHandler handler) throws SAXException {
+                appendTestPlan(handler, testPlan);
+            }
+        };
+    }
+
+    public static void appendTestPlan(final ContentHandler handler, final TestPlan testPlan) throws SAXException {
+        XmlMarshallerCore.startElement(handler, "testPlan");
         final TestPlanNode rootNode = testPlan.getTestPlanRootNode();
         for (final TestPlanNode testPlanNode : rootNode.getChildren()) {
-            appendTestPlanNode(element, testPlanNode);
+            appendTestPlanNode(handler, testPlanNode);
+        }
+        XmlMarshallerCore.endElement(handler, "testPlan");
+    }
+
+    static void appendTestPlanNode(final ContentHandler handler, final TestPlanNode testPlanNode) throws SAXException {
+        XmlMarshallerCore.startElement(handler, "node", createTestPlanNodeAttributes(testPlanNode));
+
+        /* Descend into children */
+        for (final TestPlanNode childNode : testPlanNode.getChildren()) {
+            appendTestPlanNode(handler, childNode);
         }
+        XmlMarshallerCore.endElement(handler, "node");
     }
 
-    static void appendTestPlanNode(final Element parent, final TestPlanNode testPlanNode) {
-        final Element element = XmlMarshallerCore.appendElement(parent, "node");
-        element.setAttribute("type", testPlanNode.getTestNodeType().toString());
-        element.setAttribute("key", testPlanNode.getKey().toString());
+    static AttributesImpl createTestPlanNodeAttributes(final TestPlanNode testPlanNode) {
+        final AttributesImpl attributes = new AttributesImpl();
+        XmlMarshallerCore.addAttribute(attributes, "type", testPlanNode.getTestNodeType().toString());
+        XmlMarshallerCore.addAttribute(attributes, "key", testPlanNode.getKey().toString());
         final EffectiveItemSessionControl effectiveItemSessionControl = testPlanNode.getEffectiveItemSessionControl();
         if (effectiveItemSessionControl!=null) {
-            element.setAttribute("maxAttempts", Integer.toString(effectiveItemSessionControl.getMaxAttempts()));
-            element.setAttribute("showFeedback", StringUtilities.toTrueFalse(effectiveItemSessionControl.isShowFeedback()));
-            element.setAttribute("allowReview", StringUtilities.toTrueFalse(effectiveItemSessionControl.isAllowReview()));
-            element.setAttribute("showSolution", StringUtilities.toTrueFalse(effectiveItemSessionControl.isShowSolution()));
-            element.setAttribute("allowComment", StringUtilities.toTrueFalse(effectiveItemSessionControl.isAllowComment()));
-            element.setAttribute("allowSkipping", StringUtilities.toTrueFalse(effectiveItemSessionControl.isAllowSkipping()));
-            element.setAttribute("validateResponses", StringUtilities.toTrueFalse(effectiveItemSessionControl.isValidateResponses()));
-        }
-        final String sectionPartTitle = testPlanNode.getSectionPartTitle();
-        if (sectionPartTitle!=null) {
-            element.setAttribute("sectionPartTitle", sectionPartTitle);
+            XmlMarshallerCore.addAttribute(attributes, "maxAttempts", Integer.toString(effectiveItemSessionControl.getMaxAttempts()));
+            XmlMarshallerCore.addAttribute(attributes, "showFeedback", StringUtilities.toTrueFalse(effectiveItemSessionControl.isShowFeedback()));
+            XmlMarshallerCore.addAttribute(attributes, "allowReview", StringUtilities.toTrueFalse(effectiveItemSessionControl.isAllowReview()));
+            XmlMarshallerCore.addAttribute(attributes, "showSolution", StringUtilities.toTrueFalse(effectiveItemSessionControl.isShowSolution()));
+            XmlMarshallerCore.addAttribute(attributes, "allowComment", StringUtilities.toTrueFalse(effectiveItemSessionControl.isAllowComment()));
+            XmlMarshallerCore.addAttribute(attributes, "allowSkipping", StringUtilities.toTrueFalse(effectiveItemSessionControl.isAllowSkipping()));
+            XmlMarshallerCore.addAttribute(attributes, "validateResponses", StringUtilities.toTrueFalse(effectiveItemSessionControl.isValidateResponses()));
         }
+        XmlMarshallerCore.maybeAddStringAttribute(attributes, "sectionPartTitle", testPlanNode.getSectionPartTitle());
         final URI itemSystemId = testPlanNode.getItemSystemId();
         if (itemSystemId!=null) {
-            element.setAttribute("itemSystemId", itemSystemId.toString());
-        }
-
-        /* Descend into children */
-        for (final TestPlanNode childNode : testPlanNode.getChildren()) {
-            appendTestPlanNode(element, childNode);
+            XmlMarshallerCore.addAttribute(attributes, "itemSystemId", itemSystemId.toString());
         }
+        return attributes;
     }
 
     //----------------------------------------------
@@ -0,0 +1,197 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.jqtiplus.state.marshalling;
+
+import uk.ac.ed.ph.jqtiplus.state.AssessmentSectionSessionState;
+import uk.ac.ed.ph.jqtiplus.state.ItemSessionState;
+import uk.ac.ed.ph.jqtiplus.state.TestPartSessionState;
+import uk.ac.ed.ph.jqtiplus.state.TestPlan;
+import uk.ac.ed.ph.jqtiplus.state.TestPlanNodeKey;
+import uk.ac.ed.ph.jqtiplus.state.TestSessionState;
+import uk.ac.ed.ph.jqtiplus.types.Identifier;
+import uk.ac.ed.ph.jqtiplus.value.Value;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Marshals a {@link TestSessionState} (including its {@link TestPlan}) to/from the compact
+ * binary format described in {@link BinaryMarshallerCore}.
+ *
+ * @author David McKain
+ */
+public final class TestSessionStateBinaryMarshaller {
+
+    private static final BinaryMarshallerCore.BodyWriter<TestSessionState> bodyWriter = new BinaryMarshallerCore.BodyWriter<TestSessionState>() {
+        @Override
+        public void write(final DataOutputStream output, final TestSessionState testSessionState) throws IOException {
+            writeTestSessionState(output, testSessionState);
+        }
+    };
+
+    private static final BinaryMarshallerCore.BodyWriter<TestSessionState> testLevelBodyWriter = new BinaryMarshallerCore.BodyWriter<TestSessionState>() {
+        @Override
+        public void write(final DataOutputStream output, final TestSessionState testSessionState) throws IOException {
+            writeTestLevelState(output, testSessionState);
+        }
+    };
+
+    private static final BinaryMarshallerCore.BodyReader<TestSessionState> bodyReader = new BinaryMarshallerCore.BodyReader<TestSessionState>() {
+        @Override
+        public TestSessionState read(final DataInputStream input) throws IOException {
+            return readTestSessionState(input);
+        }
+    };
+
+    public static byte[] marshal(final TestSessionState testSessionState) {
+        return BinaryMarshallerCore.marshal(BinaryMarshallerCore.TYPE_TEST_SESSION_STATE, testSessionState, bodyWriter);
+    }
+
+    public static TestSessionState unmarshal(final byte[] data) {
+        return BinaryMarshallerCore.unmarshal(data, BinaryMarshallerCore.TYPE_TEST_SESSION_STATE, bodyReader);
+    }
+
+    /**
+     * Marshals the test-level parts of the given {@link TestSessionState} only, i.e. everything
+     * except its {@link TestPlan} and {@link ItemSessionState}s. This is useful for storing
+     * these parts separately, which can be put back together via
+     * {@link #unmarshalTestLevelState(TestPlan, byte[])}.
+     */
+    public static byte[] marshalTestLevelState(final TestSessionState testSessionState) {
+        return BinaryMarshallerCore.marshal(BinaryMarshallerCore.TYPE_TEST_LEVEL_STATE, testSessionState, testLevelBodyWriter);
+    }
+
+    /**
+     * Unmarshals test-level state created by {@link #marshalTestLevelState(TestSessionState)}
+     * into a new {@link TestSessionState} for the given {@link TestPlan}. The resulting
+     * state will have no {@link ItemSessionState}s, which the caller should add back in.
+     */
+    public static TestSessionState unmarshalTestLevelState(final TestPlan testPlan, final byte[] data) {
+        return BinaryMarshallerCore.unmarshal(data, BinaryMarshallerCore.TYPE_TEST_LEVEL_STATE, new BinaryMarshallerCore.BodyReader<TestSessionState>() {
+            @Override
+            public TestSessionState read(final DataInputStream input) throws IOException {
+                final TestSessionState result = new TestSessionState(testPlan);
+                readTestLevelState(input, result);
+                return result;
+            }
+        });
+    }
+
+    //----------------------------------------------
+
+    static void writeTestSessionState(final DataOutputStream output, final TestSessionState testSessionState) throws IOException {
+        /* Do test plan first, as we need this to create the TestSessionState when unmarshalling */
+        TestPlanBinaryMarshaller.writeTestPlan(output, testSessionState.getTestPlan());
+        writeTestLevelState(output, testSessionState);
+
+        /* Do states for each item */
+        final Map<TestPlanNodeKey, ItemSessionState> itemSessionStates = testSessionState.getItemSessionStates();
+        BinaryMarshallerCore.writeCount(output, itemSessionStates.size());
+        for (final Entry<TestPlanNodeKey, ItemSessionState> entry : itemSessionStates.entrySet()) {
+            BinaryMarshallerCore.writeTestPlanNodeKey(output, entry.getKey());
+            ItemSessionStateBinaryMarshaller.writeItemSessionState(output, entry.getValue());
+        }
+    }
+
+    private static void writeTestLevelState(final DataOutputStream output, final TestSessionState testSessionState) throws IOException {
+        BinaryMarshallerCore.writeControlObjectSessionState(output, testSessionState);
+        output.writeBoolean(testSessionState.isInitialized());
+        BinaryMarshallerCore.writeTestPlanNodeKey(output, testSessionState.getCurrentTestPartKey());
+        BinaryMarshallerCore.writeTestPlanNodeKey(output, testSessionState.getCurrentItemKey());
+
+        /* Do outcome variables */
+        BinaryMarshallerCore.writeValues(output, testSessionState.getOutcomeValues());
+
+        /* Do states for each TestPart */
+        final Map<TestPlanNodeKey, TestPartSessionState> testPartSessionStates = testSessionState.getTestPartSessionStates();
+        BinaryMarshallerCore.writeCount(output, testPartSessionStates.size());
+        for (final Entry<TestPlanNodeKey, TestPartSessionState> entry : testPartSessionStates.entrySet()) {
+            BinaryMarshallerCore.writeTestPlanNodeKey(output, entry.getKey());
+            BinaryMarshallerCore.writeAbstractPartSessionState(output, entry.getValue());
+        }
+
+        /* Do states for each AssessmentSection */
+        final Map<TestPlanNodeKey, AssessmentSectionSessionState> assessmentSectionSessionStates = testSessionState.getAssessmentSectionSessionStates();
+        BinaryMarshallerCore.writeCount(output, assessmentSectionSessionStates.size());
+        for (final Entry<TestPlanNodeKey, AssessmentSectionSessionState> entry : assessmentSectionSessionStates.entrySet()) {
+            BinaryMarshallerCore.writeTestPlanNodeKey(output, entry.getKey());
+            BinaryMarshallerCore.writeAbstractPartSessionState(output, entry.getValue());
+        }
+    }
+
+    //----------------------------------------------
+
+    static TestSessionState readTestSessionState(final DataInputStream input) throws IOException {
+        final TestPlan testPlan = TestPlanBinaryMarshaller.readTestPlan(input);
+        final TestSessionState result = new TestSessionState(testPlan);
+        readTestLevelState(input, result);
+
+        final int itemCount = BinaryMarshallerCore.readCount(input);
+        for (int i=0; i<itemCount; i++) {
+            final TestPlanNodeKey key = BinaryMarshallerCore.requireTestPlanNodeKey(input);
+            result.getItemSessionStates().put(key, ItemSessionStateBinaryMarshaller.readItemSessionState(input));
+        }
+        return result;
+    }
+
+    private static void readTestLevelState(final DataInputStream input, final TestSessionState result) throws IOException {
+        BinaryMarshallerCore.readControlObjectSessionState(input, result);
+        result.setInitialized(input.readBoolean());
+        result.setCurrentTestPartKey(BinaryMarshallerCore.readTestPlanNodeKey(input));
+        result.setCurrentItemKey(BinaryMarshallerCore.readTestPlanNodeKey(input));
+
+        for (final Entry<Identifier, Value> entry : BinaryMarshallerCore.readValues(input).entrySet()) {
+            result.setOutcomeValue(entry.getKey(), entry.getValue());
+        }
+
+        final int testPartCount = BinaryMarshallerCore.readCount(input);
+        for (int i=0; i<testPartCount; i++) {
+            final TestPlanNodeKey key = BinaryMarshallerCore.requireTestPlanNodeKey(input);
+            final TestPartSessionState testPartSessionState = new TestPartSessionState();
+            BinaryMarshallerCore.readAbstractPartSessionState(input, testPartSessionState);
+            result.getTestPartSessionStates().put(key, testPartSessionState);
+        }
+
+        final int assessmentSectionCount = BinaryMarshallerCore.readCount(input);
+        for (int i=0; i<assessmentSectionCount; i++) {
+            final TestPlanNodeKey key = BinaryMarshallerCore.requireTestPlanNodeKey(input);
+            final AssessmentSectionSessionState assessmentSectionSessionState = new AssessmentSectionSessionState();
+            BinaryMarshallerCore.readAbstractPartSessionState(input, assessmentSectionSessionState);
+            result.getAssessmentSectionSessionStates().put(key, assessmentSectionSessionState);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.jqtiplus.state.marshalling;
+
+import uk.ac.ed.ph.jqtiplus.internal.util.Assert;
+import uk.ac.ed.ph.jqtiplus.state.ItemSessionState;
+import uk.ac.ed.ph.jqtiplus.state.TestPlanNode;
+import uk.ac.ed.ph.jqtiplus.state.TestPlanNodeKey;
+import uk.ac.ed.ph.jqtiplus.state.TestSessionState;
+
+/**
+ * Specifies which parts of a {@link TestSessionState} should be included when marshalling it
+ * to XML with {@link TestSessionStateXmlMarshaller}. This lets renderers pass only the parts
+ * of the state they actually use, so that the cost of marshalling (and of navigating the
+ * resulting XML) does not grow with the length of the test.
+ * <p>
+ * All projections include the top level state attributes and the test outcome variables.
+ * The XML produced has the same structure as the full form, but anything other than
+ * {@link #FULL} should not be unmarshalled back into a {@link TestSessionState}.
+ * <p>
+ * Usage: instances of this class are immutable and may be shared.
+ *
+ * @author David McKain
+ */
+public final class TestSessionStateProjection {
+
+    static enum Scope {
+        FULL,
+        OUTCOMES_ONLY,
+        PATH,
+        SUBTREE,
+        ;
+    }
+
+    /** Includes everything */
+    public static final TestSessionStateProjection FULL = new TestSessionStateProjection(Scope.FULL, null);
+
+    /** Includes only the top level state attributes and test outcome variables */
+    public static final TestSessionStateProjection OUTCOMES_ONLY = new TestSessionStateProjection(Scope.OUTCOMES_ONLY, null);
+
+    /**
+     * Includes the nodes in the {@link TestPlanNode} with the given key, plus its ancestors and
+     * descendants, but none of their siblings. The states of these nodes are included, with
+     * {@link ItemSessionState}s in summary form.
+     * <p>
+     * This is what's needed to render a single item within a test.
+     */
+    public static TestSessionStateProjection pathTo(final TestPlanNodeKey nodeKey) {
+        Assert.notNull(nodeKey, "nodeKey");
+        return new TestSessionStateProjection(Scope.PATH, nodeKey);
+    }
+
+    /**
+     * Includes the {@link TestPlanNode} with the given key and all of its descendants. The
+     * states of these nodes are included, with {@link ItemSessionState}s in summary form.
+     * <p>
+     * This is what's needed to render navigation or feedback for a testPart.
+     */
+    public static TestSessionStateProjection subtree(final TestPlanNodeKey nodeKey) {
+        Assert.notNull(nodeKey, "nodeKey");
+        return new TestSessionStateProjection(Scope.SUBTREE, nodeKey);
+    }
+
+    private final Scope scope;
+    private final TestPlanNodeKey nodeKey;
+
+    private TestSessionStateProjection(final Scope scope, final TestPlanNodeKey nodeKey) {
+        this.scope = scope;
+        this.nodeKey = nodeKey;
+    }
+
+    Scope getScope() {
+        return scope;
+    }
+
+    TestPlanNodeKey getNodeKey() {
+        return nodeKey;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(this))
+                + "(scope=" + scope
+                + ",nodeKey=" + nodeKey
+                + ")";
+    }
+}
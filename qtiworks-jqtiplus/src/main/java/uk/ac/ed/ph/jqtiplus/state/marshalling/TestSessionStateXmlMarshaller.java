@@ -33,27 +33,36 @@
  */
 package uk.ac.ed.ph.jqtiplus.state.marshalling;
 
+import uk.ac.ed.ph.jqtiplus.exception.QtiLogicException;
+import uk.ac.ed.ph.jqtiplus.internal.util.Assert;
 import uk.ac.ed.ph.jqtiplus.internal.util.StringUtilities;
 import uk.ac.ed.ph.jqtiplus.state.AssessmentSectionSessionState;
 import uk.ac.ed.ph.jqtiplus.state.ItemSessionState;
 import uk.ac.ed.ph.jqtiplus.state.TestPartSessionState;
 import uk.ac.ed.ph.jqtiplus.state.TestPlan;
+import uk.ac.ed.ph.jqtiplus.state.TestPlanNode;
+import uk.ac.ed.ph.jqtiplus.state.TestPlanNode.TestNodeType;
 import uk.ac.ed.ph.jqtiplus.state.TestPlanNodeKey;
 import uk.ac.ed.ph.jqtiplus.state.TestSessionState;
+import uk.ac.ed.ph.jqtiplus.state.marshalling.XmlMarshallerCore.RootElementWriter;
 import uk.ac.ed.ph.jqtiplus.types.Identifier;
 import uk.ac.ed.ph.jqtiplus.value.Value;
 
 import java.io.StringReader;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
 import javax.xml.parsers.DocumentBuilder;
+import javax.xml.transform.sax.SAXSource;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
-import org.w3c.dom.Node;
+import org.xml.sax.ContentHandler;
 import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
 
 /**
  * Marshals an {@link TestSessionState} to/from XML
@@ -64,62 +73,202 @@ public final class TestSessionStateXmlMarshaller {
 
 
     public static Document marshal(final TestSessionState testSessionState) {
-        final DocumentBuilder documentBuilder = XmlMarshallerCore.createNsAwareDocumentBuilder();
-        final Document document = documentBuilder.newDocument();
-        appendTestSessionState(document, testSessionState);
-        return document;
+        return XmlMarshallerCore.marshalToDocument(createRootElementWriter(testSessionState, TestSessionStateProjection.FULL));
+    }
+
+    /**
+     * Sends the SAX events for the XML form of the given {@link TestSessionState} to the
+     * given {@link ContentHandler}.
+     */
+    public static void marshal(final TestSessionState testSessionState, final ContentHandler handler)
+            throws SAXException {
+        XmlMarshallerCore.marshalToHandler(createRootElementWriter(testSessionState, TestSessionStateProjection.FULL), handler);
+    }
+
+    /**
+     * Returns a {@link SAXSource} for the XML form of the given {@link TestSessionState}.
+     * This can be used to pass the state to an XSLT without creating an intermediate DOM.
+     */
+    public static SAXSource marshalToSaxSource(final TestSessionState testSessionState) {
+        return marshalToSaxSource(testSessionState, TestSessionStateProjection.FULL);
+    }
+
+    /**
+     * Returns a {@link SAXSource} for the XML form of the parts of the given {@link TestSessionState}
+     * selected by the given {@link TestSessionStateProjection}.
+     */
+    public static SAXSource marshalToSaxSource(final TestSessionState testSessionState,
+            final TestSessionStateProjection projection) {
+        Assert.notNull(projection, "projection");
+        return XmlMarshallerCore.marshalToSaxSource(createRootElementWriter(testSessionState, projection));
+    }
+
+    private static RootElementWriter createRootElementWriter(final TestSessionState testSessionState,
+            final TestSessionStateProjection projection) {
+        return new RootElementWriter() {
+            @Override
+            public void writeRootElement(final ContentHandler handler) throws SAXException {
+                appendTestSessionState(handler, testSessionState, projection);
+            }
+        };
     }
 
-    static void maybeAddStringifiableAttribute(final Element element, final String attrName, final Object attrValue) {
+    static void maybeAddStringifiableAttribute(final AttributesImpl attributes, final String attrName, final Object attrValue) {
         if (attrValue!=null) {
-            element.setAttribute(attrName, attrValue.toString());
+            XmlMarshallerCore.addAttribute(attributes, attrName, attrValue.toString());
         }
     }
 
-    static void appendTestSessionState(final Node documentOrElement, final TestSessionState testSessionState) {
-        final Element element = XmlMarshallerCore.appendElement(documentOrElement, "testSessionState");
-        XmlMarshallerCore.addControlObjectSessionStateAttributes(element, testSessionState);
-        element.setAttribute("initialized", StringUtilities.toTrueFalse(testSessionState.isInitialized()));
-        maybeAddStringifiableAttribute(element, "currentTestPartKey", testSessionState.getCurrentTestPartKey());
-        maybeAddStringifiableAttribute(element, "currentItemKey", testSessionState.getCurrentItemKey());
+    static void appendTestSessionState(final ContentHandler handler, final TestSessionState testSessionState,
+            final TestSessionStateProjection projection)
+            throws SAXException {
+        final AttributesImpl attributes = new AttributesImpl();
+        XmlMarshallerCore.addControlObjectSessionStateAttributes(attributes, testSessionState);
+        XmlMarshallerCore.addAttribute(attributes, "initialized", StringUtilities.toTrueFalse(testSessionState.isInitialized()));
+        maybeAddStringifiableAttribute(attributes, "currentTestPartKey", testSessionState.getCurrentTestPartKey());
+        maybeAddStringifiableAttribute(attributes, "currentItemKey", testSessionState.getCurrentItemKey());
+        XmlMarshallerCore.startElement(handler, "testSessionState", attributes);
 
+        switch (projection.getScope()) {
+            case FULL:
+                appendFullTestSessionState(handler, testSessionState);
+                break;
+
+            case OUTCOMES_ONLY:
+                XmlMarshallerCore.appendValues(handler, "outcomeVariable", testSessionState.getOutcomeValues());
+                break;
+
+            case PATH:
+            case SUBTREE:
+                appendProjectedTestSessionState(handler, testSessionState, projection);
+                break;
+
+            default:
+                throw new QtiLogicException("Unexpected switch case " + projection.getScope());
+        }
+        XmlMarshallerCore.endElement(handler, "testSessionState");
+    }
+
+    private static void appendFullTestSessionState(final ContentHandler handler, final TestSessionState testSessionState)
+            throws SAXException {
         /* Do test plan */
-        TestPlanXmlMarshaller.appendTestPlan(element, testSessionState.getTestPlan());
+        TestPlanXmlMarshaller.appendTestPlan(handler, testSessionState.getTestPlan());
 
         /* Do outcome variables */
-        XmlMarshallerCore.appendValues(element, "outcomeVariable", testSessionState.getOutcomeValues());
+        XmlMarshallerCore.appendValues(handler, "outcomeVariable", testSessionState.getOutcomeValues());
 
         /* Do states for each TestPart */
         final Map<TestPlanNodeKey, TestPartSessionState> testPartSessionStates = testSessionState.getTestPartSessionStates();
         for (final Entry<TestPlanNodeKey, TestPartSessionState> entry : testPartSessionStates.entrySet()) {
-            final TestPlanNodeKey key = entry.getKey();
-            final TestPartSessionState testPartSessionState = entry.getValue();
-            final Element testPartElement = XmlMarshallerCore.appendElement(element, "testPart");
-            testPartElement.setAttribute("key", key.toString());
-            TestPartSessionStateXmlMarshaller.appendTestPartSessionState(testPartElement, testPartSessionState);
+            appendTestPartSessionState(handler, entry.getKey(), entry.getValue());
         }
 
         /* Do states for each AssessmentSection */
         final Map<TestPlanNodeKey, AssessmentSectionSessionState> assessmentSectionSessionStates = testSessionState.getAssessmentSectionSessionStates();
         for (final Entry<TestPlanNodeKey, AssessmentSectionSessionState> entry : assessmentSectionSessionStates.entrySet()) {
-            final TestPlanNodeKey key = entry.getKey();
-            final AssessmentSectionSessionState assessmentSectionSessionState = entry.getValue();
-            final Element testPartElement = XmlMarshallerCore.appendElement(element, "assessmentSection");
-            testPartElement.setAttribute("key", key.toString());
-            AssessmentSectionSessionStateXmlMarshaller.appendAssessmentSectionSessionState(testPartElement, assessmentSectionSessionState);
+            appendAssessmentSectionSessionState(handler, entry.getKey(), entry.getValue());
         }
 
         /* Do states for each item */
         final Map<TestPlanNodeKey, ItemSessionState> itemSessionStates = testSessionState.getItemSessionStates();
         for (final Entry<TestPlanNodeKey, ItemSessionState> entry : itemSessionStates.entrySet()) {
-            final TestPlanNodeKey key = entry.getKey();
-            final ItemSessionState itemSessionState = entry.getValue();
-            final Element itemElement = XmlMarshallerCore.appendElement(element, "item");
-            itemElement.setAttribute("key", key.toString());
-            ItemSessionStateXmlMarshaller.appendItemSessionState(itemElement, itemSessionState);
+            startKeyedElement(handler, "item", entry.getKey());
+            ItemSessionStateXmlMarshaller.appendItemSessionState(handler, entry.getValue());
+            XmlMarshallerCore.endElement(handler, "item");
         }
     }
 
+    private static void appendProjectedTestSessionState(final ContentHandler handler, final TestSessionState testSessionState,
+            final TestSessionStateProjection projection)
+            throws SAXException {
+        /* Work out which nodes we want */
+        final TestPlanNode projectedNode = testSessionState.getTestPlan().getNode(projection.getNodeKey());
+        final List<TestPlanNode> projectedNodes = new ArrayList<TestPlanNode>();
+        final List<TestPlanNode> pathNodes = new ArrayList<TestPlanNode>();
+        if (projectedNode!=null) {
+            if (projection.getScope()==TestSessionStateProjection.Scope.PATH) {
+                for (final TestPlanNode ancestorNode : projectedNode.searchAncestors()) {
+                    if (ancestorNode.getTestNodeType()!=TestNodeType.ROOT) {
+                        pathNodes.add(0, ancestorNode);
+                    }
+                }
+                projectedNodes.addAll(pathNodes);
+            }
+            projectedNodes.addAll(projectedNode.searchDescendantsOrSelf());
+        }
+
+        /* Do the projected part of the test plan */
+        XmlMarshallerCore.startElement(handler, "testPlan");
+        for (final TestPlanNode pathNode : pathNodes) {
+            XmlMarshallerCore.startElement(handler, "node", TestPlanXmlMarshaller.createTestPlanNodeAttributes(pathNode));
+        }
+        if (projectedNode!=null) {
+            TestPlanXmlMarshaller.appendTestPlanNode(handler, projectedNode);
+        }
+        for (int i=0; i<pathNodes.size(); i++) {
+            XmlMarshallerCore.endElement(handler, "node");
+        }
+        XmlMarshallerCore.endElement(handler, "testPlan");
+
+        /* Do outcome variables */
+        XmlMarshallerCore.appendValues(handler, "outcomeVariable", testSessionState.getOutcomeValues());
+
+        /* Do states for the projected nodes, using summaries for items */
+        for (final TestPlanNode testPlanNode : projectedNodes) {
+            final TestPlanNodeKey key = testPlanNode.getKey();
+            switch (testPlanNode.getTestNodeType()) {
+                case TEST_PART:
+                    final TestPartSessionState testPartSessionState = testSessionState.getTestPartSessionStates().get(key);
+                    if (testPartSessionState!=null) {
+                        appendTestPartSessionState(handler, key, testPartSessionState);
+                    }
+                    break;
+
+                case ASSESSMENT_SECTION:
+                    final AssessmentSectionSessionState assessmentSectionSessionState = testSessionState.getAssessmentSectionSessionStates().get(key);
+                    if (assessmentSectionSessionState!=null) {
+                        appendAssessmentSectionSessionState(handler, key, assessmentSectionSessionState);
+                    }
+                    break;
+
+                case ASSESSMENT_ITEM_REF:
+                    final ItemSessionState itemSessionState = testSessionState.getItemSessionStates().get(key);
+                    if (itemSessionState!=null) {
+                        startKeyedElement(handler, "item", key);
+                        ItemSessionStateXmlMarshaller.appendItemSessionStateSummary(handler, itemSessionState);
+                        XmlMarshallerCore.endElement(handler, "item");
+                    }
+                    break;
+
+                default:
+                    throw new QtiLogicException("Unexpected switch case " + testPlanNode.getTestNodeType());
+            }
+        }
+    }
+
+    private static void appendTestPartSessionState(final ContentHandler handler, final TestPlanNodeKey key,
+            final TestPartSessionState testPartSessionState)
+            throws SAXException {
+        startKeyedElement(handler, "testPart", key);
+        TestPartSessionStateXmlMarshaller.appendTestPartSessionState(handler, testPartSessionState);
+        XmlMarshallerCore.endElement(handler, "testPart");
+    }
+
+    private static void appendAssessmentSectionSessionState(final ContentHandler handler, final TestPlanNodeKey key,
+            final AssessmentSectionSessionState assessmentSectionSessionState)
+            throws SAXException {
+        startKeyedElement(handler, "assessmentSection", key);
+        AssessmentSectionSessionStateXmlMarshaller.appendAssessmentSectionSessionState(handler, assessmentSectionSessionState);
+        XmlMarshallerCore.endElement(handler, "assessmentSection");
+    }
+
+    private static void startKeyedElement(final ContentHandler handler, final String localName, final TestPlanNodeKey key)
+            throws SAXException {
+        final AttributesImpl attributes = new AttributesImpl();
+        XmlMarshallerCore.addAttribute(attributes, "key", key.toString());
+        XmlMarshallerCore.startElement(handler, localName, attributes);
+    }
+
     //----------------------------------------------
 
     public static TestSessionState unmarshal(final String xmlString) {
@@ -67,11 +67,18 @@ import java.util.Map.Entry;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.Source;
+import javax.xml.transform.sax.SAXSource;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
 
 /**
  * Core for the (horribly cheap and nasty) XML marshalling we do for serializing JQTI+ state
@@ -90,95 +97,160 @@ public final class XmlMarshallerCore {
     //----------------------------------------------
     // Marshalling to XML
 
-    static Document getOwnerDocument(final Node documentOrElement) {
-        return documentOrElement instanceof Document ? (Document) documentOrElement : documentOrElement.getOwnerDocument();
+    /**
+     * Callback used by the individual marshallers to generate the SAX events for the
+     * root element of the XML they produce.
+     */
+    interface RootElementWriter {
+
+        void writeRootElement(ContentHandler handler) throws SAXException;
+
+    }
+
+    /**
+     * Sends the SAX events for a complete document to the given {@link ContentHandler},
+     * using the given {@link RootElementWriter} to generate the root element.
+     */
+    static void marshalToHandler(final RootElementWriter rootElementWriter, final ContentHandler handler)
+            throws SAXException {
+        handler.startDocument();
+        handler.startPrefixMapping("", QTIWORKS_NAMESPACE);
+        rootElementWriter.writeRootElement(handler);
+        handler.endPrefixMapping("");
+        handler.endDocument();
+    }
+
+    /**
+     * Builds a DOM {@link Document} from the SAX events generated by the given
+     * {@link RootElementWriter}.
+     */
+    static Document marshalToDocument(final RootElementWriter rootElementWriter) {
+        final DocumentBuilder documentBuilder = createNsAwareDocumentBuilder();
+        final Document document = documentBuilder.newDocument();
+        try {
+            marshalToHandler(rootElementWriter, new DomBuildingHandler(document));
+        }
+        catch (final SAXException e) {
+            throw new QtiLogicException("Unexpected SAXException while building DOM", e);
+        }
+        return document;
+    }
+
+    /**
+     * Creates a {@link SAXSource} that will generate the SAX events from the given
+     * {@link RootElementWriter} each time it is parsed. This allows marshalled state to be
+     * fed directly into an XSLT processor (or anything else taking a {@link Source}) without
+     * going through an intermediate DOM.
+     */
+    static SAXSource marshalToSaxSource(final RootElementWriter rootElementWriter) {
+        return new SAXSource(new MarshallingXmlReader(rootElementWriter), new InputSource());
     }
 
-    static Element createElement(final Node parent, final String localName) {
-        return getOwnerDocument(parent).createElementNS(QTIWORKS_NAMESPACE, localName);
+    static void startElement(final ContentHandler handler, final String localName) throws SAXException {
+        handler.startElement(QTIWORKS_NAMESPACE, localName, localName, new AttributesImpl());
     }
 
-    static Element appendElement(final Node parent, final String localName) {
-        final Element element = getOwnerDocument(parent).createElementNS(QTIWORKS_NAMESPACE, localName);
-        parent.appendChild(element);
-        return element;
+    static void startElement(final ContentHandler handler, final String localName, final Attributes attributes)
+            throws SAXException {
+        handler.startElement(QTIWORKS_NAMESPACE, localName, localName, attributes);
     }
 
-    static void maybeAppendTextElement(final Element parentElement, final String elementName, final String content) {
+    static void endElement(final ContentHandler handler, final String localName) throws SAXException {
+        handler.endElement(QTIWORKS_NAMESPACE, localName, localName);
+    }
+
+    static void appendText(final ContentHandler handler, final String content) throws SAXException {
+        handler.characters(content.toCharArray(), 0, content.length());
+    }
+
+    static void maybeAppendTextElement(final ContentHandler handler, final String elementName, final String content)
+            throws SAXException {
         if (content!=null) {
-            final Element element = appendElement(parentElement, elementName);
-            element.appendChild(parentElement.getOwnerDocument().createTextNode(content));
+            startElement(handler, elementName);
+            appendText(handler, content);
+            endElement(handler, elementName);
         }
     }
 
-    static void maybeAddStringAttribute(final Element element, final String attributeName, final String value) {
+    static void addAttribute(final AttributesImpl attributes, final String attributeName, final String value) {
+        attributes.addAttribute("", attributeName, attributeName, "CDATA", value);
+    }
+
+    static void maybeAddStringAttribute(final AttributesImpl attributes, final String attributeName, final String value) {
         if (value!=null) {
-            element.setAttribute(attributeName, value);
+            addAttribute(attributes, attributeName, value);
         }
     }
 
-    static void maybeAddIdentifierListAttribute(final Element element, final String attributeName, final Collection<Identifier> values) {
+    static void maybeAddIdentifierListAttribute(final AttributesImpl attributes, final String attributeName, final Collection<Identifier> values) {
         if (!values.isEmpty()) {
-            element.setAttribute(attributeName, StringUtilities.join(values, " "));
+            addAttribute(attributes, attributeName, StringUtilities.join(values, " "));
         }
     }
 
-    static void maybeAddDateAttribute(final Element element, final String attributeName, final Date date) {
+    static void maybeAddDateAttribute(final AttributesImpl attributes, final String attributeName, final Date date) {
         if (date!=null) {
-            element.setAttribute(attributeName, new SimpleDateFormat(dateFormatString).format(date));
+            addAttribute(attributes, attributeName, new SimpleDateFormat(dateFormatString).format(date));
         }
     }
 
-    static void addAbstractPartSessionStateAttributes(final Element element, final AbstractPartSessionState abstractPartSessionState) {
-        addControlObjectSessionStateAttributes(element, abstractPartSessionState);
-        element.setAttribute("preConditionFailed", StringUtilities.toTrueFalse(abstractPartSessionState.isPreConditionFailed()));
-        element.setAttribute("jumpedByBranchRule", StringUtilities.toTrueFalse(abstractPartSessionState.isJumpedByBranchRule()));
-        final String branchRuleTarget = abstractPartSessionState.getBranchRuleTarget();
-        if (branchRuleTarget!=null) {
-            element.setAttribute("branchRuleTarget", branchRuleTarget.toString());
-        }
+    static void addAbstractPartSessionStateAttributes(final AttributesImpl attributes, final AbstractPartSessionState abstractPartSessionState) {
+        addControlObjectSessionStateAttributes(attributes, abstractPartSessionState);
+        addAttribute(attributes, "preConditionFailed", StringUtilities.toTrueFalse(abstractPartSessionState.isPreConditionFailed()));
+        addAttribute(attributes, "jumpedByBranchRule", StringUtilities.toTrueFalse(abstractPartSessionState.isJumpedByBranchRule()));
+        maybeAddStringAttribute(attributes, "branchRuleTarget", abstractPartSessionState.getBranchRuleTarget());
     }
 
-    static void addControlObjectSessionStateAttributes(final Element element, final ControlObjectSessionState controlObjectState) {
-        maybeAddDateAttribute(element, "entryTime", controlObjectState.getEntryTime());
-        maybeAddDateAttribute(element, "endTime", controlObjectState.getEndTime());
-        maybeAddDateAttribute(element, "exitTime", controlObjectState.getExitTime());
-        maybeAddDateAttribute(element, "durationIntervalStartTime", controlObjectState.getDurationIntervalStartTime());
-        element.setAttribute("durationAccumulated", Long.toString(controlObjectState.getDurationAccumulated()));
+    static void addControlObjectSessionStateAttributes(final AttributesImpl attributes, final ControlObjectSessionState controlObjectState) {
+        maybeAddDateAttribute(attributes, "entryTime", controlObjectState.getEntryTime());
+        maybeAddDateAttribute(attributes, "endTime", controlObjectState.getEndTime());
+        maybeAddDateAttribute(attributes, "exitTime", controlObjectState.getExitTime());
+        maybeAddDateAttribute(attributes, "durationIntervalStartTime", controlObjectState.getDurationIntervalStartTime());
+        addAttribute(attributes, "durationAccumulated", Long.toString(controlObjectState.getDurationAccumulated()));
     }
 
-    static void appendValues(final Element parentElement, final String elementName, final Map<Identifier, Value> valueMap) {
+    static void appendValues(final ContentHandler handler, final String elementName, final Map<Identifier, Value> valueMap)
+            throws SAXException {
         for (final Entry<Identifier, Value> entry : valueMap.entrySet()) {
             final Identifier identifier = entry.getKey();
             final Value value = entry.getValue();
 
-            final Element valueElement = appendElement(parentElement, elementName);
-            valueElement.setAttribute("identifier", identifier.toString());
-            appendValueToElement(valueElement, value);
+            final AttributesImpl attributes = new AttributesImpl();
+            addAttribute(attributes, "identifier", identifier.toString());
+            addValueAttributes(attributes, value);
+            startElement(handler, elementName, attributes);
+            appendValueContent(handler, value);
+            endElement(handler, elementName);
         }
     }
 
-    static void appendValueToElement(final Element element, final Value value) {
+    static void addValueAttributes(final AttributesImpl attributes, final Value value) {
+        /* Currently we'll indicate null by outputting no value */
+        if (!value.isNull()) {
+            final BaseType baseType = value.getBaseType(); /* (NB: may be null) */
+            addAttribute(attributes, "cardinality", value.getCardinality().toQtiString());
+            if (baseType!=null) {
+                addAttribute(attributes, "baseType", baseType.toQtiString());
+            }
+        }
+    }
+
+    static void appendValueContent(final ContentHandler handler, final Value value) throws SAXException {
         if (value.isNull()) {
             /* Currently we'll indicate null by outputting no value */
         }
         else {
             final Cardinality cardinality = value.getCardinality();
-            final BaseType baseType = value.getBaseType(); /* (NB: may be null) */
-            element.setAttribute("cardinality", cardinality.toQtiString());
-            if (baseType!=null) {
-                element.setAttribute("baseType", baseType.toQtiString());
-            }
             switch (cardinality) {
                 case SINGLE:
-                    appendSingleValue(element, (SingleValue) value);
+                    appendSingleValue(handler, (SingleValue) value);
                     break;
 
                 case MULTIPLE:
                 case ORDERED:
                     final ListValue listValue = (ListValue) value;
                     for (final SingleValue listItem : listValue) {
-                        appendSingleValue(element, listItem);
+                        appendSingleValue(handler, listItem);
                     }
                     break;
 
@@ -187,10 +259,12 @@ public final class XmlMarshallerCore {
                     for (final Entry<Identifier, SingleValue> entry : recordValue.entrySet()) {
                         final Identifier itemIdentifier = entry.getKey();
                         final SingleValue itemValue = entry.getValue();
-                        final Element v = appendElement(element, "value");
-                        v.setAttribute("baseType", itemValue.getBaseType().toQtiString());
-                        v.setAttribute("fieldIdentifier",itemIdentifier.toString());
-                        appendSingleValue(v, itemValue);
+                        final AttributesImpl attributes = new AttributesImpl();
+                        addAttribute(attributes, "baseType", itemValue.getBaseType().toQtiString());
+                        addAttribute(attributes, "fieldIdentifier", itemIdentifier.toString());
+                        startElement(handler, "value", attributes);
+                        appendSingleValue(handler, itemValue);
+                        endElement(handler, "value");
                     }
                     break;
 
@@ -201,18 +275,21 @@ public final class XmlMarshallerCore {
         }
     }
 
-    static void appendSingleValue(final Element parent, final SingleValue value) {
-        final Element singleValueElement = appendElement(parent, "value");
+    static void appendSingleValue(final ContentHandler handler, final SingleValue value) throws SAXException {
+        final AttributesImpl attributes = new AttributesImpl();
         if (value instanceof FileValue) {
             /* FIXME: Not sure how much we'll do with this */
             final FileValue fileValue = (FileValue) value;
-            singleValueElement.setAttribute("absolutePath", fileValue.getFile().getAbsolutePath());
-            singleValueElement.setAttribute("contentType", fileValue.getContentType());
-            singleValueElement.setAttribute("fileName", fileValue.getFileName());
+            addAttribute(attributes, "absolutePath", fileValue.getFile().getAbsolutePath());
+            addAttribute(attributes, "contentType", fileValue.getContentType());
+            addAttribute(attributes, "fileName", fileValue.getFileName());
+            startElement(handler, "value", attributes);
         }
         else {
-            singleValueElement.setTextContent(value.toQtiString());
+            startElement(handler, "value", attributes);
+            appendText(handler, value.toQtiString());
         }
+        endElement(handler, "value");
     }
 
     //----------------------------------------------
@@ -35,6 +35,7 @@ package uk.ac.ed.ph.jqtiplus.validation;
 
 import uk.ac.ed.ph.jqtiplus.JqtiExtensionManager;
 import uk.ac.ed.ph.jqtiplus.internal.util.Assert;
+import uk.ac.ed.ph.jqtiplus.internal.util.ConcurrencyUtilities;
 import uk.ac.ed.ph.jqtiplus.node.item.AssessmentItem;
 import uk.ac.ed.ph.jqtiplus.node.item.response.processing.ResponseProcessing;
 import uk.ac.ed.ph.jqtiplus.node.test.AssessmentItemRef;
@@ -48,8 +49,12 @@ import uk.ac.ed.ph.jqtiplus.resolution.ResolvedAssessmentTest;
 import uk.ac.ed.ph.jqtiplus.resolution.RootNodeLookup;
 
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -59,6 +64,10 @@ import org.slf4j.LoggerFactory;
  * <p>
  * You won't normally want to use this on its own. See {@link AssessmentObjectXmlLoader} for a more
  * end-to-end solution.
+ * <p>
+ * If an {@link Executor} is provided, then the distinct items within a test will be validated
+ * in parallel using it. The resulting notifications are recorded in the same order as when
+ * validating serially.
  *
  * @see AssessmentObjectXmlLoader
  *
@@ -70,8 +79,24 @@ public final class AssessmentObjectValidator {
 
     private final JqtiExtensionManager jqtiExtensionManager;
 
+    /** Used to validate test items in parallel. Null to validate them serially */
+    private final Executor executor;
+
     public AssessmentObjectValidator(final JqtiExtensionManager jqtiExtensionManager) {
+        this(jqtiExtensionManager, null);
+    }
+
+    public AssessmentObjectValidator(final JqtiExtensionManager jqtiExtensionManager, final Executor executor) {
         this.jqtiExtensionManager = jqtiExtensionManager;
+        this.executor = executor;
+    }
+
+    public JqtiExtensionManager getJqtiExtensionManager() {
+        return jqtiExtensionManager;
+    }
+
+    public Executor getExecutor() {
+        return executor;
     }
 
     public ItemValidationResult validateItem(final ResolvedAssessmentItem resolvedAssessmentItem) {
@@ -102,8 +127,22 @@ public final class AssessmentObjectValidator {
         final TestValidationResult result = new TestValidationResult(resolvedAssessmentTest);
         final AssessmentTest test = resolvedAssessmentTest.getTestLookup().extractIfSuccessful();
         if (test!=null) {
-            /* Validate each unique item first */
-            for (final Entry<URI, ResolvedAssessmentItem> entry : resolvedAssessmentTest.getResolvedAssessmentItemBySystemIdMap().entrySet()) {
+            /* Validate each unique item first (possibly in parallel) */
+            final Map<URI, ResolvedAssessmentItem> resolvedAssessmentItemMap = resolvedAssessmentTest.getResolvedAssessmentItemBySystemIdMap();
+            final List<Callable<ItemValidationResult>> itemValidationTasks = new ArrayList<Callable<ItemValidationResult>>();
+            for (final ResolvedAssessmentItem resolvedAssessmentItem : resolvedAssessmentItemMap.values()) {
+                itemValidationTasks.add(new Callable<ItemValidationResult>() {
+                    @Override
+                    public ItemValidationResult call() {
+                        return validateItem(resolvedAssessmentItem);
+                    }
+                });
+            }
+            final List<ItemValidationResult> itemValidationResults = ConcurrencyUtilities.invokeInOrder(executor, itemValidationTasks);
+
+            /* Record item results in order */
+            int itemIndex = 0;
+            for (final Entry<URI, ResolvedAssessmentItem> entry : resolvedAssessmentItemMap.entrySet()) {
                 final URI itemSystemId = entry.getKey();
                 final ResolvedAssessmentItem resolvedAssessmentItem = entry.getValue();
 
@@ -125,7 +164,7 @@ public final class AssessmentObjectValidator {
                 }
                 final String itemReferenceDescription = itemReferenceBuilder.toString();
 
-                final ItemValidationResult itemValidationResult = validateItem(resolvedAssessmentItem);
+                final ItemValidationResult itemValidationResult = itemValidationResults.get(itemIndex++);
                 result.addItemValidationResult(itemValidationResult);
                 if (resolvedAssessmentItem.getItemLookup().wasSuccessful()) {
                     if (itemValidationResult.hasModelValidationErrors()) {
@@ -164,6 +203,7 @@ public final class AssessmentObjectValidator {
     public String toString() {
         return getClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(this))
                 + "(jqtiExtensionManager=" + jqtiExtensionManager
+                + ",executor=" + executor
                 + ")";
     }
 }
@@ -56,13 +56,14 @@ import javax.xml.transform.Source;
 import javax.xml.transform.stream.StreamSource;
 import javax.xml.validation.Schema;
 import javax.xml.validation.SchemaFactory;
-import javax.xml.validation.Validator;
+import javax.xml.validation.ValidatorHandler;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Document;
-import org.w3c.dom.Element;
 import org.w3c.dom.Node;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
 import org.xml.sax.ErrorHandler;
 import org.xml.sax.InputSource;
 import org.xml.sax.Locator;
@@ -87,7 +88,14 @@ import org.xml.sax.XMLReader;
  *
  * The XML parsing process performs a SAX parse followed by a DOM tree build,
  * filling the resulting tree with SAX {@link Locator} information, which makes
- * later error reporting richer.
+ * later error reporting richer. Schema validation is performed on the same SAX events,
+ * so the input is only read and parsed once.
+ * <p>
+ * Note that this means validation sees the XInclude-expanded document, exactly as the DOM
+ * does. (Earlier versions validated the raw input, so any <code>xi:include</code> elements
+ * had to be allowed by the schema and included content was never validated.) XInclude base URI
+ * fixup is turned off, so included elements do not gain <code>xml:base</code> attributes that
+ * the schema would otherwise have to allow.
  *
  * @see XmlReadResult
  * @author David McKain
@@ -162,9 +170,10 @@ public final class XmlResourceReader {
     //--------------------------------------------------
 
     /**
-     * FIXME: This currently calls the {@link ResourceLocator} to read the input *twice*. We may
-     * want to save the initial input to a temp file if the stream is not something that can be
-     * quickly re-read (e.g. HTTP!)
+     * Reads the XML resource having the given System ID, optionally schema validating it.
+     * <p>
+     * The input is read only once: schema validation (if requested) happens while the input is
+     * parsed into a DOM, and is therefore performed on the XInclude-expanded content.
      *
      * @param systemId system ID of the XML resource to read
      * @param inputResourceLocator resource locator that will find the XML to be read
@@ -233,18 +242,23 @@ public final class XmlResourceReader {
         spFactory.setFeature("http://xml.org/sax/features/external-general-entities", true);
         spFactory.setFeature("http://xml.org/sax/features/external-parameter-entities", true);
         spFactory.setFeature("http://xml.org/sax/features/lexical-handler/parameter-entities", false);
+        spFactory.setFeature("http://apache.org/xml/features/xinclude/fixup-base-uris", false); /* (Don't add xml:base to included content) */
         final XMLReader xmlReader = spFactory.newSAXParser().getXMLReader();
         xmlReader.setErrorHandler(inputErrorHandler);
         xmlReader.setEntityResolver(failureEntityResolver);
 
-        /* Parse input and convert to a DOM containing SAX Locator information */
+        /* Parse input and convert to a DOM containing SAX Locator information, also feeding the
+         * same SAX events to a schema validator if requested.
+         */
         logger.trace("XML parse of {} starting", systemIdString);
         final InputSource inputSource = new InputSource();
         inputSource.setByteStream(ensureLocateInput(systemId, inputResourceLocator));
         inputSource.setSystemId(systemIdString);
 
-        final SimpleDomBuilderHandler handler = new SimpleDomBuilderHandler(document);
-        xmlReader.setContentHandler(handler);
+        final SimpleDomBuilderHandler domBuilderHandler = new SimpleDomBuilderHandler(document);
+        final SchemaValidatingHandler schemaValidatingHandler = schemaValidating
+                ? new SchemaValidatingHandler(systemIdString, domBuilderHandler) : null;
+        xmlReader.setContentHandler(schemaValidating ? schemaValidatingHandler : domBuilderHandler);
         try {
             xmlReader.parse(inputSource); /* Fatal errors will cause SAXParseException */
         }
@@ -259,71 +273,70 @@ public final class XmlResourceReader {
                 && unresolvedEntitySystemIds.isEmpty();
         logger.debug("XML parse of {} success? {}", systemIdString, parsed);
 
+        /* Then gather up validation results. (As before, we only report these if parsing succeeded) */
         if (parsed && schemaValidating) {
-            /* Work out which schema(s) to use */
-            logger.trace("Deciding which schemas to use to validate {}", systemIdString);
-            final Element rootElement = document.getDocumentElement();
-            final String schemaLocation = rootElement.getAttributeNS(XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI, "schemaLocation");
-            final List<String> schemaUris = new ArrayList<String>();
-            if (schemaLocation.length() != 0) {
-                /* Document declares schema(s) to use. Make sure we support each one */
-                final String[] schemaData = schemaLocation.trim().split("\\s+");
-                for (int i = 0; i < schemaData.length; i += 2) { /* (ns1 uri1 ns2 uri2 ...) */
-                    final String schemaNamespaceUri = schemaData[i];
-                    final String schemaUri = getRegisteredSchemaLocation(schemaNamespaceUri);
-                    if (schemaUri != null) {
-                        supportedSchemaNamespaces.add(schemaNamespaceUri);
-                        schemaUris.add(schemaUri);
-                    }
-                    else {
-                        logger.trace("Schema with namespace " + schemaNamespaceUri + " declared in schemaLocation is not registered with this reader");
-                        unsupportedSchemaNamespaces.add(schemaNamespaceUri);
-                    }
-                }
+            supportedSchemaNamespaces.addAll(schemaValidatingHandler.supportedSchemaNamespaces);
+            unsupportedSchemaNamespaces.addAll(schemaValidatingHandler.unsupportedSchemaNamespaces);
+            final InputErrorHandler validationErrorHandler = schemaValidatingHandler.validationErrorHandler;
+            inputErrorHandler.warnings.addAll(validationErrorHandler.warnings);
+            inputErrorHandler.errors.addAll(validationErrorHandler.errors);
+            inputErrorHandler.fatalErrors.addAll(validationErrorHandler.fatalErrors);
+            validated = schemaValidatingHandler.validationStarted && !schemaValidatingHandler.validationAborted;
+            if (schemaValidatingHandler.validationStarted) {
+                logger.debug("Schema validation of {} finished", systemIdString);
             }
             else {
-                /* No schema declared in the document, so use namespace of root element */
-                final String schemaNamespaceUri = rootElement.getNamespaceURI();
-                final String schemaUri = getRegisteredSchemaLocation(rootElement.getNamespaceURI());
+                logger.debug("No schema validation was performed as {} supported and {} unsupported schemas were detected",
+                        supportedSchemaNamespaces.size(), unsupportedSchemaNamespaces.size());
+            }
+        }
+
+        /* Build up result */
+        final XmlParseResult xmlParseResult = new XmlParseResult(systemId, parsed, validated,
+                inputErrorHandler.warnings, inputErrorHandler.errors, inputErrorHandler.fatalErrors,
+                unresolvedEntitySystemIds, supportedSchemaNamespaces, unsupportedSchemaNamespaces);
+        return new XmlReadResult(parsed ? document : null, xmlParseResult);
+    }
+
+    /**
+     * Works out which schema(s) to use to validate a document, given its root element.
+     * Namespaces of the schemas are added to the given lists, depending on whether they're
+     * supported by this reader or not.
+     *
+     * @return URIs of the supported schemas to use
+     */
+    private List<String> decideSchemaUris(final String rootNamespaceUri, final String schemaLocation,
+            final List<String> supportedSchemaNamespaces, final List<String> unsupportedSchemaNamespaces) {
+        final List<String> schemaUris = new ArrayList<String>();
+        if (schemaLocation!=null && schemaLocation.length() != 0) {
+            /* Document declares schema(s) to use. Make sure we support each one */
+            final String[] schemaData = schemaLocation.trim().split("\\s+");
+            for (int i = 0; i < schemaData.length; i += 2) { /* (ns1 uri1 ns2 uri2 ...) */
+                final String schemaNamespaceUri = schemaData[i];
+                final String schemaUri = getRegisteredSchemaLocation(schemaNamespaceUri);
                 if (schemaUri != null) {
                     supportedSchemaNamespaces.add(schemaNamespaceUri);
                     schemaUris.add(schemaUri);
                 }
                 else {
-                    logger.trace("Schema with namespace " + schemaNamespaceUri + " inferred from that of document element is not registered with this reader");
+                    logger.trace("Schema with namespace " + schemaNamespaceUri + " declared in schemaLocation is not registered with this reader");
                     unsupportedSchemaNamespaces.add(schemaNamespaceUri);
                 }
             }
-
-            /* Validate (if at least supported schemas was used and no unsupported schemas) */
-            if (!schemaUris.isEmpty() && unsupportedSchemaNamespaces.isEmpty()) {
-                logger.trace("Will validate {} against schemas {}", systemIdString, schemaUris);
-                final Schema schema = getSchema(schemaUris);
-
-                /* Now validate. Note that we read in the input again, as this will let the parser provide source
-                 * information to the schema validator. (I couldn't work out a way of passing source information
-                 * when validating from a DOM.)
-                 */
-                logger.trace("Schema validaton of {} starting", systemIdString);
-                final StreamSource input = new StreamSource(ensureLocateInput(systemId, inputResourceLocator), systemIdString);
-                final Validator validator = schema.newValidator();
-                validator.setResourceResolver(schemaResourceResolver);
-                validator.setErrorHandler(inputErrorHandler);
-                validator.validate(input);
-                validated = true;
-                logger.debug("Schema validation of {} finished", systemIdString);
+        }
+        else {
+            /* No schema declared in the document, so use namespace of root element */
+            final String schemaUri = getRegisteredSchemaLocation(rootNamespaceUri);
+            if (schemaUri != null) {
+                supportedSchemaNamespaces.add(rootNamespaceUri);
+                schemaUris.add(schemaUri);
             }
             else {
-                logger.debug("No schema validation was performed as {} supported and {} unsupported schemas were detected",
-                        schemaUris.size(), unsupportedSchemaNamespaces.size());
+                logger.trace("Schema with namespace " + rootNamespaceUri + " inferred from that of document element is not registered with this reader");
+                unsupportedSchemaNamespaces.add(rootNamespaceUri);
             }
         }
-
-        /* Build up result */
-        final XmlParseResult xmlParseResult = new XmlParseResult(systemId, parsed, validated,
-                inputErrorHandler.warnings, inputErrorHandler.errors, inputErrorHandler.fatalErrors,
-                unresolvedEntitySystemIds, supportedSchemaNamespaces, unsupportedSchemaNamespaces);
-        return new XmlReadResult(parsed ? document : null, xmlParseResult);
+        return schemaUris;
     }
 
     /**
@@ -380,6 +393,221 @@ public final class XmlResourceReader {
         }
     }
 
+    /**
+     * SAX {@link ContentHandler} that passes events to a {@link SimpleDomBuilderHandler}, while
+     * also passing the same events to a schema {@link ValidatorHandler}. The schema(s) to use are
+     * decided when the root element is reached.
+     * <p>
+     * The validator sees exactly the same events as the DOM builder, but its output is discarded,
+     * so the resulting DOM is not augmented with defaulted attributes and the like.
+     * Validation problems are recorded separately from parsing problems.
+     */
+    private final class SchemaValidatingHandler implements ContentHandler {
+
+        private final String systemIdString;
+        private final ContentHandler domBuilderHandler;
+        private final List<String[]> rootPrefixMappings;
+        final List<String> supportedSchemaNamespaces;
+        final List<String> unsupportedSchemaNamespaces;
+        final InputErrorHandler validationErrorHandler;
+
+        private Locator locator;
+        private boolean rootElementStarted;
+
+        /** Validator being used, which is null before the root element or if not validating */
+        private ValidatorHandler validatorHandler;
+        boolean validationStarted;
+        boolean validationAborted;
+
+        public SchemaValidatingHandler(final String systemIdString, final ContentHandler domBuilderHandler) {
+            this.systemIdString = systemIdString;
+            this.domBuilderHandler = domBuilderHandler;
+            this.rootPrefixMappings = new ArrayList<String[]>();
+            this.supportedSchemaNamespaces = new ArrayList<String>();
+            this.unsupportedSchemaNamespaces = new ArrayList<String>();
+            this.validationErrorHandler = new InputErrorHandler();
+        }
+
+        @Override
+        public void setDocumentLocator(final Locator locator) {
+            this.locator = locator;
+            domBuilderHandler.setDocumentLocator(locator);
+        }
+
+        @Override
+        public void startDocument() throws SAXException {
+            domBuilderHandler.startDocument();
+        }
+
+        @Override
+        public void startPrefixMapping(final String prefix, final String uri) throws SAXException {
+            domBuilderHandler.startPrefixMapping(prefix, uri);
+            if (!rootElementStarted) {
+                rootPrefixMappings.add(new String[] { prefix, uri });
+            }
+            else if (validatorHandler!=null) {
+                try {
+                    validatorHandler.startPrefixMapping(prefix, uri);
+                }
+                catch (final SAXException e) {
+                    abortValidation(e);
+                }
+            }
+        }
+
+        @Override
+        public void startElement(final String uri, final String localName, final String qName, final Attributes atts)
+                throws SAXException {
+            domBuilderHandler.startElement(uri, localName, qName, atts);
+            if (!rootElementStarted) {
+                rootElementStarted = true;
+                startValidation(uri, atts);
+            }
+            if (validatorHandler!=null) {
+                try {
+                    validatorHandler.startElement(uri, localName, qName, atts);
+                }
+                catch (final SAXException e) {
+                    abortValidation(e);
+                }
+            }
+        }
+
+        private void startValidation(final String rootNamespaceUri, final Attributes rootAttributes) throws SAXException {
+            logger.trace("Deciding which schemas to use to validate {}", systemIdString);
+            final String schemaLocation = rootAttributes.getValue(XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI, "schemaLocation");
+            final List<String> schemaUris = decideSchemaUris(rootNamespaceUri.length()!=0 ? rootNamespaceUri : null,
+                    schemaLocation, supportedSchemaNamespaces, unsupportedSchemaNamespaces);
+
+            /* Validate (if at least supported schemas was used and no unsupported schemas) */
+            if (!schemaUris.isEmpty() && unsupportedSchemaNamespaces.isEmpty()) {
+                logger.trace("Will validate {} against schemas {}", systemIdString, schemaUris);
+                final Schema schema = getSchema(schemaUris);
+                validatorHandler = schema.newValidatorHandler();
+                validatorHandler.setResourceResolver(schemaResourceResolver);
+                validatorHandler.setErrorHandler(validationErrorHandler);
+                validatorHandler.setDocumentLocator(locator);
+                logger.trace("Schema validaton of {} starting", systemIdString);
+                validationStarted = true;
+                try {
+                    validatorHandler.startDocument();
+                    for (final String[] prefixMapping : rootPrefixMappings) {
+                        validatorHandler.startPrefixMapping(prefixMapping[0], prefixMapping[1]);
+                    }
+                }
+                catch (final SAXException e) {
+                    abortValidation(e);
+                }
+            }
+        }
+
+        /**
+         * Stops validating after the validator has failed, recording the failure as a fatal
+         * validation error. Parsing continues unaffected.
+         */
+        private void abortValidation(final SAXException e) {
+            logger.debug("Schema validation of {} aborted: {}", systemIdString, e.getMessage());
+            validatorHandler = null;
+            validationAborted = true;
+            if (!validationErrorHandler.fatalErrors.contains(e)) {
+                validationErrorHandler.fatalErrors.add(e instanceof SAXParseException
+                        ? (SAXParseException) e
+                        : new SAXParseException(e.getMessage(), locator, e));
+            }
+        }
+
+        @Override
+        public void endElement(final String uri, final String localName, final String qName) throws SAXException {
+            domBuilderHandler.endElement(uri, localName, qName);
+            if (validatorHandler!=null) {
+                try {
+                    validatorHandler.endElement(uri, localName, qName);
+                }
+                catch (final SAXException e) {
+                    abortValidation(e);
+                }
+            }
+        }
+
+        @Override
+        public void endPrefixMapping(final String prefix) throws SAXException {
+            domBuilderHandler.endPrefixMapping(prefix);
+            if (validatorHandler!=null) {
+                try {
+                    validatorHandler.endPrefixMapping(prefix);
+                }
+                catch (final SAXException e) {
+                    abortValidation(e);
+                }
+            }
+        }
+
+        @Override
+        public void characters(final char[] ch, final int start, final int length) throws SAXException {
+            domBuilderHandler.characters(ch, start, length);
+            if (validatorHandler!=null) {
+                try {
+                    validatorHandler.characters(ch, start, length);
+                }
+                catch (final SAXException e) {
+                    abortValidation(e);
+                }
+            }
+        }
+
+        @Override
+        public void ignorableWhitespace(final char[] ch, final int start, final int length) throws SAXException {
+            domBuilderHandler.ignorableWhitespace(ch, start, length);
+            if (validatorHandler!=null) {
+                try {
+                    validatorHandler.ignorableWhitespace(ch, start, length);
+                }
+                catch (final SAXException e) {
+                    abortValidation(e);
+                }
+            }
+        }
+
+        @Override
+        public void processingInstruction(final String target, final String data) throws SAXException {
+            domBuilderHandler.processingInstruction(target, data);
+            if (validatorHandler!=null) {
+                try {
+                    validatorHandler.processingInstruction(target, data);
+                }
+                catch (final SAXException e) {
+                    abortValidation(e);
+                }
+            }
+        }
+
+        @Override
+        public void skippedEntity(final String name) throws SAXException {
+            domBuilderHandler.skippedEntity(name);
+            if (validatorHandler!=null) {
+                try {
+                    validatorHandler.skippedEntity(name);
+                }
+                catch (final SAXException e) {
+                    abortValidation(e);
+                }
+            }
+        }
+
+        @Override
+        public void endDocument() throws SAXException {
+            domBuilderHandler.endDocument();
+            if (validatorHandler!=null) {
+                try {
+                    validatorHandler.endDocument();
+                }
+                catch (final SAXException e) {
+                    abortValidation(e);
+                }
+            }
+        }
+    }
+
     /**
      * Trivial extension of {@link EntityResourceResolver} that handles failed
      * resolutions by recording the offending systemId then simply returning an
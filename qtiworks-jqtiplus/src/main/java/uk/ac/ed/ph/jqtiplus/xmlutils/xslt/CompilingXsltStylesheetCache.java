@@ -0,0 +1,65 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.jqtiplus.xmlutils.xslt;
+
+import java.util.concurrent.Callable;
+
+import javax.xml.transform.Templates;
+
+/**
+ * Extension of {@link XsltStylesheetCache} for thread-safe caches that can look up and compile
+ * stylesheets in a single operation.
+ * <p>
+ * {@link XsltStylesheetManager} uses {@link #getStylesheet(String, Callable)} without any locking
+ * of its own when given one of these. Plain {@link XsltStylesheetCache}s are still supported, but
+ * are locked while each stylesheet is compiled.
+ *
+ * @see ConcurrentXsltStylesheetCache
+ *
+ * @author David McKain
+ */
+public interface CompilingXsltStylesheetCache extends XsltStylesheetCache {
+
+    /**
+     * Returns the XSLT stylesheet having the given key, using the given compiler to create
+     * (and cache) it if required.
+     * <p>
+     * This must be thread-safe.
+     *
+     * @param key key for the required stylesheet
+     * @param compiler {@link Callable} to compile the stylesheet if it is not already cached
+     */
+    Templates getStylesheet(String key, Callable<Templates> compiler);
+
+}
@@ -0,0 +1,158 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.jqtiplus.xmlutils.xslt;
+
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import javax.xml.transform.Templates;
+
+/**
+ * Thread-safe implementation of {@link CompilingXsltStylesheetCache} that does not need to be locked
+ * while stylesheets are being compiled.
+ * <p>
+ * When used with {@link XsltStylesheetManager}, each stylesheet is compiled at most once: other
+ * Threads requiring the same stylesheet will wait for that compilation to finish, while Threads
+ * requiring different stylesheets are unaffected. If compilation fails then nothing is cached, so
+ * a later request will try again.
+ *
+ * @author David McKain
+ */
+public final class ConcurrentXsltStylesheetCache implements CompilingXsltStylesheetCache {
+
+    private final ConcurrentMap<String, Future<Templates>> cacheData;
+
+    public ConcurrentXsltStylesheetCache() {
+        this.cacheData = new ConcurrentHashMap<String, Future<Templates>>();
+    }
+
+    /**
+     * Returns the stylesheet having the given key if it has been successfully compiled,
+     * or null if it is not in the cache or is still being compiled.
+     */
+    @Override
+    public Templates getStylesheet(final String key) {
+        final Future<Templates> future = cacheData.get(key);
+        if (future==null || !future.isDone()) {
+            return null;
+        }
+        return waitFor(key, future);
+    }
+
+    @Override
+    public void putStylesheet(final String key, final Templates stylesheet) {
+        final FutureTask<Templates> future = new FutureTask<Templates>(new Callable<Templates>() {
+            @Override
+            public Templates call() {
+                return stylesheet;
+            }
+        });
+        future.run();
+        cacheData.put(key, future);
+    }
+
+    /**
+     * Returns the stylesheet having the given key, using the given compiler to create it
+     * if required. Only one Thread will invoke the compiler for a given key; any others
+     * will block until the result is available.
+     *
+     * @param key key for the required stylesheet
+     * @param compiler {@link Callable} to compile the stylesheet if it is not already cached
+     *
+     * @throws QtiSerializationException if the compiler failed with a checked Exception,
+     *   or if the calling Thread was interrupted. Any unchecked Exception thrown by the
+     *   compiler will be passed through as-is.
+     */
+    @Override
+    public Templates getStylesheet(final String key, final Callable<Templates> compiler) {
+        Future<Templates> future = cacheData.get(key);
+        if (future==null) {
+            final FutureTask<Templates> compilationTask = new FutureTask<Templates>(compiler);
+            future = cacheData.putIfAbsent(key, compilationTask);
+            if (future==null) {
+                future = compilationTask;
+                compilationTask.run();
+            }
+        }
+        return waitFor(key, future);
+    }
+
+    /**
+     * Returns the keys of the stylesheets currently in this cache, including any that are
+     * still being compiled.
+     */
+    public Set<String> getKeys() {
+        return cacheData.keySet();
+    }
+
+    /**
+     * Removes all stylesheets from this cache.
+     */
+    public void clear() {
+        cacheData.clear();
+    }
+
+    private Templates waitFor(final String key, final Future<Templates> future) {
+        try {
+            return future.get();
+        }
+        catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new QtiSerializationException("Interrupted while waiting for stylesheet " + key, e);
+        }
+        catch (final ExecutionException e) {
+            /* Forget about the failure so that we can try again later */
+            cacheData.remove(key, future);
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new QtiSerializationException("Failed to compile stylesheet " + key, cause);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(this))
+                + "(keys=" + cacheData.keySet() + ")";
+    }
+}
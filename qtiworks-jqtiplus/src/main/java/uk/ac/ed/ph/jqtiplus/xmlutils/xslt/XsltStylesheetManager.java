@@ -44,6 +44,7 @@ import java.io.InputStream;
 import java.io.StringReader;
 import java.net.URI;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Source;
@@ -156,6 +157,11 @@ public final class XsltStylesheetManager {
     /**
      * Obtains the compiled XSLT stylesheet {@link Templates}s Object at the given URI,
      * using the {@link XsltStylesheetCache} (if set) to cache stylesheets for efficiency.
+     * <p>
+     * If the cache is a {@link CompilingXsltStylesheetCache} then whether other Threads have to
+     * wait while a stylesheet is being compiled is up to the cache. (With a
+     * {@link ConcurrentXsltStylesheetCache}, only Threads wanting the same stylesheet will have
+     * to wait.) Other caches are locked while the stylesheet is being compiled.
      *
      * @param xsltUri location of the XSLT stylesheet, located using the
      *   {@link #getXsltResourceLocator()}
@@ -168,6 +174,14 @@ public final class XsltStylesheetManager {
         if (xsltStylesheetCache==null) {
             result = compileStylesheet(xsltUri);
         }
+        else if (xsltStylesheetCache instanceof CompilingXsltStylesheetCache) {
+            result = ((CompilingXsltStylesheetCache) xsltStylesheetCache).getStylesheet(xsltUri.toString(), new Callable<Templates>() {
+                @Override
+                public Templates call() {
+                    return compileStylesheet(xsltUri);
+                }
+            });
+        }
         else {
             synchronized(xsltStylesheetCache) {
                 result = xsltStylesheetCache.getStylesheet(xsltUri.toString());
@@ -218,11 +232,21 @@ public final class XsltStylesheetManager {
         }
         else {
             final String cacheKey = "xslt-driver(" + StringUtilities.join(xsltUris, ",") + ")";
-            synchronized(xsltStylesheetCache) {
-                result = xsltStylesheetCache.getStylesheet(cacheKey);
-                if (result==null) {
-                    result = compileStylesheetDriver(xsltUris);
-                    xsltStylesheetCache.putStylesheet(cacheKey, result);
+            if (xsltStylesheetCache instanceof CompilingXsltStylesheetCache) {
+                result = ((CompilingXsltStylesheetCache) xsltStylesheetCache).getStylesheet(cacheKey, new Callable<Templates>() {
+                    @Override
+                    public Templates call() {
+                        return compileStylesheetDriver(xsltUris);
+                    }
+                });
+            }
+            else {
+                synchronized(xsltStylesheetCache) {
+                    result = xsltStylesheetCache.getStylesheet(cacheKey);
+                    if (result==null) {
+                        result = compileStylesheetDriver(xsltUris);
+                        xsltStylesheetCache.putStylesheet(cacheKey, result);
+                    }
                 }
             }
         }
@@ -0,0 +1,104 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.jqtiplus.node;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import uk.ac.ed.ph.jqtiplus.attribute.Attribute;
+import uk.ac.ed.ph.jqtiplus.attribute.value.StringAttribute;
+import uk.ac.ed.ph.jqtiplus.group.NodeGroup;
+import uk.ac.ed.ph.jqtiplus.group.expression.ExpressionGroup;
+import uk.ac.ed.ph.jqtiplus.node.content.BodyElement;
+import uk.ac.ed.ph.jqtiplus.node.content.xhtml.text.Div;
+import uk.ac.ed.ph.jqtiplus.node.expression.operator.Equal;
+import uk.ac.ed.ph.jqtiplus.node.item.response.processing.ResponseCondition;
+import uk.ac.ed.ph.jqtiplus.node.item.response.processing.ResponseIf;
+
+import org.junit.Test;
+
+/**
+ * Tests the indexed lookup of attributes and node groups by name, making sure that lookups
+ * stay correct when nodes of the same class have had their attributes or groups rearranged.
+ *
+ * @author David McKain
+ */
+public class AttributeAndNodeGroupLookupTest {
+
+    @Test
+    public void testAttributeLookup() {
+        final Div div1 = new Div(null);
+        final Div div2 = new Div(null);
+        assertLocalName(BodyElement.ATTR_LABEL_NAME, div1.getAttributes().get(BodyElement.ATTR_LABEL_NAME));
+        assertLocalName(BodyElement.ATTR_LABEL_NAME, div2.getAttributes().get(BodyElement.ATTR_LABEL_NAME));
+
+        /* Rearrange one Div after it has been used */
+        div2.getAttributes().add(0, new StringAttribute(div2, "extra", false));
+        assertLocalName(BodyElement.ATTR_LABEL_NAME, div2.getAttributes().get(BodyElement.ATTR_LABEL_NAME));
+        assertLocalName(BodyElement.ATTR_ID_NAME, div2.getAttributes().get(BodyElement.ATTR_ID_NAME));
+        assertLocalName("extra", div2.getAttributes().get("extra"));
+
+        /* Other Divs should be unaffected */
+        final Div div3 = new Div(null);
+        assertLocalName(BodyElement.ATTR_LABEL_NAME, div1.getAttributes().get(BodyElement.ATTR_LABEL_NAME));
+        assertLocalName(BodyElement.ATTR_ID_NAME, div3.getAttributes().get(BodyElement.ATTR_ID_NAME));
+        assertLocalName(BodyElement.ATTR_CLASS_NAME, div3.getAttributes().get(BodyElement.ATTR_CLASS_NAME));
+    }
+
+    @Test
+    public void testNodeGroupLookup() {
+        final ResponseIf responseIf1 = new ResponseIf(new ResponseCondition(null));
+        final ResponseIf responseIf2 = new ResponseIf(new ResponseCondition(null));
+        assertSame(responseIf1.getNodeGroups().get(0), responseIf1.getNodeGroups().getExpressionGroup());
+        assertSame(responseIf2.getNodeGroups().get(0), responseIf2.getNodeGroups().getGroupSupporting(Equal.QTI_CLASS_NAME));
+        assertSame(responseIf2.getNodeGroups().get(1), responseIf2.getNodeGroups().getResponseRuleGroup());
+
+        /* Insert another expression group at the start of one of these. This should now be found first */
+        final ExpressionGroup insertedGroup = new ExpressionGroup(responseIf2, 1, 1);
+        responseIf2.getNodeGroups().add(0, insertedGroup);
+        assertSame(insertedGroup, responseIf2.getNodeGroups().getExpressionGroup());
+        assertSame(insertedGroup, responseIf2.getNodeGroups().getGroupSupporting(Equal.QTI_CLASS_NAME));
+        assertSame(responseIf2.getNodeGroups().get(2), responseIf2.getNodeGroups().getResponseRuleGroup());
+
+        /* Other ResponseIfs should be unaffected */
+        final ResponseIf responseIf3 = new ResponseIf(new ResponseCondition(null));
+        final NodeGroup<?,?> expressionGroup = responseIf3.getNodeGroups().getExpressionGroup();
+        assertSame(responseIf3.getNodeGroups().get(0), expressionGroup);
+        assertSame(responseIf1.getNodeGroups().get(1), responseIf1.getNodeGroups().getResponseRuleGroup());
+    }
+
+    private static void assertLocalName(final String expectedLocalName, final Attribute<?> attribute) {
+        assertEquals(expectedLocalName, attribute.getLocalName());
+    }
+}
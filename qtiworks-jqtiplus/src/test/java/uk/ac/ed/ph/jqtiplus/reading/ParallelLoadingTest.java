@@ -0,0 +1,139 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.jqtiplus.reading;
+
+import uk.ac.ed.ph.jqtiplus.notification.Notification;
+import uk.ac.ed.ph.jqtiplus.resolution.ResolvedAssessmentItem;
+import uk.ac.ed.ph.jqtiplus.resolution.ResolvedAssessmentTest;
+import uk.ac.ed.ph.jqtiplus.testutils.UnitTestHelper;
+import uk.ac.ed.ph.jqtiplus.validation.ItemValidationResult;
+import uk.ac.ed.ph.jqtiplus.validation.TestValidationResult;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that loading, resolving and validating a test in parallel using
+ * {@link AssessmentObjectXmlLoader} gives the same results as doing this serially.
+ *
+ * @author David McKain
+ */
+public final class ParallelLoadingTest {
+
+    public static final String TEST_FILE_PATH = "reading/parallel-loading.xml";
+
+    private ExecutorService executorService;
+    private AssessmentObjectXmlLoader serialLoader;
+    private AssessmentObjectXmlLoader parallelLoader;
+    private URI testUri;
+
+    @Before
+    public void before() {
+        executorService = Executors.newFixedThreadPool(4);
+        final QtiXmlReader qtiXmlReader = UnitTestHelper.createUnitTestQtiXmlReader();
+        serialLoader = new AssessmentObjectXmlLoader(qtiXmlReader, UnitTestHelper.createTestFileResourceLocator());
+        parallelLoader = new AssessmentObjectXmlLoader(qtiXmlReader, UnitTestHelper.createTestFileResourceLocator(), executorService);
+        testUri = UnitTestHelper.createTestResourceUri(TEST_FILE_PATH);
+    }
+
+    @After
+    public void after() {
+        executorService.shutdownNow();
+    }
+
+    @Test
+    public void testResolution() {
+        final ResolvedAssessmentTest serialResult = serialLoader.loadAndResolveAssessmentTest(testUri);
+        final ResolvedAssessmentTest parallelResult = parallelLoader.loadAndResolveAssessmentTest(testUri);
+        assertSameResolution(serialResult, parallelResult);
+        Assert.assertEquals(6, parallelResult.getResolvedAssessmentItemBySystemIdMap().size());
+    }
+
+    @Test
+    public void testValidation() {
+        final TestValidationResult serialResult = serialLoader.loadResolveAndValidateTest(testUri);
+        final TestValidationResult parallelResult = parallelLoader.loadResolveAndValidateTest(testUri);
+        assertSameResolution(serialResult.getResolvedAssessmentTest(), parallelResult.getResolvedAssessmentTest());
+        Assert.assertFalse(parallelResult.isValid());
+        Assert.assertEquals(describe(serialResult.getNotifications()), describe(parallelResult.getNotifications()));
+
+        final List<ItemValidationResult> serialItemResults = serialResult.getItemValidationResults();
+        final List<ItemValidationResult> parallelItemResults = parallelResult.getItemValidationResults();
+        Assert.assertEquals(serialItemResults.size(), parallelItemResults.size());
+        for (int i=0; i<serialItemResults.size(); i++) {
+            Assert.assertEquals(serialItemResults.get(i).getResolvedAssessmentItem().getItemLookup().getSystemId(),
+                    parallelItemResults.get(i).getResolvedAssessmentItem().getItemLookup().getSystemId());
+            Assert.assertEquals(describe(serialItemResults.get(i).getNotifications()),
+                    describe(parallelItemResults.get(i).getNotifications()));
+        }
+    }
+
+    @Test
+    public void testRepeatedParallelValidation() {
+        final List<String> expected = describe(serialLoader.loadResolveAndValidateTest(testUri).getNotifications());
+        for (int i=0; i<3; i++) {
+            Assert.assertEquals(expected, describe(parallelLoader.loadResolveAndValidateTest(testUri).getNotifications()));
+        }
+    }
+
+    //-------------------------------------------------------
+
+    private static void assertSameResolution(final ResolvedAssessmentTest serialResult, final ResolvedAssessmentTest parallelResult) {
+        final Map<URI, ResolvedAssessmentItem> serialItemMap = serialResult.getResolvedAssessmentItemBySystemIdMap();
+        final Map<URI, ResolvedAssessmentItem> parallelItemMap = parallelResult.getResolvedAssessmentItemBySystemIdMap();
+        Assert.assertEquals(new ArrayList<URI>(serialItemMap.keySet()), new ArrayList<URI>(parallelItemMap.keySet()));
+        for (final Entry<URI, ResolvedAssessmentItem> entry : serialItemMap.entrySet()) {
+            Assert.assertEquals(entry.getValue().getItemLookup().wasSuccessful(),
+                    parallelItemMap.get(entry.getKey()).getItemLookup().wasSuccessful());
+        }
+    }
+
+    private static List<String> describe(final List<Notification> notifications) {
+        final List<String> result = new ArrayList<String>();
+        for (final Notification notification : notifications) {
+            result.add(notification.getNotificationLevel() + ": " + notification.getMessage());
+        }
+        return result;
+    }
+}
@@ -0,0 +1,141 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.jqtiplus.reading;
+
+import uk.ac.ed.ph.jqtiplus.node.item.response.processing.ResponseProcessing;
+import uk.ac.ed.ph.jqtiplus.resolution.ResolvedAssessmentItem;
+import uk.ac.ed.ph.jqtiplus.testutils.UnitTestHelper;
+import uk.ac.ed.ph.jqtiplus.xmlutils.locators.ResourceLocator;
+
+import java.io.InputStream;
+import java.net.URI;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that {@link SharedRootNodeCache} shares the trees built from standard resources
+ * between separate loads.
+ *
+ * @author David McKain
+ */
+public final class SharedRootNodeCacheTest {
+
+    public static final String ITEM_FILE_PATH = "reading/choice.xml";
+    public static final URI MATCH_CORRECT_URI = URI.create("http://www.imsglobal.org/question/qti_v2p1/rptemplates/match_correct");
+
+    private SharedRootNodeCache sharedRootNodeCache;
+    private URI itemUri;
+
+    @Before
+    public void before() {
+        sharedRootNodeCache = new SharedRootNodeCache();
+        itemUri = UnitTestHelper.createTestResourceUri(ITEM_FILE_PATH);
+    }
+
+    @Test
+    public void testStandardResource() {
+        Assert.assertTrue(sharedRootNodeCache.isStandardResource(MATCH_CORRECT_URI));
+        Assert.assertFalse(sharedRootNodeCache.isStandardResource(URI.create("http://www.imsglobal.org/question/qti_v2p1/rptemplates/nonexistent")));
+        Assert.assertFalse(sharedRootNodeCache.isStandardResource(itemUri));
+    }
+
+    @Test
+    public void testStandardResourceDecisionRemembered() {
+        final CountingResourceLocator locator = new CountingResourceLocator();
+        final SharedRootNodeCache countingCache = new SharedRootNodeCache(locator);
+        final URI nonexistentUri = URI.create("http://www.imsglobal.org/question/qti_v2p1/rptemplates/nonexistent");
+        for (int i=0; i<3; i++) {
+            Assert.assertTrue(countingCache.isStandardResource(MATCH_CORRECT_URI));
+            Assert.assertFalse(countingCache.isStandardResource(nonexistentUri));
+        }
+        Assert.assertEquals(2, locator.findCount);
+    }
+
+    @Test
+    public void testSharedBetweenLoads() {
+        final ResponseProcessing template1 = loadTemplate(createLoader(sharedRootNodeCache));
+        final ResponseProcessing template2 = loadTemplate(createLoader(sharedRootNodeCache));
+        Assert.assertSame(template1, template2);
+        Assert.assertEquals(1, sharedRootNodeCache.getCacheUsage());
+        Assert.assertEquals(1L, sharedRootNodeCache.getCacheMissCount());
+        Assert.assertEquals(1L, sharedRootNodeCache.getCacheHitCount());
+        Assert.assertTrue(sharedRootNodeCache.getEstimatedFootprint() > 1L);
+    }
+
+    @Test
+    public void testClear() {
+        final AssessmentObjectXmlLoader loader = createLoader(sharedRootNodeCache);
+        final ResponseProcessing template1 = loadTemplate(loader);
+        sharedRootNodeCache.clear();
+        Assert.assertEquals(0, sharedRootNodeCache.getCacheUsage());
+        Assert.assertEquals(0L, sharedRootNodeCache.getEstimatedFootprint());
+
+        final ResponseProcessing template2 = loadTemplate(loader);
+        Assert.assertNotSame(template1, template2);
+        Assert.assertEquals(1, sharedRootNodeCache.getCacheUsage());
+    }
+
+    @Test
+    public void testNotSharedWithoutCache() {
+        final ResponseProcessing template1 = loadTemplate(createLoader(null));
+        final ResponseProcessing template2 = loadTemplate(createLoader(null));
+        Assert.assertNotSame(template1, template2);
+    }
+
+    //-------------------------------------------------------
+
+    private static AssessmentObjectXmlLoader createLoader(final SharedRootNodeCache sharedRootNodeCache) {
+        final QtiXmlReader qtiXmlReader = new QtiXmlReader(UnitTestHelper.createJqtiExtensionManager(), null, sharedRootNodeCache);
+        return new AssessmentObjectXmlLoader(qtiXmlReader, UnitTestHelper.createTestFileResourceLocator());
+    }
+
+    private static final class CountingResourceLocator implements ResourceLocator {
+
+        int findCount;
+
+        @Override
+        public InputStream findResource(final URI systemId) {
+            findCount++;
+            return QtiXmlReader.JQTIPLUS_PARSER_RESOURCE_LOCATOR.findResource(systemId);
+        }
+    }
+
+    private ResponseProcessing loadTemplate(final AssessmentObjectXmlLoader loader) {
+        final ResolvedAssessmentItem resolvedAssessmentItem = loader.loadAndResolveAssessmentItem(itemUri);
+        Assert.assertTrue(resolvedAssessmentItem.getItemLookup().wasSuccessful());
+        return resolvedAssessmentItem.getResolvedResponseProcessingTemplateLookup().extractAssumingSuccessful();
+    }
+}
@@ -0,0 +1,183 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.jqtiplus.running;
+
+import uk.ac.ed.ph.jqtiplus.running.compiled.CompiledProcessing;
+import uk.ac.ed.ph.jqtiplus.state.ItemProcessingMap;
+import uk.ac.ed.ph.jqtiplus.state.ItemSessionState;
+import uk.ac.ed.ph.jqtiplus.state.TestProcessingMap;
+import uk.ac.ed.ph.jqtiplus.state.TestSessionState;
+import uk.ac.ed.ph.jqtiplus.testutils.UnitTestHelper;
+import uk.ac.ed.ph.jqtiplus.types.Identifier;
+import uk.ac.ed.ph.jqtiplus.types.ResponseData;
+import uk.ac.ed.ph.jqtiplus.types.StringResponseData;
+import uk.ac.ed.ph.jqtiplus.validation.ItemValidationResult;
+import uk.ac.ed.ph.jqtiplus.value.FloatValue;
+import uk.ac.ed.ph.jqtiplus.value.IntegerValue;
+import uk.ac.ed.ph.jqtiplus.value.NullValue;
+import uk.ac.ed.ph.jqtiplus.value.Value;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests that compiled response and outcome processing gives the same results as the usual
+ * interpreted processing.
+ *
+ * @see CompiledProcessing
+ *
+ * @author David McKain
+ */
+public final class CompiledProcessingTest {
+
+    public static final String ITEM_FILE_PATH = "running/compiled-processing.xml";
+    public static final String TEST_FILE_PATH = "running/simple-nonlinear-individual.xml";
+
+    public static final Identifier RESPONSE = Identifier.assumedLegal("RESPONSE");
+    public static final Identifier SCORE = Identifier.assumedLegal("SCORE");
+
+    @Test
+    public void testItemCompiles() {
+        final ItemProcessingMap itemProcessingMap = createItemProcessingMap();
+        final CompiledProcessing compiledResponseProcessing = itemProcessingMap.getCompiledResponseProcessing();
+        Assert.assertNotNull(compiledResponseProcessing);
+        Assert.assertEquals(13, compiledResponseProcessing.getInstructionCount());
+        Assert.assertSame(compiledResponseProcessing, itemProcessingMap.getCompiledResponseProcessing());
+    }
+
+    @Test
+    public void testInvalidItemNotCompiled() {
+        final ItemProcessingMap itemProcessingMap = new ItemProcessingInitializer(UnitTestHelper.resolveUnitTestAssessmentItem(ITEM_FILE_PATH), false).initialize();
+        Assert.assertNull(itemProcessingMap.getCompiledResponseProcessing());
+    }
+
+    @Test
+    public void testItemNullResponse() {
+        assertSameItemOutcomes(NullValue.INSTANCE);
+    }
+
+    @Test
+    public void testItemCorrectResponse() {
+        final ItemSessionState itemSessionState = assertSameItemOutcomes(new IntegerValue(3));
+        Assert.assertEquals(new FloatValue(2.0), itemSessionState.getOutcomeValue(SCORE));
+    }
+
+    @Test
+    public void testItemLargeResponse() {
+        final ItemSessionState itemSessionState = assertSameItemOutcomes(new IntegerValue(11));
+        Assert.assertEquals(new FloatValue(-1.0), itemSessionState.getOutcomeValue(SCORE));
+    }
+
+    @Test
+    public void testItemOtherResponses() {
+        assertSameItemOutcomes(new IntegerValue(-4));
+        assertSameItemOutcomes(new IntegerValue(0));
+        assertSameItemOutcomes(new IntegerValue(2));
+        assertSameItemOutcomes(new IntegerValue(7));
+    }
+
+    @Test
+    public void testTest() {
+        final TestSessionState interpretedState = runTest(false);
+        final TestSessionState compiledState = runTest(true);
+        Assert.assertEquals(interpretedState.getOutcomeValues(), compiledState.getOutcomeValues());
+        Assert.assertEquals(new FloatValue(1.0), compiledState.getOutcomeValue(SimpleProcessingTestBase.TEST_SCORE));
+    }
+
+    //-------------------------------------------------------
+
+    private ItemProcessingMap createItemProcessingMap() {
+        final ItemValidationResult itemValidationResult = UnitTestHelper.createUnitTestAssessmentObjectXmlLoader()
+                .loadResolveAndValidateItem(UnitTestHelper.createTestResourceUri(ITEM_FILE_PATH));
+        Assert.assertTrue(itemValidationResult.isValid());
+        return new ItemProcessingInitializer(itemValidationResult).initialize();
+    }
+
+    private ItemSessionState assertSameItemOutcomes(final Value responseValue) {
+        final ItemSessionState interpretedState = runItem(false, responseValue);
+        final ItemSessionState compiledState = runItem(true, responseValue);
+        Assert.assertEquals(interpretedState.getOutcomeValues(), compiledState.getOutcomeValues());
+        return compiledState;
+    }
+
+    private ItemSessionState runItem(final boolean compiledProcessing, final Value responseValue) {
+        final ItemSessionControllerSettings itemSessionControllerSettings = new ItemSessionControllerSettings();
+        itemSessionControllerSettings.setCompiledProcessing(compiledProcessing);
+        final ItemSessionState itemSessionState = new ItemSessionState();
+        final ItemSessionController itemSessionController = new ItemSessionController(UnitTestHelper.createJqtiExtensionManager(),
+                itemSessionControllerSettings, createItemProcessingMap(), itemSessionState);
+
+        final Date timestamp = new Date();
+        itemSessionController.initialize(timestamp);
+        itemSessionController.performTemplateProcessing(timestamp);
+        itemSessionController.enterItem(timestamp);
+        itemSessionState.setResponseValue(RESPONSE, responseValue);
+        itemSessionController.performResponseProcessing(timestamp);
+        return itemSessionState;
+    }
+
+    private TestSessionState runTest(final boolean compiledProcessing) {
+        final TestProcessingMap testProcessingMap = new TestProcessingInitializer(UnitTestHelper.resolveUnitTestAssessmentTest(TEST_FILE_PATH), true).initialize();
+        Assert.assertNotNull(testProcessingMap.getCompiledOutcomeProcessing());
+
+        final TestSessionControllerSettings testSessionControllerSettings = new TestSessionControllerSettings();
+        testSessionControllerSettings.setCompiledProcessing(compiledProcessing);
+        final TestSessionState testSessionState = new TestSessionState(new TestPlanner(testProcessingMap).generateTestPlan());
+        final TestSessionController testSessionController = new TestSessionController(UnitTestHelper.createJqtiExtensionManager(),
+                testSessionControllerSettings, testProcessingMap, testSessionState);
+
+        final Date timestamp = new Date();
+        testSessionController.initialize(timestamp);
+        testSessionController.enterTest(timestamp);
+        testSessionController.enterNextAvailableTestPart(timestamp);
+        selectItemAndRespond(testSessionController, "i1", "ChoiceA");
+        selectItemAndRespond(testSessionController, "i2", "ChoiceB");
+        return testSessionState;
+    }
+
+    private void selectItemAndRespond(final TestSessionController testSessionController, final String itemRefIdentifier,
+            final String choiceIdentifier) {
+        final Date timestamp = new Date();
+        final TestSessionState testSessionState = testSessionController.getTestSessionState();
+        testSessionController.selectItemNonlinear(timestamp,
+                UnitTestHelper.assertSingleTestPlanNode(testSessionState.getTestPlan(), itemRefIdentifier).getKey());
+        final Map<Identifier, ResponseData> responseMap = new HashMap<Identifier, ResponseData>();
+        responseMap.put(RESPONSE, new StringResponseData(choiceIdentifier));
+        testSessionController.handleResponsesToCurrentItem(timestamp, responseMap);
+    }
+}
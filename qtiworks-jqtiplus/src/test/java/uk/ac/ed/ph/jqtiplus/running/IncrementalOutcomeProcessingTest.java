@@ -0,0 +1,173 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.jqtiplus.running;
+
+import uk.ac.ed.ph.jqtiplus.state.TestProcessingMap;
+import uk.ac.ed.ph.jqtiplus.state.TestSessionState;
+import uk.ac.ed.ph.jqtiplus.testutils.UnitTestHelper;
+import uk.ac.ed.ph.jqtiplus.types.Identifier;
+import uk.ac.ed.ph.jqtiplus.types.ResponseData;
+import uk.ac.ed.ph.jqtiplus.types.StringResponseData;
+import uk.ac.ed.ph.jqtiplus.value.FloatValue;
+import uk.ac.ed.ph.jqtiplus.value.IntegerValue;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that incremental outcome processing gives the same results as full outcome processing
+ * as a candidate works through a test.
+ *
+ * @see ItemSubsetMemo
+ *
+ * @author David McKain
+ */
+public final class IncrementalOutcomeProcessingTest {
+
+    public static final String TEST_FILE_PATH = "running/incremental-outcome-processing.xml";
+
+    public static final Identifier RESPONSE = Identifier.assumedLegal("RESPONSE");
+    public static final Identifier RESPONDED = Identifier.assumedLegal("RESPONDED");
+    public static final Identifier SELECTED = Identifier.assumedLegal("SELECTED");
+    public static final Identifier TEST_SCORE = Identifier.assumedLegal("TEST_SCORE");
+
+    private TestSessionController fullController;
+    private TestSessionController incrementalController;
+
+    @Before
+    public void before() {
+        final TestProcessingMap testProcessingMap = new TestProcessingInitializer(UnitTestHelper.resolveUnitTestAssessmentTest(TEST_FILE_PATH), true).initialize();
+        fullController = createTestSessionController(testProcessingMap, false);
+        incrementalController = createTestSessionController(testProcessingMap, true);
+
+        final Date timestamp = new Date();
+        for (final TestSessionController testSessionController : new TestSessionController[] { fullController, incrementalController }) {
+            testSessionController.initialize(timestamp);
+            testSessionController.enterTest(timestamp);
+            testSessionController.enterNextAvailableTestPart(timestamp);
+        }
+        assertSameOutcomes();
+    }
+
+    @Test
+    public void testMemoCreatedOnlyWhenEnabled() {
+        selectItemAndRespond("i1", "ChoiceA");
+        Assert.assertNull(fullController.getTestSessionState().getItemSubsetMemo());
+        Assert.assertNotNull(incrementalController.getTestSessionState().getItemSubsetMemo());
+    }
+
+    @Test
+    public void testResponses() {
+        selectItemAndRespond("i1", "ChoiceA");
+        selectItemAndRespond("i2", "ChoiceB");
+        selectItemAndRespond("i3", "ChoiceA");
+
+        final TestSessionState testSessionState = incrementalController.getTestSessionState();
+        Assert.assertEquals(new IntegerValue(4), testSessionState.getOutcomeValue(SELECTED));
+        Assert.assertEquals(new IntegerValue(3), testSessionState.getOutcomeValue(RESPONDED));
+        Assert.assertEquals(new FloatValue(2.0), testSessionState.getOutcomeValue(TEST_SCORE));
+    }
+
+    @Test
+    public void testChangedResponse() {
+        selectItemAndRespond("i1", "ChoiceA");
+        selectItemAndRespond("i2", "ChoiceA");
+        selectItemAndRespond("i1", "ChoiceC");
+
+        final TestSessionState testSessionState = incrementalController.getTestSessionState();
+        Assert.assertEquals(new FloatValue(1.0), testSessionState.getOutcomeValue(TEST_SCORE));
+    }
+
+    @Test
+    public void testUnchangedStateReused() {
+        selectItemAndRespond("i1", "ChoiceA");
+        final ItemSubsetMemo itemSubsetMemo = incrementalController.getTestSessionState().getItemSubsetMemo();
+        final int evaluationCount = itemSubsetMemo.getEvaluationCount();
+        final int recomputationCount = itemSubsetMemo.getRecomputationCount();
+
+        /* Answering i2 incorrectly leaves SCORE unchanged, so only the correctness counts (for i2)
+         * and the cheap counts should be recomputed */
+        selectItemAndRespond("i2", "ChoiceB");
+        Assert.assertEquals(evaluationCount + 7, itemSubsetMemo.getEvaluationCount());
+        Assert.assertEquals(recomputationCount + 4, itemSubsetMemo.getRecomputationCount());
+    }
+
+    @Test
+    public void testMemoDiscardedWhenDisabled() {
+        selectItemAndRespond("i1", "ChoiceA");
+        final TestSessionControllerSettings testSessionControllerSettings = new TestSessionControllerSettings();
+        final TestSessionController testSessionController = new TestSessionController(UnitTestHelper.createJqtiExtensionManager(),
+                testSessionControllerSettings, incrementalController.getTestProcessingMap(), incrementalController.getTestSessionState());
+        final Date timestamp = new Date();
+        testSessionController.selectItemNonlinear(timestamp,
+                UnitTestHelper.assertSingleTestPlanNode(testSessionController.getTestSessionState().getTestPlan(), "i2").getKey());
+        final Map<Identifier, ResponseData> responseMap = new HashMap<Identifier, ResponseData>();
+        responseMap.put(RESPONSE, new StringResponseData("ChoiceA"));
+        testSessionController.handleResponsesToCurrentItem(timestamp, responseMap);
+        Assert.assertNull(testSessionController.getTestSessionState().getItemSubsetMemo());
+    }
+
+    //-------------------------------------------------------
+
+    private TestSessionController createTestSessionController(final TestProcessingMap testProcessingMap, final boolean incrementalOutcomeProcessing) {
+        final TestSessionControllerSettings testSessionControllerSettings = new TestSessionControllerSettings();
+        testSessionControllerSettings.setIncrementalOutcomeProcessing(incrementalOutcomeProcessing);
+        final TestSessionState testSessionState = new TestSessionState(new TestPlanner(testProcessingMap).generateTestPlan());
+        return new TestSessionController(UnitTestHelper.createJqtiExtensionManager(),
+                testSessionControllerSettings, testProcessingMap, testSessionState);
+    }
+
+    private void selectItemAndRespond(final String itemRefIdentifier, final String choiceIdentifier) {
+        for (final TestSessionController testSessionController : new TestSessionController[] { fullController, incrementalController }) {
+            final Date timestamp = new Date();
+            final TestSessionState testSessionState = testSessionController.getTestSessionState();
+            testSessionController.selectItemNonlinear(timestamp,
+                    UnitTestHelper.assertSingleTestPlanNode(testSessionState.getTestPlan(), itemRefIdentifier).getKey());
+            final Map<Identifier, ResponseData> responseMap = new HashMap<Identifier, ResponseData>();
+            responseMap.put(RESPONSE, new StringResponseData(choiceIdentifier));
+            testSessionController.handleResponsesToCurrentItem(timestamp, responseMap);
+        }
+        assertSameOutcomes();
+    }
+
+    private void assertSameOutcomes() {
+        Assert.assertEquals(fullController.getTestSessionState().getOutcomeValues(),
+                incrementalController.getTestSessionState().getOutcomeValues());
+    }
+}
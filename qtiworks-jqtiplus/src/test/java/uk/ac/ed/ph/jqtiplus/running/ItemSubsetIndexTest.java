@@ -0,0 +1,136 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.jqtiplus.running;
+
+import uk.ac.ed.ph.jqtiplus.state.TestPlan;
+import uk.ac.ed.ph.jqtiplus.state.TestPlanNode;
+import uk.ac.ed.ph.jqtiplus.state.TestProcessingMap;
+import uk.ac.ed.ph.jqtiplus.state.TestSessionState;
+import uk.ac.ed.ph.jqtiplus.testutils.UnitTestHelper;
+import uk.ac.ed.ph.jqtiplus.types.Identifier;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the {@link ItemSubsetIndex} used to compute item subsets, and the global indexing
+ * of {@link TestPlan}.
+ *
+ * @author David McKain
+ */
+public final class ItemSubsetIndexTest {
+
+    public static final String TEST_FILE_PATH = "running/item-subset-index.xml";
+
+    private TestSessionController testSessionController;
+
+    @Before
+    public void before() {
+        final TestProcessingMap testProcessingMap = new TestProcessingInitializer(UnitTestHelper.resolveUnitTestAssessmentTest(TEST_FILE_PATH), true).initialize();
+        final TestSessionState testSessionState = new TestSessionState(new TestPlanner(testProcessingMap).generateTestPlan());
+        testSessionController = new TestSessionController(UnitTestHelper.createJqtiExtensionManager(),
+                new TestSessionControllerSettings(), testProcessingMap, testSessionState);
+        testSessionController.initialize(new Date());
+    }
+
+    @Test
+    public void testAllItems() {
+        assertSubset(null, null, null, "i1", "i2", "i3", "i4", "i5");
+    }
+
+    @Test
+    public void testSections() {
+        assertSubset("s1", null, null, "i1", "i2", "i3");
+        assertSubset("s1a", null, null, "i1", "i2");
+        assertSubset("s2", null, null, "i4", "i5");
+        assertSubset("nosuchsection", null, null);
+    }
+
+    @Test
+    public void testIncludeCategories() {
+        assertSubset(null, new String[] { "a" }, null, "i1", "i2");
+        assertSubset(null, new String[] { "b", "c" }, null, "i2", "i3", "i5");
+        assertSubset("s1", new String[] { "b" }, null, "i2", "i3");
+        assertSubset(null, new String[] { "nosuchcategory" }, null);
+    }
+
+    @Test
+    public void testExcludeCategories() {
+        assertSubset(null, null, new String[] { "a" }, "i3", "i4", "i5");
+        assertSubset(null, null, new String[] { "a", "c" }, "i3", "i4");
+        assertSubset(null, new String[] { "b" }, new String[] { "a" }, "i3");
+        assertSubset("s2", null, new String[] { "nosuchcategory" }, "i4", "i5");
+    }
+
+    @Test
+    public void testIndexReused() {
+        assertSubset("s1", new String[] { "a" }, null, "i1", "i2");
+        final ItemSubsetIndex itemSubsetIndex = testSessionController.getTestSessionState().getItemSubsetIndex();
+        Assert.assertNotNull(itemSubsetIndex);
+
+        final List<TestPlanNode> subset = testSessionController.computeItemSubset(Identifier.assumedLegal("s1"), Arrays.asList("a"), null);
+        Assert.assertSame(subset, testSessionController.computeItemSubset(Identifier.assumedLegal("s1"), Arrays.asList("a"), null));
+        Assert.assertSame(itemSubsetIndex, testSessionController.getTestSessionState().getItemSubsetIndex());
+    }
+
+    @Test
+    public void testGlobalIndex() {
+        final TestPlan testPlan = testSessionController.getTestSessionState().getTestPlan();
+        final List<TestPlanNode> testPlanNodeList = testPlan.getTestPlanNodeList();
+        for (int i=1; i<testPlanNodeList.size(); i++) {
+            Assert.assertEquals(i, testPlan.getGlobalIndex(testPlanNodeList.get(i)));
+        }
+    }
+
+    //-------------------------------------------------------
+
+    private void assertSubset(final String sectionIdentifier, final String[] includeCategories, final String[] excludeCategories,
+            final String... expectedItemRefIdentifiers) {
+        final List<TestPlanNode> subset = testSessionController.computeItemSubset(
+                sectionIdentifier!=null ? Identifier.assumedLegal(sectionIdentifier) : null,
+                includeCategories!=null ? Arrays.asList(includeCategories) : null,
+                excludeCategories!=null ? Arrays.asList(excludeCategories) : null);
+        final List<String> actualItemRefIdentifiers = new ArrayList<String>();
+        for (final TestPlanNode itemRefNode : subset) {
+            actualItemRefIdentifiers.add(itemRefNode.getIdentifier().toString());
+        }
+        Assert.assertEquals(Arrays.asList(expectedItemRefIdentifiers), actualItemRefIdentifiers);
+    }
+}
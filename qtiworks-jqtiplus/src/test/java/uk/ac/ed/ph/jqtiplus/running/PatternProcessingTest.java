@@ -0,0 +1,160 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.jqtiplus.running;
+
+import uk.ac.ed.ph.jqtiplus.internal.util.RegexCache;
+import uk.ac.ed.ph.jqtiplus.state.ItemProcessingMap;
+import uk.ac.ed.ph.jqtiplus.state.ItemSessionState;
+import uk.ac.ed.ph.jqtiplus.testutils.UnitTestHelper;
+import uk.ac.ed.ph.jqtiplus.types.Identifier;
+import uk.ac.ed.ph.jqtiplus.types.ResponseData;
+import uk.ac.ed.ph.jqtiplus.types.StringResponseData;
+import uk.ac.ed.ph.jqtiplus.validation.ItemValidationResult;
+import uk.ac.ed.ph.jqtiplus.value.BooleanValue;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the compilation and caching of the (XML Schema) regular expressions used by
+ * <code>patternMatch</code> and <code>patternMask</code>.
+ *
+ * @see RegexCache
+ *
+ * @author David McKain
+ */
+public final class PatternProcessingTest {
+
+    public static final String ITEM_FILE_PATH = "running/pattern-match.xml";
+
+    public static final Identifier RESPONSE = Identifier.assumedLegal("RESPONSE");
+    public static final Identifier LITERAL_MATCH = Identifier.assumedLegal("LITERAL_MATCH");
+    public static final Identifier VARIABLE_MATCH = Identifier.assumedLegal("VARIABLE_MATCH");
+
+    @Test
+    public void testTranslation() {
+        Assert.assertEquals("a+b?", RegexCache.translateXmlSchemaRegex("a+b?"));
+        Assert.assertEquals("[a-z&&[^aeiou]]", RegexCache.translateXmlSchemaRegex("[a-z-[aeiou]]"));
+        Assert.assertEquals("[a-z&&[aeiou]]", RegexCache.translateXmlSchemaRegex("[a-z-[^aeiou]]"));
+        Assert.assertEquals("\\p{InBasicLatin}\\P{InGreekandCoptic}", RegexCache.translateXmlSchemaRegex("\\p{IsBasicLatin}\\P{IsGreekandCoptic}"));
+        Assert.assertEquals("\\\\i", RegexCache.translateXmlSchemaRegex("\\\\i"));
+        Assert.assertTrue(RegexCache.getPattern("\\i\\c*").matcher("x-1").matches());
+        Assert.assertFalse(RegexCache.getPattern("\\i\\c*").matcher("1x").matches());
+        Assert.assertTrue(RegexCache.getPattern("\\I+").matcher("12").matches());
+        Assert.assertFalse(RegexCache.getPattern("[a-z-[aeiou]]+").matcher("bad").matches());
+    }
+
+    @Test
+    public void testJavaSyntaxKept() {
+        /* Java property escapes using "Is" must not be turned into block escapes */
+        Assert.assertEquals("\\p{IsL}+", RegexCache.translateXmlSchemaRegex("\\p{IsL}+"));
+        Assert.assertEquals("\\P{IsAlphabetic}", RegexCache.translateXmlSchemaRegex("\\P{IsAlphabetic}"));
+        Assert.assertEquals("\\p{IsNotABlock}", RegexCache.translateXmlSchemaRegex("\\p{IsNotABlock}"));
+        Assert.assertTrue(RegexCache.getPattern("\\p{IsL}+").matcher("abc").matches());
+        Assert.assertFalse(RegexCache.getPattern("\\p{IsAlphabetic}").matcher("1").matches());
+
+        /* Java control character escapes must not become NameChar */
+        Assert.assertEquals("a\\cIb", RegexCache.translateXmlSchemaRegex("a\\cIb"));
+        Assert.assertTrue(RegexCache.getPattern("a\\cIb").matcher("a\tb").matches());
+        Assert.assertFalse(RegexCache.getPattern("a\\cIb").matcher("axIb").matches());
+    }
+
+    @Test
+    public void testCached() {
+        final Pattern pattern = RegexCache.getPattern("[0-9]+x");
+        Assert.assertSame(pattern, RegexCache.getPattern("[0-9]+x"));
+    }
+
+    @Test
+    public void testLiteralPatternsPrecompiled() {
+        final ItemProcessingMap itemProcessingMap = createItemProcessingMap();
+        Assert.assertSame(itemProcessingMap.getPattern("\\i\\c*"), itemProcessingMap.getPattern("\\i\\c*"));
+        RegexCache.clear();
+        Assert.assertSame(itemProcessingMap.getPattern("\\p{IsBasicLatin}+"), itemProcessingMap.getPattern("\\p{IsBasicLatin}+"));
+        Assert.assertEquals(0, RegexCache.size());
+    }
+
+    @Test
+    public void testMatchingResponse() {
+        final ItemSessionState itemSessionState = runItem("xyz");
+        Assert.assertTrue(itemSessionState.getInvalidResponseIdentifiers().isEmpty());
+        Assert.assertEquals(BooleanValue.TRUE, itemSessionState.getOutcomeValue(LITERAL_MATCH));
+        Assert.assertEquals(BooleanValue.TRUE, itemSessionState.getOutcomeValue(VARIABLE_MATCH));
+    }
+
+    @Test
+    public void testNonMatchingResponse() {
+        final ItemSessionState itemSessionState = runItem("abc");
+        Assert.assertTrue(itemSessionState.getInvalidResponseIdentifiers().isEmpty());
+        Assert.assertEquals(BooleanValue.TRUE, itemSessionState.getOutcomeValue(LITERAL_MATCH));
+        Assert.assertEquals(BooleanValue.FALSE, itemSessionState.getOutcomeValue(VARIABLE_MATCH));
+    }
+
+    @Test
+    public void testInvalidResponse() {
+        final ItemSessionState itemSessionState = runItem("1abc");
+        Assert.assertEquals(1, itemSessionState.getInvalidResponseIdentifiers().size());
+    }
+
+    //-------------------------------------------------------
+
+    private ItemProcessingMap createItemProcessingMap() {
+        final ItemValidationResult itemValidationResult = UnitTestHelper.createUnitTestAssessmentObjectXmlLoader()
+                .loadResolveAndValidateItem(UnitTestHelper.createTestResourceUri(ITEM_FILE_PATH));
+        Assert.assertTrue(itemValidationResult.isValid());
+        return new ItemProcessingInitializer(itemValidationResult).initialize();
+    }
+
+    private ItemSessionState runItem(final String response) {
+        final ItemSessionState itemSessionState = new ItemSessionState();
+        final ItemSessionController itemSessionController = new ItemSessionController(UnitTestHelper.createJqtiExtensionManager(),
+                new ItemSessionControllerSettings(), createItemProcessingMap(), itemSessionState);
+
+        final Date timestamp = new Date();
+        itemSessionController.initialize(timestamp);
+        itemSessionController.performTemplateProcessing(timestamp);
+        itemSessionController.enterItem(timestamp);
+        final Map<Identifier, ResponseData> responseMap = new HashMap<Identifier, ResponseData>();
+        responseMap.put(RESPONSE, new StringResponseData(response));
+        itemSessionController.bindResponses(timestamp, responseMap);
+        itemSessionController.commitResponses(timestamp);
+        itemSessionController.performResponseProcessing(timestamp);
+        return itemSessionState;
+    }
+}
@@ -0,0 +1,184 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.jqtiplus.state.marshalling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import uk.ac.ed.ph.jqtiplus.node.result.SessionStatus;
+import uk.ac.ed.ph.jqtiplus.running.ItemSessionController;
+import uk.ac.ed.ph.jqtiplus.state.ItemSessionState;
+import uk.ac.ed.ph.jqtiplus.state.TestPlan;
+import uk.ac.ed.ph.jqtiplus.state.TestPlanNode;
+import uk.ac.ed.ph.jqtiplus.testutils.UnitTestHelper;
+import uk.ac.ed.ph.jqtiplus.types.FileResponseData;
+import uk.ac.ed.ph.jqtiplus.types.Identifier;
+import uk.ac.ed.ph.jqtiplus.types.ResponseData;
+import uk.ac.ed.ph.jqtiplus.types.StringResponseData;
+import uk.ac.ed.ph.jqtiplus.value.FileValue;
+import uk.ac.ed.ph.jqtiplus.value.FloatValue;
+import uk.ac.ed.ph.jqtiplus.value.IdentifierValue;
+import uk.ac.ed.ph.jqtiplus.value.IntegerValue;
+import uk.ac.ed.ph.jqtiplus.value.MultipleValue;
+import uk.ac.ed.ph.jqtiplus.value.NullValue;
+import uk.ac.ed.ph.jqtiplus.value.OrderedValue;
+import uk.ac.ed.ph.jqtiplus.value.PointValue;
+import uk.ac.ed.ph.jqtiplus.value.RecordValue;
+import uk.ac.ed.ph.jqtiplus.value.SingleValue;
+import uk.ac.ed.ph.jqtiplus.value.StringValue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link ItemSessionStateBinaryMarshaller} and the parts of {@link BinaryMarshallerCore}
+ * it relies on
+ *
+ * @author David McKain
+ */
+public class ItemSessionStateBinaryMarshallerTest {
+
+    @Test
+    public void testEmptyRoundTrip() {
+        final ItemSessionState itemSessionState = new ItemSessionState();
+        assertEquals(itemSessionState, roundTrip(itemSessionState));
+    }
+
+    @Test
+    public void testPopulatedRoundTrip() {
+        final ItemSessionState itemSessionState = createPopulatedItemSessionState();
+        assertEquals(itemSessionState, roundTrip(itemSessionState));
+    }
+
+    @Test
+    public void testRunningItemRoundTrip() {
+        final Date timestamp = new Date();
+        final ItemSessionController itemSessionController = UnitTestHelper.loadUnitTestAssessmentItemForControl("running/choice.xml", true);
+        final ItemSessionState itemSessionState = itemSessionController.getItemSessionState();
+        itemSessionController.initialize(timestamp);
+        itemSessionController.performTemplateProcessing(timestamp);
+        assertEquals(itemSessionState, roundTrip(itemSessionState));
+
+        itemSessionController.enterItem(timestamp);
+        final Map<Identifier, ResponseData> responseMap = new HashMap<Identifier, ResponseData>();
+        responseMap.put(Identifier.parseString("RESPONSE"), new StringResponseData("ChoiceA"));
+        itemSessionController.bindResponses(timestamp, responseMap);
+        assertEquals(itemSessionState, roundTrip(itemSessionState));
+
+        itemSessionController.commitResponses(timestamp);
+        itemSessionController.performResponseProcessing(timestamp);
+        itemSessionController.endItem(timestamp);
+        assertEquals(itemSessionState, roundTrip(itemSessionState));
+    }
+
+    @Test
+    public void testBinaryAgreesWithXml() {
+        final ItemSessionState itemSessionState = createPopulatedItemSessionState();
+        final ItemSessionState viaXml = ItemSessionStateXmlMarshaller.unmarshal(ItemSessionStateXmlMarshaller.marshal(itemSessionState).getDocumentElement());
+        assertEquals(viaXml, roundTrip(itemSessionState));
+    }
+
+    @Test
+    public void testIsBinaryState() {
+        final byte[] data = ItemSessionStateBinaryMarshaller.marshal(new ItemSessionState());
+        assertTrue(BinaryMarshallerCore.isBinaryState(data));
+        assertFalse(BinaryMarshallerCore.isBinaryState("<?xml version=\"1.0\"?>".getBytes()));
+        assertFalse(BinaryMarshallerCore.isBinaryState(new byte[0]));
+    }
+
+    @Test(expected=BinaryUnmarshallingException.class)
+    public void testBadMagic() {
+        ItemSessionStateBinaryMarshaller.unmarshal("<itemSessionState/>".getBytes());
+    }
+
+    @Test(expected=BinaryUnmarshallingException.class)
+    public void testUnsupportedVersion() {
+        final byte[] data = ItemSessionStateBinaryMarshaller.marshal(new ItemSessionState());
+        data[BinaryMarshallerCore.MAGIC.length] = (byte) (BinaryMarshallerCore.FORMAT_VERSION + 1);
+        ItemSessionStateBinaryMarshaller.unmarshal(data);
+    }
+
+    @Test(expected=BinaryUnmarshallingException.class)
+    public void testWrongType() {
+        final byte[] data = TestPlanBinaryMarshaller.marshal(new TestPlan(TestPlanNode.createRoot()));
+        ItemSessionStateBinaryMarshaller.unmarshal(data);
+    }
+
+    @Test(expected=BinaryUnmarshallingException.class)
+    public void testTruncated() {
+        final byte[] data = ItemSessionStateBinaryMarshaller.marshal(createPopulatedItemSessionState());
+        ItemSessionStateBinaryMarshaller.unmarshal(Arrays.copyOf(data, data.length - 3));
+    }
+
+    private static ItemSessionState roundTrip(final ItemSessionState itemSessionState) {
+        return ItemSessionStateBinaryMarshaller.unmarshal(ItemSessionStateBinaryMarshaller.marshal(itemSessionState));
+    }
+
+    static ItemSessionState createPopulatedItemSessionState() {
+        final ItemSessionState result = new ItemSessionState();
+        result.setEntryTime(new Date(1000L));
+        result.setDurationIntervalStartTime(new Date(2000L));
+        result.setDurationAccumulated(12345L);
+        result.setBranchRuleTarget("EXIT_TEST");
+        result.setInitialized(true);
+        result.setResponded(true);
+        result.setSessionStatus(SessionStatus.FINAL);
+        result.setCompletionStatus("completed");
+        result.setNumAttempts(300);
+        result.setUnboundResponseIdentifiers(Arrays.asList(Identifier.parseString("R1")));
+        result.setShuffledInteractionChoiceOrder(Identifier.parseString("RESPONSE"),
+                Arrays.asList(Identifier.parseString("C"), Identifier.parseString("A"), Identifier.parseString("B")));
+        result.setRawResponseData(Identifier.parseString("RESPONSE"), new StringResponseData("C", "A é中"));
+        result.setRawResponseData(Identifier.parseString("UPLOAD"), new FileResponseData(new File("/tmp/upload"), "text/plain", "upload.txt"));
+        result.setCandidateComment("Comment");
+
+        final Map<Identifier, SingleValue> recordBuilder = new HashMap<Identifier, SingleValue>();
+        recordBuilder.put(Identifier.parseString("a"), new IntegerValue(1));
+        recordBuilder.put(Identifier.parseString("b"), new StringValue("two"));
+        result.setResponseValue(Identifier.parseString("RESPONSE"), MultipleValue.createMultipleValue(new IdentifierValue("C"), new IdentifierValue("A")));
+        result.setResponseValue(Identifier.parseString("ORDER"), OrderedValue.createOrderedValue(new PointValue(1, 2), new PointValue(3, 4)));
+        result.setResponseValue(Identifier.parseString("UPLOAD"), new FileValue(new File("/tmp/upload"), "text/plain", "upload.txt"));
+        result.setUncommittedResponseValue(Identifier.parseString("RESPONSE"), NullValue.INSTANCE);
+        result.setTemplateValue(Identifier.parseString("T"), RecordValue.createRecordValue(recordBuilder));
+        result.setOutcomeValue(Identifier.parseString("SCORE"), new FloatValue(2.5));
+        result.setOverriddenCorrectResponseValue(Identifier.parseString("RESPONSE"), new IdentifierValue("C"));
+        return result;
+    }
+}
@@ -0,0 +1,90 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.jqtiplus.state.marshalling;
+
+import static org.junit.Assert.assertEquals;
+
+import uk.ac.ed.ph.jqtiplus.state.ItemSessionState;
+import uk.ac.ed.ph.jqtiplus.xmlutils.xslt.XsltFactoryUtilities;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.dom.DOMResult;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Tests the {@link ItemSessionStateXmlMarshaller}, making sure that the DOM and SAX forms
+ * of the marshalled XML agree.
+ *
+ * @author David McKain
+ */
+public class ItemSessionStateXmlMarshallerTest {
+
+    @Test
+    public void testEmptyDomRoundTrip() {
+        final ItemSessionState itemSessionState = new ItemSessionState();
+        assertEquals(itemSessionState, ItemSessionStateXmlMarshaller.unmarshal(ItemSessionStateXmlMarshaller.marshal(itemSessionState).getDocumentElement()));
+    }
+
+    @Test
+    public void testPopulatedDomRoundTrip() {
+        final ItemSessionState itemSessionState = ItemSessionStateBinaryMarshallerTest.createPopulatedItemSessionState();
+        assertEquals(itemSessionState, ItemSessionStateXmlMarshaller.unmarshal(ItemSessionStateXmlMarshaller.marshal(itemSessionState).getDocumentElement()));
+    }
+
+    @Test
+    public void testSaxSourceRoundTrip() throws Exception {
+        final ItemSessionState itemSessionState = ItemSessionStateBinaryMarshallerTest.createPopulatedItemSessionState();
+        final Element element = transformToElement(ItemSessionStateXmlMarshaller.marshalToSaxSource(itemSessionState));
+        assertEquals(itemSessionState, ItemSessionStateXmlMarshaller.unmarshal(element));
+    }
+
+    @Test
+    public void testSaxSourceReusable() throws Exception {
+        final ItemSessionState itemSessionState = ItemSessionStateBinaryMarshallerTest.createPopulatedItemSessionState();
+        final Source source = ItemSessionStateXmlMarshaller.marshalToSaxSource(itemSessionState);
+        transformToElement(source);
+        assertEquals(itemSessionState, ItemSessionStateXmlMarshaller.unmarshal(transformToElement(source)));
+    }
+
+    private static Element transformToElement(final Source source) throws Exception {
+        final Transformer transformer = XsltFactoryUtilities.createJAXPTransformerFactory().newTransformer();
+        final DOMResult result = new DOMResult();
+        transformer.transform(source, result);
+        return ((Document) result.getNode()).getDocumentElement();
+    }
+}
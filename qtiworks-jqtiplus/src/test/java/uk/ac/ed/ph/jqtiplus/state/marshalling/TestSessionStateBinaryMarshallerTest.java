@@ -0,0 +1,123 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.jqtiplus.state.marshalling;
+
+import static org.junit.Assert.assertEquals;
+
+import uk.ac.ed.ph.jqtiplus.running.TestSessionController;
+import uk.ac.ed.ph.jqtiplus.state.ItemSessionState;
+import uk.ac.ed.ph.jqtiplus.state.TestPlan;
+import uk.ac.ed.ph.jqtiplus.state.TestPlanNodeKey;
+import uk.ac.ed.ph.jqtiplus.state.TestSessionState;
+import uk.ac.ed.ph.jqtiplus.testutils.UnitTestHelper;
+import uk.ac.ed.ph.jqtiplus.types.Identifier;
+import uk.ac.ed.ph.jqtiplus.types.ResponseData;
+import uk.ac.ed.ph.jqtiplus.types.StringResponseData;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the {@link TestSessionStateBinaryMarshaller} and {@link TestPlanBinaryMarshaller}
+ * against the states produced while running a simple test.
+ *
+ * @author David McKain
+ */
+public class TestSessionStateBinaryMarshallerTest {
+
+    public static final String TEST_FILE_PATH = "running/simple-linear-simultaneous.xml";
+
+    private Date timestamp;
+    private TestSessionController testSessionController;
+    private TestSessionState testSessionState;
+
+    @Before
+    public void before() {
+        timestamp = new Date();
+        testSessionController = UnitTestHelper.loadUnitTestAssessmentTestForControl(TEST_FILE_PATH, true);
+        testSessionController.initialize(timestamp);
+        testSessionState = testSessionController.getTestSessionState();
+    }
+
+    @Test
+    public void testInitialRoundTrip() {
+        assertRoundTrips();
+    }
+
+    @Test
+    public void testRunningRoundTrip() {
+        testSessionController.enterTest(timestamp);
+        testSessionController.enterNextAvailableTestPart(timestamp);
+        assertRoundTrips();
+
+        final Map<Identifier, ResponseData> responseMap = new HashMap<Identifier, ResponseData>();
+        responseMap.put(Identifier.parseString("RESPONSE"), new StringResponseData("ChoiceA"));
+        testSessionController.handleResponsesToCurrentItem(timestamp, responseMap);
+        assertRoundTrips();
+
+        testSessionController.endCurrentTestPart(timestamp);
+        assertRoundTrips();
+    }
+
+    @Test
+    public void testBinaryAgreesWithXml() {
+        testSessionController.enterTest(timestamp);
+        testSessionController.enterNextAvailableTestPart(timestamp);
+        final TestSessionState viaXml = TestSessionStateXmlMarshaller.unmarshal(TestSessionStateXmlMarshaller.marshal(testSessionState).getDocumentElement());
+        assertEquals(viaXml, TestSessionStateBinaryMarshaller.unmarshal(TestSessionStateBinaryMarshaller.marshal(testSessionState)));
+    }
+
+    //-------------------------------------------------------
+
+    private void assertRoundTrips() {
+        /* Whole state in one go */
+        assertEquals(testSessionState, TestSessionStateBinaryMarshaller.unmarshal(TestSessionStateBinaryMarshaller.marshal(testSessionState)));
+
+        /* TestPlan, test-level state and item states stored separately, then put back together */
+        final TestPlan testPlan = TestPlanBinaryMarshaller.unmarshal(TestPlanBinaryMarshaller.marshal(testSessionState.getTestPlan()));
+        assertEquals(testSessionState.getTestPlan(), testPlan);
+        final TestSessionState reassembled = TestSessionStateBinaryMarshaller.unmarshalTestLevelState(testPlan,
+                TestSessionStateBinaryMarshaller.marshalTestLevelState(testSessionState));
+        for (final Entry<TestPlanNodeKey, ItemSessionState> entry : testSessionState.getItemSessionStates().entrySet()) {
+            reassembled.getItemSessionStates().put(entry.getKey(),
+                    ItemSessionStateBinaryMarshaller.unmarshal(ItemSessionStateBinaryMarshaller.marshal(entry.getValue())));
+        }
+        assertEquals(testSessionState, reassembled);
+    }
+}
@@ -0,0 +1,159 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.jqtiplus.state.marshalling;
+
+import static org.junit.Assert.assertEquals;
+
+import uk.ac.ed.ph.jqtiplus.internal.util.StringUtilities;
+import uk.ac.ed.ph.jqtiplus.running.TestPlanner;
+import uk.ac.ed.ph.jqtiplus.running.TestProcessingInitializer;
+import uk.ac.ed.ph.jqtiplus.running.TestSessionController;
+import uk.ac.ed.ph.jqtiplus.running.TestSessionControllerSettings;
+import uk.ac.ed.ph.jqtiplus.state.TestPlanNode;
+import uk.ac.ed.ph.jqtiplus.state.TestProcessingMap;
+import uk.ac.ed.ph.jqtiplus.state.TestSessionState;
+import uk.ac.ed.ph.jqtiplus.testutils.UnitTestHelper;
+import uk.ac.ed.ph.jqtiplus.types.Identifier;
+import uk.ac.ed.ph.jqtiplus.xmlutils.xslt.XsltFactoryUtilities;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.dom.DOMResult;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * Tests the XML produced by {@link TestSessionStateXmlMarshaller} for each kind of
+ * {@link TestSessionStateProjection}.
+ *
+ * @author David McKain
+ */
+public class TestSessionStateProjectionTest {
+
+    public static final String TEST_FILE_PATH = "running/item-subset-index.xml";
+
+    private TestSessionState testSessionState;
+
+    @Before
+    public void before() {
+        final TestProcessingMap testProcessingMap = new TestProcessingInitializer(UnitTestHelper.resolveUnitTestAssessmentTest(TEST_FILE_PATH), true).initialize();
+        testSessionState = new TestSessionState(new TestPlanner(testProcessingMap).generateTestPlan());
+        final TestSessionController testSessionController = new TestSessionController(UnitTestHelper.createJqtiExtensionManager(),
+                new TestSessionControllerSettings(), testProcessingMap, testSessionState);
+        testSessionController.initialize(new Date());
+    }
+
+    @Test
+    public void testFull() throws Exception {
+        final Element element = marshal(TestSessionStateProjection.FULL);
+        assertEquals(testSessionState, TestSessionStateXmlMarshaller.unmarshal(element));
+    }
+
+    @Test
+    public void testOutcomesOnly() throws Exception {
+        final Element element = marshal(TestSessionStateProjection.OUTCOMES_ONLY);
+        assertEquals(0, countElements(element, "testPlan"));
+        assertEquals(0, countElements(element, "item"));
+        assertEquals(testSessionState.getOutcomeValues().size(), countElements(element, "outcomeVariable"));
+    }
+
+    @Test
+    public void testPathToItem() throws Exception {
+        final TestPlanNode itemRefNode = getNode("i1");
+        final Element element = marshal(TestSessionStateProjection.pathTo(itemRefNode.getKey()));
+        assertEquals("p s1 i1", describeTestPlanNodes(element));
+        assertEquals(1, countElements(element, "item"));
+        assertItemSessionStatesSummarised(element);
+    }
+
+    @Test
+    public void testPathToSection() throws Exception {
+        final Element element = marshal(TestSessionStateProjection.pathTo(getNode("s2").getKey()));
+        assertEquals("p s2 i4 i5", describeTestPlanNodes(element));
+        assertEquals(2, countElements(element, "item"));
+    }
+
+    @Test
+    public void testSubtree() throws Exception {
+        final Element element = marshal(TestSessionStateProjection.subtree(getNode("p").getKey()));
+        assertEquals("p s1 i1 i2 i3 s2 i4 i5", describeTestPlanNodes(element));
+        assertEquals(5, countElements(element, "item"));
+        assertItemSessionStatesSummarised(element);
+    }
+
+    //-------------------------------------------------------
+
+    private TestPlanNode getNode(final String identifier) {
+        return testSessionState.getTestPlan().getNodes(Identifier.assumedLegal(identifier)).get(0);
+    }
+
+    private Element marshal(final TestSessionStateProjection projection) throws Exception {
+        final Source source = TestSessionStateXmlMarshaller.marshalToSaxSource(testSessionState, projection);
+        final Transformer transformer = XsltFactoryUtilities.createJAXPTransformerFactory().newTransformer();
+        final DOMResult result = new DOMResult();
+        transformer.transform(source, result);
+        return ((Document) result.getNode()).getDocumentElement();
+    }
+
+    private static int countElements(final Element element, final String localName) {
+        return element.getElementsByTagNameNS(XmlMarshallerCore.QTIWORKS_NAMESPACE, localName).getLength();
+    }
+
+    private static String describeTestPlanNodes(final Element element) {
+        final NodeList nodeElements = element.getElementsByTagNameNS(XmlMarshallerCore.QTIWORKS_NAMESPACE, "node");
+        final List<String> identifiers = new ArrayList<String>();
+        for (int i=0; i<nodeElements.getLength(); i++) {
+            final String key = ((Element) nodeElements.item(i)).getAttribute("key");
+            identifiers.add(key.substring(0, key.indexOf(':')));
+        }
+        return StringUtilities.join(identifiers, " ");
+    }
+
+    private static void assertItemSessionStatesSummarised(final Element element) {
+        final NodeList itemSessionStateElements = element.getElementsByTagNameNS(XmlMarshallerCore.QTIWORKS_NAMESPACE, "itemSessionState");
+        for (int i=0; i<itemSessionStateElements.getLength(); i++) {
+            final Element itemSessionStateElement = (Element) itemSessionStateElements.item(i);
+            assertEquals("false", itemSessionStateElement.getAttribute("hasUncommittedResponses"));
+            assertEquals(0, itemSessionStateElement.getChildNodes().getLength());
+        }
+    }
+}
@@ -0,0 +1,311 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.jqtiplus.xmlutils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import uk.ac.ed.ph.jqtiplus.xmlutils.locators.ClassPathResourceLocator;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.validation.Schema;
+import javax.xml.validation.TypeInfoProvider;
+import javax.xml.validation.Validator;
+import javax.xml.validation.ValidatorHandler;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.ls.LSResourceResolver;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+
+/**
+ * Tests the {@link XmlResourceReader}, using the small schema in <code>xmlutils/test.xsd</code>
+ *
+ * @author David McKain
+ */
+public class XmlResourceReaderTest {
+
+    public static final String TEST_NAMESPACE_URI = "urn:x-qtiworks:xmlresourcereadertest";
+
+    @Test
+    public void testValid() throws Exception {
+        final XmlReadResult result = read("valid.xml", new SimpleSchemaCache());
+        final XmlParseResult parseResult = result.getXmlParseResult();
+
+        assertEquals(2, countEntries(result.getDocument()));
+        assertTrue(parseResult.isParsed());
+        assertTrue(parseResult.isValidated());
+        assertTrue(parseResult.isSchemaValid());
+        assertEquals(0, parseResult.getFatalErrors().size());
+        assertEquals(0, parseResult.getErrors().size());
+        assertEquals(1, parseResult.getSupportedSchemaNamespaces().size());
+    }
+
+    @Test
+    public void testInvalid() throws Exception {
+        final XmlReadResult result = read("invalid.xml", new SimpleSchemaCache());
+        final XmlParseResult parseResult = result.getXmlParseResult();
+
+        assertEquals(2, countEntries(result.getDocument()));
+        assertTrue(parseResult.isParsed());
+        assertTrue(parseResult.isValidated());
+        assertFalse(parseResult.isSchemaValid());
+        assertEquals(0, parseResult.getFatalErrors().size());
+        assertTrue(parseResult.getErrors().size() > 0);
+    }
+
+    @Test
+    public void testValidatorAborted() throws Exception {
+        final XmlReadResult result = read("valid.xml", new AbortingSchemaCache());
+        final XmlParseResult parseResult = result.getXmlParseResult();
+
+        /* Parsing should carry on and build the whole DOM, but validation should not count */
+        assertEquals(2, countEntries(result.getDocument()));
+        assertTrue(parseResult.isParsed());
+        assertFalse(parseResult.isValidated());
+        assertFalse(parseResult.isSchemaValid());
+        assertEquals(1, parseResult.getFatalErrors().size());
+        assertEquals(0, parseResult.getErrors().size());
+    }
+
+    @Test
+    public void testXInclude() throws Exception {
+        final XmlReadResult result = read("xinclude.xml", new SimpleSchemaCache());
+        final XmlParseResult parseResult = result.getXmlParseResult();
+
+        /* The schema allows neither xi:include nor xml:base, so this is only valid once expanded
+         * without base URI fixup */
+        assertEquals(2, countEntries(result.getDocument()));
+        assertTrue(parseResult.isParsed());
+        assertTrue(parseResult.isValidated());
+        assertTrue(parseResult.isSchemaValid());
+    }
+
+    @Test
+    public void testXIncludeInvalid() throws Exception {
+        final XmlReadResult result = read("xinclude-invalid.xml", new SimpleSchemaCache());
+        final XmlParseResult parseResult = result.getXmlParseResult();
+
+        /* Validation sees the included content, so should report the bad entry within it */
+        assertEquals(2, countEntries(result.getDocument()));
+        assertTrue(parseResult.isParsed());
+        assertTrue(parseResult.isValidated());
+        assertFalse(parseResult.isSchemaValid());
+        assertTrue(parseResult.getErrors().size() > 0);
+    }
+
+    @Test
+    public void testNoValidate() throws Exception {
+        final XmlReadResult result = createXmlResourceReader(new SimpleSchemaCache()).read(makeSystemId("invalid.xml"),
+                new ClassPathResourceLocator(), new ClassPathResourceLocator(), false);
+        final XmlParseResult parseResult = result.getXmlParseResult();
+
+        assertNotNull(result.getDocument());
+        assertTrue(parseResult.isParsed());
+        assertFalse(parseResult.isValidated());
+        assertEquals(0, parseResult.getErrors().size());
+    }
+
+    @Test(expected=XmlResourceNotFoundException.class)
+    public void testNotFound() throws Exception {
+        read("notfound.xml", null);
+    }
+
+    //-------------------------------
+
+    private static XmlReadResult read(final String fileName, final SchemaCache schemaCache)
+            throws XmlResourceNotFoundException {
+        final ClassPathResourceLocator locator = new ClassPathResourceLocator();
+        return createXmlResourceReader(schemaCache).read(makeSystemId(fileName), locator, locator, true);
+    }
+
+    private static XmlResourceReader createXmlResourceReader(final SchemaCache schemaCache) {
+        final Map<String, String> registeredSchemaMap = new HashMap<String, String>();
+        registeredSchemaMap.put(TEST_NAMESPACE_URI, "classpath:/xmlutils/test.xsd");
+        return new XmlResourceReader(new ClassPathResourceLocator(), registeredSchemaMap, schemaCache);
+    }
+
+    private static URI makeSystemId(final String fileName) {
+        return URI.create("classpath:/xmlutils/" + fileName);
+    }
+
+    private static int countEntries(final Document document) {
+        return document.getElementsByTagNameNS(TEST_NAMESPACE_URI, "entry").getLength();
+    }
+
+    //-------------------------------
+
+    /**
+     * {@link SchemaCache} that always supplies an {@link AbortingSchema}
+     */
+    static final class AbortingSchemaCache implements SchemaCache {
+
+        @Override
+        public Schema getSchema(final String key) {
+            return new AbortingSchema();
+        }
+
+        @Override
+        public void putSchema(final String key, final Schema schema) {
+            /* (Nothing to do) */
+        }
+    }
+
+    /**
+     * {@link Schema} whose {@link ValidatorHandler} fails when it reaches the second
+     * <code>entry</code> element, simulating a validator giving up part of the way through.
+     */
+    static final class AbortingSchema extends Schema {
+
+        @Override
+        public Validator newValidator() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ValidatorHandler newValidatorHandler() {
+            return new AbortingValidatorHandler();
+        }
+    }
+
+    static final class AbortingValidatorHandler extends ValidatorHandler {
+
+        private ContentHandler contentHandler;
+        private ErrorHandler errorHandler;
+        private LSResourceResolver resourceResolver;
+        private int entryCount;
+
+        @Override
+        public void startElement(final String uri, final String localName, final String qName, final Attributes atts)
+                throws SAXException {
+            if ("entry".equals(localName) && ++entryCount==2) {
+                throw new SAXException("Validator gave up");
+            }
+        }
+
+        @Override
+        public void setContentHandler(final ContentHandler contentHandler) {
+            this.contentHandler = contentHandler;
+        }
+
+        @Override
+        public ContentHandler getContentHandler() {
+            return contentHandler;
+        }
+
+        @Override
+        public void setErrorHandler(final ErrorHandler errorHandler) {
+            this.errorHandler = errorHandler;
+        }
+
+        @Override
+        public ErrorHandler getErrorHandler() {
+            return errorHandler;
+        }
+
+        @Override
+        public void setResourceResolver(final LSResourceResolver resourceResolver) {
+            this.resourceResolver = resourceResolver;
+        }
+
+        @Override
+        public LSResourceResolver getResourceResolver() {
+            return resourceResolver;
+        }
+
+        @Override
+        public TypeInfoProvider getTypeInfoProvider() {
+            return null;
+        }
+
+        @Override
+        public void setDocumentLocator(final Locator locator) {
+            /* (Ignored) */
+        }
+
+        @Override
+        public void startDocument() {
+            /* (Ignored) */
+        }
+
+        @Override
+        public void endDocument() {
+            /* (Ignored) */
+        }
+
+        @Override
+        public void startPrefixMapping(final String prefix, final String uri) {
+            /* (Ignored) */
+        }
+
+        @Override
+        public void endPrefixMapping(final String prefix) {
+            /* (Ignored) */
+        }
+
+        @Override
+        public void endElement(final String uri, final String localName, final String qName) {
+            /* (Ignored) */
+        }
+
+        @Override
+        public void characters(final char[] ch, final int start, final int length) {
+            /* (Ignored) */
+        }
+
+        @Override
+        public void ignorableWhitespace(final char[] ch, final int start, final int length) {
+            /* (Ignored) */
+        }
+
+        @Override
+        public void processingInstruction(final String target, final String data) {
+            /* (Ignored) */
+        }
+
+        @Override
+        public void skippedEntity(final String name) {
+            /* (Ignored) */
+        }
+    }
+}
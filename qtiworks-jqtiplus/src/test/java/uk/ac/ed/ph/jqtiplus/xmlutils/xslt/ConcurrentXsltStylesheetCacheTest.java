@@ -0,0 +1,151 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.jqtiplus.xmlutils.xslt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link ConcurrentXsltStylesheetCache} class
+ *
+ * @author David McKain
+ */
+public class ConcurrentXsltStylesheetCacheTest {
+
+    @Test
+    public void testPutThenGet() {
+        final ConcurrentXsltStylesheetCache cache = new ConcurrentXsltStylesheetCache();
+        final Templates templates = new DummyTemplates();
+        assertNull(cache.getStylesheet("key"));
+
+        cache.putStylesheet("key", templates);
+        assertSame(templates, cache.getStylesheet("key"));
+    }
+
+    @Test
+    public void testCompiledOnceWhenContended() throws Exception {
+        final ConcurrentXsltStylesheetCache cache = new ConcurrentXsltStylesheetCache();
+        final AtomicInteger compileCount = new AtomicInteger();
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        final Callable<Templates> compiler = new Callable<Templates>() {
+            @Override
+            public Templates call() throws Exception {
+                compileCount.incrementAndGet();
+                Thread.sleep(50);
+                return new DummyTemplates();
+            }
+        };
+
+        final int threadCount = 8;
+        final ExecutorService executorService = Executors.newFixedThreadPool(threadCount);
+        try {
+            final List<Future<Templates>> results = new ArrayList<Future<Templates>>(threadCount);
+            for (int i=0; i<threadCount; i++) {
+                results.add(executorService.submit(new Callable<Templates>() {
+                    @Override
+                    public Templates call() throws Exception {
+                        startLatch.await();
+                        return cache.getStylesheet("key", compiler);
+                    }
+                }));
+            }
+            startLatch.countDown();
+            final Templates first = results.get(0).get(10, TimeUnit.SECONDS);
+            for (final Future<Templates> result : results) {
+                assertSame(first, result.get(10, TimeUnit.SECONDS));
+            }
+            assertEquals(1, compileCount.get());
+        }
+        finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testFailureNotCached() {
+        final ConcurrentXsltStylesheetCache cache = new ConcurrentXsltStylesheetCache();
+        try {
+            cache.getStylesheet("key", new Callable<Templates>() {
+                @Override
+                public Templates call() {
+                    throw new QtiSerializationException("Expected failure");
+                }
+            });
+            fail("Expected QtiSerializationException");
+        }
+        catch (final QtiSerializationException e) {
+            /* Expected */
+        }
+        assertNull(cache.getStylesheet("key"));
+
+        final Templates templates = new DummyTemplates();
+        assertSame(templates, cache.getStylesheet("key", new Callable<Templates>() {
+            @Override
+            public Templates call() {
+                return templates;
+            }
+        }));
+    }
+
+    private static final class DummyTemplates implements Templates {
+
+        @Override
+        public Transformer newTransformer() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Properties getOutputProperties() {
+            return new Properties();
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.qtiworks.test.benchmark;
+
+import uk.ac.ed.ph.qtiworks.samples.LanguageSampleSet;
+import uk.ac.ed.ph.qtiworks.samples.QtiSampleAssessment;
+import uk.ac.ed.ph.qtiworks.samples.QtiSampleAssessment.Feature;
+import uk.ac.ed.ph.qtiworks.samples.QtiSampleSet;
+import uk.ac.ed.ph.qtiworks.samples.QtiworksRegressionSampleSet;
+import uk.ac.ed.ph.qtiworks.samples.StandardQtiSampleSet;
+import uk.ac.ed.ph.qtiworks.samples.StompSampleSet;
+import uk.ac.ed.ph.qtiworks.samples.UpmcSampleSet;
+
+import uk.ac.ed.ph.jqtiplus.JqtiExtensionManager;
+import uk.ac.ed.ph.jqtiplus.attribute.Attribute;
+import uk.ac.ed.ph.jqtiplus.attribute.AttributeList;
+import uk.ac.ed.ph.jqtiplus.group.NodeGroup;
+import uk.ac.ed.ph.jqtiplus.group.NodeGroupList;
+import uk.ac.ed.ph.jqtiplus.node.AssessmentObjectType;
+import uk.ac.ed.ph.jqtiplus.node.QtiNode;
+import uk.ac.ed.ph.jqtiplus.reading.AssessmentObjectXmlLoader;
+import uk.ac.ed.ph.jqtiplus.reading.QtiXmlReader;
+import uk.ac.ed.ph.jqtiplus.running.ItemProcessingInitializer;
+import uk.ac.ed.ph.jqtiplus.running.ItemSessionController;
+import uk.ac.ed.ph.jqtiplus.running.ItemSessionControllerSettings;
+import uk.ac.ed.ph.jqtiplus.state.ItemProcessingMap;
+import uk.ac.ed.ph.jqtiplus.state.ItemSessionState;
+import uk.ac.ed.ph.jqtiplus.validation.ItemValidationResult;
+import uk.ac.ed.ph.jqtiplus.xmlutils.locators.ClassPathResourceLocator;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Simple timing harness for the lookup of attributes and node groups by name, run over the valid
+ * items in the sample sets that don't need the MathAssess extensions.
+ * <p>
+ * This times two things:
+ * <ol>
+ *   <li>looking up every attribute and node group of every node in each item by name, which
+ *     is what the typed getters on each node do;</li>
+ *   <li>running template and response processing on each item, which makes heavy use of these
+ *     getters.</li>
+ * </ol>
+ * Each is warmed up before being measured. To compare implementations, run this against each
+ * version of JQTI+ in turn on the same JVM.
+ * <p>
+ * This is not run as part of the build. You can run it via Maven as follows:
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=uk.ac.ed.ph.qtiworks.test.benchmark.NodeLookupBenchmark
+ * </pre>
+ * The number of measured rounds may be passed as the first argument.
+ *
+ * @author David McKain
+ */
+public final class NodeLookupBenchmark {
+
+    private static final int WARMUP_ROUNDS = 20;
+    private static final int DEFAULT_MEASURED_ROUNDS = 50;
+
+    private final JqtiExtensionManager jqtiExtensionManager;
+    private final List<ItemProcessingMap> itemProcessingMaps;
+    private final List<QtiNode> nodes;
+
+    public NodeLookupBenchmark() {
+        this.jqtiExtensionManager = new JqtiExtensionManager();
+        this.itemProcessingMaps = new ArrayList<ItemProcessingMap>();
+        this.nodes = new ArrayList<QtiNode>();
+    }
+
+    public static void main(final String[] args) {
+        final int measuredRounds = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_MEASURED_ROUNDS;
+        final NodeLookupBenchmark benchmark = new NodeLookupBenchmark();
+        benchmark.jqtiExtensionManager.init();
+        try {
+            benchmark.loadSamples(StandardQtiSampleSet.instance(),
+                    UpmcSampleSet.instance(),
+                    StompSampleSet.instance(),
+                    LanguageSampleSet.instance(),
+                    QtiworksRegressionSampleSet.instance());
+            System.out.println("Loaded " + benchmark.itemProcessingMaps.size() + " items containing "
+                    + benchmark.nodes.size() + " nodes");
+
+            final int lookupsPerRound = benchmark.runLookups();
+            for (int i=0; i<WARMUP_ROUNDS; i++) {
+                benchmark.runLookups();
+            }
+            long startTime = System.nanoTime();
+            for (int i=0; i<measuredRounds; i++) {
+                benchmark.runLookups();
+            }
+            long duration = System.nanoTime() - startTime;
+            System.out.printf("Lookups: %.1f ns per lookup (%d lookups per round)%n",
+                    Double.valueOf((double) duration / ((long) lookupsPerRound * measuredRounds)),
+                    Integer.valueOf(lookupsPerRound));
+
+            for (int i=0; i<WARMUP_ROUNDS; i++) {
+                benchmark.runProcessing();
+            }
+            startTime = System.nanoTime();
+            for (int i=0; i<measuredRounds; i++) {
+                benchmark.runProcessing();
+            }
+            duration = System.nanoTime() - startTime;
+            System.out.printf("Processing: %.1f us per item%n",
+                    Double.valueOf((double) duration / (1000L * benchmark.itemProcessingMaps.size() * measuredRounds)));
+        }
+        finally {
+            benchmark.jqtiExtensionManager.destroy();
+        }
+    }
+
+    private void loadSamples(final QtiSampleSet... qtiSampleSets) {
+        final AssessmentObjectXmlLoader assessmentObjectXmlLoader = new AssessmentObjectXmlLoader(new QtiXmlReader(jqtiExtensionManager),
+                new ClassPathResourceLocator());
+        for (final QtiSampleSet qtiSampleSet : qtiSampleSets) {
+            final QtiSampleSet itemSet = qtiSampleSet.havingType(AssessmentObjectType.ASSESSMENT_ITEM)
+                    .withoutFeatures(Feature.NOT_SCHEMA_VALID, Feature.REQUIRES_MATHASSES);
+            for (final QtiSampleAssessment qtiSampleAssessment : itemSet) {
+                final ItemValidationResult itemValidationResult = assessmentObjectXmlLoader.loadResolveAndValidateItem(qtiSampleAssessment.assessmentClassPathUri());
+                if (itemValidationResult.isValid()) {
+                    itemProcessingMaps.add(new ItemProcessingInitializer(itemValidationResult).initialize());
+                    collectNodes(itemValidationResult.getResolvedAssessmentItem().getRootNodeLookup().extractAssumingSuccessful());
+                }
+            }
+        }
+    }
+
+    private void collectNodes(final QtiNode node) {
+        nodes.add(node);
+        for (final QtiNode child : node) {
+            collectNodes(child);
+        }
+    }
+
+    private int runLookups() {
+        int lookupCount = 0;
+        for (final QtiNode node : nodes) {
+            final AttributeList attributes = node.getAttributes();
+            for (int i=0, size=attributes.size(); i<size; i++) {
+                final Attribute<?> attribute = attributes.get(i);
+                if (attributes.get(attribute.getLocalName(), attribute.getNamespaceUri())!=attribute) {
+                    throw new IllegalStateException("Unexpected attribute lookup result");
+                }
+                lookupCount++;
+            }
+            final NodeGroupList nodeGroups = node.getNodeGroups();
+            for (int i=0, size=nodeGroups.size(); i<size; i++) {
+                final NodeGroup<?,?> nodeGroup = nodeGroups.get(i);
+                nodeGroups.get(nodeGroup.getName());
+                lookupCount++;
+            }
+        }
+        return lookupCount;
+    }
+
+    private void runProcessing() {
+        final ItemSessionControllerSettings itemSessionControllerSettings = new ItemSessionControllerSettings();
+        final Date timestamp = new Date();
+        for (final ItemProcessingMap itemProcessingMap : itemProcessingMaps) {
+            final ItemSessionController itemSessionController = new ItemSessionController(jqtiExtensionManager,
+                    itemSessionControllerSettings, itemProcessingMap, new ItemSessionState());
+            itemSessionController.initialize(timestamp);
+            itemSessionController.performTemplateProcessing(timestamp);
+            itemSessionController.enterItem(timestamp);
+            itemSessionController.performResponseProcessing(timestamp);
+        }
+    }
+}